@@ -0,0 +1,55 @@
+package jrds;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestArrayJrdsSample {
+    static final private Logger logger = Logger.getLogger(TestArrayJrdsSample.class);
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE);
+    }
+
+    @Test
+    public void testMap() {
+        ArrayJrdsSample.Layout layout = new ArrayJrdsSample.Layout(new String[] { "a", "b", "c" });
+        ArrayJrdsSample sample = new ArrayJrdsSample(null, layout);
+        Assert.assertTrue(sample.isEmpty());
+
+        sample.put("a", 1);
+        sample.put(layout.getSlot("c"), 3.0);
+        sample.put("other", 4L);
+        Assert.assertEquals(3, sample.size());
+        Assert.assertEquals(1.0, sample.get("a").doubleValue(), 1e-10);
+        Assert.assertNull(sample.get("b"));
+        Assert.assertFalse(sample.containsKey("b"));
+        Assert.assertEquals(4L, sample.get("other"));
+        Assert.assertEquals(1, sample.getUnknown().size());
+
+        Map<String, Number> expected = new HashMap<String, Number>();
+        expected.put("a", 1.0);
+        expected.put("c", 3.0);
+        expected.put("other", 4L);
+        Assert.assertEquals(expected, sample);
+
+        Assert.assertEquals(1.0, sample.remove("a").doubleValue(), 1e-10);
+        Iterator<Map.Entry<String, Number>> i = sample.entrySet().iterator();
+        Assert.assertEquals("c", i.next().getKey());
+        i.remove();
+        Assert.assertEquals(1, sample.size());
+        Assert.assertFalse(sample.isSet(layout.getSlot("c")));
+        sample.clear();
+        Assert.assertTrue(sample.isEmpty());
+    }
+
+}
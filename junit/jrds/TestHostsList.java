@@ -1,12 +1,22 @@
 package jrds;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import jrds.mockobjects.Full;
+import jrds.mockobjects.GenerateProbe;
+import jrds.probe.AggregateProbe;
+import jrds.starter.HostStarter;
+
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.junit.Assert;
@@ -71,7 +81,7 @@ public class TestHostsList {
         Map<String, GraphDesc> gdmap = new HashMap<String, GraphDesc>();
         gdmap.put(gd.getName(), gd);
         Set<Tab> tabs = new HashSet<Tab>();
-        Map<Integer, GraphNode> graphMap = new HashMap<Integer, GraphNode>();
+        Map<String, GraphNode> graphMap = new HashMap<String, GraphNode>();
         Map<String, GraphTree> graphTrees = new HashMap<String, GraphTree>();
         hl.doCustomGraphs(gdmap, graphMap, graphTrees, tabs);
         hl.addGraphs(graphMap.values());
@@ -84,8 +94,170 @@ public class TestHostsList {
                 node = t.getGraphTree().enumerateChildsGraph().get(0);
             }
         }
-        Assert.assertNotNull(graphMap.get(node.hashCode()));
+        Assert.assertNotNull(graphMap.get(node.getQualifiedName()));
         Assert.assertTrue(found);
         Assert.assertNotEquals(graphTrees.size(), 0);
     }
+
+    private Probe<?, ?> addProbe(HostsList hl, PropertiesManager pm, HostInfo host) throws Exception {
+        @SuppressWarnings("unchecked")
+        Probe<?, ?> p = GenerateProbe.quickProbe(testFolder, GenerateProbe.ChainedMap.start().set(ProbeDesc.class, Full.getPd()).set(PropertiesManager.class, pm));
+        p.setHost(new HostStarter(host));
+        GraphDesc gd = Full.getGd();
+        gd.setTree(PropertiesManager.HOSTSTAB, Arrays.asList("${host}", gd.getName()));
+        p.addGraph(gd);
+        hl.addHost(host);
+        hl.addProbe(p);
+        return p;
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        HostsList hl = new HostsList(pm);
+        // "Aa" and "BB" have the same hash code
+        HostInfo host1 = new HostInfo("Aa");
+        host1.addTag("tag1");
+        HostInfo host2 = new HostInfo("BB");
+        Probe<?, ?> p1 = addProbe(hl, pm, host1);
+        Probe<?, ?> p2 = addProbe(hl, pm, host2);
+        Assert.assertEquals(p1.hashCode(), p2.hashCode());
+
+        Assert.assertSame(p1, hl.getProbeByName(p1.getQualifiedName()));
+        Assert.assertSame(p2, hl.getProbeByName(p2.getQualifiedName()));
+        Assert.assertSame(p2, hl.getProbeByPath("BB", p2.getName()));
+        Assert.assertSame("first probe not kept", p1, hl.getProbeById(p1.hashCode()));
+        GraphNode gn2 = p2.getGraphList().iterator().next();
+        Assert.assertSame(gn2, hl.getGraphByName(gn2.getQualifiedName()));
+
+        Assert.assertSame(host1, hl.getHost("Aa"));
+        Assert.assertEquals(Collections.singleton(host1), hl.getHostsByTag("tag1"));
+        Assert.assertTrue(hl.getHostsByTag("notag").isEmpty());
+        Assert.assertEquals(p1.getGraphList(), hl.getGraphsByTag("tag1"));
+        Assert.assertEquals(p1.getGraphList(), new ArrayList<GraphNode>(hl.getGraphs(new FilterTag("tag1"))));
+        Assert.assertEquals(2, hl.getGraphs(hl.getFilter(Filter.ALLHOSTS.getName())).size());
+
+        // A new probe is seen by the next lookups
+        HostInfo host3 = new HostInfo("host3");
+        host3.addTag("tag1");
+        addProbe(hl, pm, host3);
+        Assert.assertEquals(2, hl.getHostsByTag("tag1").size());
+        Assert.assertEquals(3, hl.getGraphs(hl.getFilter(Filter.ALLHOSTS.getName())).size());
+    }
+
+    static final private String mokeDescXml = 
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>" +
+                    "<!DOCTYPE probedesc PUBLIC \"-//jrds//DTD Probe Description//EN\" \"urn:jrds:probedesc\">" +
+                    "<probedesc>" +
+                    "<name>MokeDesc</name>" +
+                    "<probeName>moke</probeName>" +
+                    "<probeClass>jrds.mockobjects.MokeProbe</probeClass>" +
+                    "<ds><dsName>%s</dsName><dsType>gauge</dsType></ds>" +
+                    "<graphs />" +
+                    "</probedesc>";
+
+    static final private String mokeHostXml = 
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>" +
+                    "<!DOCTYPE host PUBLIC \"-//jrds//DTD Host//EN\" \"urn:jrds:host\">" +
+                    "<host name=\"%s\">" +
+                    "<tag>%s</tag>" +
+                    "<probe type=\"MokeDesc\" />" +
+                    "</host>";
+
+    private void writeConfig(PropertiesManager pm, String name, String content) throws IOException {
+        FileWriter writer = new FileWriter(new File(pm.configdir, name + ".xml"));
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private Probe<?, ?> getProbe(HostsList hl, String hostName) {
+        Iterator<Probe<?, ?>> i = hl.getHost(hostName).getProbes().iterator();
+        return i.hasNext() ? i.next() : null;
+    }
+
+    @Test
+    public void testIncremental() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        writeConfig(pm, "desc", String.format(mokeDescXml, "value"));
+        writeConfig(pm, "host1", String.format(mokeHostXml, "host1", "tag1"));
+        writeConfig(pm, "host2", String.format(mokeHostXml, "host2", "tag1"));
+        HostsList hl1 = new HostsList(pm);
+        Probe<?, ?> p1 = getProbe(hl1, "host1");
+        Probe<?, ?> p2 = getProbe(hl1, "host2");
+        Assert.assertNotNull(p1);
+        Assert.assertNotNull(p2);
+
+        // Only host2 changed
+        writeConfig(pm, "host2", String.format(mokeHostXml, "host2", "tag2"));
+        HostsList hl2 = new HostsList(pm, hl1);
+        Assert.assertSame("unchanged host rebuilt", p1, getProbe(hl2, "host1"));
+        // The previous hosts list is untouched until it's stopped
+        Assert.assertSame(hl1, p1.getHostList());
+        Assert.assertEquals(1, hl2.getKeptHosts().size());
+        hl1.stop(hl2.getKeptHosts());
+        hl2.adoptKeptHosts(hl1);
+        Assert.assertSame(hl2, p1.getHostList());
+        Assert.assertNotSame(p2, getProbe(hl2, "host2"));
+        Assert.assertEquals(Collections.singleton(hl2.getHost("host2")), hl2.getHostsByTag("tag2"));
+        int hosts = 0;
+        for(jrds.starter.Timer t: hl2.getTimers()) {
+            for(HostStarter hs: t.getAllHosts()) {
+                Assert.assertSame(t, hs.getParent());
+                hosts++;
+            }
+        }
+        Assert.assertEquals(2, hosts);
+
+        // The probe description changed, every host using it is rebuilt
+        writeConfig(pm, "desc", String.format(mokeDescXml, "other"));
+        HostsList hl3 = new HostsList(pm, hl2);
+        Assert.assertTrue(hl3.getKeptHosts().isEmpty());
+        Assert.assertNotSame(p1, getProbe(hl3, "host1"));
+        Assert.assertTrue(getProbe(hl3, "host1").getPd().getDs().contains("other"));
+    }
+
+    static final private String aggregateXml =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>" +
+                    "<!DOCTYPE aggregate PUBLIC \"-//jrds//DTD Aggregate//EN\" \"urn:jrds:aggregate\">" +
+                    "<aggregate name=\"all\">" +
+                    "<probedesc>MokeDesc</probedesc>" +
+                    "<tag>tag1</tag>" +
+                    "</aggregate>";
+
+    private AggregateProbe getAggregate(HostsList hl) {
+        return (AggregateProbe) hl.getProbeByPath(AggregateProbe.HOSTNAME, "all");
+    }
+
+    @Test
+    public void testIncrementalAggregate() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        writeConfig(pm, "desc", String.format(mokeDescXml, "value"));
+        writeConfig(pm, "host1", String.format(mokeHostXml, "host1", "tag1"));
+        writeConfig(pm, "host2", String.format(mokeHostXml, "host2", "tag1"));
+        writeConfig(pm, "aggregate", aggregateXml);
+        HostsList hl1 = new HostsList(pm);
+        Probe<?, ?> p1 = getProbe(hl1, "host1");
+        AggregateProbe ap1 = getAggregate(hl1);
+        Assert.assertNotNull(ap1);
+        Assert.assertEquals(2, ap1.getMembers().size());
+        int stores = p1.getStores().size();
+
+        writeConfig(pm, "host2", String.format(mokeHostXml, "host2", "tag2"));
+        HostsList hl2 = new HostsList(pm, hl1);
+        Assert.assertSame(p1, getProbe(hl2, "host1"));
+        AggregateProbe ap2 = getAggregate(hl2);
+        Assert.assertNotNull(ap2);
+        Assert.assertNotSame(ap1, ap2);
+        Assert.assertEquals(Collections.singleton(p1), ap2.getMembers());
+        // Still only the old aggregate receives the samples of the kept probe
+        Assert.assertEquals(stores, p1.getStores().size());
+        hl1.stop(hl2.getKeptHosts());
+        hl2.adoptKeptHosts(hl1);
+        // Now only the new one
+        Assert.assertTrue(ap1.getMembers().isEmpty());
+        Assert.assertEquals(stores, p1.getStores().size());
+    }
 }
@@ -118,4 +118,49 @@ public class TestProbe {
         Assert.assertEquals("Default value overwrite read value", 2, p.getLastValues().get("ds1").doubleValue(), 0.1);
     }
 
+    @Test
+    public void testInjectSlots() throws Exception {
+        ProbeDesc pd = new ProbeDesc();
+        pd.setName("empty");
+        pd.setProbeName("empty");
+        Map<String, Object> dsMap = new HashMap<String, Object>();
+        dsMap.put("dsName", "ds0");
+        dsMap.put("dsType", DsType.GAUGE);
+        dsMap.put("collect", "key0");
+        pd.add(dsMap);
+        dsMap.clear();
+        dsMap.put("dsName", "ds1");
+        dsMap.put("dsType", DsType.GAUGE);
+        dsMap.put("defaultValue", "1");
+        pd.add(dsMap);
+
+        GenerateProbe.ChainedMap<Object> args = GenerateProbe.ChainedMap.start();
+        args.set(ProbeDesc.class, pd).set(Probe.class, DummyProbe.class);
+        @SuppressWarnings("unchecked")
+        MokeProbe<String, Number> p = (MokeProbe<String, Number>) GenerateProbe.quickProbe(testFolder, args);
+
+        HostStarter host = new HostStarter(new HostInfo("DummyHost"));
+        host.setParent(Tools.getDefaultTimer());
+        host.getHost().setHostDir(testFolder.newFolder("testInjectSlots"));
+        p.setHost(host);
+        Assert.assertTrue("Failed to create storage", p.checkStore());
+
+        Map<String, Number> val = new HashMap<String, Number>();
+        val.put("key0", 2L);
+        val.put("unknown", 3L);
+        ArrayJrdsSample sample = (ArrayJrdsSample) p.newSample();
+        Assert.assertTrue(p.injectSample(sample, val));
+        ArrayJrdsSample.Layout layout = sample.getLayout();
+        Assert.assertEquals(2, sample.getValue(layout.getSlot("ds0")), 1e-10);
+        Assert.assertEquals(1, sample.getValue(layout.getSlot("ds1")), 1e-10);
+        Assert.assertEquals(2, sample.size());
+        Assert.assertTrue(sample.getUnknown().isEmpty());
+
+        // The collected value replaces the default one
+        val.put("ds1", 4L);
+        sample = (ArrayJrdsSample) p.newSample();
+        Assert.assertTrue(p.injectSample(sample, val));
+        Assert.assertEquals(4, sample.getValue(layout.getSlot("ds1")), 1e-10);
+    }
+
 }
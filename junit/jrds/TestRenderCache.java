@@ -0,0 +1,78 @@
+package jrds;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestRenderCache {
+    static final private Logger logger = Logger.getLogger(TestRenderCache.class);
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE, "jrds.RenderCache");
+    }
+
+    private byte[] image(int size, int value) {
+        byte[] img = new byte[size];
+        img[0] = (byte) value;
+        return img;
+    }
+
+    @Test
+    public void testTiers() throws IOException {
+        File dir = testFolder.newFolder();
+        RenderCache cache = new RenderCache(250, 250, dir);
+        cache.put("a", image(100, 1));
+        cache.put("b", image(100, 2));
+        Assert.assertEquals(200, cache.getMemorySize());
+        // a is the least recently used, it goes to disk
+        cache.put("c", image(100, 3));
+        Assert.assertEquals(200, cache.getMemorySize());
+        Assert.assertEquals(100, cache.getDiskSize());
+        Assert.assertEquals(1, dir.list().length);
+        Assert.assertTrue(cache.contains("a"));
+
+        // read back from disk, b goes to disk
+        Assert.assertEquals(1, cache.get("a")[0]);
+        Assert.assertEquals(1, cache.getDiskHits());
+        Assert.assertEquals(100, cache.getDiskSize());
+        Assert.assertEquals(2, cache.get("b")[0]);
+
+        Assert.assertNull(cache.get("d"));
+        Assert.assertEquals(1, cache.getMisses());
+
+        cache.put("d", image(100, 4));
+        cache.put("e", image(100, 5));
+        cache.put("f", image(100, 6));
+        // The disk tier is full too, the oldest images are dropped
+        Assert.assertTrue(cache.getDiskSize() <= 250);
+        Assert.assertEquals(cache.getDiskSize() / 100, dir.list().length);
+
+        cache.clear();
+        Assert.assertFalse(cache.contains("f"));
+        Assert.assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testNoDisk() throws IOException {
+        RenderCache cache = new RenderCache(150, 0, testFolder.newFolder());
+        cache.put("a", image(100, 1));
+        cache.put("b", image(100, 2));
+        Assert.assertFalse(cache.contains("a"));
+        Assert.assertTrue(cache.contains("b"));
+        cache.remove("b");
+        Assert.assertEquals(0, cache.getMemorySize());
+    }
+
+}
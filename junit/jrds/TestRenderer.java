@@ -0,0 +1,225 @@
+package jrds;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jrds.mockobjects.GenerateProbe;
+import jrds.mockobjects.GetMoke;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.DsType;
+
+public class TestRenderer {
+    static final Logger logger = Logger.getLogger(TestRenderer.class);
+    PropertiesManager pm;
+    Probe<?, ?> p;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @BeforeClass
+    static public void configure() throws IOException, URISyntaxException {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE, "jrds.Renderer", "jrds.RenderCache");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void prepare() throws Exception {
+        pm = Tools.makePm(testFolder);
+        GenerateProbe.ChainedMap<Object> args = GenerateProbe.ChainedMap.start().set(PropertiesManager.class, pm);
+        p = GenerateProbe.quickProbe(testFolder, args);
+        p.getPd().add("data", DsType.GAUGE);
+        Assert.assertTrue("Failed to create probe " + p.getMainStore().getPath(), p.checkStore());
+    }
+
+    private Graph getGraph(GraphNode gn, long end) {
+        Graph g = new Graph(gn);
+        g.setStart(new Date(end - 86400 * 1000L));
+        g.setEnd(new Date(end));
+        return g;
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        Renderer r = new Renderer(10, testFolder.newFolder());
+        try {
+            long end = System.currentTimeMillis();
+            // Two requests for the same image
+            Graph g1 = getGraph(new GraphNode(p, GetMoke.getGraphDesc()), end);
+            Graph g2 = getGraph(new GraphNode(p, GetMoke.getGraphDesc()), end);
+            Assert.assertNotSame(g1, g2);
+            r.render(g1, Renderer.VISIBLE);
+            r.render(g2, Renderer.VISIBLE);
+            Assert.assertTrue(r.isReady(g1));
+            Assert.assertTrue(r.isReady(g2));
+            long size = r.getCache().getMemorySize();
+            Assert.assertTrue("image not cached", size > 0);
+            Assert.assertNotNull(r.getImage(g2));
+            Assert.assertEquals("graph rendered twice", size, r.getCache().getMemorySize());
+            Assert.assertSame(g1, r.getGraph(g1.hashCode()));
+        } finally {
+            r.finish();
+        }
+    }
+
+    private Graph getCollidingGraph(GraphNode gn, long end) {
+        Graph g = new Graph(gn) {
+            @Override
+            public int hashCode() {
+                return 42;
+            }
+        };
+        g.setStart(new Date(end - 86400 * 1000L));
+        g.setEnd(new Date(end));
+        return g;
+    }
+
+    @Test
+    public void testHashCollision() throws Exception {
+        Renderer r = new Renderer(10, testFolder.newFolder());
+        try {
+            GraphNode gn = new GraphNode(p, GetMoke.getGraphDesc());
+            long end = System.currentTimeMillis();
+            // Same hash code, but not the same image
+            Graph g1 = getCollidingGraph(gn, end);
+            Graph g2 = getCollidingGraph(gn, end - 7 * 86400 * 1000L);
+            Assert.assertEquals(g1.hashCode(), g2.hashCode());
+            Assert.assertNotEquals(r.getKey(g1), r.getKey(g2));
+            r.render(g1, Renderer.VISIBLE);
+            Assert.assertTrue(r.isReady(g1));
+            long size = r.getCache().getMemorySize();
+            r.render(g2, Renderer.VISIBLE);
+            Assert.assertTrue(r.isReady(g2));
+            Assert.assertTrue("second graph not rendered", r.getCache().getMemorySize() > size);
+            Assert.assertSame(g2, r.getGraph(42));
+            Assert.assertNotNull(r.getImage(g1));
+            Assert.assertFalse(Arrays.equals(r.getImage(g1), r.getImage(g2)));
+        } finally {
+            r.finish();
+        }
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        // No graph can wait, it's rendered when requested
+        Renderer r = new Renderer(0, testFolder.newFolder());
+        try {
+            GraphNode gn = new GraphNode(p, GetMoke.getGraphDesc());
+            Graph g = getGraph(gn, System.currentTimeMillis());
+            r.render(g);
+            Assert.assertEquals(0, r.getQueueSize());
+            Assert.assertTrue(r.isReady(g));
+            Assert.assertNotNull(r.getImage(g));
+        } finally {
+            r.finish();
+        }
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        Renderer r = new Renderer(10, testFolder.newFolder());
+        try {
+            GraphNode gn = new GraphNode(p, GetMoke.getGraphDesc());
+            Graph g = getGraph(gn, System.currentTimeMillis());
+            Renderer.RendererRun prefetch1 = r.new RendererRun(g, "a", Renderer.PREFETCH);
+            Renderer.RendererRun prefetch2 = r.new RendererRun(g, "b", Renderer.PREFETCH);
+            Renderer.RendererRun visible = r.new RendererRun(g, "c", Renderer.VISIBLE);
+            Assert.assertTrue(visible.compareTo(prefetch1) < 0);
+            Assert.assertTrue(prefetch1.compareTo(prefetch2) < 0);
+            Assert.assertEquals(0, prefetch1.compareTo(prefetch1));
+        } finally {
+            r.finish();
+        }
+    }
+
+    @Test
+    public void testPromote() throws Exception {
+        Renderer r = new Renderer(10, testFolder.newFolder());
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<Graph> order = Collections.synchronizedList(new ArrayList<Graph>());
+        try {
+            GraphNode gn = new GraphNode(p, GetMoke.getGraphDesc());
+            long end = System.currentTimeMillis();
+            // All the render threads are busy
+            for(int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+                Graph busy = new Graph(gn) {
+                    @Override
+                    public void writePng(OutputStream out) throws IOException {
+                        try {
+                            blocked.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        super.writePng(out);
+                    }
+                };
+                busy.setStart(new Date(end - (i + 2) * 86400 * 1000L));
+                busy.setEnd(new Date(end - (i + 1) * 86400 * 1000L));
+                r.render(busy, Renderer.VISIBLE);
+            }
+            Graph[] graphs = new Graph[3];
+            for(int i = 0; i < graphs.length; i++) {
+                graphs[i] = new Graph(gn) {
+                    @Override
+                    public void writePng(OutputStream out) throws IOException {
+                        order.add(this);
+                        super.writePng(out);
+                        done.countDown();
+                    }
+                };
+                graphs[i].setStart(new Date(end - 86400 * 1000L * 30));
+                graphs[i].setEnd(new Date(end - 86400 * 1000L * (i < 2 ? 10 : 20)));
+            }
+            Assert.assertEquals(r.getKey(graphs[0]), r.getKey(graphs[1]));
+            r.render(graphs[2], Renderer.PREFETCH);
+            r.render(graphs[0], Renderer.PREFETCH);
+            // The same image is now needed by a page
+            r.render(graphs[1], Renderer.VISIBLE);
+            blocked.countDown();
+            Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+            Assert.assertEquals(Arrays.asList(graphs[0], graphs[2]), order);
+        } finally {
+            blocked.countDown();
+            r.finish();
+        }
+    }
+
+    @Test
+    public void testKeyUpdate() throws Exception {
+        Renderer r = new Renderer(10, testFolder.newFolder());
+        try {
+            long end = System.currentTimeMillis();
+            Graph g = getGraph(new GraphNode(p, GetMoke.getGraphDesc()), end);
+            String key = r.getKey(g);
+            Assert.assertEquals(key, r.getKey(g));
+            // A new sample changes the key, without reading the store
+            Date next = new Date(end + p.getStep() * 2000L);
+            JrdsSample sample = p.newSample();
+            sample.setTime(next);
+            sample.put("data", 1);
+            p.storeSample(sample);
+            Assert.assertEquals(next, p.getCachedLastUpdate());
+            Assert.assertFalse("key not updated", key.equals(r.getKey(g)));
+        } finally {
+            r.finish();
+        }
+    }
+
+}
@@ -5,6 +5,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -91,6 +92,20 @@ public class TestSum {
             Assert.assertEquals("Sum get wrong value", ppm.get("shade").getValue(i), li.getValue(i), 1e-7);
         }
 
+        // The same graph twice, read again from the cache. It's a new list,
+        // the first sum keeps its own
+        ArrayList<String> glist2 = new ArrayList<String>(glist);
+        glist2.add(glist.get(0));
+        Sum s2 = new Sum("A double sum test", glist2);
+        s2.configure(hl);
+        for(int pass = 0; pass < 2; pass++) {
+            PlottableMap ppm2 = s2.getCustomData();
+            ppm2.configure(begin + pass * 86400, end, Full.STEP);
+            for(long i = begin + pass * 86400; i < end - Full.STEP; i += Full.STEP) {
+                Assert.assertEquals("Sum get wrong value", 2 * li.getValue(i), ppm2.get("shade").getValue(i), 1e-7);
+            }
+        }
+
         Graph g = new Graph(s);
         g.setPeriod(pr);
         File outputFile = new File(testFolder.getRoot(), "sum.png");
@@ -98,4 +113,51 @@ public class TestSum {
         g.writePng(out);
     }
 
+    @Test(timeout = 30000)
+    public void nestedSum() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        HostsList hl = new HostsList(pm);
+
+        GenerateProbe.ChainedMap<Object> args = GenerateProbe.ChainedMap.start();
+        args.set(ProbeDesc.class, Full.getPd()).set(Probe.class, DummyProbe.class).set(PropertiesManager.class, pm);
+
+        @SuppressWarnings("unchecked")
+        Probe<String, Number> p = (MokeProbe<String, Number>) GenerateProbe.quickProbe(testFolder, args);
+
+        p.checkStore();
+        long endSec = Full.fill(p);
+        Period pr = Full.getPeriod(p, endSec);
+        long begin = pr.getBegin().getTime() / 1000;
+        long end = pr.getEnd().getTime() / 1000;
+
+        GraphDesc gd = Full.getGd();
+        gd.setGraphName("SumTest");
+        gd.setName("SumTest");
+        p.addGraph(gd);
+
+        hl.addHost(p.getHost());
+        hl.addProbe(p);
+
+        // More nested sums than fetching threads
+        String member = p.getGraphList().iterator().next().getQualifiedName();
+        Sum s = null;
+        for(int i = 0; i <= Runtime.getRuntime().availableProcessors() + 1; i++) {
+            ArrayList<String> glist = new ArrayList<String>();
+            glist.add(member);
+            s = new Sum("nested" + i, glist);
+            s.configure(hl);
+            hl.addGraphs(Collections.<GraphNode> singleton(s));
+            member = s.getQualifiedName();
+        }
+        PlottableMap ppm = s.getCustomData();
+        ppm.configure(begin, end, Full.STEP);
+
+        ExtractInfo ei = ExtractInfo.get().make(pr.getBegin(), pr.getEnd());
+        DataProcessor dp = p.extract(ei);
+        LinearInterpolator li = new LinearInterpolator(dp.getTimestamps(), dp.getValues("shade"));
+        for(long i = begin + Full.STEP; i < end - Full.STEP; i += Full.STEP) {
+            Assert.assertEquals("Sum get wrong value", li.getValue(i), ppm.get("shade").getValue(i), 1e-7);
+        }
+    }
+
 }
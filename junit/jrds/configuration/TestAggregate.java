@@ -0,0 +1,153 @@
+package jrds.configuration;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import jrds.HostInfo;
+import jrds.HostsList;
+import jrds.JrdsSample;
+import jrds.Probe;
+import jrds.ProbeDesc;
+import jrds.PropertiesManager;
+import jrds.Tools;
+import jrds.probe.AggregateProbe;
+import jrds.factories.xml.JrdsDocument;
+import jrds.mockobjects.GenerateProbe;
+import jrds.starter.HostStarter;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.DsType;
+
+public class TestAggregate {
+    static final private Logger logger = Logger.getLogger(TestAggregate.class);
+
+    static final private String aggregateXml =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>" +
+                    "<!DOCTYPE aggregate PUBLIC \"-//jrds//DTD Aggregate//EN\" \"urn:jrds:aggregate\">" +
+                    "<aggregate name=\"web\">" +
+                    "<probedesc>MemberPd</probedesc>" +
+                    "<tag>web</tag>" +
+                    "</aggregate>";
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @BeforeClass
+    static public void configure() throws ParserConfigurationException, IOException {
+        Tools.configure();
+        Tools.prepareXml(false);
+        Tools.setLevel(logger, Level.TRACE, "jrds.Probe.Aggregate");
+    }
+
+    private Probe<?, ?> addMember(HostsList hl, PropertiesManager pm, String hostName) throws Exception {
+        ProbeDesc pd = new ProbeDesc();
+        pd.setName("MemberPd");
+        pd.add("g", DsType.GAUGE);
+        pd.add("c", DsType.COUNTER);
+        @SuppressWarnings("unchecked")
+        Probe<?, ?> p = GenerateProbe.quickProbe(testFolder, GenerateProbe.ChainedMap.start().set(PropertiesManager.class, pm).set(ProbeDesc.class, pd).set("name", "member"));
+        HostInfo host = new HostInfo(hostName);
+        host.setHostDir(testFolder.newFolder());
+        host.addTag("web");
+        HostStarter starter = new HostStarter(host);
+        starter.addProbe(p);
+        p.setHost(starter);
+        p.setMainStore(pm.defaultStore, Collections.<String, String> emptyMap());
+        Assert.assertTrue(p.checkStore());
+        hl.addHost(host);
+        hl.addProbe(p);
+        return p;
+    }
+
+    private void store(Probe<?, ?> p, long time, double gauge, long counter) {
+        JrdsSample sample = p.newSample();
+        sample.setTime(new Date(time * 1000));
+        sample.put("g", gauge);
+        sample.put("c", counter);
+        p.storeSample(sample);
+    }
+
+    private AggregateProbe makeAggregate(HostsList hl, PropertiesManager pm) throws Exception {
+        AggregateBuilder builder = new AggregateBuilder();
+        builder.setPm(pm);
+        JrdsDocument d = Tools.parseString(aggregateXml);
+        AggregateProbe ap = builder.makeAggregate(d);
+        Assert.assertEquals("web", ap.getName());
+
+        HostInfo aggregatesHost = new HostInfo(AggregateProbe.HOSTNAME);
+        aggregatesHost.setHostDir(testFolder.newFolder());
+        HostStarter starter = new HostStarter(aggregatesHost);
+        starter.setParent(hl);
+        Assert.assertTrue(ap.configure(hl, starter, pm));
+        return ap;
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        HostsList hl = new HostsList(pm);
+        Probe<?, ?> p1 = addMember(hl, pm, "host1");
+        Probe<?, ?> p2 = addMember(hl, pm, "host2");
+        AggregateProbe ap = makeAggregate(hl, pm);
+        Assert.assertEquals(2, ap.getMembers().size());
+        Assert.assertEquals(2, ap.getGraphList().size());
+
+        long step = ap.getStep();
+        // The stores are created now, samples must be newer
+        long start = (System.currentTimeMillis() / 1000 / step + 1) * step;
+        for(int i = 0; i < 3; i++) {
+            long time = start + i * step;
+            store(p1, time, 1, i * step);
+            store(p2, time, 2, 3 * i * step);
+        }
+        Map<String, Number> values = ap.getMainStore().getLastValues();
+        Assert.assertEquals(3, values.get("g_sum").doubleValue(), 1e-7);
+        Assert.assertEquals(1.5, values.get("g_avg").doubleValue(), 1e-7);
+        Assert.assertEquals(1, values.get("g_min").doubleValue(), 1e-7);
+        Assert.assertEquals(2, values.get("g_max").doubleValue(), 1e-7);
+        Assert.assertEquals(2, values.get("g_count").doubleValue(), 1e-7);
+        // Counters are aggregated as rates
+        Assert.assertEquals(4, values.get("c_sum").doubleValue(), 1e-7);
+        Assert.assertEquals(3, values.get("c_max").doubleValue(), 1e-7);
+        Assert.assertEquals(start + 2 * step, ap.getLastUpdate().getTime() / 1000);
+    }
+
+    @Test
+    public void testSkippedStep() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        HostsList hl = new HostsList(pm);
+        Probe<?, ?> p1 = addMember(hl, pm, "host1");
+        Probe<?, ?> p2 = addMember(hl, pm, "host2");
+        AggregateProbe ap = makeAggregate(hl, pm);
+
+        long step = ap.getStep();
+        long start = (System.currentTimeMillis() / 1000 / step + 1) * step;
+        store(p1, start, 1, 0);
+        store(p2, start, 2, 0);
+        // host2 misses the second step
+        store(p1, start + step, 10, step);
+        // The second step is stored with it's own values only
+        store(p1, start + 2 * step, 20, 2 * step);
+        Map<String, Number> values = ap.getMainStore().getLastValues();
+        Assert.assertEquals(start + step, ap.getLastUpdate().getTime() / 1000);
+        Assert.assertEquals(10, values.get("g_sum").doubleValue(), 1e-7);
+        Assert.assertEquals(1, values.get("g_count").doubleValue(), 1e-7);
+
+        store(p2, start + 2 * step, 2, 2 * step);
+        values = ap.getMainStore().getLastValues();
+        Assert.assertEquals(start + 2 * step, ap.getLastUpdate().getTime() / 1000);
+        Assert.assertEquals(22, values.get("g_sum").doubleValue(), 1e-7);
+        Assert.assertEquals(2, values.get("g_count").doubleValue(), 1e-7);
+    }
+
+}
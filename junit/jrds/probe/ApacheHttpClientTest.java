@@ -24,6 +24,8 @@ import jrds.starter.Starter;
 import jrds.starter.Timer;
 import jrds.store.RrdDbStoreFactory;
 
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.eclipse.jetty.server.Request;
@@ -86,8 +88,12 @@ public class ApacheHttpClientTest {
         StoreOpener.prepare("FILE");
     }
 
-    private HostStarter addConnection(Starter cnx) throws IOException {
-        PropertiesManager pm = Tools.makePm(testFolder, "timeout=1", "collectorThreads=1");
+    private HostStarter addConnection(Starter cnx, String... props) throws IOException {
+        String[] allProps = new String[props.length + 2];
+        allProps[0] = "timeout=1";
+        allProps[1] = "collectorThreads=1";
+        System.arraycopy(props, 0, allProps, 2, props.length);
+        PropertiesManager pm = Tools.makePm(testFolder, allProps);
 
         HostStarter localhost = new HostStarter(new HostInfo("localhost"));
         Timer t = Tools.getDefaultTimer();
@@ -169,4 +175,100 @@ public class ApacheHttpClientTest {
         server.stop();
     }
 
+    @Test
+    public void testPoolDefaults() throws Exception {
+        HttpClientStarter cnx = new HttpClientStarter();
+        HostStarter localhost = addConnection(cnx);
+        localhost.find(Resolver.class).doStart();
+        cnx.doStart();
+        Assert.assertEquals(2, cnx.getMaxTotal());
+        Assert.assertEquals(2, cnx.getMaxPerRoute());
+        Assert.assertEquals(localhost.getStep() * 2, cnx.getKeepAlive());
+        Assert.assertEquals(2, cnx.getConnectionManager().getMaxTotal());
+        Assert.assertEquals(2, cnx.getConnectionManager().getDefaultMaxPerRoute());
+        cnx.stop();
+    }
+
+    @Test
+    public void testPoolProperties() throws Exception {
+        HttpClientStarter cnx = new HttpClientStarter();
+        HostStarter localhost = addConnection(cnx, "httpmaxtotal=7", "httpmaxperroute=3", "httpkeepalive=42");
+        localhost.find(Resolver.class).doStart();
+        cnx.doStart();
+        Assert.assertEquals(7, cnx.getMaxTotal());
+        Assert.assertEquals(3, cnx.getMaxPerRoute());
+        Assert.assertEquals(42, cnx.getKeepAlive());
+        Assert.assertEquals(7, cnx.getConnectionManager().getMaxTotal());
+        Assert.assertEquals(3, cnx.getConnectionManager().getDefaultMaxPerRoute());
+        cnx.stop();
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        MockHttpServer server = new MockHttpServer(false);
+        server.addResourceHandler(staticFiles);
+        server.start();
+
+        HttpClientStarter cnx = new HttpClientStarter();
+        HostStarter localhost = addConnection(cnx, "httpkeepalive=1");
+        localhost.find(Resolver.class).doStart();
+        cnx.doStart();
+        TestHttpProbe p = new TestHttpProbe();
+        p.setMainStore(new RrdDbStoreFactory(), empty);
+        p.setHost(localhost);
+        p.setPort(server.getURI().toURL().getPort());
+        p.configure();
+        p.checkStore();
+        localhost.addProbe(p);
+        localhost.getParent().startCollect();
+        shouldFail = false;
+        localhost.collectAll();
+        Assert.assertTrue("Didn't try to collect", p.collected);
+        // The connection is kept for the next collect
+        Assert.assertEquals(1, cnx.getConnectionManager().getTotalStats().getAvailable());
+        localhost.collectAll();
+        Assert.assertEquals(1, cnx.getConnectionManager().getTotalStats().getAvailable());
+        // And closed once idle for longer than the keep alive
+        long deadline = System.currentTimeMillis() + 30000;
+        while(cnx.getConnectionManager().getTotalStats().getAvailable() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(0, cnx.getConnectionManager().getTotalStats().getAvailable());
+        cnx.stop();
+        server.stop();
+    }
+
+    @Test
+    public void testRouteLimit() throws Exception {
+        MockHttpServer server = new MockHttpServer(false);
+        server.addResourceHandler(staticFiles);
+        server.start();
+        int port = server.getURI().toURL().getPort();
+
+        HttpClientStarter cnx = new HttpClientStarter();
+        HostStarter localhost = addConnection(cnx, "httpmaxperroute=3", "httpmaxperroute.localhost:" + port + "=5", "httpmaxperroute.otherhost=4");
+        localhost.find(Resolver.class).doStart();
+        cnx.doStart();
+        Assert.assertEquals(3, cnx.getMaxPerRoute());
+        Assert.assertEquals(5, cnx.getMaxPerRoute("localhost:" + port));
+        Assert.assertEquals(4, cnx.getMaxPerRoute("otherhost"));
+        Assert.assertEquals(3, cnx.getMaxPerRoute("thirdhost"));
+        TestHttpProbe p = new TestHttpProbe();
+        p.setMainStore(new RrdDbStoreFactory(), empty);
+        p.setHost(localhost);
+        p.setPort(port);
+        p.configure();
+        p.checkStore();
+        localhost.addProbe(p);
+        localhost.getParent().startCollect();
+        shouldFail = false;
+        localhost.collectAll();
+        Assert.assertTrue("Didn't try to collect", p.collected);
+        HttpRoute route = new HttpRoute(new HttpHost("localhost", port, "http"));
+        Assert.assertEquals(5, cnx.getConnectionManager().getMaxPerRoute(route));
+        Assert.assertEquals(3, cnx.getConnectionManager().getDefaultMaxPerRoute());
+        cnx.stop();
+        server.stop();
+    }
+
 }
@@ -0,0 +1,198 @@
+package jrds.probe.jdbc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import jrds.HostInfo;
+import jrds.Tools;
+import jrds.starter.HostStarter;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestJdbcPool {
+    static final private Logger logger = Logger.getLogger(TestJdbcPool.class);
+    static final private String URL = "jdbc:jrdstest:pool";
+
+    /**
+     * A fake connection, it only knows about it's state
+     */
+    static private class FakeConnection implements InvocationHandler {
+        volatile boolean valid = true;
+        volatile boolean closed = false;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if("isValid".equals(name)) {
+                return valid && !closed;
+            } else if("close".equals(name)) {
+                closed = true;
+                return null;
+            } else if("isClosed".equals(name)) {
+                return closed;
+            } else if("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if("equals".equals(name)) {
+                return proxy == args[0];
+            } else if("toString".equals(name)) {
+                return "FakeConnection";
+            }
+            throw new SQLFeatureNotSupportedException(name);
+        }
+    }
+
+    static private class FakeDriver implements Driver {
+        final List<FakeConnection> opened = new ArrayList<FakeConnection>();
+
+        @Override
+        public synchronized Connection connect(String url, Properties info) throws SQLException {
+            if(!acceptsURL(url)) {
+                return null;
+            }
+            FakeConnection fc = new FakeConnection();
+            opened.add(fc);
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, fc);
+        }
+
+        synchronized FakeConnection last() {
+            return opened.get(opened.size() - 1);
+        }
+
+        synchronized int count() {
+            return opened.size();
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:jrdstest:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    static private FakeDriver driver;
+
+    @BeforeClass
+    static public void configure() throws IOException, SQLException {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE, "jrds.Starter.JdbcPool");
+        driver = new FakeDriver();
+        DriverManager.registerDriver(driver);
+    }
+
+    @AfterClass
+    static public void finish() throws SQLException {
+        DriverManager.deregisterDriver(driver);
+    }
+
+    private JdbcPool getPool() {
+        HostStarter host = new HostStarter(new HostInfo("localhost"));
+        host.setTimeout(1);
+        JdbcPool pool = new JdbcPool(URL, "user", "passwd", new Properties());
+        host.registerStarter(pool);
+        pool.doStart();
+        return pool;
+    }
+
+    @Test
+    public void testGiveBack() throws SQLException {
+        JdbcPool pool = getPool();
+        int before = driver.count();
+        JdbcPool.PooledConnection pc = pool.borrow();
+        pc.close();
+        FakeConnection fc = driver.last();
+        // The connection is reused
+        pool.borrow().close();
+        Assert.assertEquals(before + 1, driver.count());
+        Assert.assertFalse("connection closed", fc.closed);
+        pool.stop();
+        Assert.assertTrue("connection not closed", fc.closed);
+    }
+
+    @Test
+    public void testInvalidate() throws SQLException {
+        JdbcPool pool = getPool();
+        int before = driver.count();
+        JdbcPool.PooledConnection pc = pool.borrow();
+        FakeConnection fc = driver.last();
+        pc.invalidate();
+        pc.close();
+        Assert.assertTrue("connection not closed", fc.closed);
+        pool.borrow().close();
+        Assert.assertEquals("connection reused", before + 2, driver.count());
+        pool.stop();
+    }
+
+    @Test
+    public void testLimit() throws SQLException {
+        JdbcPool pool = getPool();
+        pool.setMaxSize(2);
+        JdbcPool.PooledConnection pc1 = pool.borrow();
+        JdbcPool.PooledConnection pc2 = pool.borrow();
+        try {
+            pool.borrow();
+            Assert.fail("pool limit not applied");
+        } catch (SQLException e) {
+            Assert.assertEquals("No free connection for " + URL, e.getMessage());
+        }
+        pc1.close();
+        Assert.assertNotNull(pool.borrow());
+        pc2.close();
+        pool.stop();
+    }
+
+    @Test
+    public void testAlive() throws SQLException {
+        JdbcPool pool = getPool();
+        pool.borrow().close();
+        FakeConnection fc = driver.last();
+        Assert.assertTrue(pool.isAlive());
+        Assert.assertFalse("connection closed", fc.closed);
+        // The server was lost
+        fc.valid = false;
+        Assert.assertFalse(pool.isAlive());
+        Assert.assertTrue("connection not closed", fc.closed);
+        pool.stop();
+        Assert.assertFalse(pool.isAlive());
+    }
+
+}
@@ -0,0 +1,44 @@
+package jrds.probe.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import jrds.Tools;
+
+public class TestNativeJmxSource {
+    static final private Logger logger = Logger.getLogger(TestNativeJmxSource.class);
+
+    @BeforeClass
+    static public void configure() throws Exception {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE);
+    }
+
+    @Test
+    public void testGetValues() throws Exception {
+        NativeJmxSource source = new NativeJmxSource(ManagementFactory.getPlatformMBeanServer());
+        JmxAttribute uptime = new JmxAttribute("java.lang:type=Runtime/Uptime");
+        JmxAttribute used = new JmxAttribute("java.lang:type=Memory/HeapMemoryUsage/used");
+        JmxAttribute missing = new JmxAttribute("java.lang:type=Runtime/NoSuchAttribute");
+        JmxAttribute noinstance = new JmxAttribute("java.lang:type=NoSuchType/Uptime");
+        Map<JmxAttribute, Throwable> errors = new HashMap<JmxAttribute, Throwable>();
+        Map<JmxAttribute, Number> values = source.getValues(Arrays.asList(uptime, used, missing, noinstance), errors);
+        Assert.assertEquals(2, values.size());
+        Assert.assertTrue(values.get(uptime).longValue() > 0);
+        Assert.assertTrue(values.get(used).longValue() > 0);
+        Assert.assertTrue(errors.get(missing) instanceof AttributeNotFoundException);
+        Assert.assertTrue(errors.get(noinstance) instanceof InstanceNotFoundException);
+    }
+
+}
@@ -0,0 +1,160 @@
+package jrds.snmp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import jrds.Tools;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+public class TestSnmpBatch {
+    static final private Logger logger = Logger.getLogger(TestSnmpBatch.class);
+
+    /**
+     * A minimal agent, each variable value is it's last sub-identifier. PDU
+     * with more than maxVars variables are refused with tooBig.
+     */
+    static private class Responder implements CommandResponder {
+        final int maxVars;
+        int received = 0;
+
+        Responder(int maxVars) {
+            this.maxVars = maxVars;
+        }
+
+        @Override
+        public synchronized void processPdu(CommandResponderEvent event) {
+            received++;
+            PDU pdu = (PDU) event.getPDU().clone();
+            pdu.setType(PDU.RESPONSE);
+            if(pdu.size() > maxVars) {
+                // clear() reset the request id
+                Integer32 requestId = pdu.getRequestID();
+                pdu.clear();
+                pdu.setRequestID(requestId);
+                pdu.setErrorStatus(SnmpConstants.SNMP_ERROR_TOO_BIG);
+            } else {
+                for(VariableBinding vb: pdu.getVariableBindings()) {
+                    vb.setVariable(new Integer32(vb.getOid().last()));
+                }
+            }
+            try {
+                event.getMessageDispatcher().returnResponsePdu(event.getMessageProcessingModel(), event.getSecurityModel(), event.getSecurityName(), event.getSecurityLevel(), pdu, event.getMaxSizeResponsePDU(), event.getStateReference(), new StatusInformation());
+            } catch (Exception e) {
+                logger.error("Unable to respond: " + e, e);
+            }
+            event.setProcessed(true);
+        }
+    }
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE, "jrds.snmp.SnmpBatch", "jrds.snmp.SnmpRequest");
+    }
+
+    private VariableBinding[] makeVars(String prefix, int... last) {
+        VariableBinding[] vars = new VariableBinding[last.length];
+        for(int i = 0; i < last.length; i++) {
+            vars[i] = new VariableBinding(new OID(prefix + "." + last[i]));
+        }
+        return vars;
+    }
+
+    @Test
+    public void testPack() {
+        CommunityTarget target = new CommunityTarget(new UdpAddress(InetAddress.getLoopbackAddress(), 161), new OctetString("public"));
+        target.setVersion(SnmpConstants.version2c);
+
+        SnmpBatch batch = new SnmpBatch(null, null, target, 4, 1400);
+        batch.add(makeVars("1.3.6.1.2.1.2", 1, 2, 3, 4, 5));
+        batch.add(makeVars("1.3.6.1.2.1.4", 1, 2, 3, 4, 5));
+        // Already requested variables are not added again
+        batch.add(makeVars("1.3.6.1.2.1.2", 4, 5, 6));
+        List<PDU> pdus = batch.pack();
+        Assert.assertEquals("wrong number of PDU", 3, pdus.size());
+        int size = 0;
+        for(PDU pdu: pdus) {
+            Assert.assertTrue("PDU too big", pdu.size() <= 4);
+            size += pdu.size();
+        }
+        Assert.assertEquals("wrong number of variables", 11, size);
+
+        // The size limit is applied too
+        int vbSize = new VariableBinding(new OID("1.3.6.1.2.1.2.1")).getBERLength() + SnmpBatch.VALUEOVERHEAD;
+        batch = new SnmpBatch(null, null, target, 100, SnmpBatch.HEADEROVERHEAD + 2 * vbSize);
+        batch.add(makeVars("1.3.6.1.2.1.2", 1, 2, 3, 4, 5));
+        Assert.assertEquals("wrong number of PDU", 3, batch.pack().size());
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        runBatch(10, 2);
+    }
+
+    @Test
+    public void testTooBig() throws Exception {
+        // the shared PDU is refused, each probe ask for it's own values
+        runBatch(3, 4);
+    }
+
+    private void runBatch(int agentMaxVars, int expectedPdus) throws Exception {
+        Snmp agent = new Snmp(new DefaultUdpTransportMapping(new UdpAddress(InetAddress.getLoopbackAddress(), 0)));
+        Snmp snmp = new Snmp(new DefaultUdpTransportMapping());
+        Responder responder = new Responder(agentMaxVars);
+        try {
+            agent.addCommandResponder(responder);
+            agent.listen();
+            snmp.listen();
+            UdpAddress agentAddress = (UdpAddress) agent.getMessageDispatcher().getTransportMappings().iterator().next().getListenAddress();
+            CommunityTarget target = new CommunityTarget(agentAddress, new OctetString("public"));
+            target.setVersion(SnmpConstants.version2c);
+            target.setTimeout(1000);
+            target.setRetries(0);
+
+            SnmpBatch batch = new SnmpBatch(null, snmp, target, 5, 1400);
+            VariableBinding[] probe1 = makeVars("1.3.6.1.2.1.2", 1, 2, 3);
+            VariableBinding[] probe2 = makeVars("1.3.6.1.2.1.4", 11, 12, 13);
+            batch.add(probe1);
+            batch.add(probe2);
+            Assert.assertEquals("wrong number of PDU", 2, batch.send());
+            Future<Map<OID, Object>> values1 = batch.getValues(probe1);
+            Future<Map<OID, Object>> values2 = batch.getValues(probe2);
+
+            Map<OID, Object> found1 = values1.get(10, TimeUnit.SECONDS);
+            Map<OID, Object> found2 = values2.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals("wrong values " + found1, 3, found1.size());
+            Assert.assertEquals(2, found1.get(new OID("1.3.6.1.2.1.2.2")));
+            Assert.assertEquals("wrong values " + found2, 3, found2.size());
+            Assert.assertEquals(13, found2.get(new OID("1.3.6.1.2.1.4.13")));
+            Assert.assertTrue("request not done", values1.isDone());
+            synchronized (responder) {
+                Assert.assertEquals("wrong number of PDU received", expectedPdus, responder.received);
+            }
+        } finally {
+            snmp.close();
+            agent.close();
+        }
+    }
+}
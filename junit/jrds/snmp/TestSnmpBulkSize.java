@@ -0,0 +1,95 @@
+package jrds.snmp;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.util.RetrievalEvent;
+
+public class TestSnmpBulkSize {
+    static final int OK = RetrievalEvent.STATUS_OK;
+    static final int TOOBIG = SnmpConstants.SNMP_ERROR_TOO_BIG;
+
+    @Test
+    public void testGrow() {
+        SnmpBulkSize bulk = new SnmpBulkSize(50);
+        Assert.assertEquals(SnmpBulkSize.INITIAL, bulk.getRepetitions());
+        // A single response, nothing learned
+        bulk.update(1, 5, OK);
+        Assert.assertEquals(10, bulk.getRepetitions());
+        // All the responses were full
+        bulk.update(5, 45, OK);
+        Assert.assertEquals(20, bulk.getRepetitions());
+        bulk.update(3, 50, OK);
+        Assert.assertEquals(40, bulk.getRepetitions());
+        // Never above the maximum
+        bulk.update(3, 100, OK);
+        Assert.assertEquals(50, bulk.getRepetitions());
+    }
+
+    @Test
+    public void testTruncated() {
+        SnmpBulkSize bulk = new SnmpBulkSize(100);
+        bulk.update(5, 50, OK);
+        Assert.assertEquals(20, bulk.getRepetitions());
+        // The agent returns only 8 rows in each response
+        bulk.update(25, 200, OK);
+        Assert.assertEquals(8, bulk.getRepetitions());
+        // Full responses, but the agent limit is remembered
+        bulk.update(25, 200, OK);
+        Assert.assertEquals(8, bulk.getRepetitions());
+    }
+
+    @Test
+    public void testFailed() {
+        SnmpBulkSize bulk = new SnmpBulkSize(100);
+        bulk.update(5, 50, OK);
+        bulk.update(5, 100, OK);
+        Assert.assertEquals(40, bulk.getRepetitions());
+        bulk.update(2, 10, TOOBIG);
+        Assert.assertEquals(20, bulk.getRepetitions());
+        // It grows again, but stay below the failed value
+        bulk.update(10, 200, OK);
+        Assert.assertEquals(39, bulk.getRepetitions());
+        bulk.update(2, 0, TOOBIG);
+        bulk.update(2, 0, TOOBIG);
+        bulk.update(2, 0, TOOBIG);
+        bulk.update(2, 0, TOOBIG);
+        bulk.update(2, 0, TOOBIG);
+        bulk.update(2, 0, TOOBIG);
+        Assert.assertEquals(1, bulk.getRepetitions());
+    }
+
+    @Test
+    public void testTimeout() {
+        SnmpBulkSize bulk = new SnmpBulkSize(100);
+        bulk.update(5, 50, OK);
+        Assert.assertEquals(20, bulk.getRepetitions());
+        // A timeout says nothing about the size
+        bulk.update(2, 10, RetrievalEvent.STATUS_TIMEOUT);
+        Assert.assertEquals(20, bulk.getRepetitions());
+        bulk.update(5, 100, OK);
+        Assert.assertEquals(40, bulk.getRepetitions());
+    }
+
+    @Test
+    public void testProbe() {
+        SnmpBulkSize bulk = new SnmpBulkSize(100);
+        bulk.update(5, 50, OK);
+        bulk.update(2, 10, TOOBIG);
+        Assert.assertEquals(10, bulk.getRepetitions());
+        bulk.update(5, 50, OK);
+        Assert.assertEquals(19, bulk.getRepetitions());
+        for(int i = 1; i < SnmpBulkSize.PROBEAFTER; i++) {
+            bulk.update(5, 100, OK);
+        }
+        Assert.assertEquals(19, bulk.getRepetitions());
+        // The agent is tried again with bigger requests
+        bulk.update(5, 200, OK);
+        Assert.assertEquals(38, bulk.getRepetitions());
+        // Still too big, the limit is learned again
+        bulk.update(2, 10, TOOBIG);
+        Assert.assertEquals(19, bulk.getRepetitions());
+        bulk.update(5, 200, OK);
+        Assert.assertEquals(37, bulk.getRepetitions());
+    }
+}
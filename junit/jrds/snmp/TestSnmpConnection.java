@@ -2,14 +2,21 @@ package jrds.snmp;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import jrds.GenericBean;
 import jrds.HostInfo;
+import jrds.ProbeDesc;
 import jrds.Tools;
 import jrds.factories.ArgFactory;
+import jrds.probe.snmp.SnmpProbe;
 import jrds.starter.HostStarter;
 import jrds.starter.Starter;
 
@@ -18,6 +25,16 @@ import org.apache.log4j.Logger;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
 
 public class TestSnmpConnection {
     static final private Logger logger = Logger.getLogger(TestSnmpConnection.class);
@@ -27,7 +44,7 @@ public class TestSnmpConnection {
         Tools.configure();
         Tools.prepareXml();
 
-        Tools.setLevel(logger, Level.TRACE, "jrds.snmp.SnmpConnection", "jrds.RdsHost");
+        Tools.setLevel(logger, Level.TRACE, "jrds.snmp.SnmpConnection", "jrds.snmp.SnmpRequest", "jrds.RdsHost");
     }
 
     @Test
@@ -41,4 +58,67 @@ public class TestSnmpConnection {
         host.registerStarter(cnx);
         Assert.assertEquals("SNMP connection not found", "snmp:udp://localhost:161", host.find(SnmpConnection.class).toString());
     }
+
+    @Test
+    public void testPendingRequest() throws Exception {
+        // A minimal agent, each variable value is the sub-identifier before
+        // the instance
+        Snmp agent = new Snmp(new DefaultUdpTransportMapping(new UdpAddress(InetAddress.getLoopbackAddress(), 0)));
+        agent.addCommandResponder(new CommandResponder() {
+            @Override
+            public void processPdu(CommandResponderEvent event) {
+                PDU pdu = (PDU) event.getPDU().clone();
+                pdu.setType(PDU.RESPONSE);
+                for(VariableBinding vb: pdu.getVariableBindings()) {
+                    vb.setVariable(new Integer32(vb.getOid().get(vb.getOid().size() - 2)));
+                }
+                try {
+                    event.getMessageDispatcher().returnResponsePdu(event.getMessageProcessingModel(), event.getSecurityModel(), event.getSecurityName(), event.getSecurityLevel(), pdu, event.getMaxSizeResponsePDU(), event.getStateReference(), new StatusInformation());
+                } catch (Exception e) {
+                    logger.error("Unable to respond: " + e, e);
+                }
+                event.setProcessed(true);
+            }
+        });
+        agent.listen();
+        UdpAddress agentAddress = (UdpAddress) agent.getMessageDispatcher().getTransportMappings().iterator().next().getListenAddress();
+
+        HostStarter host = new HostStarter(new HostInfo("localhost"));
+        host.setTimeout(5);
+        MainStarter main = new MainStarter();
+        host.registerStarter(main);
+        SnmpConnection cnx = new SnmpConnection();
+        cnx.setPort(agentAddress.getPort());
+        host.registerStarter(cnx);
+
+        ProbeDesc pd = new ProbeDesc();
+        pd.setName("pending");
+        pd.addSpecific(SnmpProbe.REQUESTERNAME, "simple");
+        final Set<OID> oids = new HashSet<OID>(Arrays.asList(new OID("1.3.6.1.2.1.2.1"), new OID("1.3.6.1.2.1.2.2")));
+        SnmpProbe probe = new SnmpProbe() {
+            @Override
+            protected Set<OID> getOidSet() {
+                return oids;
+            }
+        };
+        probe.setHost(host);
+        probe.setPd(pd);
+        cnx.addProbe(probe);
+
+        try {
+            host.find(jrds.starter.Resolver.class).doStart();
+            main.doStart();
+            cnx.doStart();
+            Assert.assertTrue("SNMP connection not started", cnx.isStarted());
+            Future<Map<OID, Object>> request = cnx.getPendingRequest(probe);
+            Assert.assertNotNull("no request sent", request);
+            Map<OID, Object> values = SnmpRequest.waitResponse(cnx, request);
+            Assert.assertEquals("wrong values " + values, 2, values.size());
+            Assert.assertEquals("wrong values " + values, 2, values.get(new OID("1.3.6.1.2.1.2.2.0")));
+        } finally {
+            cnx.doStop();
+            main.doStop();
+            agent.close();
+        }
+    }
 }
@@ -0,0 +1,70 @@
+package jrds.snmp;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import jrds.Tools;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+public class TestSnmpRequest {
+    static final private Logger logger = Logger.getLogger(TestSnmpRequest.class);
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE, "jrds.snmp.SnmpRequest");
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        SnmpRequest request = SnmpRequest.empty();
+        Assert.assertTrue("empty request not done", request.isDone());
+        Assert.assertTrue("empty request returned values", request.get().isEmpty());
+        Assert.assertFalse("finished request cancelled", request.cancel(true));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        // A silent UDP port, the request will time out
+        DatagramSocket silent = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Snmp snmp = new Snmp(new DefaultUdpTransportMapping());
+        try {
+            snmp.listen();
+            CommunityTarget target = new CommunityTarget(new UdpAddress(InetAddress.getLoopbackAddress(), silent.getLocalPort()), new OctetString("public"));
+            target.setVersion(SnmpConstants.version2c);
+            target.setTimeout(100);
+            target.setRetries(0);
+            PDU pdu = new PDU();
+            pdu.setType(PDU.GET);
+            pdu.add(new VariableBinding(new OID("1.3.6.1.2.1.1.1.0")));
+            SnmpRequest request = new SnmpRequest(null, snmp, target, pdu).send();
+            try {
+                request.get(10, TimeUnit.SECONDS);
+                Assert.fail("request should have failed");
+            } catch (ExecutionException e) {
+                Assert.assertEquals("SNMP Timeout", e.getCause().getMessage());
+            }
+            Assert.assertTrue("request not done", request.isDone());
+        } finally {
+            snmp.close();
+            silent.close();
+        }
+    }
+}
@@ -32,6 +32,34 @@ public class StarterTest {
         }
     }
 
+    static class PersistentStarter extends Starter {
+        int starts = 0;
+        int stops = 0;
+        boolean alive = true;
+        boolean canStart = true;
+
+        @Override
+        public boolean start() {
+            starts++;
+            return canStart;
+        }
+
+        @Override
+        public void stop() {
+            stops++;
+        }
+
+        @Override
+        public boolean isPersistent() {
+            return true;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return alive;
+        }
+    }
+
     static Logger logger = Logger.getLogger(StarterTest.class);
 
     @BeforeClass
@@ -117,4 +145,33 @@ public class StarterTest {
         Assert.assertEquals(hl, n3.getHostList());
     }
 
+    @Test
+    public void testPersistent() {
+        PersistentStarter s = new PersistentStarter();
+        s.doStart();
+        s.doStop();
+        s.doStart();
+        Assert.assertEquals("persistent starter restarted", 1, s.starts);
+        Assert.assertEquals("persistent starter stopped", 0, s.stops);
+
+        // A dead starter is restarted
+        s.alive = false;
+        s.doStart();
+        Assert.assertEquals(2, s.starts);
+        Assert.assertEquals(1, s.stops);
+
+        // Failures are followed by a growing number of skipped collects
+        s.doRelease();
+        s.canStart = false;
+        s.doStart();
+        Assert.assertEquals(3, s.starts);
+        s.doStart();
+        Assert.assertEquals(4, s.starts);
+        s.doStart();
+        Assert.assertEquals("start not delayed", 4, s.starts);
+        s.doStart();
+        Assert.assertEquals(5, s.starts);
+        Assert.assertFalse(s.isStarted());
+    }
+
 }
@@ -0,0 +1,97 @@
+package jrds.starter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jrds.HostsList;
+import jrds.PropertiesManager;
+import jrds.Tools;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestDnsCache {
+    static final private Logger logger = Logger.getLogger(TestDnsCache.class);
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE, "jrds.Starter.DnsCache", "jrds.Starter.Resolver");
+    }
+
+    @Test
+    public void testCache() {
+        HostsList hl = new HostsList();
+        DnsCache cache = new DnsCache();
+        hl.registerStarter(cache);
+        try {
+            InetAddress addr = cache.getAddress("localhost", 5000);
+            Assert.assertNotNull(addr);
+            // The second lookup comes from the cache
+            Assert.assertSame(addr, cache.getAddress("localhost", 0));
+            Assert.assertNull(cache.getAddress("invalid.", 5000));
+        } finally {
+            cache.stop();
+        }
+    }
+
+    @Test
+    public void testResolver() {
+        HostsList hl = new HostsList();
+        DnsCache cache = new DnsCache();
+        hl.registerStarter(cache);
+        HostStarter host = new HostStarter(new jrds.HostInfo("localhost"));
+        host.setParent(hl);
+        host.setTimeout(5);
+        Resolver r = host.find(Resolver.class);
+        try {
+            r.doStart();
+            Assert.assertTrue(r.isStarted());
+            Assert.assertEquals(cache.getAddress("localhost", 0), r.getInetAddress());
+        } finally {
+            cache.stop();
+        }
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        HostsList hl = new HostsList();
+        final AtomicBoolean failing = new AtomicBoolean(false);
+        final AtomicInteger failures = new AtomicInteger(0);
+        DnsCache cache = new DnsCache() {
+            @Override
+            InetAddress lookup(String hostname) throws UnknownHostException {
+                if(failing.get()) {
+                    failures.incrementAndGet();
+                    throw new UnknownHostException(hostname);
+                }
+                return super.lookup(hostname);
+            }
+        };
+        hl.registerStarter(cache);
+        // Each lookup starts a refresh
+        PropertiesManager pm = Tools.makePm("dnsttl=0");
+        cache.configure(pm);
+        try {
+            InetAddress addr = cache.getAddress("localhost", 5000);
+            Assert.assertNotNull(addr);
+            failing.set(true);
+            Assert.assertSame(addr, cache.getAddress("localhost", 0));
+            for(int i = 0; i < 50 && failures.get() == 0; i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertTrue("not refreshed", failures.get() > 0);
+            // The failed refresh keeps the address
+            Assert.assertSame(addr, cache.getAddress("localhost", 0));
+        } finally {
+            cache.stop();
+        }
+    }
+
+}
@@ -1,7 +1,12 @@
 package jrds.starter;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
+import jrds.HostInfo;
+import jrds.Probe;
+import jrds.ProbeConnected;
 import jrds.PropertiesManager;
 import jrds.Tools;
 
@@ -14,6 +19,48 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 public class TimerTest {
+    static class LocalConnection extends Connection<Object> {
+        LocalConnection(String name) {
+            setName(name);
+        }
+
+        @Override
+        public Object getConnection() {
+            return null;
+        }
+
+        @Override
+        public boolean startConnection() {
+            return true;
+        }
+
+        @Override
+        public void stopConnection() {
+        }
+
+        @Override
+        public long setUptime() {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    static class LocalProbe extends ProbeConnected<String, Number, LocalConnection> {
+        LocalProbe(String name, String connectionName) {
+            super(connectionName);
+            setName(name);
+        }
+
+        @Override
+        public Map<String, Number> getNewSampleValuesConnected(LocalConnection cnx) {
+            return null;
+        }
+
+        @Override
+        public String getSourceType() {
+            return "local";
+        }
+    }
+
     static Logger logger = Logger.getLogger(TimerTest.class);
 
     @Rule
@@ -45,4 +92,43 @@ public class TimerTest {
         Assert.assertEquals("bad slow collect time", 15, t.getSlowCollectTime());
     }
 
+    @Test
+    public void collectSpread() throws IOException {
+        PropertiesManager pm = Tools.makePm(testFolder, "timeout=10", "step=300", "timers=slow,flat", "timer.slow.step=3600", "timer.flat.collectspread=0");
+        Timer t = new Timer(Timer.DEFAULTNAME, pm.timers.get(Timer.DEFAULTNAME));
+        Assert.assertEquals("bad default spread", 140, t.getCollectSpread());
+        Timer slow = new Timer("slow", pm.timers.get("slow"));
+        Assert.assertEquals("bad slow spread", 1790, slow.getCollectSpread());
+        Timer flat = new Timer("flat", pm.timers.get("flat"));
+        Assert.assertEquals("bad flat spread", 0, flat.getCollectSpread());
+
+        for(String hostName: new String[] { "localhost", "host1", "host2", "a.very.long.host.name" }) {
+            HostStarter host = t.getHost(new HostInfo(hostName));
+            long offset = t.getCollectOffset(host);
+            Assert.assertTrue("offset out of window", offset >= 0 && offset < 140 * 1000L);
+            Assert.assertEquals("offset not stable", offset, t.getCollectOffset(host));
+            Assert.assertEquals("no spread expected", 0, flat.getCollectOffset(flat.getHost(new HostInfo(hostName))));
+        }
+    }
+
+    @Test
+    public void probeGroups() throws IOException {
+        PropertiesManager pm = Tools.makePm(testFolder, "probeThreads=4", "connectionParallelism=2");
+        Timer t = new Timer(Timer.DEFAULTNAME, pm.timers.get(Timer.DEFAULTNAME));
+        Assert.assertEquals("bad probe threads", 4, t.getProbeThreads());
+        Assert.assertEquals("bad connection parallelism", 2, t.getConnectionParallelism());
+
+        HostStarter host = t.getHost(new HostInfo("localhost"));
+        host.registerStarter(new LocalConnection("cnx1"));
+        host.registerStarter(new LocalConnection("cnx2"));
+        for(String[] names: new String[][] { { "p1", "cnx1" }, { "p2", "cnx1" }, { "p3", "cnx2" }, { "p4", "nocnx" } }) {
+            Probe<?, ?> p = new LocalProbe(names[0], names[1]);
+            p.setHost(host);
+            host.addProbe(p);
+        }
+        List<List<Probe<?, ?>>> groups = host.groupByConnection();
+        Assert.assertEquals("bad groups count", 3, groups.size());
+        Assert.assertEquals("bad shared connection group", 2, groups.get(0).size());
+    }
+
 }
@@ -0,0 +1,141 @@
+package jrds.store;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Properties;
+
+import javax.management.ObjectName;
+import javax.xml.parsers.ParserConfigurationException;
+
+import jrds.JrdsSample;
+import jrds.Probe;
+import jrds.PropertiesManager;
+import jrds.Tools;
+import jrds.mockobjects.GenerateProbe;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.DsType;
+import org.rrd4j.data.DataProcessor;
+
+public class TestBufferedRrdDbStore {
+    static final private Logger logger = Logger.getLogger(TestBufferedRrdDbStore.class);
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @BeforeClass
+    static public void configure() throws ParserConfigurationException, IOException {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE, "jrds.store.BufferedRrdDbStoreFactory");
+        Tools.prepareXml(false);
+    }
+
+    private BufferedRrdDbStoreFactory getFactory(PropertiesManager pm, int queueSize) {
+        Properties props = new Properties();
+        props.setProperty("queueSize", Integer.toString(queueSize));
+        // No background flush during the test
+        props.setProperty("flushDelay", "3600000");
+        BufferedRrdDbStoreFactory sf = new BufferedRrdDbStoreFactory();
+        sf.configureStore(pm, props);
+        return sf;
+    }
+
+    private Probe<?, ?> getProbe(PropertiesManager pm, StoreFactory sf) throws Exception {
+        @SuppressWarnings("unchecked")
+        Probe<?, ?> p = GenerateProbe.quickProbe(testFolder, GenerateProbe.ChainedMap.start().set(PropertiesManager.class, pm).set(StoreFactory.class, sf));
+        p.setStep(30);
+        p.getPd().add("test", DsType.GAUGE);
+        Assert.assertTrue("Probe file creation failed", p.checkStore());
+        return p;
+    }
+
+    private void fill(Probe<?, ?> p, long start, int count) {
+        for(int i = 1; i <= count; i++) {
+            JrdsSample s = p.newSample();
+            long sampletime = i * p.getStep() * 1000 + start;
+            sampletime = (sampletime) - (sampletime % (p.getStep() * 1000));
+            s.setTime(new Date(sampletime));
+            s.put("test", i);
+            p.getMainStore().commit(s);
+        }
+    }
+
+    @Test
+    public void testFill() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        BufferedRrdDbStoreFactory sf = getFactory(pm, 1000);
+        try {
+            Probe<?, ?> p = getProbe(pm, sf);
+            long start = p.getLastUpdate().getTime();
+            fill(p, start, 30);
+            Assert.assertEquals("samples not queued", 30, sf.getQueueDepth());
+            Assert.assertEquals("samples written too soon", 0, sf.getWrittenSamples());
+
+            // Reading the store write the samples
+            ExtractInfo ei = ExtractInfo.get().make(new Date(start), new Date(start + 30 * p.getStep() * 1000));
+            DataProcessor dp = p.extract(ei);
+            double[][] values = dp.getValues();
+            for(int i = 1; i <= 30; i++) {
+                Assert.assertEquals("Wrong values stored", i, values[0][i], 1e-10);
+            }
+            Assert.assertEquals("samples not written", 0, sf.getQueueDepth());
+            Assert.assertEquals("samples not written", 30, sf.getWrittenSamples());
+            Assert.assertTrue("mbean not registered", ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("jrds:type=BufferedStore")));
+        } finally {
+            sf.stop();
+        }
+        Assert.assertFalse("mbean not unregistered", ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("jrds:type=BufferedStore")));
+    }
+
+    @Test
+    public void testDropped() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        BufferedRrdDbStoreFactory sf = getFactory(pm, 5);
+        Probe<?, ?> p = getProbe(pm, sf);
+        long start = p.getLastUpdate().getTime();
+        fill(p, start, 10);
+        Assert.assertEquals("queue overflow", 5, sf.getQueueDepth());
+        Assert.assertEquals("samples not dropped", 5, sf.getDroppedSamples());
+        // Stopping write the remaining samples
+        sf.stop();
+        Assert.assertEquals("samples not written", 0, sf.getQueueDepth());
+        Assert.assertEquals("samples not written", 5, sf.getWrittenSamples());
+        Assert.assertEquals("wrong last update", start + 5 * p.getStep() * 1000 - (start % (p.getStep() * 1000)), p.getLastUpdate().getTime());
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        BufferedRrdDbStoreFactory sf = getFactory(pm, 1000);
+        try {
+            Probe<?, ?> p = getProbe(pm, sf);
+            long start = p.getLastUpdate().getTime();
+            fill(p, start, 1);
+            long now = System.currentTimeMillis();
+            sf.flushAll(true, now);
+            Assert.assertEquals("samples not written", 1, sf.getWrittenSamples());
+            Assert.assertEquals("journal removed too soon", 1, sf.getJournalsCount());
+            Assert.assertTrue(sf.getFlushLatency() >= 0);
+
+            // No sample for more than two steps
+            sf.flushAll(true, now + 3 * p.getStep() * 1000L);
+            Assert.assertEquals("journal not removed", 0, sf.getJournalsCount());
+
+            // The store is still usable
+            fill(p, start + p.getStep() * 1000L, 1);
+            Assert.assertEquals(1, sf.getJournalsCount());
+            sf.flushAll(true);
+            Assert.assertEquals("samples not written", 2, sf.getWrittenSamples());
+        } finally {
+            sf.stop();
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+package jrds.store;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+import javax.xml.parsers.ParserConfigurationException;
+
+import jrds.HostInfo;
+import jrds.JrdsSample;
+import jrds.Probe;
+import jrds.PropertiesManager;
+import jrds.Tools;
+import jrds.mockobjects.GenerateProbe;
+import jrds.starter.HostStarter;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.DsType;
+
+public class TestCacheStore {
+    static final private Logger logger = Logger.getLogger(TestCacheStore.class);
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @BeforeClass
+    static public void configure() throws ParserConfigurationException, IOException {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE, "jrds.store.CacheStoreFactory");
+        Tools.prepareXml(false);
+    }
+
+    private Probe<?, ?> getProbe(PropertiesManager pm, StoreFactory sf, HostInfo host, String name) throws Exception {
+        @SuppressWarnings("unchecked")
+        Probe<?, ?> p = GenerateProbe.quickProbe(testFolder, GenerateProbe.ChainedMap.start().set(PropertiesManager.class, pm).set(StoreFactory.class, sf).set("name", name));
+        p.getPd().add("a", DsType.GAUGE);
+        p.getPd().add("b", DsType.GAUGE);
+        p.setHost(new HostStarter(host));
+        p.setMainStore(sf, Collections.<String, String> emptyMap());
+        return p;
+    }
+
+    @Test
+    public void testValues() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        CacheStoreFactory sf = new CacheStoreFactory();
+        HostInfo host = new HostInfo("host");
+        host.addTag("tag");
+        try {
+            Probe<?, ?> p1 = getProbe(pm, sf, host, "probe1");
+            Probe<?, ?> p2 = getProbe(pm, sf, new HostInfo("other"), "probe2");
+            Assert.assertTrue("mbean not registered", ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("jrds:type=SampleCache")));
+            Assert.assertTrue("values before the first sample", p1.getMainStore().getLastValues().isEmpty());
+
+            JrdsSample s = p1.newSample();
+            s.put("a", 1);
+            s.put("b", 2);
+            p1.getMainStore().commit(s);
+            // Values not in a sample are kept
+            s = p1.newSample();
+            s.put("a", 3);
+            p1.getMainStore().commit(s);
+            Map<String, Number> values = sf.getValues("host", "probe1");
+            Assert.assertEquals(3.0, values.get("a").doubleValue(), 1e-10);
+            Assert.assertEquals(2.0, values.get("b").doubleValue(), 1e-10);
+            Assert.assertTrue("last update not set", p1.getMainStore().getLastUpdate().getTime() > 0);
+
+            s = p2.newSample();
+            s.put("b", 4);
+            p2.getMainStore().commit(s);
+            Assert.assertEquals(1, sf.getValues("other", "probe2").size());
+
+            Assert.assertNull(sf.getValues("host", "probe2"));
+            Assert.assertNull(sf.getValues("nohost", "probe1"));
+            Assert.assertEquals(1, sf.getHostValues("host").size());
+            Map<String, Map<String, Number>> tagged = sf.getTagValues("tag");
+            Assert.assertEquals(1, tagged.size());
+            Assert.assertEquals(values, tagged.get(p1.getQualifiedName()));
+        } finally {
+            sf.stop();
+        }
+        Assert.assertFalse("mbean not unregistered", ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("jrds:type=SampleCache")));
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        CacheStoreFactory sf = new CacheStoreFactory();
+        try {
+            final Probe<?, ?> p = getProbe(pm, sf, new HostInfo("host"), "probe");
+            final AtomicInteger torn = new AtomicInteger(0);
+            List<Thread> threads = new ArrayList<Thread>();
+            for(int i = 0; i < 4; i++) {
+                final int value = i;
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        for(int j = 0; j < 1000; j++) {
+                            JrdsSample s = p.newSample();
+                            s.put("a", value);
+                            s.put("b", value);
+                            p.getMainStore().commit(s);
+                            // A snapshot is never partially written
+                            Map<String, Number> values = p.getMainStore().getLastValues();
+                            if(!values.get("a").equals(values.get("b"))) {
+                                torn.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+            }
+            for(Thread t: threads) {
+                t.start();
+            }
+            for(Thread t: threads) {
+                t.join();
+            }
+            Assert.assertEquals("partial values read", 0, torn.get());
+            Assert.assertEquals(2, sf.getValues("host", "probe").size());
+        } finally {
+            sf.stop();
+        }
+    }
+
+}
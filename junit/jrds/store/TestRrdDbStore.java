@@ -1,12 +1,17 @@
 package jrds.store;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.ParserConfigurationException;
 
+import jrds.ArchivesSet;
 import jrds.JrdsSample;
 import jrds.Probe;
+import jrds.PropertiesManager;
 import jrds.Tools;
 import jrds.mockobjects.GenerateProbe;
 
@@ -18,6 +23,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.rrd4j.DsType;
+import org.rrd4j.core.RrdDb;
 import org.rrd4j.data.DataProcessor;
 
 public class TestRrdDbStore {
@@ -79,4 +85,67 @@ public class TestRrdDbStore {
         }
     }
 
+    @Test
+    public void testDeferredUpgrade() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        RrdDbStoreFactory factory = (RrdDbStoreFactory) pm.defaultStore;
+        @SuppressWarnings("unchecked")
+        Probe<?, ?> p = GenerateProbe.quickProbe(testFolder, GenerateProbe.ChainedMap.start().set(PropertiesManager.class, pm));
+        p.getPd().add("test", DsType.GAUGE);
+        Assert.assertTrue("Probe file creation failed", p.checkStore());
+        RrdDbStore store = (RrdDbStore) p.getMainStore();
+        File rrdFile = new File(store.getPath());
+        Assert.assertTrue(new File(rrdFile.getParentFile(), RrdDefIndex.FILENAME).isFile());
+
+        // An unchanged file is not opened
+        long modified = rrdFile.lastModified();
+        Assert.assertTrue(p.checkStore());
+        Assert.assertEquals(modified, rrdFile.lastModified());
+
+        // A new datasource, the probe stays usable until the upgrade is done
+        p.getPd().add("test2", DsType.GAUGE);
+        Assert.assertTrue(p.checkStore());
+        factory.waitUpgrades();
+        Assert.assertEquals(0, factory.getPendingUpgrades());
+        RrdDb db = new RrdDb(rrdFile.getCanonicalPath());
+        try {
+            Assert.assertTrue("Datasource not added", db.containsDs("test2"));
+        } finally {
+            db.close();
+        }
+        Assert.assertTrue(factory.getDefIndex(rrdFile.getParentFile()).isValid(rrdFile, RrdDbStore.getFingerprint(store.getRrdDef(ArchivesSet.DEFAULT))));
+    }
+
+    @Test
+    public void testFence() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        final RrdDbStoreFactory factory = (RrdDbStoreFactory) pm.defaultStore;
+        @SuppressWarnings("unchecked")
+        Probe<?, ?> p = GenerateProbe.quickProbe(testFolder, GenerateProbe.ChainedMap.start().set(PropertiesManager.class, pm));
+        p.getPd().add("test", DsType.GAUGE);
+        Assert.assertTrue("Probe file creation failed", p.checkStore());
+        final String path = new File(p.getMainStore().getPath()).getCanonicalPath();
+        // Kept open by the factory
+        factory.releaseRrd(factory.getRrd(path));
+
+        Assert.assertTrue("file still open", factory.evict(path, 1000));
+        final CountDownLatch opened = new CountDownLatch(1);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    factory.releaseRrd(factory.getRrd(path));
+                    opened.countDown();
+                } catch (IOException e) {
+                }
+            }
+        };
+        reader.start();
+        // The file can't be opened while it's replaced
+        Assert.assertFalse("file opened while fenced", opened.await(500, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(factory.unfence(path));
+        Assert.assertTrue("file not opened after the replace", opened.await(5, TimeUnit.SECONDS));
+        reader.join();
+    }
+
 }
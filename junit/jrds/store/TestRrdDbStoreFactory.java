@@ -0,0 +1,91 @@
+package jrds.store;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Properties;
+
+import javax.management.ObjectName;
+import javax.xml.parsers.ParserConfigurationException;
+
+import jrds.JrdsSample;
+import jrds.Probe;
+import jrds.PropertiesManager;
+import jrds.Tools;
+import jrds.mockobjects.GenerateProbe;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.DsType;
+
+public class TestRrdDbStoreFactory {
+    static final private Logger logger = Logger.getLogger(TestRrdDbStoreFactory.class);
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @BeforeClass
+    static public void configure() throws ParserConfigurationException, IOException {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE, "jrds.store.RrdDbStoreFactory");
+        Tools.prepareXml(false);
+    }
+
+    private Probe<?, ?> getProbe(PropertiesManager pm, StoreFactory sf, String name) throws Exception {
+        @SuppressWarnings("unchecked")
+        Probe<?, ?> p = GenerateProbe.quickProbe(testFolder, GenerateProbe.ChainedMap.start().set(PropertiesManager.class, pm).set(StoreFactory.class, sf).set("name", name));
+        p.getPd().add("test", DsType.GAUGE);
+        Assert.assertTrue("Probe file creation failed", p.checkStore());
+        return p;
+    }
+
+    private void store(Probe<?, ?> p) {
+        JrdsSample s = p.newSample();
+        s.setTime(new Date(p.getLastUpdate().getTime() + p.getStep() * 1000));
+        s.put("test", 1);
+        p.getMainStore().commit(s);
+    }
+
+    @Test
+    public void testOpenCache() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        Properties props = new Properties();
+        props.setProperty("openCacheSize", "2");
+        RrdDbStoreFactory sf = new RrdDbStoreFactory();
+        sf.configureStore(pm, props);
+        try {
+            Probe<?, ?> p1 = getProbe(pm, sf, "probe1");
+            Probe<?, ?> p2 = getProbe(pm, sf, "probe2");
+            Probe<?, ?> p3 = getProbe(pm, sf, "probe3");
+            Assert.assertTrue("mbean not registered", ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("jrds:type=RrdDbStore")));
+
+            store(p1);
+            store(p2);
+            Assert.assertEquals("unused file not kept open", 1, sf.getOpenCount(p1.getMainStore().getPath()));
+            Assert.assertEquals("unused file not kept open", 1, sf.getOpenCount(p2.getMainStore().getPath()));
+            Assert.assertEquals("wrong eviction count", 0, sf.getEvictions());
+            store(p3);
+            // The least recently used file is closed
+            Assert.assertEquals("old file not closed", 0, sf.getOpenCount(p1.getMainStore().getPath()));
+            Assert.assertEquals("unused file not kept open", 1, sf.getOpenCount(p3.getMainStore().getPath()));
+            Assert.assertEquals("wrong eviction count", 1, sf.getEvictions());
+
+            long requests = sf.getRequests();
+            double hitRate = sf.getHitRate();
+            store(p3);
+            Assert.assertEquals("request not counted", requests + 2, sf.getRequests());
+            Assert.assertTrue("hit not counted", sf.getHitRate() > hitRate);
+            Assert.assertFalse("no latency", Double.isNaN(sf.getAcquireLatencyP50()));
+            Assert.assertTrue("invalid percentiles", sf.getAcquireLatencyP50() <= sf.getAcquireLatencyP99());
+        } finally {
+            sf.stop();
+        }
+        Assert.assertFalse("mbean not unregistered", ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("jrds:type=RrdDbStore")));
+    }
+
+}
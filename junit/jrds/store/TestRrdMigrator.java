@@ -0,0 +1,92 @@
+package jrds.store;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import jrds.Tools;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestRrdMigrator {
+    static final private Logger logger = Logger.getLogger(TestRrdMigrator.class);
+
+    @BeforeClass
+    static public void configure() throws ParserConfigurationException, IOException {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE, "jrds.store.RrdMigrator");
+    }
+
+    private Callable<Long> migration(final long size) {
+        return new Callable<Long>() {
+            public Long call() {
+                return size;
+            }
+        };
+    }
+
+    @Test
+    public void testQueue() throws Exception {
+        RrdMigrator migrator = new RrdMigrator(1, 0);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        Assert.assertTrue(migrator.submit("file1", new Callable<Long>() {
+            public Long call() throws InterruptedException {
+                blocked.await();
+                return 10L;
+            }
+        }));
+        // A file is queued only once
+        Assert.assertFalse(migrator.submit("file1", migration(10)));
+        Assert.assertTrue(migrator.submit("file2", migration(-1)));
+        Assert.assertEquals(2, migrator.getPending());
+        Assert.assertEquals(-1, migrator.getEta());
+        blocked.countDown();
+        migrator.waitMigrations();
+        Assert.assertEquals(0, migrator.getPending());
+        Assert.assertEquals(0, migrator.getEta());
+        Assert.assertEquals(1, migrator.getDone());
+        Assert.assertEquals(1, migrator.getFailed());
+        Assert.assertEquals(10, migrator.getBytes());
+    }
+
+    @Test
+    public void testThrottle() throws Exception {
+        // 1000 bytes/s, the second migration must wait for the first one
+        RrdMigrator migrator = new RrdMigrator(2, 1000);
+        long start = System.currentTimeMillis();
+        migrator.submit("file1", migration(200));
+        migrator.submit("file2", migration(200));
+        migrator.waitMigrations();
+        Assert.assertTrue(System.currentTimeMillis() - start >= 400);
+        Assert.assertEquals(400, migrator.getBytes());
+    }
+
+    @Test
+    public void testThrottleInside() throws Exception {
+        // 1000 bytes/s, each half of the copy waits for its budget
+        final RrdMigrator migrator = new RrdMigrator(1, 1000);
+        final long[] halfDone = new long[1];
+        long start = System.currentTimeMillis();
+        migrator.submit("file1", new Callable<Long>() {
+            public Long call() throws InterruptedException {
+                migrator.throttle(300);
+                halfDone[0] = System.currentTimeMillis();
+                migrator.throttle(300);
+                return 600L;
+            }
+        });
+        migrator.waitMigrations();
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertTrue(halfDone[0] - start >= 300);
+        // Already charged, it's not charged again at the end
+        Assert.assertTrue("elapsed " + elapsed, elapsed >= 600 && elapsed < 1200);
+        Assert.assertEquals(600, migrator.getBytes());
+    }
+
+}
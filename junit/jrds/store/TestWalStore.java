@@ -0,0 +1,201 @@
+package jrds.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import jrds.JrdsSample;
+import jrds.Probe;
+import jrds.PropertiesManager;
+import jrds.Tools;
+import jrds.mockobjects.GenerateProbe;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.DsType;
+import org.rrd4j.core.RrdDb;
+import org.rrd4j.data.DataProcessor;
+
+public class TestWalStore {
+    static final private Logger logger = Logger.getLogger(TestWalStore.class);
+
+    /**
+     * A backend that can't open the rrd files while failures is positive
+     */
+    public static class FlakyStoreFactory extends RrdDbStoreFactory {
+        static final AtomicInteger failures = new AtomicInteger(0);
+
+        @Override
+        public RrdDb getRrd(String rrdFile) throws IOException {
+            if(failures.getAndDecrement() > 0) {
+                throw new IOException("flaky disk");
+            }
+            return super.getRrd(rrdFile);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @BeforeClass
+    static public void configure() throws ParserConfigurationException, IOException {
+        Tools.configure();
+        Tools.setLevel(logger, Level.TRACE, "jrds.store.WalStoreFactory", "jrds.store.WalSegment");
+        Tools.prepareXml(false);
+    }
+
+    private Probe<?, ?> getProbe(PropertiesManager pm, StoreFactory sf) throws Exception {
+        @SuppressWarnings("unchecked")
+        Probe<?, ?> p = GenerateProbe.quickProbe(testFolder, GenerateProbe.ChainedMap.start().set(PropertiesManager.class, pm).set(StoreFactory.class, sf));
+        p.setStep(30);
+        p.getPd().add("test", DsType.GAUGE);
+        Assert.assertTrue("Probe file creation failed", p.checkStore());
+        return p;
+    }
+
+    private JrdsSample makeSample(Probe<?, ?> p, long start, int i) {
+        JrdsSample s = p.newSample();
+        long sampletime = i * p.getStep() * 1000 + start;
+        sampletime = (sampletime) - (sampletime % (p.getStep() * 1000));
+        s.setTime(new Date(sampletime));
+        s.put("test", i);
+        return s;
+    }
+
+    private void checkValues(Probe<?, ?> p, long start, int count) throws IOException {
+        ExtractInfo ei = ExtractInfo.get().make(new Date(start), new Date(start + count * p.getStep() * 1000));
+        DataProcessor dp = p.extract(ei);
+        double[][] values = dp.getValues();
+        for(int i = 1; i <= count; i++) {
+            Assert.assertEquals("Wrong values stored", i, values[0][i], 1e-10);
+        }
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        WalStoreFactory sf = new WalStoreFactory();
+        Probe<?, ?> p = getProbe(pm, sf);
+        Assert.assertTrue("not a WAL store", p.getMainStore() instanceof WalStore);
+        long start = p.getLastUpdate().getTime();
+        for(int i = 1; i <= 30; i++) {
+            p.getMainStore().commit(makeSample(p, start, i));
+        }
+        // Stopping waits for all the samples
+        sf.stop();
+        Assert.assertEquals("samples not written", 0, sf.getPending());
+        checkValues(p, start, 30);
+        File walDir = new File(pm.rrddir, "wal");
+        Assert.assertEquals("WAL segment not released", 0, WalSegment.list(walDir).size());
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        WalStoreFactory sf = new WalStoreFactory();
+        Probe<?, ?> p = getProbe(pm, sf);
+        long start = p.getLastUpdate().getTime();
+
+        // A segment left by a crash
+        File walDir = new File(pm.rrddir, "wal");
+        WalSegment crashed = WalSegment.create(new File(walDir, "00000000000000000001.wal"), 64 * 1024);
+        for(int i = 1; i < 10; i++) {
+            Assert.assertTrue(crashed.append(p.getQualifiedName(), makeSample(p, start, i).getTime(), makeSample(p, start, i)));
+        }
+        crashed.sync();
+
+        // The first sample replay the old ones
+        p.getMainStore().commit(makeSample(p, start, 10));
+        sf.stop();
+        checkValues(p, start, 10);
+        Assert.assertEquals("WAL segment not released", 0, WalSegment.list(walDir).size());
+    }
+
+    @Test
+    public void testUnknownProbe() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        WalStoreFactory sf = new WalStoreFactory();
+        Probe<?, ?> p = getProbe(pm, sf);
+        long start = p.getLastUpdate().getTime();
+
+        // A segment left by a crash, with a probe that was removed
+        File walDir = new File(pm.rrddir, "wal");
+        WalSegment crashed = WalSegment.create(new File(walDir, "00000000000000000001.wal"), 64 * 1024);
+        Assert.assertTrue(crashed.append("removed/probe", makeSample(p, start, 1).getTime(), makeSample(p, start, 1)));
+        Assert.assertTrue(crashed.append(p.getQualifiedName(), makeSample(p, start, 1).getTime(), makeSample(p, start, 1)));
+        crashed.sync();
+
+        p.getMainStore().commit(makeSample(p, start, 2));
+        sf.stop();
+        checkValues(p, start, 2);
+        Assert.assertEquals("WAL segment not released", 0, WalSegment.list(walDir).size());
+    }
+
+    private Probe<?, ?> getFlakyProbe(PropertiesManager pm, WalStoreFactory sf) throws Exception {
+        Probe<?, ?> p = getProbe(pm, sf);
+        // Use a backend that fails
+        sf.stop();
+        Properties props = new Properties();
+        props.put("backend", FlakyStoreFactory.class.getName());
+        sf.configureStore(pm, props);
+        sf.start();
+        p.setMainStore(sf, Collections.<String, String> emptyMap());
+        return p;
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        WalStoreFactory sf = new WalStoreFactory();
+        Probe<?, ?> p = getFlakyProbe(pm, sf);
+        long start = p.getLastUpdate().getTime();
+
+        FlakyStoreFactory.failures.set(1);
+        p.getMainStore().commit(makeSample(p, start, 1));
+        // The failed sample is tried again before stopping
+        sf.stop();
+        checkValues(p, start, 1);
+        File walDir = new File(pm.rrddir, "wal");
+        Assert.assertEquals("WAL segment not released", 0, WalSegment.list(walDir).size());
+    }
+
+    @Test
+    public void testIOFailure() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        WalStoreFactory sf = new WalStoreFactory();
+        Probe<?, ?> p = getFlakyProbe(pm, sf);
+        long start = p.getLastUpdate().getTime();
+
+        // The disk never comes back before the stop
+        FlakyStoreFactory.failures.set(Integer.MAX_VALUE);
+        try {
+            p.getMainStore().commit(makeSample(p, start, 1));
+            sf.stop();
+        } finally {
+            FlakyStoreFactory.failures.set(0);
+        }
+        File walDir = new File(pm.rrddir, "wal");
+        Assert.assertEquals("failed sample not kept in the WAL", 1, WalSegment.list(walDir).size());
+
+        // It's written at the next start
+        sf = new WalStoreFactory();
+        sf.configureStore(pm, new Properties());
+        sf.start();
+        p.setMainStore(sf, Collections.<String, String> emptyMap());
+        p.getMainStore().commit(makeSample(p, start, 2));
+        sf.stop();
+        checkValues(p, start, 2);
+        Assert.assertEquals("WAL segment not released", 0, WalSegment.list(walDir).size());
+    }
+
+}
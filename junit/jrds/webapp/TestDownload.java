@@ -1,6 +1,8 @@
 package jrds.webapp;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -28,11 +30,13 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.eclipse.jetty.http.HttpTester.Response;
 import org.eclipse.jetty.servlet.ServletTester;
+import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.rrd4j.DsType;
 import org.rrd4j.data.DataProcessor;
 
 public class TestDownload extends Download {
@@ -60,6 +64,23 @@ public class TestDownload extends Download {
 
     }
 
+    @Test
+    public void testAcceptsGzip() {
+        Assert.assertFalse(acceptsGzip(null));
+        Assert.assertFalse(acceptsGzip(""));
+        Assert.assertTrue(acceptsGzip("gzip, deflate"));
+        Assert.assertTrue(acceptsGzip("deflate, GZIP;q=0.5"));
+        Assert.assertTrue(acceptsGzip("x-gzip"));
+        Assert.assertFalse(acceptsGzip("gzip;q=0"));
+        Assert.assertFalse(acceptsGzip("deflate, gzip ; q=0.0"));
+        Assert.assertFalse(acceptsGzip("identity"));
+        Assert.assertTrue(acceptsGzip("*"));
+        Assert.assertFalse(acceptsGzip("*;q=0"));
+        Assert.assertFalse(acceptsGzip("gzip;q=0, *"));
+        Assert.assertTrue(acceptsGzip("gzip, *;q=0"));
+        Assert.assertFalse(acceptsGzip("gzip;q=bad"));
+    }
+
     @Test
     public void testwriteCsv() throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -70,6 +91,67 @@ public class TestDownload extends Download {
         logger.debug(out.toString());
     }
 
+    private Probe<?, ?> getProbe() throws Exception {
+        PropertiesManager pm = Tools.makePm(testFolder);
+        @SuppressWarnings("unchecked")
+        Probe<?, ?> p = GenerateProbe.quickProbe(testFolder, GenerateProbe.ChainedMap.start().set(PropertiesManager.class, pm));
+        p.getPd().add("test", DsType.GAUGE);
+        Assert.assertTrue(p.checkStore());
+        return p;
+    }
+
+    @Test
+    public void testWriteProbe() throws Exception {
+        Probe<?, ?> p = getProbe();
+        long step = p.getStep();
+        long end = System.currentTimeMillis() / 1000 / step * step;
+        // Many chunks
+        long start = end - (3 * CHUNKROWS + 7) * step;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExportWriter writer = ExportWriter.get("binary", out, null);
+        writeProbe(writer, p, new Date(start * 1000), new Date(end * 1000));
+        writer.finish();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        Assert.assertArrayEquals(ExportWriter.Binary.MAGIC, magic);
+        Assert.assertEquals(ExportWriter.Binary.VERSION, in.readInt());
+        Assert.assertEquals(1, in.readInt());
+        Assert.assertEquals("test", in.readUTF());
+        int rows = 0;
+        long last = 0;
+        int blockRows;
+        while((blockRows = in.readInt()) > 0) {
+            for(int i = 0; i < blockRows; i++) {
+                long timestamp = in.readLong();
+                Assert.assertTrue("rows not in order", timestamp > last);
+                last = timestamp;
+            }
+            for(int i = 0; i < blockRows; i++) {
+                in.readDouble();
+            }
+            rows += blockRows;
+        }
+        Assert.assertEquals("missing rows", (end - start) / step + 1, rows);
+        Assert.assertEquals(end, last);
+    }
+
+    @Test
+    public void testWriteJson() throws Exception {
+        Probe<?, ?> p = getProbe();
+        long step = p.getStep();
+        long end = System.currentTimeMillis() / 1000 / step * step;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExportWriter writer = ExportWriter.get("json", out, epochFormat.get());
+        writeProbe(writer, p, new Date((end - 10 * step) * 1000), new Date(end * 1000));
+        writer.finish();
+        JSONObject json = new JSONObject(out.toString("UTF-8"));
+        Assert.assertEquals(2, json.getJSONArray("columns").length());
+        Assert.assertEquals(11, json.getJSONArray("rows").length());
+        Assert.assertTrue(json.getJSONArray("rows").getJSONArray(0).isNull(1));
+    }
+
     @Test
     public void testDownload() throws Exception {
         ServletTester tester = null;
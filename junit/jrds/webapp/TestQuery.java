@@ -0,0 +1,196 @@
+package jrds.webapp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import jrds.Configuration;
+import jrds.GraphDesc;
+import jrds.HostInfo;
+import jrds.HostsList;
+import jrds.Probe;
+import jrds.ProbeDesc;
+import jrds.PropertiesManager;
+import jrds.TestProbe.DummyProbe;
+import jrds.Tools;
+import jrds.mockobjects.Full;
+import jrds.mockobjects.GenerateProbe;
+import jrds.starter.HostStarter;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.http.HttpTester;
+import org.eclipse.jetty.http.HttpTester.Request;
+import org.eclipse.jetty.http.HttpTester.Response;
+import org.eclipse.jetty.servlet.ServletTester;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestQuery {
+    static final private Logger logger = Logger.getLogger(TestQuery.class);
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @BeforeClass
+    static public void configure() throws IOException, ParserConfigurationException {
+        System.setProperty("org.eclipse.jetty.util.log.class", "org.eclipse.jetty.util.log.Slf4jLog");
+        Tools.configure();
+        Tools.prepareXml(false);
+        Tools.setLevel(logger, Level.TRACE, "jrds.webapp.ParamsBean", Query.class.getCanonicalName());
+    }
+
+    private Probe<?, ?> addProbe(String hostName, String name) throws Exception {
+        return addProbe(hostName, name, ACL.ALLOWEDACL);
+    }
+
+    private Probe<?, ?> addProbe(String hostName, String name, ACL acl) throws Exception {
+        HostsList hl = Configuration.get().getHostsList();
+        PropertiesManager pm = Configuration.get().getPropertiesManager();
+
+        GenerateProbe.ChainedMap<Object> args = GenerateProbe.ChainedMap.start();
+        args.set(ProbeDesc.class, Full.getPd()).set(Probe.class, DummyProbe.class).set(PropertiesManager.class, pm).set("name", name);
+        @SuppressWarnings("unchecked")
+        Probe<?, ?> p = GenerateProbe.quickProbe(testFolder, args);
+        HostInfo host = new HostInfo(hostName);
+        host.setHostDir(testFolder.newFolder());
+        p.setHost(new HostStarter(host));
+        p.setMainStore(pm.defaultStore, Collections.<String, String> emptyMap());
+        Assert.assertTrue(p.checkStore());
+
+        GraphDesc gd = Full.getGd();
+        gd.setGraphName(name);
+        gd.setName(name);
+        gd.setTree(PropertiesManager.HOSTSTAB, Arrays.asList("${host}", name));
+        gd.addACL(acl);
+        p.addGraph(gd);
+
+        hl.addHost(p.getHost());
+        hl.addProbe(p);
+        return p;
+    }
+
+    private ServletTester getTester() throws Exception {
+        return getTester(new Properties());
+    }
+
+    private ServletTester getTester(Properties props) throws Exception {
+        ServletTester tester = ToolsWebApp.getMonoServlet(testFolder, props, Query.class, "/query");
+        tester.start();
+        return tester;
+    }
+
+    @Test
+    public void testSelectors() throws Exception {
+        ServletTester tester = getTester();
+        Probe<?, ?> p1 = addProbe("host1", "query");
+        Probe<?, ?> p2 = addProbe("host2", "query");
+        String ds = p1.getPd().getDs().iterator().next();
+        int dsCount = p1.getPd().getDs().size();
+
+        String query = "http://localhost/query?epoch=1&scale=1&p=" + p1.getQualifiedName() + "/" + ds + "&p=" + p2.getQualifiedName() + "&p=" + p1.getQualifiedName() + "/" + ds;
+        Response response = ToolsWebApp.doRequestGet(tester, query, 200);
+        Assert.assertEquals("application/json", response.get("Content-Type"));
+        JSONObject json = new JSONObject(response.getContent());
+        JSONArray columns = json.getJSONArray("columns");
+        Assert.assertEquals(2 + dsCount, columns.length());
+        Assert.assertEquals(p1.getQualifiedName() + "/" + ds, columns.getString(1));
+        Assert.assertTrue(columns.getString(2).startsWith(p2.getQualifiedName() + "/"));
+        JSONArray rows = json.getJSONArray("rows");
+        Assert.assertTrue(rows.length() > 0);
+        long step = Math.max(p1.getStep(), p2.getStep());
+        // One shared time axis
+        for(int i = 0; i < rows.length(); i++) {
+            JSONArray row = rows.getJSONArray(i);
+            Assert.assertEquals(columns.length(), row.length());
+            if(i > 0) {
+                Assert.assertEquals(step, row.getLong(0) - rows.getJSONArray(i - 1).getLong(0));
+            }
+        }
+    }
+
+    @Test
+    public void testTag() throws Exception {
+        ServletTester tester = getTester();
+        Probe<?, ?> p1 = addProbe("host1", "query");
+        p1.getHost().addTag("querytag");
+
+        Response response = ToolsWebApp.doRequestGet(tester, "http://localhost/query?format=binary&scale=1&tag=querytag", 200);
+        Assert.assertEquals("application/octet-stream", response.get("Content-Type"));
+
+        response = ToolsWebApp.doRequestGet(tester, "http://localhost/query?scale=1&tag=querytag", 200);
+        JSONArray columns = new JSONObject(response.getContent()).getJSONArray("columns");
+        Assert.assertEquals(1 + p1.getPd().getDs().size(), columns.length());
+    }
+
+    private Response doGet(ServletTester tester, String uri, String encodings) throws Exception {
+        Request request = HttpTester.newRequest();
+        request.setMethod("GET");
+        request.setHeader("Host", "localhost");
+        request.setHeader("Accept-Encoding", encodings);
+        request.setURI(uri);
+        request.setVersion("HTTP/1.0");
+        Response response = HttpTester.parseResponse(tester.getResponses(request.generate()));
+        Assert.assertEquals(200, response.getStatus());
+        return response;
+    }
+
+    @Test
+    public void testEncoding() throws Exception {
+        ServletTester tester = getTester();
+        Probe<?, ?> p1 = addProbe("host1", "query");
+        String uri = "/query?scale=1&p=" + p1.getQualifiedName();
+
+        Assert.assertEquals("gzip", doGet(tester, uri, "deflate, gzip;q=0.8").get("Content-Encoding"));
+        // gzip explicitly refused
+        Response response = doGet(tester, uri, "gzip;q=0, deflate");
+        Assert.assertNull(response.get("Content-Encoding"));
+        Assert.assertEquals(1 + p1.getPd().getDs().size(), new JSONObject(response.getContent()).getJSONArray("columns").length());
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        ServletTester tester = getTester();
+        ToolsWebApp.doRequestGet(tester, "http://localhost/query", 400);
+        ToolsWebApp.doRequestGet(tester, "http://localhost/query?p=nohost/noprobe", 404);
+        ToolsWebApp.doRequestGet(tester, "http://localhost/query?p=bad", 400);
+        ToolsWebApp.doRequestGet(tester, "http://localhost/query?filter=nofilter", 404);
+        ToolsWebApp.doRequestGet(tester, "http://localhost/query?p=localhost/probe&format=xls", 400);
+    }
+
+    @Test
+    public void testSecurity() throws Exception {
+        Properties props = new Properties();
+        props.put("security", "true");
+        props.put("defaultroles", "ANONYMOUS");
+        ServletTester tester = getTester(props);
+        Probe<?, ?> open = addProbe("host1", "query");
+        Probe<?, ?> restricted = addProbe("host2", "query", new RolesACL(new HashSet<String>(Arrays.asList("admin"))));
+
+        ToolsWebApp.doRequestGet(tester, "http://localhost/query?scale=1&p=" + open.getQualifiedName(), 200);
+        // The graphs of the probe are not visible, so it can't be read
+        ToolsWebApp.doRequestGet(tester, "http://localhost/query?scale=1&p=" + restricted.getQualifiedName(), 403);
+        ToolsWebApp.doRequestGet(tester, "http://localhost/query?scale=1&p=" + open.getQualifiedName() + "&p=" + restricted.getQualifiedName(), 403);
+    }
+
+    @Test
+    public void testAlign() {
+        long[] axis = new long[] { 10, 20, 30 };
+        double[] values = new double[] { 1, 2, 3 };
+        Assert.assertSame(values, Query.align(axis, axis.clone(), values));
+        double[] aligned = Query.align(axis, new long[] { 20, 30, 40 }, values);
+        Assert.assertTrue(Double.isNaN(aligned[0]));
+        Assert.assertEquals(1, aligned[1], 1e-9);
+        Assert.assertEquals(2, aligned[2], 1e-9);
+    }
+
+}
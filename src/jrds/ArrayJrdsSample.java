@@ -0,0 +1,261 @@
+package jrds;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A sample that stores the values in an array of double, indexed by the
+ * datasource slot. The slots are defined by a {@link Layout} shared by all the
+ * samples of a probe, so no map or boxed values are allocated for the
+ * datasources of the probe description. Unknown names are still accepted and
+ * kept in a map.
+ */
+public class ArrayJrdsSample extends AbstractMap<String, Number> implements JrdsSample {
+
+    /**
+     * The datasources names and their slots, it's immutable
+     */
+    public static final class Layout {
+        private final String[] names;
+        private final Map<String, Integer> slots;
+
+        public Layout(String[] names) {
+            this.names = names;
+            Map<String, Integer> slots = new HashMap<String, Integer>(names.length);
+            for(int i = 0; i < names.length; i++) {
+                slots.put(names[i], i);
+            }
+            this.slots = slots;
+        }
+
+        /**
+         * @param name a datasource name
+         * @return the slot of the datasource or -1 if it's unknown
+         */
+        public int getSlot(Object name) {
+            Integer slot = slots.get(name);
+            return slot == null ? -1 : slot;
+        }
+
+        public String getName(int slot) {
+            return names[slot];
+        }
+
+        public int size() {
+            return names.length;
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<String, Number>> {
+        @Override
+        public Iterator<Map.Entry<String, Number>> iterator() {
+            return new Iterator<Map.Entry<String, Number>>() {
+                private int next = nextSlot(0);
+                private int current = -1;
+                private Iterator<Map.Entry<String, Number>> others = null;
+
+                @Override
+                public boolean hasNext() {
+                    if(next < values.length) {
+                        return true;
+                    }
+                    if(others == null) {
+                        others = unknown == null ? Collections.<Map.Entry<String, Number>> emptyIterator() : unknown.entrySet().iterator();
+                    }
+                    return others.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, Number> next() {
+                    if(!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    if(others == null) {
+                        current = next;
+                        next = nextSlot(next + 1);
+                        return new SimpleImmutableEntry<String, Number>(layout.getName(current), values[current]);
+                    } else {
+                        current = -1;
+                        return others.next();
+                    }
+                }
+
+                @Override
+                public void remove() {
+                    if(current >= 0) {
+                        if(!set[current]) {
+                            throw new IllegalStateException();
+                        }
+                        set[current] = false;
+                        count--;
+                    } else if(others != null) {
+                        others.remove();
+                    } else {
+                        throw new IllegalStateException();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return ArrayJrdsSample.this.size();
+        }
+    }
+
+    private final Probe<?, ?> probe;
+    private final Layout layout;
+    private final double[] values;
+    private final boolean[] set;
+    private int count = 0;
+    private Map<String, Number> unknown = null;
+    private Date time;
+
+    public ArrayJrdsSample(Probe<?, ?> probe, Layout layout) {
+        this.probe = probe;
+        this.layout = layout;
+        this.values = new double[layout.size()];
+        this.set = new boolean[layout.size()];
+        this.time = new Date();
+    }
+
+    public Date getTime() {
+        return time;
+    }
+
+    public void setTime(Date time) {
+        this.time = time;
+    }
+
+    public Probe<?, ?> getProbe() {
+        return probe;
+    }
+
+    /**
+     * @return the layout used by this sample
+     */
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Set a value using it's slot, without boxing
+     *
+     * @param slot
+     * @param value
+     */
+    public void put(int slot, double value) {
+        values[slot] = value;
+        if(!set[slot]) {
+            set[slot] = true;
+            count++;
+        }
+    }
+
+    /**
+     * @param slot
+     * @return true if a value was set for this slot
+     */
+    public boolean isSet(int slot) {
+        return set[slot];
+    }
+
+    /**
+     * @param slot
+     * @return the value of the slot, meaningful only if the slot is set
+     */
+    public double getValue(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * @return the values not in the layout, can be empty
+     */
+    public Map<String, Number> getUnknown() {
+        return unknown == null ? Collections.<String, Number> emptyMap() : unknown;
+    }
+
+    public void put(Map.Entry<String, Double> e) {
+        put(e.getKey(), e.getValue());
+    }
+
+    @Override
+    public Number put(String key, Number value) {
+        int slot = layout.getSlot(key);
+        if(slot < 0) {
+            if(unknown == null) {
+                unknown = new HashMap<String, Number>();
+            }
+            return unknown.put(key, value);
+        }
+        Number old = set[slot] ? values[slot] : null;
+        put(slot, value == null ? Double.NaN : value.doubleValue());
+        return old;
+    }
+
+    @Override
+    public Number get(Object key) {
+        int slot = layout.getSlot(key);
+        if(slot < 0) {
+            return unknown == null ? null : unknown.get(key);
+        }
+        return set[slot] ? values[slot] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int slot = layout.getSlot(key);
+        if(slot < 0) {
+            return unknown != null && unknown.containsKey(key);
+        }
+        return set[slot];
+    }
+
+    @Override
+    public Number remove(Object key) {
+        int slot = layout.getSlot(key);
+        if(slot < 0) {
+            return unknown == null ? null : unknown.remove(key);
+        }
+        if(!set[slot]) {
+            return null;
+        }
+        set[slot] = false;
+        count--;
+        return values[slot];
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(set, false);
+        count = 0;
+        unknown = null;
+    }
+
+    @Override
+    public int size() {
+        return count + (unknown == null ? 0 : unknown.size());
+    }
+
+    @Override
+    public Set<Map.Entry<String, Number>> entrySet() {
+        return new EntrySet();
+    }
+
+    private int nextSlot(int start) {
+        int i = start;
+        while(i < set.length && !set[i]) {
+            i++;
+        }
+        return i;
+    }
+
+}
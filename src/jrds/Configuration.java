@@ -1,7 +1,10 @@
 package jrds;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Properties;
 
+import jrds.starter.HostStarter;
 import jrds.starter.Timer;
 import jrds.store.StoreFactory;
 
@@ -15,6 +18,10 @@ public class Configuration {
     private final PropertiesManager propertiesManager = new PropertiesManager();
     private final HostsList hostsList;
     private Thread shutDownHook;
+    // The stores and the unchanged hosts come from the previous configuration
+    private final boolean incremental;
+    // The stores are used by the next configuration, they must not be stopped
+    private boolean storesGiven = false;
 
     public static final synchronized Configuration configure(Properties p) {
         conf = new Configuration(p);
@@ -22,10 +29,22 @@ public class Configuration {
         return conf;
     }
 
+    /**
+     * Replace the current configuration. If the properties did not change,
+     * the reload is incremental: the hosts whose configuration did not change
+     * are kept, with their probes and stores. They are moved to the new
+     * configuration only once the old one is stopped, so if the new
+     * configuration fails, the old one is left untouched.
+     * 
+     * @param p
+     * @return the new configuration
+     */
     public static final synchronized Configuration switchConf(Properties p) {
         Configuration oldConfig = conf;
-        Configuration newConfig = new Configuration(p);
-        oldConfig.stop();
+        Configuration newConfig = new Configuration(p, oldConfig);
+        oldConfig.storesGiven = newConfig.incremental;
+        oldConfig.stop(newConfig.hostsList.getKeptHosts());
+        newConfig.hostsList.adoptKeptHosts(oldConfig.hostsList);
         newConfig.start();
         conf = newConfig;
         // Avoid a memory leak in perm gen
@@ -39,15 +58,29 @@ public class Configuration {
     }
 
     public static final synchronized void stopConf() {
-        conf.stop();
+        conf.stop(Collections.<HostStarter> emptySet());
     }
 
     private Configuration(Properties p) {
+        this(p, null);
+    }
+
+    private Configuration(Properties p, Configuration previous) {
         propertiesManager.join(p);
         propertiesManager.importSystemProps();
         propertiesManager.update();
 
-        hostsList = new HostsList(propertiesManager);
+        if(previous != null && propertiesManager.equals(previous.propertiesManager)) {
+            // Same properties, the stores are shared and the unchanged hosts
+            // are kept
+            propertiesManager.defaultStore = previous.propertiesManager.defaultStore;
+            propertiesManager.stores.putAll(previous.propertiesManager.stores);
+            hostsList = new HostsList(propertiesManager, previous.hostsList);
+            incremental = true;
+        } else {
+            hostsList = new HostsList(propertiesManager);
+            incremental = false;
+        }
     }
 
     private void start() {
@@ -68,8 +101,8 @@ public class Configuration {
         hostsList.startTimers();
     }
 
-    private void stop() {
-        hostsList.stop();
+    private void stop(Collection<HostStarter> given) {
+        hostsList.stop(given);
         Thread.yield();
         // We don't care if it failed, just try
         try {
@@ -89,13 +122,17 @@ public class Configuration {
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
-        for(StoreFactory sf: propertiesManager.stores.values()) {
-            sf.stop();
+        if(!storesGiven) {
+            for(StoreFactory sf: propertiesManager.stores.values()) {
+                sf.stop();
+            }
         }
         if(hostsList.getRenderer() != null) {
             hostsList.getRenderer().finish();
         }
-        propertiesManager.defaultStore.stop();
+        if(!storesGiven) {
+            propertiesManager.defaultStore.stop();
+        }
     }
 
     /**
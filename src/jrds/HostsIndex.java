@@ -0,0 +1,166 @@
+package jrds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An immutable index of the hosts, probes and graphs of a {@link HostsList}.
+ * It's built once and then read without locks.
+ * <p>
+ * The numerical ids are the hash code of the qualified names, as used in the
+ * URLs. If two names have the same id, only the first one is reachable by id,
+ * the others are still reachable by name.
+ */
+final class HostsIndex {
+    static final private Logger logger = Logger.getLogger(HostsIndex.class);
+
+    private final Map<String, GraphNode> graphsByName;
+    private final Map<Integer, GraphNode> graphsById;
+    private final Map<String, Probe<?, ?>> probesByName;
+    private final Map<Integer, Probe<?, ?>> probesById;
+    private final Map<String, HostInfo> hostsByName;
+    private final Map<String, Set<HostInfo>> hostsByTag;
+    private final Map<String, List<GraphNode>> graphsByTag;
+    // Filters are evaluated when first used, the index is immutable so
+    // the result stay valid
+    private final ConcurrentMap<String, Collection<GraphNode>> filtersGraphs = new ConcurrentHashMap<String, Collection<GraphNode>>();
+
+    HostsIndex(Collection<HostInfo> hosts, Map<String, Probe<?, ?>> probes, Map<String, GraphNode> graphs) {
+        graphsByName = new HashMap<String, GraphNode>(graphs);
+        graphsById = new HashMap<Integer, GraphNode>(graphs.size());
+        for(GraphNode gn: graphs.values()) {
+            GraphNode previous = graphsById.get(gn.hashCode());
+            if(previous == null) {
+                graphsById.put(gn.hashCode(), gn);
+            } else {
+                logger.error(Util.delayedFormatString("Graphs %s and %s have the same id, only the first one is reachable by id", previous.getQualifiedName(), gn.getQualifiedName()));
+            }
+        }
+
+        probesByName = new HashMap<String, Probe<?, ?>>(probes);
+        probesById = new HashMap<Integer, Probe<?, ?>>(probes.size());
+        for(Probe<?, ?> p: probes.values()) {
+            Probe<?, ?> previous = probesById.get(p.hashCode());
+            if(previous == null) {
+                probesById.put(p.hashCode(), p);
+            } else {
+                logger.error(Util.delayedFormatString("Probes %s and %s have the same id, only the first one is reachable by id", previous.getQualifiedName(), p.getQualifiedName()));
+            }
+        }
+
+        hostsByName = new HashMap<String, HostInfo>(hosts.size());
+        Map<String, Set<HostInfo>> tagHosts = new HashMap<String, Set<HostInfo>>();
+        for(HostInfo host: hosts) {
+            hostsByName.put(host.getName(), host);
+            for(String tag: host.getTags()) {
+                Set<HostInfo> tagged = tagHosts.get(tag);
+                if(tagged == null) {
+                    tagged = new LinkedHashSet<HostInfo>();
+                    tagHosts.put(tag, tagged);
+                }
+                tagged.add(host);
+            }
+        }
+        hostsByTag = new HashMap<String, Set<HostInfo>>(tagHosts.size());
+        for(Map.Entry<String, Set<HostInfo>> e: tagHosts.entrySet()) {
+            hostsByTag.put(e.getKey(), Collections.unmodifiableSet(e.getValue()));
+        }
+
+        // The same test than FilterTag, using the host of the graph's probe
+        Map<String, List<GraphNode>> tagGraphs = new HashMap<String, List<GraphNode>>();
+        for(GraphNode gn: graphs.values()) {
+            Probe<?, ?> p = gn.getProbe();
+            if(p == null || p.getHost() == null) {
+                continue;
+            }
+            for(String tag: p.getHost().getTags()) {
+                List<GraphNode> tagged = tagGraphs.get(tag);
+                if(tagged == null) {
+                    tagged = new ArrayList<GraphNode>();
+                    tagGraphs.put(tag, tagged);
+                }
+                tagged.add(gn);
+            }
+        }
+        graphsByTag = new HashMap<String, List<GraphNode>>(tagGraphs.size());
+        for(Map.Entry<String, List<GraphNode>> e: tagGraphs.entrySet()) {
+            graphsByTag.put(e.getKey(), Collections.unmodifiableList(e.getValue()));
+        }
+    }
+
+    GraphNode getGraphById(int id) {
+        return graphsById.get(id);
+    }
+
+    GraphNode getGraphByName(String qualifiedName) {
+        return graphsByName.get(qualifiedName);
+    }
+
+    Probe<?, ?> getProbeById(int id) {
+        return probesById.get(id);
+    }
+
+    Probe<?, ?> getProbeByName(String qualifiedName) {
+        return probesByName.get(qualifiedName);
+    }
+
+    HostInfo getHost(String name) {
+        return hostsByName.get(name);
+    }
+
+    Set<HostInfo> getHostsByTag(String tag) {
+        Set<HostInfo> hosts = hostsByTag.get(tag);
+        return hosts != null ? hosts : Collections.<HostInfo> emptySet();
+    }
+
+    List<GraphNode> getGraphsByTag(String tag) {
+        List<GraphNode> graphs = graphsByTag.get(tag);
+        return graphs != null ? graphs : Collections.<GraphNode> emptyList();
+    }
+
+    /**
+     * Return the graphs accepted by a filter. Tags filters use the tag index,
+     * the other ones are evaluated on the trees. The result is kept for the
+     * filters of the hosts list.
+     *
+     * @param filter
+     * @param trees
+     * @param known true if the filter belongs to the hosts list
+     * @return the accepted graphs
+     */
+    Collection<GraphNode> getGraphs(Filter filter, Collection<GraphTree> trees, boolean known) {
+        if(filter instanceof FilterTag) {
+            return getGraphsByTag(filter.getName());
+        }
+        Collection<GraphNode> graphs = known ? filtersGraphs.get(filter.getName()) : null;
+        if(graphs == null) {
+            Map<String, GraphNode> accepted = new LinkedHashMap<String, GraphNode>();
+            for(GraphTree tree: trees) {
+                GraphTree root = filter.setRoot(tree);
+                if(root == null) {
+                    continue;
+                }
+                for(GraphNode gn: root.enumerateChildsGraph(filter)) {
+                    accepted.put(gn.getQualifiedName(), gn);
+                }
+            }
+            graphs = Collections.unmodifiableCollection(new ArrayList<GraphNode>(accepted.values()));
+            if(known) {
+                filtersGraphs.putIfAbsent(filter.getName(), graphs);
+            }
+        }
+        return graphs;
+    }
+
+}
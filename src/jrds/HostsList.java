@@ -1,6 +1,8 @@
 
 package jrds;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -17,9 +19,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import jrds.PropertiesManager.TimerInfo;
 import jrds.configuration.ConfigObjectFactory;
+import jrds.configuration.ConfigType;
 import jrds.factories.ArgFactory;
 import jrds.factories.ProbeMeta;
 import jrds.graphe.Sum;
+import jrds.probe.AggregateProbe;
+import jrds.probe.PassiveProbe;
+import jrds.starter.DnsCache;
 import jrds.starter.HostStarter;
 import jrds.starter.Listener;
 import jrds.starter.Starter;
@@ -44,8 +50,9 @@ public class HostsList extends StarterNode {
     private final Set<HostInfo> hostList = new HashSet<HostInfo>();
     private final Set<Starter> topStarters = new HashSet<Starter>();
     private final Map<String, jrds.starter.Timer> timers = new HashMap<String, jrds.starter.Timer>();
-    private final Map<Integer, GraphNode> graphMap = new HashMap<Integer, GraphNode>();
-    private final Map<Integer, Probe<?, ?>> probeMap = new HashMap<Integer, Probe<?, ?>>();
+    // The graphs and probes, by qualified name
+    private final Map<String, GraphNode> graphMap = new LinkedHashMap<String, GraphNode>();
+    private final Map<String, Probe<?, ?>> probeMap = new LinkedHashMap<String, Probe<?, ?>>();
     private final Map<String, GraphTree> treeMap = new LinkedHashMap<String, GraphTree>(3);
     private final Map<String, Filter> filters = new TreeMap<String, Filter>(String.CASE_INSENSITIVE_ORDER);
     private Map<String, Tab> tabs = new LinkedHashMap<String, Tab>();
@@ -58,6 +65,18 @@ public class HostsList extends StarterNode {
     // A global flag that tells globally that this HostsList can be used
     volatile private boolean started = false;
     private Set<Class<? extends DiscoverAgent>> daList = new HashSet<Class<? extends DiscoverAgent>>();
+    // The lookup index, null when it needs to be rebuilt
+    private volatile HostsIndex index = null;
+    private final Object indexLock = new Object();
+    // The fingerprints of the documents used to build the hosts
+    private Map<String, String> hostsFingerprints = Collections.emptyMap();
+    private Map<String, String> probeDescFingerprints = Collections.emptyMap();
+    private String contextFingerprint = null;
+    // The configuration being replaced, only used during configure
+    private HostsList previous = null;
+    // The hosts to take from the previous configuration, with the name of
+    // their timer, they are adopted once it's stopped
+    private Map<HostStarter, String> keptHosts = Collections.emptyMap();
 
     /**
      *  
@@ -76,6 +95,28 @@ public class HostsList extends StarterNode {
         configure(pm);
     }
 
+    /**
+     * Build a new hosts list that replaces a previous one. The hosts whose
+     * documents did not change are taken from the previous hosts list, with
+     * their probes, starters and stores. The stores factories of the
+     * properties must be the ones of the previous configuration, they are
+     * not configured again. The previous hosts list is not modified, the kept
+     * hosts are moved by {@link #adoptKeptHosts(HostsList)} once it's stopped.
+     * 
+     * @param pm
+     * @param previous the hosts list being replaced
+     */
+    public HostsList(PropertiesManager pm, HostsList previous) {
+        super();
+        init();
+        this.previous = previous;
+        try {
+            configure(pm);
+        } finally {
+            this.previous = null;
+        }
+    }
+
     private void init() {
         filters.put(Filter.EVERYTHING.getName(), Filter.EVERYTHING);
 
@@ -105,7 +146,9 @@ public class HostsList extends StarterNode {
             return;
         }
 
-        pm.configureStores();
+        if(previous == null) {
+            pm.configureStores();
+        }
         setTimeout(pm.timeout);
         setStep(pm.step);
 
@@ -118,7 +161,14 @@ public class HostsList extends StarterNode {
         }
         log(Level.DEBUG, "timers %s", timers);
 
-        renderer = new Renderer(50, pm.tmpdir);
+        // Shared by all the hosts, so it's available before they are configured
+        DnsCache dnsCache = new DnsCache();
+        registerStarter(dnsCache);
+        topStarters.add(dnsCache);
+        dnsCache.configure(pm);
+
+        renderer = new Renderer(pm.renderQueue, pm.tmpdir, pm.renderCacheMemory * 1024L * 1024L, pm.renderCacheDisk * 1024L * 1024L);
+        renderer.setTimeout(pm.renderTimeout * 1000L);
 
         log(Level.DEBUG, "Starting parsing descriptions");
         ConfigObjectFactory conf = new ConfigObjectFactory(pm);
@@ -139,8 +189,21 @@ public class HostsList extends StarterNode {
         }
 
         Set<String> hostsTags = new HashSet<String>();
+        hostsFingerprints = new HashMap<String, String>(conf.getFingerprints(ConfigType.HOSTS));
+        probeDescFingerprints = new HashMap<String, String>(conf.getFingerprints(ConfigType.PROBEDESC));
+        contextFingerprint = conf.getContextFingerprint();
+        if(previous != null) {
+            keptHosts = previous.findUnchangedHosts(this);
+            for(HostStarter hs: keptHosts.keySet()) {
+                // The kept hosts are not parsed again
+                conf.getNodeMap(ConfigType.HOSTS).remove(hs.getName());
+                hostList.add(hs.getHost());
+            }
+            log(Level.INFO, "%d hosts kept from the previous configuration", keptHosts.size());
+        }
         Map<String, HostInfo> allHosts = conf.setHostMap(timers);
         hostList.addAll(allHosts.values());
+        invalidateIndex();
         Set<Class<? extends Starter>> topStarterClasses = new HashSet<Class<? extends Starter>>();
 
         // We try to load top level starter defined in probes
@@ -162,6 +225,24 @@ public class HostsList extends StarterNode {
                     }
                 }
             }
+            // The kept hosts are already configured, but their probes might
+            // need starters in the new timer
+            for(Map.Entry<HostStarter, String> e: keptHosts.entrySet()) {
+                if(!timer.getName().equals(e.getValue())) {
+                    continue;
+                }
+                hostsTags.addAll(e.getKey().getTags());
+                for(Probe<?, ?> p: e.getKey().getAllProbes()) {
+                    try {
+                        for(ProbeMeta meta: ArgFactory.enumerateAnnotation(p.getClass(), ProbeMeta.class, StarterNode.class)) {
+                            timerStarterClasses.add(meta.timerStarter());
+                            topStarterClasses.add(meta.topStarter());
+                        }
+                    } catch (Exception ex) {
+                        log(Level.ERROR, ex, "Error inserting probe " + p + ": " + ex.getMessage());
+                    }
+                }
+            }
             log(Level.DEBUG, "timer starters added %s for timer %s", timerStarterClasses, timer.getName());
             for(Class<? extends Starter> starterClass: timerStarterClasses) {
                 try {
@@ -188,7 +269,8 @@ public class HostsList extends StarterNode {
             for(Probe<?, ?> p: host.getProbes()) {
                 addProbe(p);
                 // Some probe are done outside of a starter
-                // Don't forget them
+                // Don't forget them, the kept probes are attached to this
+                // hosts list when their host is adopted
                 if(p.getHostList() == null) {
                     p.setParent(this);
                 }
@@ -211,6 +293,9 @@ public class HostsList extends StarterNode {
         // Build all the sums and add them to all the graphs
         doSums(conf.setSumMap(), graphMap, treeMap, allTabs);
 
+        // Build the aggregates, they subscribe to their members
+        doAggregates(conf.setAggregateMap(), pm);
+
         // Let's build the tab with all the custom graph and add them to all
         // graph
         doCustomGraphs(conf.setGrapMap(), graphMap, treeMap, allTabs);
@@ -237,11 +322,27 @@ public class HostsList extends StarterNode {
             t.setHostlist(this);
         }
 
+        // Publish the index of this generation
+        HostsIndex newIndex = getIndex();
+
         if(pm.security) {
+            // Tags filters are resolved with the index, the other filters
+            // are checked against each graph
+            List<Filter> pathFilters = new ArrayList<Filter>(filters.size());
+            for(Filter f: filters.values()) {
+                if(f instanceof FilterTag) {
+                    for(GraphNode gn: newIndex.getGraphsByTag(f.getName())) {
+                        log(Level.TRACE, "Adding ACL %s to %s", f.getACL(), gn);
+                        gn.addACL(f.getACL());
+                    }
+                } else {
+                    pathFilters.add(f);
+                }
+            }
             for(GraphNode gn: graphMap.values()) {
                 gn.addACL(pm.defaultACL);
-                checkRoles(gn, GraphTree.HOSTROOT, gn.getTreePathByHost());
-                checkRoles(gn, GraphTree.VIEWROOT, gn.getTreePathByView());
+                checkRoles(gn, pathFilters, GraphTree.HOSTROOT, gn.getTreePathByHost());
+                checkRoles(gn, pathFilters, GraphTree.VIEWROOT, gn.getTreePathByView());
             }
         }
         started = true;
@@ -263,6 +364,16 @@ public class HostsList extends StarterNode {
      * little help
      */
     public void stop() {
+        stop(Collections.<HostStarter> emptySet());
+    }
+
+    /**
+     * Stop the collect, the persistent starters of the hosts given to a new
+     * configuration are not released
+     * 
+     * @param given the hosts that will be adopted by a new hosts list
+     */
+    public void stop(Collection<HostStarter> given) {
         started = false;
         if(collectTimer != null)
             collectTimer.cancel();
@@ -277,7 +388,16 @@ public class HostsList extends StarterNode {
                 for(Probe<?, ?> p: h.getAllProbes()) {
                     p.stopCollect();
                 }
+                // The persistent connections are closed, unless the host is
+                // given to a new configuration
+                if(!given.contains(h)) {
+                    h.releaseStarters();
+                    for(Probe<?, ?> p: h.getAllProbes()) {
+                        p.releaseStarters();
+                    }
+                }
             }
+            t.releaseStarters();
             t.interrupt();
         }
     }
@@ -316,6 +436,115 @@ public class HostsList extends StarterNode {
         return firstTab;
     }
 
+    /**
+     * Find the hosts that can be used unchanged by a new hosts list. A host is
+     * kept if its document, the documents of its probes descriptions and the
+     * shared documents did not change. This hosts list is not modified.
+     * 
+     * @param next the new hosts list
+     * @return the hosts kept, with the name of their timer
+     */
+    private Map<HostStarter, String> findUnchangedHosts(HostsList next) {
+        if(contextFingerprint == null || !contextFingerprint.equals(next.contextFingerprint)) {
+            log(Level.INFO, "Shared configuration changed, all hosts are rebuilt");
+            return Collections.emptyMap();
+        }
+        Map<String, HostInfo> unchangedHosts = new HashMap<String, HostInfo>();
+        for(HostInfo host: hostList) {
+            String fingerprint = hostsFingerprints.get(host.getName());
+            if(fingerprint == null || !fingerprint.equals(next.hostsFingerprints.get(host.getName()))) {
+                continue;
+            }
+            boolean unchanged = true;
+            for(Probe<?, ?> p: host.getProbes()) {
+                // Passive probes are bound to the listeners, that are always
+                // rebuilt
+                if(p instanceof PassiveProbe || p.getPd() == null) {
+                    unchanged = false;
+                    break;
+                }
+                String pdName = p.getPd().getName();
+                String pdFingerprint = probeDescFingerprints.get(pdName);
+                if(pdFingerprint == null ? next.probeDescFingerprints.get(pdName) != null : !pdFingerprint.equals(next.probeDescFingerprints.get(pdName))) {
+                    unchanged = false;
+                    break;
+                }
+            }
+            if(unchanged) {
+                unchangedHosts.put(host.getName(), host);
+            }
+        }
+        // The timer must exist in the new hosts list, or the host can't be
+        // collected
+        Map<HostStarter, String> kept = new HashMap<HostStarter, String>();
+        for(jrds.starter.Timer t: timers.values()) {
+            if(!next.timers.containsKey(t.getName())) {
+                continue;
+            }
+            for(HostStarter hs: t.getAllHosts()) {
+                if(unchangedHosts.get(hs.getName()) == hs.getHost()) {
+                    kept.put(hs, t.getName());
+                }
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * @return the hosts that will be taken from the previous hosts list
+     */
+    public Collection<HostStarter> getKeptHosts() {
+        return Collections.unmodifiableSet(keptHosts.keySet());
+    }
+
+    /**
+     * Move the kept hosts to the timers of this hosts list. It must be called
+     * once the previous hosts list is stopped, so the hosts are not collected
+     * by both. The aggregates of the previous hosts list stop listening to
+     * the kept probes, and only then the new aggregates start listening to
+     * them, so an aggregate is never written by both.
+     * 
+     * @param previous the hosts list that was replaced
+     */
+    public void adoptKeptHosts(HostsList previous) {
+        for(Map.Entry<HostStarter, String> e: keptHosts.entrySet()) {
+            timers.get(e.getValue()).adoptHost(e.getKey());
+        }
+        for(Probe<?, ?> p: previous.probeMap.values()) {
+            if(p instanceof AggregateProbe) {
+                ((AggregateProbe) p).release();
+            }
+        }
+        Set<Probe<?, ?>> keptProbes = new HashSet<Probe<?, ?>>();
+        for(HostStarter hs: keptHosts.keySet()) {
+            for(Probe<?, ?> p: hs.getAllProbes()) {
+                keptProbes.add(p);
+            }
+        }
+        for(Probe<?, ?> p: probeMap.values()) {
+            if(p instanceof AggregateProbe) {
+                ((AggregateProbe) p).subscribe(keptProbes);
+            }
+        }
+        keptHosts = Collections.emptyMap();
+    }
+
+    /**
+     * Check if a probe belongs to a host kept from the previous configuration
+     * and not adopted yet
+     * 
+     * @param p the probe
+     * @return true if the probe is collected by the previous configuration
+     */
+    public boolean isKept(Probe<?, ?> p) {
+        for(HostStarter hs: keptHosts.keySet()) {
+            if(hs.getHost() == p.getHost()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     void doTagsTabs(Set<String> hostsTags, Set<Tab> tabs) {
         Tab tagsTab = new Tab.Filters("All tags", PropertiesManager.TAGSTAB);
         for(String tag: hostsTags) {
@@ -323,6 +552,7 @@ public class HostsList extends StarterNode {
             filters.put(f.getName(), f);
             tagsTab.add(f.getName());
         }
+        invalidateIndex();
         tabs.add(tagsTab);
     }
 
@@ -335,7 +565,35 @@ public class HostsList extends StarterNode {
         tabs.add(filterTab);
     }
 
-    void doSums(Map<String, Sum> sums, Map<Integer, GraphNode> graphMap, Map<String, GraphTree> treeMap, Set<Tab> tabs) {
+    void doAggregates(Map<String, AggregateProbe> aggregates, PropertiesManager pm) {
+        if(aggregates.size() == 0) {
+            return;
+        }
+        // All the aggregates are stored in a virtual host
+        HostInfo aggregatesHost = new HostInfo(AggregateProbe.HOSTNAME);
+        aggregatesHost.setHostDir(new File(pm.rrddir, AggregateProbe.HOSTNAME));
+        HostStarter starter = new HostStarter(aggregatesHost);
+        starter.setParent(this);
+        List<AggregateProbe> configured = new ArrayList<AggregateProbe>(aggregates.size());
+        for(AggregateProbe ap: aggregates.values()) {
+            try {
+                if(ap.configure(this, starter, pm)) {
+                    starter.addProbe(ap);
+                    configured.add(ap);
+                }
+            } catch (Exception e) {
+                log(Level.ERROR, e, "failed aggregate %s: %s", ap.getName(), e);
+            }
+        }
+        // Added once all the members are found, so the index used to find
+        // them is build only once
+        for(AggregateProbe ap: configured) {
+            addProbe(ap);
+        }
+        addHost(aggregatesHost);
+    }
+
+    void doSums(Map<String, Sum> sums, Map<String, GraphNode> graphMap, Map<String, GraphTree> treeMap, Set<Tab> tabs) {
         // Let's build the tab with all the sums
         if(sums.size() > 0) {
             Tab sumGraphsTab = new Tab.DynamicTree("Sums", PropertiesManager.SUMSTAB);
@@ -343,19 +601,20 @@ public class HostsList extends StarterNode {
             for(Sum s: sums.values()) {
                 try {
                     s.configure(this);
-                    graphMap.put(s.getQualifiedName().hashCode(), s);
+                    graphMap.put(s.getQualifiedName(), s);
                     sumGraphsTab.add(s.getQualifiedName(), "Sums", s.getName());
                 } catch (Exception e1) {
                     log(Level.ERROR, e1, "failed sum: %s", e1);
                 }
             }
+            invalidateIndex();
             GraphTree tree = sumGraphsTab.getGraphTree();
             treeMap.put(tree.getName(), tree);
             tabs.add(sumGraphsTab);
         }
     }
 
-    void doCustomGraphs(Map<String, GraphDesc> graphs, Map<Integer, GraphNode> graphMap, Map<String, GraphTree> treeMap, Set<Tab> tabs) {
+    void doCustomGraphs(Map<String, GraphDesc> graphs, Map<String, GraphNode> graphMap, Map<String, GraphTree> treeMap, Set<Tab> tabs) {
         log(Level.DEBUG, "Parsing graphs configuration");
         // Let's build the tab with all the custom graphs
         if(!graphs.isEmpty()) {
@@ -364,9 +623,10 @@ public class HostsList extends StarterNode {
             for(GraphDesc gd: graphs.values()) {
                 AutonomousGraphNode gn = new AutonomousGraphNode(gd);
                 gn.configure(this);
-                graphMap.put(gn.getQualifiedName().hashCode(), gn);
+                graphMap.put(gn.getQualifiedName(), gn);
                 customGraphsTab.add(gn.getQualifiedName(), Arrays.asList(new String[] { gd.getName() }));
             }
+            invalidateIndex();
             GraphTree tree = customGraphsTab.getGraphTree();
             treeMap.put(tree.getName(), tree);
             tabs.add(customGraphsTab);
@@ -382,6 +642,7 @@ public class HostsList extends StarterNode {
                 if(tabtree != null)
                     treeMap.put(t.getName(), tabtree);
             }
+            invalidateIndex();
         }
     }
 
@@ -414,16 +675,19 @@ public class HostsList extends StarterNode {
     }
 
     public void addGraphs(Collection<GraphNode> graphs) {
-        for(GraphNode currGraph: graphs) {
-            LinkedList<String> path;
+        synchronized(indexLock) {
+            for(GraphNode currGraph: graphs) {
+                LinkedList<String> path;
 
-            path = currGraph.getTreePathByHost();
-            getGraphTreeByHost().addGraphByPath(path, currGraph);
+                path = currGraph.getTreePathByHost();
+                getGraphTreeByHost().addGraphByPath(path, currGraph);
 
-            path = currGraph.getTreePathByView();
-            getGraphTreeByView().addGraphByPath(path, currGraph);
+                path = currGraph.getTreePathByView();
+                getGraphTreeByView().addGraphByPath(path, currGraph);
 
-            graphMap.put(currGraph.hashCode(), currGraph);
+                graphMap.put(currGraph.getQualifiedName(), currGraph);
+            }
+            index = null;
         }
     }
 
@@ -431,14 +695,15 @@ public class HostsList extends StarterNode {
      * Generate the list of roles that might view this node, using the filters
      * 
      * @param gn
+     * @param filters
      * @param pathList
      */
-    private void checkRoles(GraphNode gn, String root, List<String> pathList) {
+    private void checkRoles(GraphNode gn, Collection<Filter> filters, String root, List<String> pathList) {
         StringBuilder path = new StringBuilder("/" + root);
         for(String pathElem: pathList) {
             path.append('/').append(pathElem);
         }
-        for(Filter f: filters.values()) {
+        for(Filter f: filters) {
             if(f.acceptGraph(gn, path.toString())) {
                 log(Level.TRACE, "Adding ACL %s to %s", f.getACL(), gn);
                 gn.addACL(f.getACL());
@@ -447,7 +712,37 @@ public class HostsList extends StarterNode {
     }
 
     public void addHost(HostInfo newhost) {
-        hostList.add(newhost);
+        synchronized(indexLock) {
+            hostList.add(newhost);
+            index = null;
+        }
+    }
+
+    /**
+     * Return the index, it's build if needed
+     * 
+     * @return the current index
+     */
+    private HostsIndex getIndex() {
+        HostsIndex current = index;
+        if(current == null) {
+            synchronized(indexLock) {
+                if(index == null) {
+                    index = new HostsIndex(hostList, probeMap, graphMap);
+                }
+                current = index;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Drop the index after a change, it will be rebuild on the next lookup
+     */
+    private void invalidateIndex() {
+        synchronized(indexLock) {
+            index = null;
+        }
     }
 
     public GraphTree getGraphTree(String name) {
@@ -477,7 +772,17 @@ public class HostsList extends StarterNode {
      * @return the graph found or null of nothing found
      */
     public GraphNode getGraphById(int id) {
-        return graphMap.get(id);
+        return getIndex().getGraphById(id);
+    }
+
+    /**
+     * Return a graph identified by his qualified name
+     * 
+     * @param qualifiedName the qualified name of the graph
+     * @return the graph found or null of nothing found
+     */
+    public GraphNode getGraphByName(String qualifiedName) {
+        return getIndex().getGraphByName(qualifiedName);
     }
 
     /**
@@ -487,7 +792,17 @@ public class HostsList extends StarterNode {
      * @return the probe found or null of nothing found
      */
     public Probe<?, ?> getProbeById(int id) {
-        return probeMap.get(id);
+        return getIndex().getProbeById(id);
+    }
+
+    /**
+     * Return a probe identified by his qualified name
+     * 
+     * @param qualifiedName the qualified name of the probe
+     * @return the probe found or null of nothing found
+     */
+    public Probe<?, ?> getProbeByName(String qualifiedName) {
+        return getIndex().getProbeByName(qualifiedName);
     }
 
     /**
@@ -498,13 +813,49 @@ public class HostsList extends StarterNode {
      * @return the graph found or null of nothing found
      */
     public Probe<?, ?> getProbeByPath(String host, String probeName) {
-        String path = host + "/" + probeName;
-        return probeMap.get(path.hashCode());
+        return getIndex().getProbeByName(host + "/" + probeName);
     }
 
     public void addProbe(Probe<?, ?> p) {
-        probeMap.put(p.hashCode(), p);
-        addGraphs(p.getGraphList());
+        synchronized(indexLock) {
+            probeMap.put(p.getQualifiedName(), p);
+            addGraphs(p.getGraphList());
+        }
+    }
+
+    /**
+     * @param name the name of the host
+     * @return the host found or null of nothing found
+     */
+    public HostInfo getHost(String name) {
+        return getIndex().getHost(name);
+    }
+
+    /**
+     * @param tag
+     * @return the hosts with this tag
+     */
+    public Set<HostInfo> getHostsByTag(String tag) {
+        return getIndex().getHostsByTag(tag);
+    }
+
+    /**
+     * @param tag
+     * @return the graphs of the hosts with this tag
+     */
+    public List<GraphNode> getGraphsByTag(String tag) {
+        return getIndex().getGraphsByTag(tag);
+    }
+
+    /**
+     * Return the graphs accepted by a filter, the graphs of the known filters
+     * are resolved once.
+     * 
+     * @param filter
+     * @return the graphs accepted by the filter
+     */
+    public Collection<GraphNode> getGraphs(Filter filter) {
+        return getIndex().getGraphs(filter, treeMap.values(), filters.get(filter.getName()) == filter);
     }
 
     public GraphTree getNodeById(int id) {
@@ -519,6 +870,7 @@ public class HostsList extends StarterNode {
 
     private void addFilter(Filter newFilter) {
         filters.put(newFilter.getName(), newFilter);
+        invalidateIndex();
         ACL acl = newFilter.getACL();
         if(acl instanceof RolesACL) {
             roles.addAll(((RolesACL) acl).getRoles());
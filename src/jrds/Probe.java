@@ -8,9 +8,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -29,6 +29,7 @@ import jrds.starter.Timer;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.rrd4j.core.DsDef;
 import org.rrd4j.data.DataProcessor;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -45,37 +46,6 @@ import org.w3c.dom.Element;
         )
 public abstract class Probe<KeyType, ValueType> extends StarterNode implements Comparable<Probe<KeyType, ValueType>>  {
 
-    private class LocalJrdsSample extends HashMap<String, Number> implements JrdsSample {
-        Date time;
-
-        /**
-         * @return the time
-         */
-        public LocalJrdsSample() {
-            super(Probe.this.pd.getSize());
-            time = new Date();
-        }
-
-        public Date getTime() {
-            return time;
-        }
-
-        /**
-         * @param time the time to set
-         */
-        public void setTime(Date time) {
-            this.time = time;
-        }
-
-        public void put(Map.Entry<String, Double> e) {
-            this.put(e.getKey(), e.getValue());
-        }
-
-        public Probe<KeyType, ValueType> getProbe() {
-            return Probe.this;
-        }
-    }
-
     private String name = null;
     protected HostInfo monitoredHost;
     private Collection<GraphNode> graphList = new ArrayList<GraphNode>();
@@ -85,10 +55,17 @@ public abstract class Probe<KeyType, ValueType> extends StarterNode implements C
     private String label = null;
     private Logger namedLogger = Logger.getLogger("jrds.Probe.EmptyProbe");
     private volatile boolean running = false;
-    private Set<Store> stores = new HashSet<Store>();
+    // Stores can be added or removed by aggregates while samples are stored
+    private Set<Store> stores = new CopyOnWriteArraySet<Store>();
     private Store mainStore;
     private ArchivesSet archives = ArchivesSet.DEFAULT;
     private Map<String, String> customBeans = Collections.emptyMap();
+    // Resolved once the probe is finished, templates are not parsed again
+    private volatile Map<KeyType, String> collectMapping = null;
+    private volatile ArrayJrdsSample.Layout sampleLayout = null;
+    private volatile CollectSlots collectSlots = null;
+    // The time of the last sample stored, null until the first one
+    private volatile Date lastStored = null;
 
     /**
      * A special case constructor, mainly used by virtual probe
@@ -115,6 +92,9 @@ public abstract class Probe<KeyType, ValueType> extends StarterNode implements C
 
     public void setPd(ProbeDesc pd) {
         this.pd = pd;
+        collectMapping = null;
+        sampleLayout = null;
+        collectSlots = null;
         namedLogger = Logger.getLogger("jrds.Probe." + pd.getName());
         if(!readSpecific()) {
             throw new RuntimeException("Creation failed");
@@ -219,8 +199,16 @@ public abstract class Probe<KeyType, ValueType> extends StarterNode implements C
         }
     }
 
-    @SuppressWarnings("unchecked")
     public Map<KeyType, String> getCollectMapping() {
+        Map<KeyType, String> mapping = collectMapping;
+        if(mapping == null) {
+            mapping = resolveCollectMapping();
+        }
+        return mapping;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<KeyType, String> resolveCollectMapping() {
         Map<KeyType, String> rawMap = (Map<KeyType, String>) getPd().getCollectMapping();
         Map<KeyType, String> retValues = new HashMap<KeyType, String>(rawMap.size());
         for(Map.Entry<KeyType, String> e: rawMap.entrySet()) {
@@ -230,7 +218,61 @@ public abstract class Probe<KeyType, ValueType> extends StarterNode implements C
                 key = (KeyType) jrds.Util.parseTemplate((String) key, this);
             retValues.put(key, value);
         }
-        return retValues;
+        return Collections.unmodifiableMap(retValues);
+    }
+
+    /**
+     * The slots of the collect keys and of the default values in a sample
+     * layout. It's resolved from a collect mapping and a layout, and used
+     * while they don't change.
+     */
+    private static final class CollectSlots {
+        private final Map<?, String> mapping;
+        private final ArrayJrdsSample.Layout layout;
+        private final Map<Object, Integer> slots;
+        private final int[] defaultSlots;
+        private final double[] defaultValues;
+        // The default values that are not datasources
+        private final Map<String, Double> otherDefaults;
+
+        CollectSlots(Map<?, String> mapping, ArrayJrdsSample.Layout layout, Map<String, Double> defaults) {
+            this.mapping = mapping;
+            this.layout = layout;
+            slots = new HashMap<Object, Integer>(mapping.size());
+            for(Map.Entry<?, String> e: mapping.entrySet()) {
+                int slot = layout.getSlot(e.getValue());
+                if(slot >= 0) {
+                    slots.put(e.getKey(), slot);
+                }
+            }
+            int[] defaultSlots = new int[defaults.size()];
+            double[] defaultValues = new double[defaults.size()];
+            Map<String, Double> otherDefaults = new HashMap<String, Double>();
+            int i = 0;
+            for(Map.Entry<String, Double> e: defaults.entrySet()) {
+                int slot = layout.getSlot(e.getKey());
+                if(slot >= 0) {
+                    defaultSlots[i] = slot;
+                    defaultValues[i] = e.getValue() == null ? Double.NaN : e.getValue();
+                    i++;
+                } else {
+                    otherDefaults.put(e.getKey(), e.getValue());
+                }
+            }
+            this.defaultSlots = Arrays.copyOf(defaultSlots, i);
+            this.defaultValues = Arrays.copyOf(defaultValues, i);
+            this.otherDefaults = otherDefaults;
+        }
+    }
+
+    private CollectSlots getCollectSlots(Map<?, String> mapping, ArrayJrdsSample.Layout layout) {
+        CollectSlots cs = collectSlots;
+        // A probe can change its collect mapping
+        if(cs == null || cs.mapping != mapping || cs.layout != layout) {
+            cs = new CollectSlots(mapping, layout, getPd().getDefaultValues());
+            collectSlots = cs;
+        }
+        return cs;
     }
 
     /**
@@ -271,26 +313,52 @@ public abstract class Probe<KeyType, ValueType> extends StarterNode implements C
             log(Level.INFO, "uptime too low: %.0f", getUptime() * pd.getUptimefactor());
             return false;
         }
-        // Set the default values that might be defined in the probe description
-        for(Map.Entry<String, Double> e: getPd().getDefaultValues().entrySet()) {
-            oneSample.put(e);
-        }
         Map<?, String> nameMap = getCollectMapping();
         log(Level.TRACE, "Collect keys: %s", nameMap);
         Map<KeyType, Number> filteredSamples = filterValues(sampleVals);
         log(Level.TRACE, "Filtered values: %s", filteredSamples);
-        for(Map.Entry<KeyType, Number> e: filteredSamples.entrySet()) {
-            String dsName = nameMap.get(e.getKey());
-            if(dsName != null) {
-                oneSample.put(dsName, e.getValue());
-            } else {
-                log(Level.TRACE, "Dropped entry: %s", e.getKey());
+        if(oneSample instanceof ArrayJrdsSample) {
+            // The values are written directly in their slots
+            ArrayJrdsSample arraySample = (ArrayJrdsSample) oneSample;
+            CollectSlots cs = getCollectSlots(nameMap, arraySample.getLayout());
+            for(int i = 0; i < cs.defaultSlots.length; i++) {
+                arraySample.put(cs.defaultSlots[i], cs.defaultValues[i]);
+            }
+            for(Map.Entry<String, Double> e: cs.otherDefaults.entrySet()) {
+                oneSample.put(e);
+            }
+            for(Map.Entry<KeyType, Number> e: filteredSamples.entrySet()) {
+                Integer slot = cs.slots.get(e.getKey());
+                if(slot != null) {
+                    Number value = e.getValue();
+                    arraySample.put(slot, value == null ? Double.NaN : value.doubleValue());
+                } else {
+                    putValue(oneSample, nameMap, e);
+                }
+            }
+        } else {
+            // Set the default values that might be defined in the probe
+            // description
+            for(Map.Entry<String, Double> e: getPd().getDefaultValues().entrySet()) {
+                oneSample.put(e);
+            }
+            for(Map.Entry<KeyType, Number> e: filteredSamples.entrySet()) {
+                putValue(oneSample, nameMap, e);
             }
         }
         modifySample(oneSample, sampleVals);
         return true;
     }
 
+    private void putValue(JrdsSample oneSample, Map<?, String> nameMap, Map.Entry<KeyType, Number> e) {
+        String dsName = nameMap.get(e.getKey());
+        if(dsName != null) {
+            oneSample.put(dsName, e.getValue());
+        } else {
+            log(Level.TRACE, "Dropped entry: %s", e.getKey());
+        }
+    }
+
     /**
      * Return a new JrdsSample. It can be overridden if a smarter sample is
      * needed
@@ -298,7 +366,21 @@ public abstract class Probe<KeyType, ValueType> extends StarterNode implements C
      * @return
      */
     public JrdsSample newSample() {
-        return this.new LocalJrdsSample();
+        ArrayJrdsSample.Layout layout = sampleLayout;
+        if(layout == null) {
+            layout = resolveSampleLayout();
+            sampleLayout = layout;
+        }
+        return new ArrayJrdsSample(this, layout);
+    }
+
+    private ArrayJrdsSample.Layout resolveSampleLayout() {
+        DsDef[] dsDefs = getPd().getDsDefs();
+        String[] names = new String[dsDefs.length];
+        for(int i = 0; i < dsDefs.length; i++) {
+            names[i] = dsDefs[i].getDsName();
+        }
+        return new ArrayJrdsSample.Layout(names);
     }
 
     public void storeSample(JrdsSample sample) {
@@ -306,7 +388,7 @@ public abstract class Probe<KeyType, ValueType> extends StarterNode implements C
         for(Store store: stores) {
             store.commit(sample);
         }
-
+        lastStored = sample.getTime();
     }
 
     /**
@@ -577,6 +659,17 @@ public abstract class Probe<KeyType, ValueType> extends StarterNode implements C
         return mainStore.getLastUpdate();
     }
 
+    /**
+     * Return the date of the last update, the store is read only if this probe
+     * did not store a sample since it was created
+     * 
+     * @return The date
+     */
+    public Date getCachedLastUpdate() {
+        Date cached = lastStored;
+        return cached != null ? cached : getLastUpdate();
+    }
+
     /**
      * Check the final status of the probe. It must be called once before an
      * probe can be used
@@ -602,6 +695,11 @@ public abstract class Probe<KeyType, ValueType> extends StarterNode implements C
             name = parseTemplate(pd.getProbeName());
 
         finished = mainStore.checkStoreFile(archives);
+        if(finished) {
+            collectMapping = resolveCollectMapping();
+            sampleLayout = resolveSampleLayout();
+            collectSlots = new CollectSlots(getCollectMapping(), sampleLayout, pd.getDefaultValues());
+        }
         return finished;
     }
 
@@ -631,6 +729,24 @@ public abstract class Probe<KeyType, ValueType> extends StarterNode implements C
         stores.add(factory.create(this));
     }
 
+    /**
+     * Add a store that was already created
+     * 
+     * @param store
+     */
+    public void addStore(Store store) {
+        stores.add(store);
+    }
+
+    /**
+     * Remove a store added with {@link #addStore(Store)}
+     * 
+     * @param store
+     */
+    public void removeStore(Store store) {
+        stores.remove(store);
+    }
+
     /**
      * @return the mainStore
      */
@@ -51,6 +51,11 @@ public class PropertiesManager extends Properties {
         public int timeout;
         public int numCollectors;
         public int slowCollectTime;
+        // negative value means automatic spread
+        public int collectSpread = -1;
+        // 0 means that the probes of a host are collected sequentially
+        public int probeThreads = 0;
+        public int connectionParallelism = 1;
     }
 
     private final FileFilter filter = new FileFilter() {
@@ -455,6 +460,17 @@ public class PropertiesManager extends Properties {
         timeout = parseInteger(getProperty("timeout", "10"));
         numCollectors = parseInteger(getProperty("collectorThreads", "1"));
         slowcollecttime = parseInteger(getProperty("slowcollecttime", Integer.toString(timeout + 1)));
+        collectSpread = parseInteger(getProperty("collectspread", "-1"));
+        probeThreads = parseInteger(getProperty("probeThreads", "0"));
+        connectionParallelism = parseInteger(getProperty("connectionParallelism", "1"));
+        // The stores are checked in parallel at startup
+        storeCheckThreads = parseInteger(getProperty("storeCheckThreads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+        // The rendered graphs cache, sizes are in MB
+        renderQueue = parseInteger(getProperty("renderqueue", "50"));
+        renderCacheMemory = parseInteger(getProperty("rendercachememory", "32"));
+        renderCacheDisk = parseInteger(getProperty("rendercachedisk", "256"));
+        renderTimeout = parseInteger(getProperty("rendertimeout", "30"));
         String propertiesList = getProperty("timers", "");
         if(timeout * 2 >= step) {
             logger.warn("useless default timer, step must be more than twice the timeout");
@@ -467,6 +483,9 @@ public class PropertiesManager extends Properties {
                 ti.timeout = parseInteger(getProperty("timer." + timerName + ".timeout", Integer.toString(timeout)));
                 ti.numCollectors = parseInteger(getProperty("timer." + timerName + ".collectorThreads", Integer.toString(numCollectors)));
                 ti.slowCollectTime = parseInteger(getProperty("timer." + timerName + ".slowcollecttime", Integer.toString(ti.timeout + 1)));
+                ti.collectSpread = parseInteger(getProperty("timer." + timerName + ".collectspread", Integer.toString(collectSpread)));
+                ti.probeThreads = parseInteger(getProperty("timer." + timerName + ".probeThreads", Integer.toString(probeThreads)));
+                ti.connectionParallelism = parseInteger(getProperty("timer." + timerName + ".connectionParallelism", Integer.toString(connectionParallelism)));
                 if(ti.timeout * 2 >= ti.step) {
                     logger.warn("useless timer " + timerName + ", step must be more than twice the timeout");
                     break;
@@ -481,6 +500,9 @@ public class PropertiesManager extends Properties {
         ti.timeout = timeout;
         ti.numCollectors = numCollectors;
         ti.slowCollectTime = slowcollecttime;
+        ti.collectSpread = collectSpread;
+        ti.probeThreads = probeThreads;
+        ti.connectionParallelism = connectionParallelism;
         timers.put(Timer.DEFAULTNAME, ti);
 
         //
@@ -538,6 +560,14 @@ public class PropertiesManager extends Properties {
     public String urlpngroot;
     public String logfile;
     public int slowcollecttime;
+    public int collectSpread;
+    public int probeThreads;
+    public int connectionParallelism;
+    public int storeCheckThreads;
+    public int renderQueue;
+    public int renderCacheMemory;
+    public int renderCacheDisk;
+    public int renderTimeout;
     public int step;
     public Map<String, TimerInfo> timers = new HashMap<String, TimerInfo>();
     public int numCollectors;
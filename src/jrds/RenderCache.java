@@ -0,0 +1,270 @@
+package jrds;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * A two tiers cache for the rendered graphs. The most recently used images are
+ * kept in memory, within a byte budget. The images evicted from memory are
+ * moved to files in a directory, also within a byte budget, and they are
+ * moved back in memory when used again.
+ */
+public class RenderCache {
+    static private final Logger logger = Logger.getLogger(RenderCache.class);
+
+    private static final class DiskEntry {
+        final File file;
+        final long size;
+
+        DiskEntry(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private final long memoryBudget;
+    private final long diskBudget;
+    private final File dir;
+    // Both in access order, the eldest is the least recently used
+    private final Map<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private final Map<String, DiskEntry> disk = new LinkedHashMap<String, DiskEntry>(16, 0.75f, true);
+    private long memorySize = 0;
+    private long diskSize = 0;
+    private long sequence = 0;
+    private long hits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+
+    /**
+     * @param memoryBudget the maximum size of the images in memory, in bytes
+     * @param diskBudget the maximum size of the images on disk, in bytes, 0
+     *            disable the disk tier
+     * @param dir the directory for the disk tier, it's content is removed
+     */
+    public RenderCache(long memoryBudget, long diskBudget, File dir) {
+        this.memoryBudget = memoryBudget;
+        this.diskBudget = diskBudget;
+        this.dir = dir;
+        if(diskBudget > 0) {
+            if(!dir.isDirectory() && !dir.mkdirs()) {
+                Util.log(null, logger, Level.ERROR, null, "Can't create render cache directory %s", dir);
+            }
+            purge();
+        }
+    }
+
+    /**
+     * Return a cached image, it's moved back in memory if it was on disk
+     *
+     * @param key
+     * @return the image or null if not cached
+     */
+    public byte[] get(String key) {
+        DiskEntry entry;
+        synchronized (this) {
+            byte[] img = memory.get(key);
+            if(img != null) {
+                hits++;
+                return img;
+            }
+            entry = disk.remove(key);
+            if(entry == null) {
+                misses++;
+                return null;
+            }
+            diskSize -= entry.size;
+            diskHits++;
+        }
+        byte[] img = null;
+        try {
+            img = Files.readAllBytes(entry.file.toPath());
+        } catch (IOException e) {
+            Util.log(null, logger, Level.ERROR, e, "Can't read cached graph %s: %s", entry.file, e.getMessage());
+        }
+        delete(entry.file);
+        if(img != null) {
+            put(key, img);
+        }
+        return img;
+    }
+
+    /**
+     * @param key
+     * @return true if the image is in one of the tiers
+     */
+    public synchronized boolean contains(String key) {
+        return memory.containsKey(key) || disk.containsKey(key);
+    }
+
+    /**
+     * Add an image to the cache, older images might be moved to disk or
+     * dropped
+     *
+     * @param key
+     * @param img
+     */
+    public void put(String key, byte[] img) {
+        List<Map.Entry<String, byte[]>> evicted = new ArrayList<Map.Entry<String, byte[]>>();
+        synchronized (this) {
+            byte[] old = memory.put(key, img);
+            if(old != null) {
+                memorySize -= old.length;
+            }
+            memorySize += img.length;
+            Iterator<Map.Entry<String, byte[]>> i = memory.entrySet().iterator();
+            while(memorySize > memoryBudget && i.hasNext()) {
+                Map.Entry<String, byte[]> e = i.next();
+                i.remove();
+                memorySize -= e.getValue().length;
+                evicted.add(e);
+            }
+        }
+        // Files are written outside of the lock
+        for(Map.Entry<String, byte[]> e: evicted) {
+            toDisk(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Remove an image from the cache
+     *
+     * @param key
+     */
+    public void remove(String key) {
+        DiskEntry entry;
+        synchronized (this) {
+            byte[] img = memory.remove(key);
+            if(img != null) {
+                memorySize -= img.length;
+            }
+            entry = disk.remove(key);
+            if(entry != null) {
+                diskSize -= entry.size;
+            }
+        }
+        if(entry != null) {
+            delete(entry.file);
+        }
+    }
+
+    /**
+     * Drop all the images
+     */
+    public void clear() {
+        synchronized (this) {
+            memory.clear();
+            disk.clear();
+            memorySize = 0;
+            diskSize = 0;
+        }
+        if(diskBudget > 0) {
+            purge();
+        }
+    }
+
+    private void toDisk(String key, byte[] img) {
+        if(img.length > diskBudget) {
+            return;
+        }
+        File file;
+        synchronized (this) {
+            file = new File(dir, Long.toHexString(sequence++) + ".png");
+        }
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(img);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Util.log(null, logger, Level.ERROR, e, "Can't write cached graph %s: %s", file, e.getMessage());
+            delete(file);
+            return;
+        }
+        List<File> dropped = new ArrayList<File>();
+        synchronized (this) {
+            DiskEntry old = disk.put(key, new DiskEntry(file, img.length));
+            if(old != null) {
+                diskSize -= old.size;
+                dropped.add(old.file);
+            }
+            diskSize += img.length;
+            Iterator<DiskEntry> i = disk.values().iterator();
+            while(diskSize > diskBudget && i.hasNext()) {
+                DiskEntry e = i.next();
+                i.remove();
+                diskSize -= e.size;
+                dropped.add(e.file);
+            }
+        }
+        for(File f: dropped) {
+            delete(f);
+        }
+    }
+
+    private void delete(File file) {
+        if(!file.delete() && file.exists()) {
+            Util.log(null, logger, Level.WARN, null, "Failed to delete %s", file);
+        }
+    }
+
+    private void purge() {
+        File[] files = dir.listFiles();
+        if(files == null) {
+            return;
+        }
+        for(File f: files) {
+            if(f.getName().endsWith(".png")) {
+                delete(f);
+            }
+        }
+    }
+
+    /**
+     * @return the size of the images in memory, in bytes
+     */
+    public synchronized long getMemorySize() {
+        return memorySize;
+    }
+
+    /**
+     * @return the size of the images on disk, in bytes
+     */
+    public synchronized long getDiskSize() {
+        return diskSize;
+    }
+
+    /**
+     * @return the number of images found in memory
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of images found on disk
+     */
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    /**
+     * @return the number of images not found
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+}
@@ -1,26 +1,25 @@
 package jrds;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.WritableByteChannel;
-import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -29,52 +28,80 @@ public class Renderer {
     final int PRIME = 31;
     final File tmpDir;
 
-    public class RendererRun implements Runnable {
+    public class RendererRun implements Runnable, Comparable<RendererRun> {
         Graph graph;
-        boolean finished = false;
-        final ReentrantLock running = new ReentrantLock();
-        File destFile;
+        final String key;
+        volatile boolean finished = false;
+        // Not rendered by the pool, it will be rendered only if requested
+        volatile boolean dropped = false;
+        // Only changed when it's out of the queue
+        private volatile int priority;
+        private final long sequence;
+        private final long deadline;
 
         public RendererRun(Graph graph) throws IOException {
-            this.graph = graph;
-            destFile = new File(tmpDir, Integer.toHexString(graph.hashCode()) + ".png");
+            this(graph, getKey(graph), PREFETCH);
         }
 
-        @Override
-        protected void finalize() throws Throwable {
-            clean();
-            super.finalize();
+        RendererRun(Graph graph, String key, int priority) throws IOException {
+            this.graph = graph;
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequencer.getAndIncrement();
+            this.deadline = System.currentTimeMillis() + timeout;
+            // Already rendered for another user
+            finished = cache.contains(key);
         }
 
         public void run() {
             try {
-                if(!finished) {
-                    writeImg();
+                if(finished) {
+                    return;
+                }
+                // The page that requested it is probably gone
+                if(System.currentTimeMillis() > deadline) {
+                    logger.debug("render request expired for " + this);
+                    drop();
+                    return;
                 }
+                writeImg();
             } catch (Exception e) {
                 logger.error("Uncatched error while rendering " + graph + ": " + e, e);
             }
         }
 
         public boolean isReady() {
-            boolean retValue = false;
-            // isReady is sometimes call before run
+            // isReady is sometimes call before run, a waiting render is done
+            // by the caller, a running one is waited
             if(!finished) {
+                tpool.remove(this);
                 writeImg();
             }
-            if(destFile.isFile() && destFile.canRead() && destFile.length() > 0)
-                retValue = true;
-            return retValue;
+            return cache.contains(key);
+        }
+
+        /**
+         * Higher priorities first, and then in request order
+         */
+        @Override
+        public int compareTo(RendererRun o) {
+            if(priority != o.priority) {
+                return priority > o.priority ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
 
+        private void drop() {
+            dropped = true;
+            inflight.remove(key, this);
         }
 
         public void send(OutputStream out) throws IOException {
             if(isReady()) {
-                WritableByteChannel outC = Channels.newChannel(out);
-                FileInputStream inStream = new FileInputStream(destFile);
-                FileChannel inC = inStream.getChannel();
-                inC.transferTo(0, destFile.length(), outC);
-                inStream.close();
+                byte[] img = cache.get(key);
+                if(img != null) {
+                    out.write(img);
+                }
             }
         }
 
@@ -91,20 +118,17 @@ public class Renderer {
                     logger.trace("    " + e.toString());
                 }
             }
-            if(destFile.isFile())
-                if(!destFile.delete() && destFile.isFile()) {
-                    logger.warn("Failed to delete " + destFile.getPath());
-                }
+            cache.remove(key);
         }
 
         private synchronized void writeImg() {
-            running.lock();
             try {
                 if(!finished) {
                     long starttime = System.currentTimeMillis();
-                    OutputStream out = new BufferedOutputStream(new FileOutputStream(destFile));
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
                     long middletime = System.currentTimeMillis();
                     graph.writePng(out);
+                    cache.put(key, out.toByteArray());
                     if(logger.isTraceEnabled()) {
                         long endtime = System.currentTimeMillis();
                         long duration1 = (middletime - starttime);
@@ -112,10 +136,8 @@ public class Renderer {
                         logger.trace("Graph " + graph.getQualifiedName() + " renderding ran for (ms) " + duration1 + ":" + duration2);
                     }
                 }
-            } catch (FileNotFoundException e) {
-                logger.error("Error with temporary output file: " + e);
             } catch (IOException e) {
-                logger.error("Error with temporary output file: " + e);
+                logger.error("Error with graph output: " + e);
                 Throwable cause = e.getCause();
                 if(cause != null)
                     logger.error("    Cause was: " + cause);
@@ -135,7 +157,7 @@ public class Renderer {
             } finally {
                 // Always set to true, we do not try again in case of failure
                 finished = true;
-                running.unlock();
+                inflight.remove(key, this);
             }
         }
 
@@ -147,6 +169,15 @@ public class Renderer {
     }
 
     static private final Logger logger = Logger.getLogger(Renderer.class);
+
+    /**
+     * Priority of a graph that will be soon requested, a visible one in a page
+     */
+    public static final int VISIBLE = 10;
+    /**
+     * Priority of a graph that might be requested
+     */
+    public static final int PREFETCH = 0;
     static private final float hashTableLoadFactor = 0.75f;
     final private Object counter = new Object() {
         int i = 0;
@@ -157,7 +188,8 @@ public class Renderer {
         }
     };
 
-    private final ExecutorService tpool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 3, new ThreadFactory() {
+    // Rendering is CPU bound, more threads than CPU are useless
+    private final ThreadPoolExecutor tpool = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(), 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
         public Thread newThread(Runnable r) {
             String threadName = "RendererThread" + counter;
             Thread t = new Thread(r, threadName);
@@ -168,10 +200,26 @@ public class Renderer {
     });
     private int cacheSize;
     private final Map<Integer, RendererRun> rendered;
+    // The renders not finished, by content, to share them between requests
+    private final ConcurrentMap<String, RendererRun> inflight = new ConcurrentHashMap<String, RendererRun>();
+    private final AtomicLong sequencer = new AtomicLong(0);
+    private final RenderCache cache;
+    private long timeout = 30 * 1000;
 
     public Renderer(int cacheSize, File tmpDir) {
+        this(cacheSize, tmpDir, 32 * 1024 * 1024, 256 * 1024 * 1024);
+    }
+
+    /**
+     * @param cacheSize the number of graphs waiting to be sent
+     * @param tmpDir the temporary directory, used by the disk cache
+     * @param memoryCache the size of the images cached in memory, in bytes
+     * @param diskCache the size of the images cached on disk, in bytes
+     */
+    public Renderer(int cacheSize, File tmpDir, long memoryCache, long diskCache) {
         this.tmpDir = tmpDir;
         this.cacheSize = cacheSize;
+        this.cache = new RenderCache(memoryCache, diskCache, new File(tmpDir, "rendercache"));
         Map<Integer, RendererRun> m = new LinkedHashMap<Integer, RendererRun>(cacheSize + 5, hashTableLoadFactor, true) {
             private static final long serialVersionUID = 1L;
 
@@ -184,58 +232,128 @@ public class Renderer {
             @Override
             protected boolean removeEldestEntry(Entry<Integer, RendererRun> eldest) {
                 RendererRun rr = eldest.getValue();
-                if(rr != null && rr.finished && size() > Renderer.this.cacheSize) {
+                if(rr != null && (rr.finished || rr.dropped) && size() > Renderer.this.cacheSize) {
                     return true;
                 } else if(rr != null && size() > Renderer.this.cacheSize) {
                     Util.log(null, logger, Level.DEBUG, null, "Graph queue too short, it's now %d instead of %d", size(), Renderer.this.cacheSize);
                 }
                 return false;
             }
-
-            /*
-             * (non-Javadoc)
-             * 
-             * @see java.util.HashMap#remove(java.lang.Object)
-             */
-            @Override
-            public RendererRun remove(Object key) {
-                RendererRun rr = super.remove(key);
-                rr.clean();
-                return rr;
-            }
-
-            /*
-             * (non-Javadoc)
-             * 
-             * @see java.lang.Object#finalize()
-             */
-            @Override
-            protected void finalize() throws Throwable {
-                for(RendererRun rr: this.values()) {
-                    rr.clean();
-                }
-                super.finalize();
-            }
-
         };
         rendered = Collections.synchronizedMap(m);
     }
 
+    /**
+     * The key of the image of a graph. It's build from the graph definition,
+     * the period and the last update of the probe, all rounded to the probe
+     * step. So a new sample invalidate the image, and the same graph for the
+     * same step is rendered only once. The last update is the one kept by the
+     * probe, so the store is usually not read.
+     * 
+     * @param graph
+     * @return the key
+     */
+    String getKey(Graph graph) {
+        Probe<?, ?> probe = graph.getNode().getProbe();
+        long step = Math.max(probe.getStep(), 1) * 1000L;
+        long lastUpdate;
+        try {
+            Date probeUpdate = probe.getCachedLastUpdate();
+            lastUpdate = probeUpdate == null ? 0 : probeUpdate.getTime() / step;
+        } catch (RuntimeException e) {
+            // No store to check, the image is valid for the current step
+            lastUpdate = System.currentTimeMillis() / step;
+        }
+        StringBuilder key = new StringBuilder(graph.getQualifiedName());
+        key.append('/').append(graph.getStart().getTime() / step);
+        key.append('/').append(graph.getEnd().getTime() / step);
+        key.append('/').append(lastUpdate);
+        key.append('/').append(graph.getMin());
+        key.append('/').append(graph.getMax());
+        return key.toString();
+    }
+
     public void render(Graph graph) throws IOException {
-        if(!rendered.containsKey(graph.hashCode())) {
-            synchronized (rendered) {
-                if(!rendered.containsKey(graph.hashCode())) {
-                    RendererRun runRender = new RendererRun(graph);
-                    // Create graphics object
+        render(graph, PREFETCH);
+    }
+
+    /**
+     * Schedule the rendering of a graph. An identical graph already waiting is
+     * shared. If too many graphs are waiting, the graph will be rendered only
+     * when requested.
+     * 
+     * @param graph
+     * @param priority {@link #VISIBLE} or {@link #PREFETCH}
+     * @throws IOException
+     */
+    public void render(Graph graph, int priority) throws IOException {
+        // The key might read the probe's last update from the store, it's not
+        // build with the lock
+        String key = getKey(graph);
+        // The runs are indexed by hash code, it might be another graph or an
+        // outdated image
+        RendererRun runRender = rendered.get(graph.hashCode());
+        if(runRender != null && runRender.key.equals(key)) {
+            promote(runRender, priority);
+            return;
+        }
+        synchronized (rendered) {
+            runRender = rendered.get(graph.hashCode());
+            if(runRender != null && !runRender.key.equals(key)) {
+                runRender = null;
+            }
+            if(runRender == null) {
+                runRender = inflight.get(key);
+                if(runRender != null) {
                     rendered.put(graph.hashCode(), runRender);
-                    try {
-                        tpool.execute(runRender);
-                    } catch (RejectedExecutionException ex) {
-                        logger.warn("Render thread dropped for graph " + graph);
-                    }
-                    logger.debug("wants to render " + runRender);
+                    logger.debug("already waiting " + runRender);
                 }
             }
+            if(runRender != null) {
+                promote(runRender, priority);
+                return;
+            }
+            runRender = new RendererRun(graph, key, priority);
+            // Create graphics object
+            rendered.put(graph.hashCode(), runRender);
+            if(runRender.finished) {
+                logger.debug("already rendered " + runRender);
+                return;
+            }
+            if(tpool.getQueue().size() >= cacheSize) {
+                logger.debug("Render queue full, graph " + graph + " will be rendered on request");
+                runRender.drop();
+                return;
+            }
+            inflight.put(key, runRender);
+            try {
+                tpool.execute(runRender);
+            } catch (RejectedExecutionException ex) {
+                logger.warn("Render thread dropped for graph " + graph);
+                runRender.drop();
+            }
+            logger.debug("wants to render " + runRender);
+        }
+    }
+
+    /**
+     * A render still waiting is queued again if it's now requested with a
+     * higher priority
+     * 
+     * @param runRender
+     * @param priority
+     */
+    private void promote(RendererRun runRender, int priority) {
+        if(runRender.priority >= priority || runRender.finished || !tpool.remove(runRender)) {
+            return;
+        }
+        runRender.priority = priority;
+        try {
+            tpool.execute(runRender);
+            logger.debug("promoted " + runRender);
+        } catch (RejectedExecutionException ex) {
+            logger.warn("Render thread dropped for graph " + runRender);
+            runRender.drop();
         }
     }
 
@@ -249,12 +367,27 @@ public class Renderer {
         return g;
     }
 
-    public boolean isReady(Graph graph) {
+    /**
+     * Find the run of a graph. The runs are indexed by hash code, so the one
+     * found might be for another graph.
+     * 
+     * @param graph
+     * @return the run or null if the graph was not rendered
+     */
+    private RendererRun getRun(Graph graph) {
         RendererRun runRender = rendered.get(graph.hashCode());
+        if(runRender != null && !runRender.graph.equals(graph) && !runRender.key.equals(getKey(graph))) {
+            return null;
+        }
+        return runRender;
+    }
+
+    public boolean isReady(Graph graph) {
+        RendererRun runRender = getRun(graph);
         if(runRender == null) {
             try {
                 render(graph);
-                runRender = rendered.get(graph.hashCode());
+                runRender = getRun(graph);
             }
             // If cannot launch render, will always be false
             catch (IOException e) {
@@ -266,14 +399,9 @@ public class Renderer {
     }
 
     public void send(Graph graph, OutputStream out) throws IOException {
-        RendererRun runRender = null;
-        try {
-            runRender = rendered.get(graph.hashCode());
-        } catch (Exception e) {
-            logger.error("Error with probe: " + e);
-        }
-        if(runRender != null && runRender.isReady()) {
-            runRender.send(out);
+        byte[] img = getImage(graph);
+        if(img != null) {
+            out.write(img);
         } else {
             logger.info("No valid precalculated render found for " + graph);
             // No precalculation found, so we do it right now
@@ -281,33 +409,53 @@ public class Renderer {
         }
     }
 
-    public FileChannel sendInfo(Graph graph) {
-        RendererRun runRender = null;
+    /**
+     * Return the rendered image of a graph, if it's in the cache
+     * 
+     * @param graph
+     * @return the image or null if not rendered
+     */
+    public byte[] getImage(Graph graph) {
         try {
-            runRender = rendered.get(graph.hashCode());
+            RendererRun runRender = getRun(graph);
+            String key = runRender != null ? runRender.key : getKey(graph);
+            return cache.get(key);
         } catch (Exception e) {
             logger.error("Error with probe: " + e);
-        }
-        if(runRender != null && runRender.isReady()) {
-            try {
-                return FileChannel.open(runRender.destFile.toPath(), StandardOpenOption.READ);
-            } catch (IOException e) {
-                logger.error("Can't read graph cache file: " + e.getMessage());
-                return null;
-            }
-        } else {
             return null;
         }
     }
 
+    /**
+     * @return the cache of the rendered images
+     */
+    public RenderCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @param timeout the delay in ms after which a waiting render is not done
+     *            by the pool
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return the number of graphs waiting for a render thread
+     */
+    public int getQueueSize() {
+        return tpool.getQueue().size();
+    }
+
     public Collection<RendererRun> getWaitings() {
         return rendered.values();
     }
 
     public void finish() {
         tpool.shutdownNow();
-        for(RendererRun rr: rendered.values()) {
-            rr.clean();
-        }
+        rendered.clear();
+        inflight.clear();
+        cache.clear();
     }
 }
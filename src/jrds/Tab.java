@@ -79,7 +79,7 @@ public abstract class Tab {
             for(Map.Entry<String, List<String>> e: paths.entrySet()) {
                 String id = e.getKey();
                 List<String> path = e.getValue();
-                GraphNode gn = hostlist.getGraphById(id.hashCode());
+                GraphNode gn = hostlist.getGraphByName(id);
                 if(gn == null) {
                     logger.warn(jrds.Util.delayedFormatString("Graph not found for %s: %s", name, id));
                     continue;
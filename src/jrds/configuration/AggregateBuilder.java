@@ -0,0 +1,40 @@
+package jrds.configuration;
+
+import java.lang.reflect.InvocationTargetException;
+
+import jrds.factories.xml.JrdsDocument;
+import jrds.factories.xml.JrdsElement;
+import jrds.probe.AggregateProbe;
+
+public class AggregateBuilder extends ConfigObjectBuilder<AggregateProbe> {
+
+    public AggregateBuilder() {
+        super(ConfigType.AGGREGATE);
+    }
+
+    @Override
+    AggregateProbe build(JrdsDocument n) throws InvocationTargetException {
+        return makeAggregate(n);
+    }
+
+    public AggregateProbe makeAggregate(JrdsDocument n) {
+        JrdsElement root = n.getRootElement();
+        String name = root.getAttribute("name");
+        JrdsElement probedesc = root.getElementbyName("probedesc");
+        if(name == null || "".equals(name) || probedesc == null) {
+            return null;
+        }
+        AggregateProbe ap = new AggregateProbe(name, probedesc.getTextContent().trim());
+        for(JrdsElement e: root.getChildElementsByName("host")) {
+            ap.addHost(e.getTextContent().trim());
+        }
+        for(JrdsElement e: root.getChildElementsByName("tag")) {
+            ap.addTag(e.getTextContent().trim());
+        }
+        for(JrdsElement e: root.getChildElementsByName("filter")) {
+            ap.addFilter(e.getTextContent().trim());
+        }
+        doACL(ap, n, root);
+        return ap;
+    }
+}
@@ -1,10 +1,15 @@
 package jrds.configuration;
 
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
+import java.math.BigInteger;
 import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -18,6 +23,7 @@ import jrds.Tab;
 import jrds.factories.ProbeFactory;
 import jrds.factories.xml.JrdsDocument;
 import jrds.graphe.Sum;
+import jrds.probe.AggregateProbe;
 import jrds.starter.Listener;
 import jrds.starter.Timer;
 
@@ -74,6 +80,34 @@ public class ConfigObjectFactory {
         return load.getRepository(ct);
     }
 
+    /**
+     * @param ct
+     * @return the fingerprints of the documents of a type, by name
+     */
+    public Map<String, String> getFingerprints(ConfigType ct) {
+        return load.getFingerprints(ct);
+    }
+
+    /**
+     * A fingerprint of all the documents, except hosts and probes
+     * descriptions, that are used to build the hosts or their ACLs. If it
+     * changes, no host can be kept during a reload.
+     * 
+     * @return the fingerprint
+     */
+    public String getContextFingerprint() {
+        StringBuilder buffer = new StringBuilder();
+        for(ConfigType ct: new ConfigType[] { ConfigType.GRAPHDESC, ConfigType.MACRODEF, ConfigType.ARCHIVESSET, ConfigType.LISTENER, ConfigType.FILTER }) {
+            buffer.append(ct).append(new TreeMap<String, String>(load.getFingerprints(ct))).append('\n');
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return new BigInteger(1, digest.digest(buffer.toString().getBytes("UTF-8"))).toString(16);
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException("Can't digest configuration", e);
+        }
+    }
+
     public <BuildObject> Map<String, BuildObject> getObjectMap(ConfigObjectBuilder<BuildObject> ob, Map<String, JrdsDocument> nodeMap) {
         Map<String, BuildObject> objectMap = new HashMap<String, BuildObject>();
 
@@ -151,7 +185,15 @@ public class ConfigObjectFactory {
         ob.setListeners(listenerMap);
         ob.setGraphDescMap(graphDescMap);
         ob.setArchivesSetMap(archivessetmap);
+        StoreChecker checker = null;
+        if(pm.storeCheckThreads > 0) {
+            checker = new StoreChecker(pm.storeCheckThreads);
+            ob.setStoreChecker(checker);
+        }
         Map<String, HostInfo> hostsMap = getObjectMap(ob, nodemap);
+        if(checker != null) {
+            checker.finish();
+        }
         logger.debug(jrds.Util.delayedFormatString("Hosts configured: %s", hostsMap.keySet()));
         return hostsMap;
     }
@@ -174,6 +216,15 @@ public class ConfigObjectFactory {
         return sumpsMap;
     }
 
+    public Map<String, AggregateProbe> setAggregateMap() {
+        Map<String, JrdsDocument> nodemap = load.getRepository(ConfigType.AGGREGATE);
+        AggregateBuilder ob = new AggregateBuilder();
+        ob.setPm(pm);
+        Map<String, AggregateProbe> aggregatesMap = getObjectMap(ob, nodemap);
+        logger.debug(jrds.Util.delayedFormatString("Aggregates configured: %s", aggregatesMap.keySet()));
+        return aggregatesMap;
+    }
+
     public Map<String, Tab> setTabMap() {
         Map<String, JrdsDocument> nodemap = load.getRepository(ConfigType.TAB);
         TabBuilder ob = new TabBuilder();
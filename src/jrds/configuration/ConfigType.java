@@ -34,6 +34,16 @@ public enum ConfigType {
             return "sum";
         }
     },
+    AGGREGATE {
+        public String getName(JrdsDocument d) {
+            return getNameByAttribute(d);
+        }
+
+        @Override
+        public String getRootNode() {
+            return "aggregate";
+        }
+    },
     TAB {
         public String getName(JrdsDocument d) {
             return getNameByAttribute(d);
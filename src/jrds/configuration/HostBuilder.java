@@ -48,6 +48,7 @@ public class HostBuilder extends ConfigObjectBuilder<HostInfo> {
     private Map<String, Timer> timers = Collections.emptyMap();
     private Map<String, Listener<?, ?>> listeners = Collections.emptyMap();
     private Map<String, ArchivesSet> archivessetmap = Collections.singletonMap(ArchivesSet.DEFAULT.getName(), ArchivesSet.DEFAULT);
+    private StoreChecker storeChecker = null;
 
     private Map<String, GraphDesc> graphDescMap;
 
@@ -391,7 +392,11 @@ public class HostBuilder extends ConfigObjectBuilder<HostInfo> {
             }
         }
 
-        if(p.checkStore()) {
+        // The store checks can be delayed and done in parallel, the probe
+        // will be added to the host only if it succeed
+        if(storeChecker != null) {
+            storeChecker.submit(p, shost);
+        } else if(p.checkStore()) {
             shost.addProbe(p);
         } else {
             return null;
@@ -604,4 +609,12 @@ public class HostBuilder extends ConfigObjectBuilder<HostInfo> {
         this.archivessetmap = archivessetmap;
     }
 
+    /**
+     * @param storeChecker the checker that will validate the probes' stores,
+     *            null if they are checked immediately
+     */
+    void setStoreChecker(StoreChecker storeChecker) {
+        this.storeChecker = storeChecker;
+    }
+
 }
@@ -6,10 +6,14 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigInteger;
 import java.net.JarURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -83,6 +87,7 @@ class Loader {
     };
 
     final private Map<ConfigType, Map<String, JrdsDocument>> repositories = new HashMap<ConfigType, Map<String, JrdsDocument>>(ConfigType.values().length);
+    final private Map<ConfigType, Map<String, String>> fingerprints = new HashMap<ConfigType, Map<String, String>>(ConfigType.values().length);
     final private Map<String, ConfigType> nodesTypes = new HashMap<String, ConfigType>(ConfigType.values().length);
     private final DocumentBuilderFactory instance;
 
@@ -101,6 +106,7 @@ class Loader {
 
         for(ConfigType t: ConfigType.values()) {
             repositories.put(t, new ConcurrentHashMap<String, JrdsDocument>());
+            fingerprints.put(t, new ConcurrentHashMap<String, String>());
             nodesTypes.put(t.getRootNode(), t);
         }
     }
@@ -113,6 +119,17 @@ class Loader {
         repositories.put(t, mapnodes);
     }
 
+    /**
+     * The fingerprints are a digest of the raw content of the documents, they
+     * are kept when the documents are consumed
+     * 
+     * @param t
+     * @return the fingerprints of the documents, by name
+     */
+    public Map<String, String> getFingerprints(ConfigType t) {
+        return fingerprints.get(t);
+    }
+
     public void importUrl(URI ressourceUri) {
         URL ressourceUrl = null;
         try {
@@ -186,7 +203,8 @@ class Loader {
             @Override
             public void run() {
                 try {
-                    JrdsDocument d = new JrdsDocument(localDocumentBuilder.get().parse(xmlstream));
+                    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                    JrdsDocument d = new JrdsDocument(localDocumentBuilder.get().parse(new DigestInputStream(xmlstream, digest)));
 
                     ConfigType t = nodesTypes.get(d.getRootElement().getNodeName());
                     if(t == null) {
@@ -203,8 +221,10 @@ class Loader {
                         if(rep.containsKey(name)) {
                             logger.error("Dual definition of " + t + " with name " + name);
                             rep.remove(name);
+                            fingerprints.get(t).remove(name);
                         } else {
                             rep.put(name, d);
+                            fingerprints.get(t).put(name, new BigInteger(1, digest.digest()).toString(16));
                         }
                     } else {
                         logger.error("name not found in " + source);
@@ -217,6 +237,8 @@ class Loader {
                     logger.error("Invalid xml document " + source + ": " + e);
                 } catch (IOException e) {
                     logger.error("IO error with " + source + ": " + e);
+                } catch (NoSuchAlgorithmException e) {
+                    logger.error("Can't digest " + source + ": " + e);
                 }
             }
         };
@@ -0,0 +1,96 @@
+package jrds.configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jrds.Probe;
+import jrds.Util;
+import jrds.starter.HostStarter;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Check the stores of the new probes on a bounded pool of threads. The probes
+ * are added to their host only when all the checks are done, in the order they
+ * were submitted, so the hosts are never modified concurrently.
+ */
+class StoreChecker {
+    static final private Logger logger = Logger.getLogger(StoreChecker.class);
+
+    private static final class Check {
+        final Probe<?, ?> p;
+        final HostStarter host;
+        final Future<Boolean> result;
+
+        Check(Probe<?, ?> p, HostStarter host, Future<Boolean> result) {
+            this.p = p;
+            this.host = host;
+            this.result = result;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final List<Check> checks = new ArrayList<Check>();
+
+    StoreChecker(int threads) {
+        final AtomicInteger counter = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "StoreChecker" + counter.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    void submit(final Probe<?, ?> p, HostStarter host) {
+        Future<Boolean> result = executor.submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return p.checkStore();
+            }
+        });
+        checks.add(new Check(p, host, result));
+    }
+
+    /**
+     * Wait for all the checks and add the valid probes to their host
+     *
+     * @return the number of probes refused
+     */
+    int finish() {
+        executor.shutdown();
+        int failed = 0;
+        try {
+            for(Check c: checks) {
+                boolean valid = false;
+                try {
+                    valid = c.result.get();
+                } catch (ExecutionException e) {
+                    logger.error(Util.delayedFormatString("Store check failed for %s: %s", c.p, e.getCause()), e.getCause());
+                }
+                if(valid) {
+                    c.host.addProbe(c.p);
+                } else {
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.info("Store checks interrupted");
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        logger.debug(Util.delayedFormatString("%d stores checked, %d failed", checks.size(), failed));
+        checks.clear();
+        return failed;
+    }
+
+}
@@ -25,6 +25,8 @@ public class EntityResolver implements org.xml.sax.EntityResolver {
             realSystemId = getClass().getResource("/host.dtd");
         } else if("-//jrds//DTD Sum//EN".equals(publicId)) {
             realSystemId = getClass().getResource("/sum.dtd");
+        } else if("-//jrds//DTD Aggregate//EN".equals(publicId)) {
+            realSystemId = getClass().getResource("/aggregate.dtd");
         } else if("-//jrds//DTD Tab//EN".equals(publicId)) {
             realSystemId = getClass().getResource("/tab.dtd");
         } else if("-//jrds//DTD Listener//EN".equals(publicId)) {
@@ -2,7 +2,20 @@ package jrds.graphe;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jrds.AutonomousGraphNode;
 import jrds.GraphDesc;
@@ -11,7 +24,6 @@ import jrds.HostsList;
 import jrds.PlottableMap;
 import jrds.Util;
 import jrds.store.ExtractInfo;
-import jrds.store.Extractor;
 
 import org.apache.log4j.Logger;
 import org.rrd4j.ConsolFun;
@@ -22,8 +34,68 @@ import org.rrd4j.data.Plottable;
 public class Sum extends AutonomousGraphNode {
     static final private Logger logger = Logger.getLogger(Sum.class);
 
+    // The number of rows in a cached bucket
+    static final int BUCKETROWS = 256;
+    // The number of buckets kept for a sum
+    static final int MAXBUCKETS = 64;
+
+    /**
+     * The threads reading the members, a sum member of a sum is read inline in
+     * it, so it never waits for the pool it's running in
+     */
+    static private final class FetcherThread extends Thread {
+        FetcherThread(Runnable r, String name) {
+            super(r, name);
+        }
+    }
+
+    static private final ExecutorService fetchers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger(0);
+
+        public Thread newThread(Runnable r) {
+            Thread t = new FetcherThread(r, "SumFetcher" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * The sums of the members for a range of rows at a given resolution
+     */
+    static private final class Bucket {
+        final Map<String, double[]> values = new HashMap<String, double[]>();
+        // The rows up to this timestamp will not change any more
+        long validUntil;
+
+        Bucket(long validUntil) {
+            this.validUntil = validUntil;
+        }
+    }
+
+    /**
+     * The sums read from the members
+     */
+    static private final class Reading {
+        final Map<String, double[]> sums = new LinkedHashMap<String, double[]>();
+        // The rows up to this timestamp will not change any more
+        long finalUntil;
+
+        Reading(long finalUntil) {
+            this.finalUntil = finalUntil;
+        }
+    }
+
     private final ArrayList<String> graphList;
     private HostsList hl;
+    private final Map<String, Bucket> cache = new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > MAXBUCKETS;
+        }
+    };
+    // The readings in progress, so concurrent requests for the same rows
+    // share them, protected by the cache lock
+    private final Map<String, Future<Reading>> readings = new HashMap<String, Future<Reading>>();
 
     public Sum(String name, ArrayList<String> graphList) {
         super(name);
@@ -43,7 +115,7 @@ public class Sum extends AutonomousGraphNode {
         GraphNode g = null;
         // Check the sum consistency
         for(String graphname: graphList) {
-            g = hl.getGraphById(graphname.hashCode());
+            g = hl.getGraphByName(graphname);
             if(g == null) {
                 logger.warn(Util.delayedFormatString("graph %s not found for sum '%s'", graphname, getName()));
             }
@@ -74,68 +146,325 @@ public class Sum extends AutonomousGraphNode {
         return new PlottableMap() {
             @Override
             public void configure(long start, long end, long step) {
-                ExtractInfo ei = ExtractInfo.get()
-                        .make(new Date(start * 1000), new Date(end * 1000))
-                        .make(step)
-                        .make(ConsolFun.AVERAGE);
                 logger.debug(Util.delayedFormatString("Configuring the sum %s from %d to %d, step %d", Sum.this.getName(), start, end, step));
-                // Used to kept the last fetched data and analyse the
-                DataProcessor dp = null;
-
-                double[][] allvalues = null;
+                List<GraphNode> members = new ArrayList<GraphNode>(graphList.size());
                 for(String name: graphList) {
-                    GraphNode g = hl.getGraphById(name.hashCode());
+                    GraphNode g = hl.getGraphByName(name);
                     logger.trace("Looking for " + name + " in graph base, and found " + g);
                     if(g == null) {
                         logger.error("Graph not found: " + name);
                         continue;
                     }
+                    members.add(g);
+                }
+                if(members.isEmpty()) {
+                    logger.error(Util.delayedFormatString("Sum %s unusable, not graph found", Sum.this));
+                    return;
+                }
 
-                    try {
-                        dp = g.getPlottedDate(ei);
-                    } catch (IOException e) {
-                        logger.error("Failed to read " + g.getProbe());
-                        continue;
+                // The step is rounded to the resolution of the probes, so
+                // the buckets are stable
+                long probeStep = Math.max(members.get(0).getProbe().getStep(), 1);
+                long resolution = Math.max(1, (step + probeStep - 1) / probeStep) * probeStep;
+                long first = start / resolution * resolution;
+                long last = (end + resolution - 1) / resolution * resolution;
+                int rows = (int) ((last - first) / resolution) + 1;
+                long[] ts = new long[rows];
+                for(int r = 0; r < rows; r++) {
+                    ts[r] = first + r * resolution;
+                }
+
+                Map<String, double[]> sums = getSums(members, first, last, resolution);
+                if(sums == null) {
+                    logger.error(Util.delayedFormatString("Sum %s unusable, no data found", Sum.this));
+                    return;
+                }
+                for(Map.Entry<String, double[]> e: sums.entrySet()) {
+                    Plottable pl = new LinearInterpolator(ts, e.getValue());
+                    put(e.getKey(), pl);
+                    logger.trace(Util.delayedFormatString("Added %s to sum plottables", e.getKey()));
+                }
+            }
+        };
+    }
+
+    /**
+     * Return the sums for the given rows, the rows that are not known to be
+     * final in the cache are read from the members and added. The members are
+     * read without holding the cache lock.
+     * 
+     * @param members
+     * @param first the first row timestamp
+     * @param last the last row timestamp
+     * @param resolution
+     * @return the sums, by datasource name, or null if nothing can be read
+     */
+    private Map<String, double[]> getSums(List<GraphNode> members, long first, long last, long resolution) {
+        long bucketSpan = BUCKETROWS * resolution;
+        long firstBucket = first / bucketSpan * bucketSpan;
+
+        // Too many rows to be cached, they are read directly
+        if((last - firstBucket) / bucketSpan >= MAXBUCKETS) {
+            Reading reading = read(members, first, last, resolution);
+            return reading.sums.isEmpty() ? null : reading.sums;
+        }
+
+        // Find the first row that needs to be read
+        long missing = Long.MAX_VALUE;
+        synchronized (cache) {
+            for(long b = firstBucket; b <= last; b += bucketSpan) {
+                Bucket bucket = cache.get(bucketKey(resolution, b));
+                long from = Math.max(first, bucket != null ? bucket.validUntil + resolution : b);
+                if(from <= Math.min(last, b + bucketSpan - resolution)) {
+                    missing = Math.min(missing, from);
+                }
+            }
+        }
+        if(missing != Long.MAX_VALUE) {
+            logger.trace(Util.delayedFormatString("Sum %s reading from %d to %d", getName(), missing, last));
+            if(!readAndStore(members, missing, last, resolution)) {
+                return null;
+            }
+        }
+
+        synchronized (cache) {
+            return assemble(first, last, resolution);
+        }
+    }
+
+    /**
+     * Read the rows and store them in the cache. If the same rows are already
+     * being read, the reading in progress is waited for instead.
+     * 
+     * @return false if the reading was interrupted
+     */
+    private boolean readAndStore(final List<GraphNode> members, final long from, final long last, final long resolution) {
+        String key = resolution + "/" + from + "/" + last;
+        FutureTask<Reading> task = null;
+        Future<Reading> reading;
+        synchronized (cache) {
+            reading = readings.get(key);
+            if(reading == null) {
+                task = new FutureTask<Reading>(new Callable<Reading>() {
+                    public Reading call() {
+                        Reading r = read(members, from, last, resolution);
+                        synchronized (cache) {
+                            store(r, from, last, resolution);
+                        }
+                        return r;
                     }
+                });
+                readings.put(key, task);
+                reading = task;
+            }
+        }
+        if(task != null) {
+            try {
+                task.run();
+            } finally {
+                synchronized (cache) {
+                    readings.remove(key);
+                }
+            }
+        }
+        try {
+            reading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            logger.error(Util.delayedFormatString("Sum %s failed to read the members: %s", getName(), e.getCause()));
+        }
+        return true;
+    }
+
+    /**
+     * Assemble the rows from the buckets, called with the cache lock
+     */
+    private Map<String, double[]> assemble(long first, long last, long resolution) {
+        long bucketSpan = BUCKETROWS * resolution;
+        long firstBucket = first / bucketSpan * bucketSpan;
+        Map<String, double[]> sums = null;
+        int rows = (int) ((last - first) / resolution) + 1;
+        for(long b = firstBucket; b <= last; b += bucketSpan) {
+            Bucket bucket = cache.get(bucketKey(resolution, b));
+            if(bucket == null) {
+                continue;
+            }
+            if(sums == null) {
+                sums = new LinkedHashMap<String, double[]>(bucket.values.size());
+            }
+            long from = Math.max(first, b);
+            long to = Math.min(last, b + bucketSpan - resolution);
+            for(Map.Entry<String, double[]> e: bucket.values.entrySet()) {
+                double[] sum = sums.get(e.getKey());
+                if(sum == null) {
+                    sum = new double[rows];
+                    Arrays.fill(sum, Double.NaN);
+                    sums.put(e.getKey(), sum);
+                }
+                System.arraycopy(e.getValue(), (int) ((from - b) / resolution), sum, (int) ((from - first) / resolution), (int) ((to - from) / resolution) + 1);
+            }
+        }
+        return sums;
+    }
 
-                    if(g != null) {
-                        Extractor ex = g.getProbe().fetchData();
-                        ex.fill(dp, ei);
-                        ex.release();
-                        // First pass, no data to use
-                        if(allvalues == null) {
-                            allvalues = dp.getValues().clone();
+    /**
+     * Read the members in parallel and sum them, each member is extracted
+     * once. The members of a nested sum are read in the calling thread.
+     * 
+     * @param members
+     * @param from the first row timestamp
+     * @param last the last row timestamp
+     * @param resolution
+     * @return
+     */
+    private Reading read(List<GraphNode> members, final long from, final long last, final long resolution) {
+        // Read one row more, so the first needed row is fully consolidated
+        final ExtractInfo ei = ExtractInfo.get()
+                .make(new Date((from - resolution) * 1000), new Date(last * 1000))
+                .make(resolution)
+                .make(ConsolFun.AVERAGE);
+        final int rows = (int) ((last - from) / resolution) + 1;
+
+        // A nested sum is already running in the pool, waiting for it could
+        // dead lock
+        boolean nested = Thread.currentThread() instanceof FetcherThread;
+        List<Future<Map<String, double[]>>> results = new ArrayList<Future<Map<String, double[]>>>(members.size());
+        for(final GraphNode g: members) {
+            Callable<Map<String, double[]>> fetch = new Callable<Map<String, double[]>>() {
+                public Map<String, double[]> call() throws IOException {
+                    PlottableMap pm = g.getCustomData();
+                    pm.configure(ei);
+                    Map<String, double[]> values = new LinkedHashMap<String, double[]>();
+                    // A sum already provides the rows
+                    if(g instanceof Sum) {
+                        for(Map.Entry<String, Plottable> e: pm.entrySet()) {
+                            double[] memberValues = new double[rows];
+                            for(int r = 0; r < rows; r++) {
+                                memberValues[r] = e.getValue().getValue(from + r * resolution);
+                            }
+                            values.put(e.getKey(), memberValues);
                         }
-                        // Next step, sum previous values
-                        else {
-                            double[][] tempallvalues = dp.getValues();
-                            for(int c = 0; c < tempallvalues.length; c++) {
-                                for(int r = 0; r < tempallvalues[c].length; r++) {
-                                    double v = tempallvalues[c][r];
-                                    if(!Double.isNaN(v)) {
-                                        if(!Double.isNaN(allvalues[c][r]))
-                                            allvalues[c][r] += v;
-                                        else
-                                            allvalues[c][r] = v;
-                                    }
-                                }
+                        return values;
+                    }
+                    DataProcessor dp = g.getGraphDesc().getPlottedDatas(g.getProbe(), ei, pm);
+                    dp.setStep(resolution);
+                    dp.processData();
+                    long[] timestamps = dp.getTimestamps();
+                    for(String dsName: dp.getSourceNames()) {
+                        double[] memberValues = new double[rows];
+                        Arrays.fill(memberValues, Double.NaN);
+                        double[] dpValues = dp.getValues(dsName);
+                        for(int r = 0; r < timestamps.length; r++) {
+                            long t = timestamps[r];
+                            if(t < from || t > last || (t - from) % resolution != 0) {
+                                continue;
                             }
+                            memberValues[(int) ((t - from) / resolution)] = dpValues[r];
                         }
+                        values.put(dsName, memberValues);
                     }
+                    return values;
                 }
-                if(dp != null) {
-                    long[] ts = dp.getTimestamps();
-                    String[] dsNames = dp.getSourceNames();
-                    for(int i = 0; i < dsNames.length; i++) {
-                        Plottable pl = new LinearInterpolator(ts, allvalues[i]);
-                        put(dsNames[i], pl);
-                        logger.trace(Util.delayedFormatString("Added %s to sum plottables", dsNames[i]));
+            };
+            if(nested) {
+                FutureTask<Map<String, double[]>> task = new FutureTask<Map<String, double[]>>(fetch);
+                task.run();
+                results.add(task);
+            } else {
+                results.add(fetchers.submit(fetch));
+            }
+        }
+
+        Reading reading = new Reading(last);
+        for(int i = 0; i < members.size(); i++) {
+            GraphNode g = members.get(i);
+            Map<String, double[]> values;
+            try {
+                values = results.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for(Future<Map<String, double[]>> f: results) {
+                    f.cancel(true);
+                }
+                reading.finalUntil = Long.MIN_VALUE;
+                return reading;
+            } catch (ExecutionException e) {
+                logger.error("Failed to read " + g.getProbe() + ": " + e.getCause());
+                reading.finalUntil = Long.MIN_VALUE;
+                continue;
+            }
+            Date lastUpdate = g.getProbe().getLastUpdate();
+            long memberUntil = lastUpdate != null ? lastUpdate.getTime() / 1000 / resolution * resolution : Long.MIN_VALUE;
+            reading.finalUntil = Math.min(reading.finalUntil, memberUntil);
+            for(Map.Entry<String, double[]> e: values.entrySet()) {
+                double[] sum = reading.sums.get(e.getKey());
+                if(sum == null) {
+                    sum = new double[rows];
+                    Arrays.fill(sum, Double.NaN);
+                    reading.sums.put(e.getKey(), sum);
+                }
+                double[] memberValues = e.getValue();
+                for(int row = 0; row < rows; row++) {
+                    double v = memberValues[row];
+                    if(Double.isNaN(v)) {
+                        continue;
                     }
-                } else {
-                    logger.error(Util.delayedFormatString("Sum %s unusable, not graph found", Sum.this));
+                    if(!Double.isNaN(sum[row]))
+                        sum[row] += v;
+                    else
+                        sum[row] = v;
                 }
             }
-        };
+        }
+        return reading;
+    }
+
+    /**
+     * Copy the sums in the buckets, the rows up to the oldest last update of
+     * the members are final
+     * 
+     * @param reading
+     * @param from
+     * @param last
+     * @param resolution
+     */
+    private void store(Reading reading, long from, long last, long resolution) {
+        if(reading.sums.isEmpty()) {
+            return;
+        }
+        long bucketSpan = BUCKETROWS * resolution;
+        for(long b = from / bucketSpan * bucketSpan; b <= last; b += bucketSpan) {
+            String key = bucketKey(resolution, b);
+            Bucket bucket = cache.get(key);
+            if(bucket == null) {
+                bucket = new Bucket(b - resolution);
+                cache.put(key, bucket);
+            }
+            // Final rows are kept
+            long start = Math.max(Math.max(from, b), bucket.validUntil + resolution);
+            long stop = Math.min(last, b + bucketSpan - resolution);
+            if(start > stop) {
+                continue;
+            }
+            for(Map.Entry<String, double[]> e: reading.sums.entrySet()) {
+                double[] values = bucket.values.get(e.getKey());
+                if(values == null) {
+                    values = new double[BUCKETROWS];
+                    Arrays.fill(values, Double.NaN);
+                    bucket.values.put(e.getKey(), values);
+                }
+                System.arraycopy(e.getValue(), (int) ((start - from) / resolution), values, (int) ((start - b) / resolution), (int) ((stop - start) / resolution) + 1);
+            }
+            if(reading.finalUntil >= start) {
+                bucket.validUntil = Math.min(stop, reading.finalUntil);
+            }
+        }
+    }
+
+    private String bucketKey(long resolution, long bucketStart) {
+        return resolution + "/" + bucketStart;
     }
 
 }
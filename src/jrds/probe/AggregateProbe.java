@@ -0,0 +1,444 @@
+package jrds.probe;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import jrds.ArchivesSet;
+import jrds.Filter;
+import jrds.GraphDesc;
+import jrds.GraphNode;
+import jrds.HostInfo;
+import jrds.HostsList;
+import jrds.JrdsSample;
+import jrds.Probe;
+import jrds.ProbeDesc;
+import jrds.PropertiesManager;
+import jrds.starter.HostStarter;
+import jrds.store.AbstractStore;
+import jrds.store.EmptyExtractor;
+import jrds.store.Extractor;
+import jrds.store.Store;
+import jrds.webapp.ACL;
+import jrds.webapp.WithACL;
+
+import org.apache.log4j.Level;
+import org.rrd4j.DsType;
+import org.rrd4j.core.DsDef;
+
+/**
+ * A virtual probe that stores aggregates of the samples of other probes, when
+ * they are stored. The members are the probes of a given probe description,
+ * selected by host name, host tag or filter.
+ * <p>
+ * For each datasource of the members, the sum, average, minimum, maximum and
+ * count of the members values are stored as gauges, named
+ * <em>datasource</em>_sum, <em>datasource</em>_avg and so on. Counters are
+ * converted to rates before being aggregated.
+ * <p>
+ * The values are aggregated by step. A step is stored when all the members
+ * sent a sample for it, or when a sample for a following step is received.
+ */
+public class AggregateProbe extends Probe<String, Number> implements WithACL {
+    /**
+     * The virtual host of the aggregates
+     */
+    static public final String HOSTNAME = "Aggregates";
+    static final String[] FUNCTIONS = { "sum", "avg", "min", "max", "count" };
+    // The datasource name limit of rrd4j
+    static final int DSNAMELENGTH = 20;
+
+    /**
+     * The last values received from a member
+     */
+    static private final class Member {
+        long lastTime = Long.MIN_VALUE;
+        final double[] lastRaw;
+        final double[] values;
+        boolean reported = false;
+        Store store = null;
+
+        Member(int size) {
+            lastRaw = new double[size];
+            values = new double[size];
+        }
+    }
+
+    /**
+     * Receive the samples stored by a member
+     */
+    private final class MemberStore extends AbstractStore<Object> {
+        private Date lastUpdate = new Date(0);
+
+        MemberStore(Probe<?, ?> member) {
+            super(member);
+        }
+
+        @Override
+        public void commit(JrdsSample sample) {
+            accept(sample);
+            lastUpdate = sample.getTime();
+        }
+
+        @Override
+        public Map<String, Number> getLastValues() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public boolean checkStoreFile(ArchivesSet archives) {
+            return true;
+        }
+
+        @Override
+        public Date getLastUpdate() {
+            return lastUpdate;
+        }
+
+        @Override
+        public Object getStoreObject() {
+            return null;
+        }
+
+        @Override
+        public void closeStoreObject(Object object) {
+        }
+
+        @Override
+        public Extractor getExtractor() {
+            return new EmptyExtractor();
+        }
+
+        @Override
+        public String getPath() {
+            return AggregateProbe.this.getQualifiedName();
+        }
+    }
+
+    private final String memberProbeDesc;
+    private final Set<String> hosts = new HashSet<String>();
+    private final Set<String> tags = new HashSet<String>();
+    private final Set<String> filters = new HashSet<String>();
+    private ACL acl = ACL.ALLOWEDACL;
+
+    private String[] dsNames = new String[] {};
+    private DsType[] dsTypes = new DsType[] {};
+    private final Map<Probe<?, ?>, Member> members = new LinkedHashMap<Probe<?, ?>, Member>();
+    // The end of the step being aggregated and of the last one stored
+    private long current = Long.MIN_VALUE;
+    private long lastStored = Long.MIN_VALUE;
+    private int reported = 0;
+
+    /**
+     * @param name the name of the aggregate
+     * @param memberProbeDesc the name of the probe description of the members
+     */
+    public AggregateProbe(String name, String memberProbeDesc) {
+        super();
+        setName(name);
+        this.memberProbeDesc = memberProbeDesc;
+    }
+
+    public void addHost(String host) {
+        hosts.add(host);
+    }
+
+    public void addTag(String tag) {
+        tags.add(tag);
+    }
+
+    public void addFilter(String filter) {
+        filters.add(filter);
+    }
+
+    /**
+     * Find the members, create the store and subscribe to the members. The
+     * members kept from a previous configuration are subscribed by
+     * {@link #subscribe(Collection)} once the old aggregates are released.
+     *
+     * @param hl
+     * @param host the virtual host of the aggregates
+     * @param pm
+     * @return true if the aggregate is usable
+     */
+    public boolean configure(HostsList hl, HostStarter host, PropertiesManager pm) {
+        Set<Probe<?, ?>> found = findMembers(hl);
+        if(found.isEmpty()) {
+            log(Level.ERROR, "No member found for aggregate %s", getName());
+            return false;
+        }
+
+        DsDef[] memberDs = found.iterator().next().getPd().getDsDefs();
+        ProbeDesc pd = new ProbeDesc();
+        pd.setName("Aggregate");
+        pd.setProbeName(getName());
+        pd.setHeartBeatDefault(Math.max(pd.getHeartBeatDefault(), 2L * hl.getStep()));
+        Map<String, DsType> kept = new LinkedHashMap<String, DsType>(memberDs.length);
+        for(DsDef ds: memberDs) {
+            String longest = ds.getDsName() + "_count";
+            if(longest.length() > DSNAMELENGTH) {
+                log(Level.ERROR, "Datasource name %s too long to be aggregated", ds.getDsName());
+                continue;
+            }
+            kept.put(ds.getDsName(), ds.getDsType());
+            for(String function: FUNCTIONS) {
+                pd.add(ds.getDsName() + "_" + function, DsType.GAUGE, Double.NaN, Double.NaN);
+            }
+        }
+        dsNames = kept.keySet().toArray(new String[kept.size()]);
+        dsTypes = kept.values().toArray(new DsType[kept.size()]);
+        setPd(pd);
+        setHost(host);
+        setStep(hl.getStep());
+        setTimeout(hl.getTimeout());
+        try {
+            setMainStore(pm.defaultStore, Collections.<String, String> emptyMap());
+        } catch (InvocationTargetException e) {
+            log(Level.ERROR, e, "Unable to create the store: %s", e.getMessage());
+            return false;
+        }
+        if(!checkStore()) {
+            return false;
+        }
+
+        addGraph(getGraphDesc("sum", "Sum"));
+        addGraph(getGraphDesc("avg", "Average"));
+        for(GraphNode gn: getGraphList()) {
+            gn.addACL(acl);
+        }
+
+        for(Probe<?, ?> member: found) {
+            Member m = new Member(dsNames.length);
+            m.store = new MemberStore(member);
+            members.put(member, m);
+            if(!hl.isKept(member)) {
+                member.addStore(m.store);
+            }
+        }
+        log(Level.DEBUG, "Aggregating %s", found);
+        return true;
+    }
+
+    private Set<Probe<?, ?>> findMembers(HostsList hl) {
+        Set<Probe<?, ?>> found = new LinkedHashSet<Probe<?, ?>>();
+        Set<HostInfo> selected = new LinkedHashSet<HostInfo>();
+        for(String hostName: hosts) {
+            HostInfo host = hl.getHost(hostName);
+            if(host != null) {
+                selected.add(host);
+            }
+        }
+        for(String tag: tags) {
+            selected.addAll(hl.getHostsByTag(tag));
+        }
+        for(HostInfo host: selected) {
+            for(Probe<?, ?> p: host.getProbes()) {
+                if(isMember(p)) {
+                    found.add(p);
+                }
+            }
+        }
+        for(String filterName: filters) {
+            Filter filter = hl.getFilter(filterName);
+            if(filter == null) {
+                log(Level.ERROR, "Unknown filter %s", filterName);
+                continue;
+            }
+            for(GraphNode gn: hl.getGraphs(filter)) {
+                Probe<?, ?> p = gn.getProbe();
+                // Only collected probes
+                if(p != null && hl.getProbeByName(p.getQualifiedName()) == p && isMember(p)) {
+                    found.add(p);
+                }
+            }
+        }
+        return found;
+    }
+
+    private boolean isMember(Probe<?, ?> p) {
+        return p != this && p.getPd() != null && memberProbeDesc.equals(p.getPd().getName());
+    }
+
+    private GraphDesc getGraphDesc(String function, String title) {
+        GraphDesc gd = new GraphDesc();
+        String graphName = getName() + "." + function;
+        gd.setName(graphName);
+        gd.setGraphName(graphName);
+        gd.setGraphTitle(title + " of " + memberProbeDesc + " for " + getName());
+        for(String dsName: dsNames) {
+            gd.add(dsName + "_" + function, GraphDesc.LINE);
+        }
+        gd.setTree(PropertiesManager.HOSTSTAB, Arrays.asList("${host}", getName(), title));
+        gd.setTree(PropertiesManager.VIEWSTAB, Arrays.asList(HOSTNAME, getName(), title));
+        Graphics2D g2d = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics();
+        gd.initializeLimits(g2d);
+        return gd;
+    }
+
+    /**
+     * Add a sample from a member to the current step
+     *
+     * @param sample
+     */
+    synchronized void accept(JrdsSample sample) {
+        Member m = members.get(sample.getProbe());
+        if(m == null) {
+            return;
+        }
+        long time = sample.getTime().getTime() / 1000;
+        long step = getStep();
+        long stepEnd = (time + step - 1) / step * step;
+
+        // Counters are converted to rates
+        double[] values = new double[dsNames.length];
+        for(int i = 0; i < dsNames.length; i++) {
+            Number n = sample.get(dsNames[i]);
+            double raw = n != null ? n.doubleValue() : Double.NaN;
+            double value;
+            if(dsTypes[i] == DsType.GAUGE) {
+                value = raw;
+            } else if(m.lastTime == Long.MIN_VALUE || time <= m.lastTime) {
+                value = Double.NaN;
+            } else if(dsTypes[i] == DsType.ABSOLUTE) {
+                value = raw / (time - m.lastTime);
+            } else {
+                value = (raw - m.lastRaw[i]) / (time - m.lastTime);
+                if(dsTypes[i] == DsType.COUNTER && value < 0) {
+                    value = Double.NaN;
+                }
+            }
+            m.lastRaw[i] = raw;
+            values[i] = value;
+        }
+        m.lastTime = time;
+
+        if(stepEnd <= lastStored) {
+            log(Level.DEBUG, "Late sample from %s", sample.getProbe());
+            return;
+        }
+        // The previous step is stored before the values of this one are set
+        if(stepEnd > current) {
+            flush();
+            current = stepEnd;
+        }
+        System.arraycopy(values, 0, m.values, 0, values.length);
+        if(!m.reported) {
+            m.reported = true;
+            reported++;
+        }
+        if(reported == members.size()) {
+            flush();
+        }
+    }
+
+    /**
+     * Store the aggregates of the current step
+     */
+    private void flush() {
+        if(reported == 0) {
+            return;
+        }
+        JrdsSample sample = newSample();
+        sample.setTime(new Date(current * 1000));
+        for(int i = 0; i < dsNames.length; i++) {
+            int count = 0;
+            double sum = 0;
+            double min = Double.NaN;
+            double max = Double.NaN;
+            for(Member m: members.values()) {
+                double v = m.values[i];
+                if(!m.reported || Double.isNaN(v)) {
+                    continue;
+                }
+                count++;
+                sum += v;
+                min = Double.isNaN(min) ? v : Math.min(min, v);
+                max = Double.isNaN(max) ? v : Math.max(max, v);
+            }
+            sample.put(dsNames[i] + "_sum", count > 0 ? sum : Double.NaN);
+            sample.put(dsNames[i] + "_avg", count > 0 ? sum / count : Double.NaN);
+            sample.put(dsNames[i] + "_min", min);
+            sample.put(dsNames[i] + "_max", max);
+            sample.put(dsNames[i] + "_count", count);
+        }
+        for(Member m: members.values()) {
+            m.reported = false;
+        }
+        reported = 0;
+        lastStored = current;
+        try {
+            storeSample(sample);
+        } catch (RuntimeException e) {
+            log(Level.ERROR, e, "Failed to store aggregate: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Stop receiving the samples of the members, used when the members are
+     * kept by a new configuration
+     */
+    public synchronized void release() {
+        for(Map.Entry<Probe<?, ?>, Member> e: members.entrySet()) {
+            e.getKey().removeStore(e.getValue().store);
+        }
+        members.clear();
+    }
+
+    /**
+     * Start receiving the samples of some members, used when the members are
+     * kept from a previous configuration
+     *
+     * @param kept the probes kept
+     */
+    public synchronized void subscribe(Collection<Probe<?, ?>> kept) {
+        for(Map.Entry<Probe<?, ?>, Member> e: members.entrySet()) {
+            if(kept.contains(e.getKey())) {
+                e.getKey().addStore(e.getValue().store);
+            }
+        }
+    }
+
+    /**
+     * @return the members of the aggregate
+     */
+    public synchronized Set<Probe<?, ?>> getMembers() {
+        return Collections.unmodifiableSet(new LinkedHashSet<Probe<?, ?>>(members.keySet()));
+    }
+
+    /**
+     * This method does nothing, the values are received from the members
+     *
+     * @see jrds.Probe#collect()
+     */
+    @Override
+    public void collect() {
+    }
+
+    @Override
+    public Map<String, Number> getNewSampleValues() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String getSourceType() {
+        return "aggregate";
+    }
+
+    public ACL getACL() {
+        return acl;
+    }
+
+    public void addACL(ACL acl) {
+        this.acl = this.acl.join(acl);
+    }
+
+}
@@ -102,6 +102,10 @@ public class ContainerProbe extends Probe<Object, Number> {
             public void commit(JrdsSample sample) {
             }
 
+            @Override
+            public void write(JrdsSample sample) {
+            }
+
             @Override
             public Map<String, Number> getLastValues() {
                 return Collections.emptyMap();
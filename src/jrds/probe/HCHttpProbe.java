@@ -37,6 +37,7 @@ public abstract class HCHttpProbe extends HttpProbe implements SSLProbe {
         log(Level.DEBUG, "Getting %s", getUrl());
         HttpClientStarter httpstarter = find(HttpClientStarter.class);
         HttpClient cnx = httpstarter.getHttpClient();
+        httpstarter.limitRoute(getUrl());
         HttpEntity entity = null;
         try {
             HttpGet hg = new HttpGet(getUrl().toURI());
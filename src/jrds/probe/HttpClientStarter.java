@@ -1,41 +1,68 @@
 package jrds.probe;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.URL;
+import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
 
 import jrds.PropertiesManager;
+import jrds.Util;
+import jrds.starter.DnsCache;
 import jrds.starter.SSLStarter;
 import jrds.starter.SocketFactory;
 import jrds.starter.Starter;
 
+import org.apache.http.HttpHost;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.ssl.SSLContexts;
 import org.apache.http.ssl.TrustStrategy;
 import org.apache.log4j.Level;
 
+/**
+ * A HTTP client shared by the probes of a timer. It's kept between collects,
+ * so the connections stay open if the servers allow it.
+ * <p>
+ * The pool size can be set with httpmaxtotal and httpmaxperroute, and the
+ * limit for a server with httpmaxperroute.<i>host</i> or
+ * httpmaxperroute.<i>host</i>:<i>port</i>. The idle connections are closed
+ * after httpkeepalive seconds, by default two steps. The responses are
+ * compressed if the server can do it. The requests are still synchronous,
+ * each probe waits for its response in its collector thread.
+ */
 public class HttpClientStarter extends Starter {
     private static final String USERAGENT = "JRDS HTTP agent";
 
     private CloseableHttpClient client = null;
+    private PoolingHttpClientConnectionManager cm = null;
     private int maxConnect = 0;
+    private int maxPerRoute = 2;
+    private Map<String, Integer> routesMax = Collections.emptyMap();
+    private int keepAlive = 0;
     private int timeout = 0;
 
     /*
@@ -46,7 +73,16 @@ public class HttpClientStarter extends Starter {
     @Override
     public void configure(PropertiesManager pm) {
         super.configure(pm);
-        maxConnect = pm.numCollectors;
+        maxConnect = Util.parseStringNumber(pm.getProperty("httpmaxtotal"), pm.numCollectors * 2);
+        maxPerRoute = Util.parseStringNumber(pm.getProperty("httpmaxperroute"), maxPerRoute);
+        Map<String, String> routes = pm.subKey("httpmaxperroute");
+        if(!routes.isEmpty()) {
+            routesMax = new HashMap<String, Integer>(routes.size());
+            for(Map.Entry<String, String> e: routes.entrySet()) {
+                routesMax.put(e.getKey(), Util.parseStringNumber(e.getValue(), maxPerRoute));
+            }
+        }
+        keepAlive = Util.parseStringNumber(pm.getProperty("httpkeepalive"), getLevel().getStep() * 2);
         timeout = pm.timeout;
     }
 
@@ -75,12 +111,28 @@ public class HttpClientStarter extends Starter {
 
         HttpClientBuilder builder = HttpClientBuilder.create();
         builder.setUserAgent(USERAGENT);
-        builder.setConnectionTimeToLive(timeout, TimeUnit.SECONDS);
-        builder.evictIdleConnections((long) timeout, TimeUnit.SECONDS);
+        // Idle connections are kept for the next collects
+        builder.evictIdleConnections((long) Math.max(keepAlive, timeout), TimeUnit.SECONDS);
+
+        // Use the shared DNS cache, so requests don't wait for the DNS
+        final DnsCache dnsCache = getLevel().find(DnsCache.class);
+        DnsResolver dnsResolver = SystemDefaultDnsResolver.INSTANCE;
+        if(dnsCache != null) {
+            dnsResolver = new DnsResolver() {
+                @Override
+                public InetAddress[] resolve(String host) throws UnknownHostException {
+                    InetAddress addr = dnsCache.getAddress(host, timeout * 1000L);
+                    if(addr == null) {
+                        throw new UnknownHostException(host);
+                    }
+                    return new InetAddress[] { addr };
+                }
+            };
+        }
 
-        PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(r.build());
-        cm.setMaxTotal(maxConnect * 2);
-        cm.setDefaultMaxPerRoute(2);
+        cm = new PoolingHttpClientConnectionManager(r.build(), dnsResolver);
+        cm.setMaxTotal(maxConnect);
+        cm.setDefaultMaxPerRoute(maxPerRoute);
         cm.setValidateAfterInactivity(timeout * 1000);
         builder.setConnectionManager(cm);
 
@@ -116,6 +168,11 @@ public class HttpClientStarter extends Starter {
         return new SSLConnectionSocketFactory(sc, NoopHostnameVerifier.INSTANCE);
     }
 
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
     @Override
     public void stop() {
         try {
@@ -124,12 +181,70 @@ public class HttpClientStarter extends Starter {
             log(Level.ERROR, "http client closed failed: %s", e.getMessage());
         }
         client = null;
+        cm = null;
     }
 
     public HttpClient getHttpClient() {
         return client;
     }
 
+    PoolingHttpClientConnectionManager getConnectionManager() {
+        return cm;
+    }
+
+    /**
+     * Apply the connections limit of a server, if one was configured
+     * 
+     * @param url the url that will be requested
+     */
+    public void limitRoute(URL url) {
+        if(routesMax.isEmpty() || cm == null) {
+            return;
+        }
+        int port = url.getPort() > 0 ? url.getPort() : url.getDefaultPort();
+        Integer max = routesMax.get(url.getHost() + ":" + port);
+        if(max == null) {
+            max = routesMax.get(url.getHost());
+        }
+        if(max == null) {
+            return;
+        }
+        HttpRoute route = new HttpRoute(new HttpHost(url.getHost(), port, url.getProtocol()), null, "https".equalsIgnoreCase(url.getProtocol()));
+        if(cm.getMaxPerRoute(route) != max) {
+            cm.setMaxPerRoute(route, max);
+        }
+    }
+
+    /**
+     * @return the maximum number of connections
+     */
+    public int getMaxTotal() {
+        return maxConnect;
+    }
+
+    /**
+     * @return the default maximum number of connections to a server
+     */
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    /**
+     * @param route a server, as host or host:port
+     * @return the maximum number of connections to this server
+     */
+    public int getMaxPerRoute(String route) {
+        Integer max = routesMax.get(route);
+        return max != null ? max : maxPerRoute;
+    }
+
+    /**
+     * @return how long an idle connection is kept, in seconds
+     */
+    public int getKeepAlive() {
+        return keepAlive;
+    }
+
     @Override
     public boolean isStarted() {
         SSLStarter sslfactory = getLevel().find(SSLStarter.class);
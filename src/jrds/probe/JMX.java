@@ -1,17 +1,16 @@
 package jrds.probe;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanException;
 import javax.management.MalformedObjectNameException;
-import javax.management.ObjectName;
 import javax.management.ReflectionException;
 
 import org.apache.log4j.Level;
@@ -21,6 +20,7 @@ import jrds.ProbeConnected;
 import jrds.ProbeDesc;
 import jrds.factories.ProbeMeta;
 import jrds.probe.jmx.JmxAbstractDataSource;
+import jrds.probe.jmx.JmxAttribute;
 import jrds.probe.jmx.JmxDiscoverAgent;
 
 /**
@@ -33,6 +33,7 @@ import jrds.probe.jmx.JmxDiscoverAgent;
         )
 public class JMX extends ProbeConnected<String, Double, JMXConnection> implements ConnectedProbe, SSLProbe {
     private Map<String, String> collectKeys = null;
+    private List<JmxAttribute> attributes = null;
 
     public JMX() {
         super(JMXConnection.class.getName());
@@ -46,54 +47,45 @@ public class JMX extends ProbeConnected<String, Double, JMXConnection> implement
             String solved = jrds.Util.parseTemplate(e.getKey(), this);
             collectKeys.put(solved, dsName);
         }
+        try {
+            parseAttributes();
+        } catch (MalformedObjectNameException e) {
+            log(Level.ERROR, e, "JMX name error: %s", e);
+            return false;
+        }
         return super.configure();
     }
 
+    /**
+     * The collect keys are parsed only once
+     * 
+     * @throws MalformedObjectNameException
+     */
+    private void parseAttributes() throws MalformedObjectNameException {
+        List<JmxAttribute> parsed = new ArrayList<JmxAttribute>(collectKeys.size());
+        for(String collect: collectKeys.keySet()) {
+            parsed.add(new JmxAttribute(collect));
+        }
+        attributes = parsed;
+    }
+
     @Override
     public Map<String, Double> getNewSampleValuesConnected(JMXConnection cnx) {
         JmxAbstractDataSource<?> mbean = cnx.getConnection();
         try {
-            Set<String> collectKeys = getCollectMapping().keySet();
-            Map<String, Double> retValues = new HashMap<String, Double>(collectKeys.size());
-
-            log(Level.DEBUG, "will collect: %s", collectKeys);
-            for(String collect: collectKeys) {
-                int attrSplit = collect.indexOf(':');
-                attrSplit = collect.indexOf('/', attrSplit);
-                ObjectName mbeanName = new ObjectName(collect.substring(0, attrSplit));
-                String[] jmxPath = collect.substring(attrSplit + 1).split("/");
-                String attributeName = jmxPath[0];
-                log(Level.TRACE, "mbean name = %s, attributeName = %s", mbeanName, attributeName);
-                try {
-                    Number v = mbean.getValue(mbeanName, attributeName, jmxPath);
-                    log(Level.TRACE, "JMX Path: %s = %s", collect, v);
-                    if (v != null) {
-                        retValues.put(collect, v.doubleValue());
-                    }
-                } catch (InvocationTargetException e) {
-                    if (e.getCause() != null) {
-                        try {
-                            throw e.getCause();
-                        } catch (RemoteException e1) {
-                            log(Level.ERROR, e1, "JMX remote exception: %s", e1.getMessage());
-                        } catch (AttributeNotFoundException e1) {
-                            log(Level.ERROR, e1, "Invalide JMX attribue %s", attributeName);
-                        } catch (InstanceNotFoundException e1) {
-                            Level l = Level.ERROR;
-                            if(isOptional(collect)) {
-                                l = Level.DEBUG;
-                            }
-                            log(l, "JMX instance not found: %s", e1.getMessage());
-                        } catch (MBeanException e1) {
-                            log(Level.ERROR, e1, "JMX MBeanException: %s", e1.getMessage());
-                        } catch (ReflectionException e1) {
-                            log(Level.ERROR, e1, "JMX reflection error: %s", e1.getMessage());
-                        } catch (IOException e1) {
-                            log(Level.ERROR, e1, "JMX IO error: %s", e1.getMessage());
-                        } catch (Throwable e1) {
-                        }
-                    }
-                }
+            if(attributes == null) {
+                parseAttributes();
+            }
+            Map<String, Double> retValues = new HashMap<String, Double>(attributes.size());
+
+            log(Level.DEBUG, "will collect: %s", attributes);
+            Map<JmxAttribute, Throwable> errors = new HashMap<JmxAttribute, Throwable>();
+            for(Map.Entry<JmxAttribute, Number> e: mbean.getValues(attributes, errors).entrySet()) {
+                log(Level.TRACE, "JMX Path: %s = %s", e.getKey(), e.getValue());
+                retValues.put(e.getKey().collect, e.getValue().doubleValue());
+            }
+            for(Map.Entry<JmxAttribute, Throwable> e: errors.entrySet()) {
+                logError(e.getKey(), e.getValue());
             }
             return retValues;
         } catch (MalformedObjectNameException e) {
@@ -105,6 +97,29 @@ public class JMX extends ProbeConnected<String, Double, JMXConnection> implement
         return null;
     }
 
+    private void logError(JmxAttribute attr, Throwable cause) {
+        try {
+            throw cause;
+        } catch (RemoteException e1) {
+            log(Level.ERROR, e1, "JMX remote exception: %s", e1.getMessage());
+        } catch (AttributeNotFoundException e1) {
+            log(Level.ERROR, e1, "Invalide JMX attribue %s", attr.attributeName);
+        } catch (InstanceNotFoundException e1) {
+            Level l = Level.ERROR;
+            if(isOptional(attr.collect)) {
+                l = Level.DEBUG;
+            }
+            log(l, "JMX instance not found: %s", e1.getMessage());
+        } catch (MBeanException e1) {
+            log(Level.ERROR, e1, "JMX MBeanException: %s", e1.getMessage());
+        } catch (ReflectionException e1) {
+            log(Level.ERROR, e1, "JMX reflection error: %s", e1.getMessage());
+        } catch (IOException e1) {
+            log(Level.ERROR, e1, "JMX IO error: %s", e1.getMessage());
+        } catch (Throwable e1) {
+        }
+    }
+
     @Override
     public String getSourceType() {
         return "JMX";
@@ -120,6 +135,7 @@ public class JMX extends ProbeConnected<String, Double, JMXConnection> implement
     public void setPd(ProbeDesc pd) {
         super.setPd(pd);
         collectKeys = getPd().getCollectStrings();
+        attributes = null;
     }
 
     /*
@@ -56,6 +56,11 @@ public class JMXConnection extends Connection<JmxAbstractDataSource<?>> {
         cnx.stopConnection();
     }
 
+    @Override
+    public boolean checkConnection() {
+        return cnx.checkConnection();
+    }
+
     @Override
     public long setUptime() {
         return cnx.setUptime();
@@ -2,10 +2,10 @@ package jrds.probe.jdbc;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.sql.Types;
 import java.util.Arrays;
 import java.util.Collections;
@@ -69,128 +69,102 @@ public class GenericJdbcProbe extends ProbeConnected<String, Number, JdbcConnect
 
     @Override
     public Map<String, Number> getNewSampleValuesConnected(JdbcConnection cnx) {
-        Map<String, Number> values = null;
-        Statement stmt = cnx.getConnection();
-        if (stmt == null) {
-            return Collections.emptyMap();
-        }
-        if(uptimeQuery != null && !"".equals(uptimeQuery) && !doUptimeQuery(stmt)) {
-            closeStatement(stmt);
-            return Collections.emptyMap();
-        }
-        try {
-            ResultSet rs = null;
+        // Each probe uses its own connection, so they can run in parallel
+        try (JdbcPool.PooledConnection pc = cnx.getConnection().borrow()) {
             try {
+                if(uptimeQuery != null && !"".equals(uptimeQuery) && !doUptimeQuery(pc)) {
+                    return Collections.emptyMap();
+                }
                 log(Level.DEBUG, "sql query used: %s", query);
-                if (stmt.execute(query)) {
-                    rs = stmt.getResultSet();
-                    Set<String> collectKeys = new HashSet<>(getPd().getCollectStrings().keySet());
-                    if (uptimeQuery == null && uptimeRow != null)
-                        collectKeys.add(uptimeRow);
-                    values = getValuesFromRS(rs, collectKeys);
-                    if (uptimeRow != null && values.containsKey(uptimeRow)) {
+                PreparedStatement stmt = pc.prepare(query);
+                if(stmt.execute()) {
+                    Map<String, Number> values;
+                    try (ResultSet rs = stmt.getResultSet()) {
+                        Set<String> collectKeys = new HashSet<>(getPd().getCollectStrings().keySet());
+                        if(uptimeQuery == null && uptimeRow != null)
+                            collectKeys.add(uptimeRow);
+                        values = getValuesFromRS(rs, collectKeys);
+                    }
+                    if(uptimeRow != null && values.containsKey(uptimeRow)) {
                         setUptime(values.get(uptimeRow).longValue());
                         values.remove(uptimeRow);
                     }
+                    return values;
                 }
-            } finally {
-                closeResultSet(rs);
+                return null;
+            } catch (SQLException e) {
+                // The connection might be broken, don't reuse it
+                pc.invalidate();
+                log(Level.ERROR, e, "SQL exception while getting values: %s", e.getMessage());
             }
-            return values;
         } catch (SQLException e) {
-            log(Level.ERROR, e, "SQL exception while getting values: %s", e.getMessage());
-        } finally {
-            closeStatement(stmt);
+            log(Level.ERROR, e, "SQL exception while getting a connection: %s", e.getMessage());
         }
         return Collections.emptyMap();
     }
 
-    private void closeStatement(Statement stmt) {
-        if (stmt != null) {
-            try {
-                stmt.close();
-            } catch (SQLException e) {
-                log(Level.ERROR, e, "SQL exception while closing statement: %s", e.getMessage());
-            }
-        }
-    }
-
-    private void closeResultSet(ResultSet rs) {
-        if(rs != null) {
-            try {
-                rs.close();
-            } catch (SQLException e) {
-                log(Level.ERROR, e, "SQL exception while closing results: %s", e.getMessage());
-            }
-        }
-    }
-
-    private boolean doUptimeQuery(Statement stmt) {
-        ResultSet rs = null;
+    private boolean doUptimeQuery(JdbcPool.PooledConnection pc) {
         try {
-            stmt.execute(uptimeQuery);
-            rs = stmt.getResultSet();
-            Map<String, Number> values = getValuesFromRS(rs, Collections.singleton(uptimeRow));
-            if(uptimeRow != null && values.containsKey(uptimeRow)) {
-                setUptime(values.get(uptimeRow).longValue());
-                values.remove(uptimeRow);
+            PreparedStatement stmt = pc.prepare(uptimeQuery);
+            stmt.execute();
+            try (ResultSet rs = stmt.getResultSet()) {
+                Map<String, Number> values = getValuesFromRS(rs, Collections.singleton(uptimeRow));
+                if(uptimeRow != null && values.containsKey(uptimeRow)) {
+                    setUptime(values.get(uptimeRow).longValue());
+                    values.remove(uptimeRow);
+                }
             }
             return true;
         } catch (SQLException e) {
+            pc.invalidate();
             log(Level.ERROR, e, "SQL exception while getting uptime: %s", e.getMessage());
             return false;
-        } finally {
-            closeResultSet(rs);
         }
     }
 
-    private Map<String, Number> getValuesFromRS(ResultSet rs, Set<String> collectKeys) {
-        Map<String, Number> values = null;
-        try {
-            ResultSetMetaData meta = rs.getMetaData();
-            int columnCount = meta.getColumnCount();
-            values = new HashMap<>(columnCount);
-            while (rs.next()) {
-                String keyValue = "";
-                if(keyColumn != null) {
-                    keyValue = rs.getString(keyColumn) + ".";
-                    log(Level.TRACE, "found a row with key %s", rs.getString(keyColumn));
-                }
+    private Map<String, Number> getValuesFromRS(ResultSet rs, Set<String> collectKeys) throws SQLException {
+        // A failure is thrown, so the connection is not reused
+        ResultSetMetaData meta = rs.getMetaData();
+        int columnCount = meta.getColumnCount();
+        Map<String, Number> values = new HashMap<>(columnCount);
+        while (rs.next()) {
+            String keyValue = "";
+            if(keyColumn != null) {
+                keyValue = rs.getString(keyColumn) + ".";
+                log(Level.TRACE, "found a row with key %s", rs.getString(keyColumn));
+            }
 
-                for(int i = 1; i <= columnCount; i++) {
-                    String key = keyValue + meta.getColumnLabel(i);
-                    if(!collectKeys.contains(key))
-                        continue;
-                    Number value;
-                    Object oValue = rs.getObject(i);
-                    log(Level.TRACE, "type info for %s: type %d, %s = %s", key, meta.getColumnType(i), oValue.getClass(), oValue);
-                    if (oValue instanceof Number) {
-                        value = (Number) oValue;
-                        values.put(key, value);
-                    } else {
-                        int type = meta.getColumnType(i);
-                        switch (type) {
-                        case Types.DATE:
-                            value = rs.getDate(i).getTime() / 1000;
-                            break;
-                        case Types.TIME:
-                            value = rs.getTime(i).getTime() / 1000;
-                            break;
-                        case Types.VARCHAR:
-                            value = Util.parseStringNumber(rs.getString(i), Double.NaN);
-                            break;
-                        case Types.TIMESTAMP:
-                            value = rs.getTimestamp(i).getTime() / 1000;
-                            break;
-                        default:
-                            value = Double.NaN;
-                        }
-                        values.put(key, value);
+            for(int i = 1; i <= columnCount; i++) {
+                String key = keyValue + meta.getColumnLabel(i);
+                if(!collectKeys.contains(key))
+                    continue;
+                Number value;
+                Object oValue = rs.getObject(i);
+                log(Level.TRACE, "type info for %s: type %d, %s = %s", key, meta.getColumnType(i), oValue.getClass(), oValue);
+                if (oValue instanceof Number) {
+                    value = (Number) oValue;
+                    values.put(key, value);
+                } else {
+                    int type = meta.getColumnType(i);
+                    switch (type) {
+                    case Types.DATE:
+                        value = rs.getDate(i).getTime() / 1000;
+                        break;
+                    case Types.TIME:
+                        value = rs.getTime(i).getTime() / 1000;
+                        break;
+                    case Types.VARCHAR:
+                        value = Util.parseStringNumber(rs.getString(i), Double.NaN);
+                        break;
+                    case Types.TIMESTAMP:
+                        value = rs.getTimestamp(i).getTime() / 1000;
+                        break;
+                    default:
+                        value = Double.NaN;
                     }
+                    values.put(key, value);
                 }
             }
-        } catch (SQLException e) {
-            log(Level.ERROR, e, "SQL exception while getting values: ", e.getMessage());
         }
         log(Level.TRACE, "values found: %s", values);
         return values;
@@ -3,18 +3,17 @@ package jrds.probe.jdbc;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Properties;
 
 import jrds.PropertiesManager;
 import jrds.factories.ProbeBean;
 import jrds.starter.Connection;
 
-import org.apache.log4j.Level;
+@ProbeBean({ "user", "password", "url", "driverClass", "poolSize" })
+public class JdbcConnection extends Connection<JdbcPool> {
 
-@ProbeBean({ "user", "password", "url", "driverClass" })
-public class JdbcConnection extends Connection<Statement> {
-
-    private java.sql.Connection con;
+    private JdbcPool pool;
+    private int poolSize = 4;
     private String user;
     private String passwd;
     private String driverClass = null;
@@ -51,15 +50,14 @@ public class JdbcConnection extends Connection<Statement> {
     public void configure(PropertiesManager pm) {
         url = jrds.Util.parseTemplate(url, this, getLevel());
         super.configure(pm);
+        // The pool is shared with the other connections using the same
+        // database
+        pool = (JdbcPool) getLevel().registerStarter(new JdbcPool(url, user, passwd, new Properties()));
+        pool.setMaxSize(Math.max(pool.getMaxSize(), poolSize));
     }
 
-    public Statement getConnection() {
-        try {
-            return con.createStatement();
-        } catch (SQLException e) {
-            log(Level.ERROR, "JDBC Statment failed: " + e.getMessage());
-            return null;
-        }
+    public JdbcPool getConnection() {
+        return pool;
     }
 
     public void checkDriver(String sqlurl) {
@@ -80,29 +78,18 @@ public class JdbcConnection extends Connection<Statement> {
 
     @Override
     public boolean startConnection() {
-        boolean started = false;
-        if(getResolver().isStarted()) {
-            try {
-                DriverManager.setLoginTimeout(getTimeout());
-                con = DriverManager.getConnection(url, user, passwd);
-                started = true;
-            } catch (SQLException e) {
-                log(Level.ERROR, e, "Sql error for %s: %s", url, e);
-            }
-        }
-        return started;
+        // A connection is opened only if the pool has none available
+        return getResolver().isStarted() && pool.check();
+    }
+
+    @Override
+    public boolean checkConnection() {
+        return pool.check();
     }
 
     @Override
     public void stopConnection() {
-        if(con != null) {
-            try {
-                con.close();
-            } catch (SQLException e) {
-                log(Level.ERROR, e, "Error with %s: %s", getUrl(), e.getMessage());
-            }
-        }
-        con = null;
+        // The connections are kept in the pool
     }
 
     /**
@@ -147,6 +134,20 @@ public class JdbcConnection extends Connection<Statement> {
         this.url = url;
     }
 
+    /**
+     * @return the maximum number of connections to the database
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @param poolSize the maximum number of connections to the database
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
     /**
      * @return the driverClass
      */
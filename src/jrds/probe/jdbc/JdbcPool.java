@@ -0,0 +1,287 @@
+package jrds.probe.jdbc;
+
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import jrds.starter.Starter;
+
+import org.apache.log4j.Level;
+
+/**
+ * A pool of JDBC connections, shared by all the probes of a host that use the
+ * same URL and credentials.
+ * <p>
+ * The connections are opened when needed, up to a maximum size, and kept
+ * between collects. Each connection keeps the statements prepared on it, so a
+ * query is parsed only once. It's closed when the host is removed.
+ */
+public class JdbcPool extends Starter {
+
+    /**
+     * A connection borrowed from the pool, it must be closed to be given back
+     */
+    public final class PooledConnection implements AutoCloseable {
+        private final java.sql.Connection con;
+        private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        private boolean broken = false;
+
+        private PooledConnection(java.sql.Connection con) {
+            this.con = con;
+        }
+
+        /**
+         * Return the prepared statement for a query, it's created only once
+         * and must not be closed.
+         *
+         * @param query
+         * @return
+         * @throws SQLException
+         */
+        public PreparedStatement prepare(String query) throws SQLException {
+            PreparedStatement stmt = statements.get(query);
+            if(stmt == null || stmt.isClosed()) {
+                stmt = con.prepareStatement(query);
+                stmt.setQueryTimeout(getLevel().getTimeout());
+                statements.put(query, stmt);
+            }
+            return stmt;
+        }
+
+        public Statement createStatement() throws SQLException {
+            return con.createStatement();
+        }
+
+        /**
+         * The connection will be closed instead of being reused
+         */
+        public void invalidate() {
+            broken = true;
+        }
+
+        boolean isValid() {
+            try {
+                return con.isValid(getLevel().getTimeout());
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            giveBack(this);
+        }
+
+        private void destroy() {
+            try {
+                con.close();
+            } catch (SQLException e) {
+                log(Level.ERROR, e, "Error with %s: %s", url, e.getMessage());
+            }
+        }
+    }
+
+    private final String url;
+    private final String user;
+    private final String passwd;
+    private final Properties properties;
+    private int maxSize = 4;
+    private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+    private int opened = 0;
+    private boolean released = false;
+
+    public JdbcPool(String url, String user, String passwd, Properties properties) {
+        this.url = url;
+        this.user = user;
+        this.passwd = passwd;
+        this.properties = new Properties();
+        // The drivers don't use server side prepared statements by default
+        if(url.startsWith("jdbc:mysql:")) {
+            this.properties.put("useServerPrepStmts", "true");
+        } else if(url.startsWith("jdbc:postgresql:")) {
+            this.properties.put("prepareThreshold", "1");
+        }
+        this.properties.putAll(properties);
+    }
+
+    public static Object makeKey(String url, String user) {
+        return "jdbcpool:" + user + "@" + url;
+    }
+
+    @Override
+    public Object getKey() {
+        return makeKey(url, user);
+    }
+
+    @Override
+    public synchronized boolean start() {
+        // Connections are opened on demand
+        released = false;
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            released = true;
+        }
+        closeIdle();
+    }
+
+    private synchronized void closeIdle() {
+        for(PooledConnection pc: idle) {
+            pc.destroy();
+            opened--;
+        }
+        idle.clear();
+        notifyAll();
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    /**
+     * Validate the idle connections, the dead ones are closed. If one was dead,
+     * the server was probably restarted, so the pool is restarted too.
+     *
+     * @see jrds.starter.Starter#isAlive()
+     */
+    @Override
+    public boolean isAlive() {
+        List<PooledConnection> toCheck;
+        synchronized (this) {
+            if(released) {
+                return false;
+            }
+            toCheck = new ArrayList<PooledConnection>(idle);
+            idle.clear();
+        }
+        // Validation needs a round trip, it's done outside the lock
+        boolean alive = true;
+        for(PooledConnection pc: toCheck) {
+            if(!pc.isValid()) {
+                pc.invalidate();
+                alive = false;
+            }
+            giveBack(pc);
+        }
+        if(!alive) {
+            log(Level.INFO, "Connection to %s lost", url);
+        }
+        return alive;
+    }
+
+    /**
+     * Take a connection from the pool, opening a new one if needed. If the
+     * pool is full, it waits for a free connection until the timeout.
+     *
+     * @return a connection to close when done
+     * @throws SQLException if no connection could be found
+     */
+    public PooledConnection borrow() throws SQLException {
+        long deadline = System.currentTimeMillis() + getLevel().getTimeout() * 1000L;
+        synchronized (this) {
+            while(idle.isEmpty() && opened >= maxSize) {
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0) {
+                    throw new SQLException("No free connection for " + url);
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting a connection for " + url);
+                }
+            }
+            if(!idle.isEmpty()) {
+                return idle.pop();
+            }
+            opened++;
+        }
+        // The login is done outside the lock
+        try {
+            Properties p = new Properties();
+            p.putAll(properties);
+            if(user != null)
+                p.put("user", user);
+            if(passwd != null)
+                p.put("password", passwd);
+            DriverManager.setLoginTimeout(getLevel().getTimeout());
+            PooledConnection pc = new PooledConnection(DriverManager.getConnection(url, p));
+            log(Level.DEBUG, "New connection to %s", url);
+            return pc;
+        } catch (SQLException | RuntimeException e) {
+            synchronized (this) {
+                opened--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private void giveBack(PooledConnection pc) {
+        synchronized (this) {
+            if(!pc.broken && !released) {
+                idle.push(pc);
+                notifyAll();
+                return;
+            }
+            opened--;
+            notifyAll();
+        }
+        pc.destroy();
+    }
+
+    /**
+     * Check that the pool can provide a working connection. If it's dead, all
+     * the idle connections are closed too.
+     *
+     * @return
+     */
+    public boolean check() {
+        try (PooledConnection pc = borrow()) {
+            if(!pc.isValid()) {
+                log(Level.INFO, "Connection to %s lost", url);
+                pc.invalidate();
+                closeIdle();
+                return false;
+            }
+            return true;
+        } catch (SQLException e) {
+            log(Level.ERROR, e, "Sql error for %s: %s", url, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the maximum number of connections
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize the maximum number of connections
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * @return the url
+     */
+    public String getUrl() {
+        return url;
+    }
+
+}
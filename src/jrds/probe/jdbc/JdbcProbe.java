@@ -4,10 +4,10 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.sql.Driver;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -144,16 +144,17 @@ public abstract class JdbcProbe extends Probe<String, Number> implements UrlProb
     public Map<String, Number> select2Map(String query) {
         Map<String, Number> values = new HashMap<String, Number>();
         try {
-            Statement stmt = starter.getStatment();
-            if(stmt.execute(query)) {
+            PreparedStatement stmt = starter.prepare(query);
+            if(stmt.execute()) {
                 do {
                     values = parseRs(stmt.getResultSet());
                 } while (stmt.getMoreResults());
             } else {
                 log(Level.WARN, "Not a select query");
             }
-            stmt.close();
         } catch (SQLException e) {
+            // The connection might be broken, don't reuse it
+            starter.invalidate();
             log(Level.ERROR, e, "SQL Error: " + e);
         }
         return values;
@@ -162,10 +163,10 @@ public abstract class JdbcProbe extends Probe<String, Number> implements UrlProb
     public Map<String, Object> select2Map(String query, String keyCol, String valCol) {
         Map<String, Object> values = new HashMap<String, Object>();
         log(Level.DEBUG, "Getting %s", query);
-        Statement stmt;
+        PreparedStatement stmt;
         try {
-            stmt = starter.getStatment();
-            if(stmt.execute(query)) {
+            stmt = starter.prepare(query);
+            if(stmt.execute()) {
                 do {
                     ResultSet rs = stmt.getResultSet();
                     while (rs.next()) {
@@ -181,8 +182,8 @@ public abstract class JdbcProbe extends Probe<String, Number> implements UrlProb
                     }
                 } while (stmt.getMoreResults());
             }
-            stmt.close();
         } catch (SQLException e) {
+            starter.invalidate();
             log(Level.ERROR, e, "SQL Error: %s", e.getLocalizedMessage());
         }
         return values;
@@ -1,23 +1,25 @@
 package jrds.probe.jdbc;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Properties;
 
 import jrds.HostInfo;
+import jrds.Probe;
 import jrds.starter.Resolver;
 import jrds.starter.Starter;
+import jrds.starter.StarterNode;
 
 import org.apache.log4j.Level;
 
 public abstract class JdbcStarter extends Starter {
-    private Connection con;
+    private JdbcPool.PooledConnection con;
     private String url;
     private String user;
     private String passwd;
     private String dbName = "";
+    private JdbcPool pool;
 
     public void setHost(HostInfo monitoredHost) {
         this.url = getUrlAsString();
@@ -25,17 +27,27 @@ public abstract class JdbcStarter extends Starter {
 
     public abstract String getUrlAsString();
 
+    /**
+     * The connection pool is registered with the host, so it's shared with
+     * the other probes using the same database
+     */
+    @Override
+    public void initialize(StarterNode level) {
+        super.initialize(level);
+        StarterNode host = level instanceof Probe<?, ?> && level.getParent() != null ? level.getParent() : level;
+        if(url == null) {
+            url = getUrlAsString();
+        }
+        pool = (JdbcPool) host.registerStarter(new JdbcPool(url, user, passwd, getProperties()));
+    }
+
     @Override
     public boolean start() {
         boolean started = false;
         Starter resolver = getLevel().find(Resolver.class);
         if(resolver.isStarted()) {
-            Properties p = getProperties();
-            p.put("user", user);
-            p.put("password", passwd);
             try {
-                DriverManager.setLoginTimeout(10);
-                con = DriverManager.getConnection(url, user, passwd);
+                con = pool.borrow();
                 started = true;
             } catch (SQLException e) {
                 log(Level.ERROR, e, "SQL error: %s", e);
@@ -47,11 +59,7 @@ public abstract class JdbcStarter extends Starter {
     @Override
     public void stop() {
         if(con != null) {
-            try {
-                con.close();
-            } catch (SQLException e) {
-                log(Level.ERROR, e, "SQL error: %s", e);
-            }
+            con.close();
         }
         con = null;
     }
@@ -60,6 +68,33 @@ public abstract class JdbcStarter extends Starter {
         return con.createStatement();
     }
 
+    /**
+     * Get the prepared statement for a query, it's reused by the following
+     * collects and must not be closed.
+     * 
+     * @param query
+     * @return
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String query) throws SQLException {
+        try {
+            return con.prepare(query);
+        } catch (SQLException e) {
+            con.invalidate();
+            throw e;
+        }
+    }
+
+    /**
+     * The connection failed, it will be closed instead of given back to the
+     * pool.
+     */
+    public void invalidate() {
+        if(con != null) {
+            con.invalidate();
+        }
+    }
+
     public Properties getProperties() {
         return new Properties();
     }
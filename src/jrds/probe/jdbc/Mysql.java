@@ -1,8 +1,8 @@
 package jrds.probe.jdbc;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.Properties;
 
 import jrds.ProbeDesc;
@@ -44,10 +44,10 @@ public abstract class Mysql extends JdbcProbe {
                 boolean started = super.start();
                 long uptime = 0;
                 if(started) {
-                    Statement stmt;
+                    PreparedStatement stmt;
                     try {
-                        stmt = getStatment();
-                        if(stmt.execute("SHOW STATUS LIKE 'Uptime';")) {
+                        stmt = prepare("SHOW STATUS LIKE 'Uptime';");
+                        if(stmt.execute()) {
                             ResultSet rs = stmt.getResultSet();
                             while (rs.next()) {
                                 String key = rs.getObject(1).toString();
@@ -59,6 +59,7 @@ public abstract class Mysql extends JdbcProbe {
                             }
                         }
                     } catch (SQLException e) {
+                        invalidate();
                         log(Level.ERROR, "SQL exception while getting uptime for " + this);
                     } catch (NumberFormatException ex) {
                         log(Level.ERROR, "Uptime not parsable for " + this);
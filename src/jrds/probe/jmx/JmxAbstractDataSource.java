@@ -1,6 +1,12 @@
 package jrds.probe.jmx;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.management.ObjectName;
 
@@ -14,4 +20,47 @@ public abstract class JmxAbstractDataSource<JmxConnection> {
 
     public abstract Number getValue(ObjectName mbeanName, String attributeName, String[] jmxPath) throws InvocationTargetException;
 
+    /**
+     * Collect many attributes at once. The default implementation reads them
+     * one by one, a data source should override it to reduce the round trips.
+     *
+     * @param attributes the attributes to read
+     * @param errors filled with the failure for each attribute that can't be
+     *            read
+     * @return the values found, a missing value is not an error
+     */
+    public Map<JmxAttribute, Number> getValues(Collection<JmxAttribute> attributes, Map<JmxAttribute, Throwable> errors) {
+        Map<JmxAttribute, Number> values = new HashMap<JmxAttribute, Number>(attributes.size());
+        for(JmxAttribute attr: attributes) {
+            try {
+                Number v = getValue(attr.mbeanName, attr.attributeName, attr.jmxPath);
+                if(v != null) {
+                    values.put(attr, v);
+                }
+            } catch (InvocationTargetException e) {
+                errors.put(attr, e.getCause() != null ? e.getCause() : e);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Group attributes by mbean, keeping the request order
+     *
+     * @param attributes
+     * @return
+     */
+    static Map<ObjectName, List<JmxAttribute>> groupByName(Collection<JmxAttribute> attributes) {
+        Map<ObjectName, List<JmxAttribute>> byName = new LinkedHashMap<ObjectName, List<JmxAttribute>>();
+        for(JmxAttribute attr: attributes) {
+            List<JmxAttribute> l = byName.get(attr.mbeanName);
+            if(l == null) {
+                l = new ArrayList<JmxAttribute>();
+                byName.put(attr.mbeanName, l);
+            }
+            l.add(attr);
+        }
+        return byName;
+    }
+
 }
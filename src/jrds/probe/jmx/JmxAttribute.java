@@ -0,0 +1,43 @@
+package jrds.probe.jmx;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * A collect key parsed once, in the form
+ * <code>domain:key=value/attribute/path...</code>
+ */
+public final class JmxAttribute {
+    public final String collect;
+    public final ObjectName mbeanName;
+    public final String attributeName;
+    public final String[] jmxPath;
+
+    public JmxAttribute(String collect) throws MalformedObjectNameException {
+        this.collect = collect;
+        int attrSplit = collect.indexOf(':');
+        attrSplit = collect.indexOf('/', attrSplit);
+        if(attrSplit < 0) {
+            throw new MalformedObjectNameException("No attribute in " + collect);
+        }
+        mbeanName = new ObjectName(collect.substring(0, attrSplit));
+        jmxPath = collect.substring(attrSplit + 1).split("/");
+        attributeName = jmxPath[0];
+    }
+
+    @Override
+    public int hashCode() {
+        return collect.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof JmxAttribute && collect.equals(((JmxAttribute) obj).collect);
+    }
+
+    @Override
+    public String toString() {
+        return collect;
+    }
+
+}
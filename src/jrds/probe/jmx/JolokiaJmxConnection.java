@@ -3,6 +3,9 @@ package jrds.probe.jmx;
 import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
@@ -16,6 +19,8 @@ public class JolokiaJmxConnection extends AbstractJmxConnection {
 
     private J4pClient j4pClient;
     private JolokiaJmxSource connection;
+    // Kept across reconnections, so the first bulk read covers all the probes
+    private final Set<JmxAttribute> knownAttributes = Collections.newSetFromMap(new ConcurrentHashMap<JmxAttribute, Boolean>());
 
     public JolokiaJmxConnection() {
         super();
@@ -39,7 +44,8 @@ public class JolokiaJmxConnection extends AbstractJmxConnection {
             int resolvedport = port > 0 ? port : ssl ? 443 : 80;
             URL url = new URL(protocol, getHostName(), resolvedport, path);
             j4pClient = new J4pClient(url.toString(), httpstarter.getHttpClient());
-            connection = new JolokiaJmxSource(j4pClient);
+            // The values read for the other probes are valid during the collect
+            connection = new JolokiaJmxSource(j4pClient, knownAttributes, getLevel().getStep() * 500L);
             return true;
         } catch (MalformedURLException e) {
             log(Level.ERROR, e, "can't build jolokia URL: %s", e.getMessage());
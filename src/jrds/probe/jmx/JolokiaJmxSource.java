@@ -2,56 +2,58 @@ package jrds.probe.jmx;
 
 import java.lang.reflect.InvocationTargetException;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.management.ObjectName;
 
 import org.jolokia.client.J4pClient;
+import org.jolokia.client.exception.J4pBulkRemoteException;
 import org.jolokia.client.exception.J4pException;
 import org.jolokia.client.exception.J4pRemoteException;
 import org.jolokia.client.request.J4pReadRequest;
 import org.jolokia.client.request.J4pReadResponse;
 
+/**
+ * A jolokia data source. The attributes are read with a single bulk request
+ * that covers all the attributes already asked on this connection, by any
+ * probe. The values are then kept for the following probes of the same
+ * collect, at most maxAge ms.
+ */
 public class JolokiaJmxSource extends JmxAbstractDataSource<J4pClient> {
 
-    JolokiaJmxSource(J4pClient connection) {
+    private final Set<JmxAttribute> known;
+    private final long maxAge;
+    // The values read but not used yet, a Number or the failure
+    private Map<JmxAttribute, Object> pending = Collections.emptyMap();
+    private long fetched = 0;
+
+    /**
+     * @param connection
+     * @param known the attributes that will be read by each bulk request
+     * @param maxAge how long the values can be kept, in ms, 0 to only read the
+     *            attributes asked
+     */
+    JolokiaJmxSource(J4pClient connection, Set<JmxAttribute> known, long maxAge) {
         super(connection);
+        this.known = known;
+        this.maxAge = maxAge;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public Number getValue(ObjectName mbeanName, String attributeName, String[] jmxPath) throws InvocationTargetException {
         J4pReadRequest req = new J4pReadRequest(mbeanName, attributeName);
         try {
             J4pReadResponse resp = connection.execute(req);
-            Object o = resp.getValue();
-            for (String i: jmxPath) {
-                if (o instanceof Map) {
-                    Map<String, Object> m = (Map<String, Object>) o;
-                    o = m.get(i);
-                    if (o == null) {
-                        return null;
-                    }
-                }
-            }
-            if (o instanceof Number) {
-                return (Number) o;
-            } else if (o instanceof String) {
-                try {
-                    return Integer.parseInt((String) o);
-                } catch (NumberFormatException e) {
-                    return Double.NaN;
-                }
-            } else {
-                return Double.NaN;
-            }
+            return resolveValue(resp.getValue(), jmxPath);
         } catch (J4pRemoteException e) {
-            Map<String, Object> errorValue = e.getErrorValue();
-            if (errorValue != null) {
-                throw new InvocationTargetException(new RemoteException(e.getErrorType() + ": " + errorValue.get("message").toString()));
-            } else {
-                throw new InvocationTargetException(new RemoteException(e.getErrorType() + ": unspecified by remote jolokia"));
-            }
+            throw new InvocationTargetException(remoteError(e));
         } catch (J4pException e) {
             if (e.getCause() != null) {
                 throw new InvocationTargetException(e.getCause());
@@ -61,4 +63,105 @@ public class JolokiaJmxSource extends JmxAbstractDataSource<J4pClient> {
         }
     }
 
+    @Override
+    public synchronized Map<JmxAttribute, Number> getValues(Collection<JmxAttribute> attributes, Map<JmxAttribute, Throwable> errors) {
+        known.addAll(attributes);
+        long now = System.currentTimeMillis();
+        if (maxAge <= 0) {
+            pending = fetch(attributes);
+        } else if (now - fetched > maxAge || !pending.keySet().containsAll(attributes)) {
+            pending = fetch(known);
+            fetched = now;
+        }
+        Map<JmxAttribute, Number> values = new HashMap<JmxAttribute, Number>(attributes.size());
+        for (JmxAttribute attr: attributes) {
+            Object o = pending.remove(attr);
+            if (o instanceof Throwable) {
+                errors.put(attr, (Throwable) o);
+            } else if (o != null) {
+                values.put(attr, (Number) o);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Send a bulk request, with a read for each mbean
+     *
+     * @param attributes
+     * @return the value or the failure for each attribute
+     */
+    private Map<JmxAttribute, Object> fetch(Collection<JmxAttribute> attributes) {
+        Map<JmxAttribute, Object> found = new HashMap<JmxAttribute, Object>(attributes.size());
+        List<List<JmxAttribute>> groups = new ArrayList<List<JmxAttribute>>();
+        List<J4pReadRequest> requests = new ArrayList<J4pReadRequest>();
+        for (Map.Entry<ObjectName, List<JmxAttribute>> e: groupByName(attributes).entrySet()) {
+            Set<String> names = new LinkedHashSet<String>(e.getValue().size());
+            for (JmxAttribute attr: e.getValue()) {
+                names.add(attr.attributeName);
+            }
+            groups.add(e.getValue());
+            requests.add(new J4pReadRequest(e.getKey(), names.toArray(new String[names.size()])));
+        }
+        List<?> results;
+        try {
+            List<J4pReadResponse> responses = connection.execute(requests);
+            results = responses;
+        } catch (J4pBulkRemoteException e) {
+            results = e.getResults();
+        } catch (J4pException e) {
+            Throwable failure = e.getCause() != null ? e.getCause() : e;
+            for (JmxAttribute attr: attributes) {
+                found.put(attr, failure);
+            }
+            return found;
+        }
+        for (int i = 0; i < groups.size(); i++) {
+            Object result = results.get(i);
+            for (JmxAttribute attr: groups.get(i)) {
+                if (result instanceof J4pRemoteException) {
+                    found.put(attr, remoteError((J4pRemoteException) result));
+                } else {
+                    J4pReadResponse resp = (J4pReadResponse) result;
+                    Object o = requests.get(i).hasSingleAttribute() ? resp.getValue() : resp.getValue(attr.attributeName);
+                    found.put(attr, resolveValue(o, attr.jmxPath));
+                }
+            }
+        }
+        return found;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Number resolveValue(Object o, String[] jmxPath) {
+        for (String i: jmxPath) {
+            if (o instanceof Map) {
+                Map<String, Object> m = (Map<String, Object>) o;
+                o = m.get(i);
+                if (o == null) {
+                    return null;
+                }
+            }
+        }
+        if (o instanceof Number) {
+            return (Number) o;
+        } else if (o instanceof String) {
+            try {
+                return Integer.parseInt((String) o);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        } else {
+            return Double.NaN;
+        }
+    }
+
+    private RemoteException remoteError(J4pRemoteException e) {
+        Map<String, Object> errorValue = e.getErrorValue();
+        if (errorValue != null) {
+            return new RemoteException(e.getErrorType() + ": " + errorValue.get("message").toString());
+        } else {
+            return new RemoteException(e.getErrorType() + ": unspecified by remote jolokia");
+        }
+    }
+
 }
@@ -157,6 +157,20 @@ public class NativeJmxConnection extends AbstractJmxConnection {
         return false;
     }
 
+    @Override
+    public boolean checkConnection() {
+        if(connection == null) {
+            return false;
+        }
+        try {
+            connection.connection.getMBeanCount();
+            return true;
+        } catch (IOException e) {
+            log(Level.DEBUG, e, "Connection to %s lost: %s", url, e);
+            return false;
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -6,8 +6,13 @@ import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URLDecoder;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import javax.management.Attribute;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanException;
@@ -34,6 +39,42 @@ public class NativeJmxSource extends JmxAbstractDataSource<MBeanServerConnection
         }
     }
 
+    /**
+     * Read the attributes with one getAttributes call for each mbean
+     */
+    @Override
+    public Map<JmxAttribute, Number> getValues(Collection<JmxAttribute> attributes, Map<JmxAttribute, Throwable> errors) {
+        Map<JmxAttribute, Number> values = new HashMap<JmxAttribute, Number>(attributes.size());
+        for(Map.Entry<ObjectName, List<JmxAttribute>> e: groupByName(attributes).entrySet()) {
+            Set<String> names = new LinkedHashSet<String>(e.getValue().size());
+            for(JmxAttribute attr: e.getValue()) {
+                names.add(attr.attributeName);
+            }
+            try {
+                Map<String, Object> found = new HashMap<String, Object>(names.size());
+                for(Attribute a: connection.getAttributes(e.getKey(), names.toArray(new String[names.size()])).asList()) {
+                    found.put(a.getName(), a.getValue());
+                }
+                for(JmxAttribute attr: e.getValue()) {
+                    if(!found.containsKey(attr.attributeName)) {
+                        // getAttributes silently drops the unreadable attributes
+                        errors.put(attr, new AttributeNotFoundException(attr.attributeName));
+                        continue;
+                    }
+                    Object o = found.get(attr.attributeName);
+                    if(o != null) {
+                        values.put(attr, resolvJmxObject(o, attr.jmxPath));
+                    }
+                }
+            } catch (InstanceNotFoundException | ReflectionException | IOException ex) {
+                for(JmxAttribute attr: e.getValue()) {
+                    errors.put(attr, ex);
+                }
+            }
+        }
+        return values;
+    }
+
     /**
      * Try to extract a numerical value from a jmx Path pointing to a jmx object
      * If the attribute (element 0) of the path is a :
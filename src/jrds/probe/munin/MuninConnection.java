@@ -65,6 +65,23 @@ public class MuninConnection extends Connection<MuninConnection.SocketChannels>
         return true;
     }
 
+    /**
+     * A round trip with the version command, munin node closes idle sessions
+     */
+    @Override
+    public boolean checkConnection() {
+        if(channel == null || channel.muninsSocket.isClosed()) {
+            return false;
+        }
+        channel.out.println("version");
+        try {
+            return channel.in.readLine() != null;
+        } catch (IOException e) {
+            log(Level.DEBUG, e, "Connection lost: %s", e.getMessage());
+            return false;
+        }
+    }
+
     @Override
     public void stopConnection() {
         try {
@@ -141,6 +141,17 @@ public class RdsIndexedSnmpRrd extends SnmpProbe implements IndexedProbe {
         return new int[0];
     }
 
+    /**
+     * The index lookup is a request to the agent, so the probe can be
+     * asynchronous only if the index is already known.
+     * 
+     * @see jrds.probe.snmp.SnmpProbe#isAsynchronous()
+     */
+    @Override
+    public boolean isAsynchronous() {
+        return key != null && super.isAsynchronous();
+    }
+
     /**
      * @param readKey
      * @return
@@ -7,15 +7,19 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import jrds.ProbeConnected;
+import jrds.PropertiesManager;
 import jrds.factories.ProbeMeta;
 import jrds.snmp.SnmpConnection;
 import jrds.snmp.SnmpDiscoverAgent;
+import jrds.snmp.SnmpRequest;
 import jrds.snmp.SnmpRequester;
 
 import org.apache.log4j.Level;
 import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
 
 /**
  * A abstract class from which all snmp probes should be derived.
@@ -88,6 +92,58 @@ public abstract class SnmpProbe extends ProbeConnected<OID, Object, SnmpConnecti
      */
     protected abstract Set<OID> getOidSet();
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see jrds.starter.StarterNode#configureStarters(jrds.PropertiesManager)
+     */
+    @Override
+    public void configureStarters(PropertiesManager pm) {
+        super.configureStarters(pm);
+        SnmpConnection cnx = getConnection();
+        if(cnx != null) {
+            cnx.addProbe(this);
+        }
+    }
+
+    /**
+     * A probe is asynchronous if it's requester is asynchronous and it can
+     * build it's OID set without talking to the agent.
+     * 
+     * @return true if the request can be sent by the connection
+     */
+    public boolean isAsynchronous() {
+        return requester.isAsynchronous();
+    }
+
+    /**
+     * Send the request for the values, without waiting for the response.
+     * 
+     * @param cnx
+     * @return the pending values, or null if no OID to collect
+     */
+    public Future<Map<OID, Object>> sendRequest(SnmpConnection cnx) {
+        Collection<OID> oids = getOidSet();
+        if(oids == null) {
+            return null;
+        }
+        return requester.doSnmpGetAsync(cnx, oids);
+    }
+
+    /**
+     * The variables to get, if the request can be grouped with the ones of
+     * other probes on the same agent.
+     * 
+     * @return the variables, or null if they can't be grouped
+     */
+    public VariableBinding[] getRequestVariables() {
+        Collection<OID> oids = getOidSet();
+        if(oids == null) {
+            return null;
+        }
+        return requester.getVariables(oids);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -96,10 +152,14 @@ public abstract class SnmpProbe extends ProbeConnected<OID, Object, SnmpConnecti
     @Override
     public Map<OID, Object> getNewSampleValuesConnected(SnmpConnection cnx) {
         Map<OID, Object> retValue = null;
-        Collection<OID> oids = getOidSet();
-        if(oids != null) {
+        // Perhaps the connection already sent the request
+        Future<Map<OID, Object>> request = cnx.getPendingRequest(this);
+        if(request == null) {
+            request = sendRequest(cnx);
+        }
+        if(request != null) {
             try {
-                Map<OID, Object> rawValues = requester.doSnmpGet(cnx, oids);
+                Map<OID, Object> rawValues = SnmpRequest.waitResponse(cnx, request);
                 retValue = new HashMap<OID, Object>(rawValues.size());
                 for(Map.Entry<OID, Object> e: rawValues.entrySet()) {
                     OID oid = new OID(e.getKey());
@@ -0,0 +1,251 @@
+package jrds.snmp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.util.DefaultPDUFactory;
+
+/**
+ * Group the GET requests of many probes on the same agent in as few PDU as
+ * possible. The variables of all the probes are packed in PDU limited by the
+ * number of variables and by an estimation of the size of the response. Each
+ * probe then read it's own values from the shared requests.
+ * <p>
+ * If the agent refuse a PDU, each probe using it send it's own request.
+ */
+class SnmpBatch {
+    static private final Logger logger = Logger.getLogger(SnmpBatch.class);
+
+    // Space used by the message header, the community and the request id
+    static final int HEADEROVERHEAD = 64;
+    // Space reserved for the value of each variable in the response
+    static final int VALUEOVERHEAD = 16;
+
+    private final SnmpConnection cnx;
+    private final Snmp snmp;
+    private final Target target;
+    private final int maxVarBinds;
+    private final int maxPduSize;
+    private final Map<OID, VariableBinding> variables = new LinkedHashMap<OID, VariableBinding>();
+    private final Map<OID, SnmpRequest> requestsByOid = new HashMap<OID, SnmpRequest>();
+    private final List<SnmpRequest> requests = new ArrayList<SnmpRequest>();
+
+    SnmpBatch(SnmpConnection cnx, Snmp snmp, Target target, int maxVarBinds, int maxPduSize) {
+        this.cnx = cnx;
+        this.snmp = snmp;
+        this.target = target;
+        this.maxVarBinds = Math.max(1, maxVarBinds);
+        this.maxPduSize = maxPduSize;
+    }
+
+    /**
+     * Add variables to the batch, a variable already requested is not added
+     * twice
+     *
+     * @param vars
+     */
+    void add(VariableBinding[] vars) {
+        for(VariableBinding vb: vars) {
+            if(!variables.containsKey(vb.getOid())) {
+                variables.put(vb.getOid(), vb);
+            }
+        }
+    }
+
+    /**
+     * Pack the variables in PDU
+     *
+     * @return the PDU to send
+     */
+    List<PDU> pack() {
+        List<PDU> pdus = new ArrayList<PDU>();
+        PDU current = null;
+        int currentSize = 0;
+        for(VariableBinding vb: variables.values()) {
+            int vbSize = vb.getBERLength() + VALUEOVERHEAD;
+            if(current == null || current.size() >= maxVarBinds || (current.size() > 0 && currentSize + vbSize > maxPduSize)) {
+                current = DefaultPDUFactory.createPDU(target, PDU.GET);
+                pdus.add(current);
+                currentSize = HEADEROVERHEAD;
+            }
+            current.add(vb);
+            currentSize += vbSize;
+        }
+        return pdus;
+    }
+
+    /**
+     * Send all the variables added, this method returns immediately
+     *
+     * @return the number of PDU sent
+     */
+    int send() {
+        for(PDU pdu: pack()) {
+            SnmpRequest request = new SnmpRequest(cnx, snmp, target, pdu);
+            for(VariableBinding vb: pdu.getVariableBindings()) {
+                requestsByOid.put(vb.getOid(), request);
+            }
+            requests.add(request);
+            request.send();
+        }
+        logger.trace(variables.size() + " variables sent in " + requests.size() + " PDU to " + target.getAddress());
+        return requests.size();
+    }
+
+    /**
+     * Return the pending values for a subset of the variables sent
+     *
+     * @param vars
+     * @return the pending values
+     */
+    Future<Map<OID, Object>> getValues(VariableBinding[] vars) {
+        Set<SnmpRequest> used = new LinkedHashSet<SnmpRequest>();
+        for(VariableBinding vb: vars) {
+            SnmpRequest request = requestsByOid.get(vb.getOid());
+            if(request != null) {
+                used.add(request);
+            }
+        }
+        return new Slice(vars, used);
+    }
+
+    /**
+     * Cancel all the pending requests
+     */
+    void cancel() {
+        for(SnmpRequest request: requests) {
+            request.cancel(true);
+        }
+    }
+
+    /**
+     * The values of one probe, read from the shared requests
+     */
+    private class Slice implements Future<Map<OID, Object>> {
+        private final VariableBinding[] vars;
+        private final Set<SnmpRequest> used;
+        private volatile Future<Map<OID, Object>> fallback = null;
+        private volatile boolean cancelled = false;
+
+        Slice(VariableBinding[] vars, Set<SnmpRequest> used) {
+            this.vars = vars;
+            this.used = used;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if(isDone()) {
+                return false;
+            }
+            // The shared requests are not cancelled, other probes need them
+            cancelled = true;
+            if(fallback != null) {
+                fallback.cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            if(cancelled) {
+                return true;
+            }
+            if(fallback != null) {
+                return fallback.isDone();
+            }
+            for(SnmpRequest request: used) {
+                if(!request.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Map<OID, Object> get() throws InterruptedException, ExecutionException {
+            try {
+                return waitValues(null);
+            } catch (TimeoutException e) {
+                // Not reachable without a deadline
+                throw new ExecutionException(e);
+            }
+        }
+
+        @Override
+        public Map<OID, Object> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return waitValues(System.nanoTime() + unit.toNanos(timeout));
+        }
+
+        private Map<OID, Object> waitValues(Long deadline) throws InterruptedException, ExecutionException, TimeoutException {
+            Map<OID, Object> values = new HashMap<OID, Object>(vars.length);
+            for(SnmpRequest request: used) {
+                if(cancelled) {
+                    throw new CancellationException();
+                }
+                try {
+                    values.putAll(waitRequest(request, deadline));
+                } catch (ExecutionException e) {
+                    // The agent answered with an error for the whole PDU,
+                    // perhaps it's too big, so try alone
+                    if(request.getErrorStatus() != SnmpConstants.SNMP_ERROR_SUCCESS) {
+                        logger.debug("Shared request failed with error status " + request.getErrorStatus() + ", sending a separate request");
+                        PDU pdu = DefaultPDUFactory.createPDU(target, PDU.GET);
+                        pdu.addAll(vars);
+                        fallback = new SnmpRequest(cnx, snmp, target, pdu).send();
+                        if(cancelled) {
+                            fallback.cancel(true);
+                        }
+                        return waitRequest(fallback, deadline);
+                    }
+                    throw e;
+                }
+            }
+            if(cancelled) {
+                throw new CancellationException();
+            }
+            // Keep only the values of this probe
+            Map<OID, Object> retValue = new HashMap<OID, Object>(vars.length);
+            for(VariableBinding vb: vars) {
+                Object value = values.get(vb.getOid());
+                if(value != null) {
+                    retValue.put(vb.getOid(), value);
+                }
+            }
+            return retValue;
+        }
+
+        private Map<OID, Object> waitRequest(Future<Map<OID, Object>> request, Long deadline) throws InterruptedException, ExecutionException, TimeoutException {
+            Map<OID, Object> values;
+            if(deadline == null) {
+                values = request.get();
+            } else {
+                values = request.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            return values == null ? Collections.<OID, Object> emptyMap() : values;
+        }
+    }
+
+}
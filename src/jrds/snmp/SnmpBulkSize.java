@@ -0,0 +1,115 @@
+package jrds.snmp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.snmp4j.PDU;
+import org.snmp4j.Target;
+import org.snmp4j.mp.MessageProcessingModel;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.util.RetrievalEvent;
+import org.snmp4j.util.PDUFactory;
+
+/**
+ * The max-repetitions used by the GETBULK requests sent to an agent. It's
+ * adapted after each walk, from the number of requests needed:
+ * <ul>
+ * <li>if the agent filled all the responses, it's doubled;</li>
+ * <li>if the agent truncated them, it's reduced to the number of rows
+ * returned, and it will not grow above that;</li>
+ * <li>if the agent answered tooBig, it's halved, and it will stay below the
+ * failed value.</li>
+ * </ul>
+ * Other failures, like timeouts, don't change it. After {@link #PROBEAFTER}
+ * successful walks, the limit learned is doubled, so an agent that was busy is
+ * tried again with larger requests.
+ * <p>
+ * The value is kept by the connection, so it's remembered from one collect to
+ * another.
+ */
+public class SnmpBulkSize {
+    static final int INITIAL = 10;
+    static final int PROBEAFTER = 10;
+
+    private final int max;
+    private int repetitions;
+    private int ceiling;
+    private int successes = 0;
+
+    /**
+     * A PDU factory that count the requests sent during a walk
+     */
+    static class Counter implements PDUFactory {
+        private final PDUFactory factory;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        Counter(PDUFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public PDU createPDU(Target target) {
+            count.incrementAndGet();
+            return factory.createPDU(target);
+        }
+
+        @Override
+        public PDU createPDU(MessageProcessingModel messageProcessingModel) {
+            count.incrementAndGet();
+            return factory.createPDU(messageProcessingModel);
+        }
+
+        int getCount() {
+            return count.get();
+        }
+    }
+
+    SnmpBulkSize(int max) {
+        this.max = Math.max(1, max);
+        this.ceiling = this.max;
+        this.repetitions = Math.min(INITIAL, ceiling);
+    }
+
+    /**
+     * @return the max-repetitions to use for the next walk
+     */
+    public synchronized int getRepetitions() {
+        return repetitions;
+    }
+
+    /**
+     * Adapt the max-repetitions from the result of a walk
+     *
+     * @param requests the number of requests sent for each column
+     * @param rows the number of rows read
+     * @param status the error status of the walk, a {@link RetrievalEvent}
+     *            status or the error status of a response
+     */
+    public synchronized void update(int requests, int rows, int status) {
+        if(status == SnmpConstants.SNMP_ERROR_TOO_BIG) {
+            // Don't try again the size that failed
+            ceiling = Math.max(1, repetitions - 1);
+            repetitions = Math.max(1, repetitions / 2);
+            successes = 0;
+            return;
+        } else if(status != RetrievalEvent.STATUS_OK) {
+            // A timeout or an error from the agent, nothing to learn
+            return;
+        }
+        if(requests > 1) {
+            // The last response is not expected to be full
+            if(rows >= (requests - 1) * repetitions) {
+                repetitions = Math.min(repetitions * 2, ceiling);
+            } else {
+                ceiling = Math.max(1, (rows + requests - 1) / requests);
+                repetitions = ceiling;
+                successes = 0;
+                return;
+            }
+        }
+        if(ceiling < max && ++successes >= PROBEAFTER) {
+            ceiling = Math.min(max, ceiling * 2);
+            successes = 0;
+        }
+    }
+
+}
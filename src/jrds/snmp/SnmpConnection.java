@@ -1,10 +1,16 @@
 package jrds.snmp;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 import jrds.factories.ProbeBean;
+import jrds.probe.snmp.SnmpProbe;
 import jrds.starter.Connection;
 import jrds.starter.Resolver;
 
@@ -24,7 +30,7 @@ import org.snmp4j.smi.VariableBinding;
 import org.snmp4j.util.DefaultPDUFactory;
 import org.snmp4j.util.PDUFactory;
 
-@ProbeBean({ "community", "port", "version", "ping" })
+@ProbeBean({ "community", "port", "version", "ping", "maxVarBinds", "maxPduSize", "maxRepetitions" })
 public class SnmpConnection extends Connection<Target> {
     static final String TCP = "tcp";
     static final String UDP = "udp";
@@ -40,7 +46,14 @@ public class SnmpConnection extends Connection<Target> {
     private OID ping = sysDescr;
     // A default value for the uptime OID, from the HOST-RESSOURCES MIB
     private OID uptimeOid = hrSystemUptime;
+    private int maxVarBinds = 32;
+    private int maxPduSize = 1400;
+    private int maxRepetitions = 100;
+    private SnmpBulkSize bulkSize = null;
     private Target snmpTarget;
+    private SnmpBatch batch = null;
+    private final Set<SnmpProbe> probes = Collections.newSetFromMap(new ConcurrentHashMap<SnmpProbe, Boolean>());
+    private final Map<SnmpProbe, Future<Map<OID, Object>>> pending = new ConcurrentHashMap<SnmpProbe, Future<Map<OID, Object>>>();
 
     @Override
     public Target getConnection() {
@@ -81,6 +94,7 @@ public class SnmpConnection extends Connection<Target> {
 
             // Everything went fine, host is reachable, authentication is
             // working
+            sendRequests();
             return true;
         } catch (Exception e) {
             log(Level.ERROR, e, "Unable to reach host: %s", e);
@@ -91,9 +105,78 @@ public class SnmpConnection extends Connection<Target> {
 
     @Override
     public void stopConnection() {
+        // Requests not used by the probes are dropped
+        for(Future<Map<OID, Object>> request: pending.values()) {
+            request.cancel(true);
+        }
+        pending.clear();
+        if(batch != null) {
+            batch.cancel();
+            batch = null;
+        }
         snmpTarget = null;
     }
 
+    /**
+     * Register a probe that uses this connection. If it's requests can be
+     * done asynchronously, they will be sent as soon as the connection is
+     * started, so all the probes of a host are waiting for the agent at the
+     * same time.
+     * 
+     * @param probe the probe using this connection
+     */
+    public void addProbe(SnmpProbe probe) {
+        probes.add(probe);
+    }
+
+    /**
+     * Return the pending request sent for a probe when the connection was
+     * started, it can be used only once.
+     * 
+     * @param probe
+     * @return the pending values or null if no request was sent for this probe
+     */
+    public Future<Map<OID, Object>> getPendingRequest(SnmpProbe probe) {
+        return pending.remove(probe);
+    }
+
+    /**
+     * The GET of all the asynchronous probes are grouped in as few PDU as
+     * possible
+     */
+    private void sendRequests() {
+        batch = new SnmpBatch(this, getSnmp(), snmpTarget, maxVarBinds, maxPduSize);
+        Map<SnmpProbe, VariableBinding[]> requested = new HashMap<SnmpProbe, VariableBinding[]>(probes.size());
+        for(SnmpProbe probe: probes) {
+            if(!probe.isAsynchronous()) {
+                continue;
+            }
+            try {
+                VariableBinding[] vars = probe.getRequestVariables();
+                if(vars != null && vars.length > 0) {
+                    batch.add(vars);
+                    requested.put(probe, vars);
+                }
+            } catch (RuntimeException e) {
+                log(Level.ERROR, e, "Unable to prepare request for %s: %s", probe, e);
+            }
+        }
+        int pdus = batch.send();
+        for(Map.Entry<SnmpProbe, VariableBinding[]> e: requested.entrySet()) {
+            pending.put(e.getKey(), batch.getValues(e.getValue()));
+        }
+        log(Level.DEBUG, "requests for %d probes sent in %d PDU", requested.size(), pdus);
+    }
+
+    /**
+     * The batched requests are prepared when the connection starts, so it
+     * must be started again on each collect.
+     */
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+
     @Override
     public long setUptime() {
         Set<OID> upTimesOids = new HashSet<OID>(2);
@@ -202,6 +285,61 @@ public class SnmpConnection extends Connection<Target> {
         return pdufactory;
     }
 
+    /**
+     * @return the maximum number of variables in a grouped request
+     */
+    public Integer getMaxVarBinds() {
+        return maxVarBinds;
+    }
+
+    /**
+     * @param maxVarBinds the maximum number of variables in a grouped request
+     */
+    public void setMaxVarBinds(Integer maxVarBinds) {
+        this.maxVarBinds = maxVarBinds;
+    }
+
+    /**
+     * @return the estimated maximum size of the response to a grouped request
+     */
+    public Integer getMaxPduSize() {
+        return maxPduSize;
+    }
+
+    /**
+     * @param maxPduSize the estimated maximum size of the response to a
+     *            grouped request
+     */
+    public void setMaxPduSize(Integer maxPduSize) {
+        this.maxPduSize = maxPduSize;
+    }
+
+    /**
+     * @return the upper limit of the max-repetitions for GETBULK requests
+     */
+    public Integer getMaxRepetitions() {
+        return maxRepetitions;
+    }
+
+    /**
+     * @param maxRepetitions the upper limit of the max-repetitions for GETBULK
+     *            requests
+     */
+    public synchronized void setMaxRepetitions(Integer maxRepetitions) {
+        this.maxRepetitions = maxRepetitions;
+        bulkSize = null;
+    }
+
+    /**
+     * @return the GETBULK size tuned for this agent
+     */
+    public synchronized SnmpBulkSize getBulkSize() {
+        if(bulkSize == null) {
+            bulkSize = new SnmpBulkSize(maxRepetitions);
+        }
+        return bulkSize;
+    }
+
     @Override
     public String toString() {
         return "snmp:" + proto + "://" + getHostName() + ":" + port;
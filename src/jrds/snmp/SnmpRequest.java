@@ -0,0 +1,212 @@
+package jrds.snmp;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * An asynchronous SNMP request, sent using the shared snmp4j transport. No
+ * thread is blocked while waiting for the agent, the result is read using the
+ * {@link Future} interface.
+ * <p>
+ * Error status are managed like a synchronous request: the faulty variable is
+ * removed and the request is sent again.
+ */
+public class SnmpRequest implements ResponseListener, Future<Map<OID, Object>> {
+    static private final Logger logger = Logger.getLogger(SnmpRequest.class);
+
+    private final SnmpConnection cnx;
+    private final Snmp snmp;
+    private final Target target;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile PDU requestPDU;
+    private volatile Map<OID, Object> result = Collections.emptyMap();
+    private volatile Exception failure = null;
+    private volatile boolean cancelled = false;
+    private volatile int errorStatus = SnmpConstants.SNMP_ERROR_SUCCESS;
+
+    SnmpRequest(SnmpConnection cnx, Snmp snmp, Target target, PDU requestPDU) {
+        this.cnx = cnx;
+        this.snmp = snmp;
+        this.target = target;
+        this.requestPDU = requestPDU;
+    }
+
+    /**
+     * Build an already finished request
+     *
+     * @param values the values returned
+     */
+    private SnmpRequest(Map<OID, Object> values) {
+        this(null, null, null, null);
+        result = values;
+        done.countDown();
+    }
+
+    /**
+     * @return a request that is already finished, with no values
+     */
+    static SnmpRequest empty() {
+        return new SnmpRequest(Collections.<OID, Object> emptyMap());
+    }
+
+    /**
+     * Send the request, this method returns immediately
+     *
+     * @return this request
+     */
+    SnmpRequest send() {
+        try {
+            snmp.send(requestPDU, target, null, this);
+        } catch (IOException e) {
+            finish(null, e);
+        }
+        return this;
+    }
+
+    @Override
+    public void onResponse(ResponseEvent re) {
+        // Always cancel the request, or snmp4j will keep a reference to it
+        ((Snmp) re.getSource()).cancel(re.getRequest(), this);
+        if(isDone()) {
+            return;
+        }
+        PDU response = re.getResponse();
+        if(re.getError() != null) {
+            finish(null, re.getError());
+        } else if(response == null) {
+            finish(null, new IOException("SNMP Timeout"));
+        } else if(response.getErrorStatus() == SnmpConstants.SNMP_ERROR_SUCCESS) {
+            finish(new SnmpVars(response), null);
+        } else {
+            int index = response.getErrorIndex() - 1;
+            if(index < 0 || index >= requestPDU.size()) {
+                errorStatus = response.getErrorStatus();
+                finish(null, new IOException(response.getErrorStatusText()));
+                return;
+            }
+            VariableBinding vb = response.get(index);
+            logger.warn(response.getErrorStatusText() + " on " + vb.getOid().toString());
+            // If there is still variable to get and the connection was not
+            // stopped, we try again
+            if(requestPDU.size() > 1 && (cnx == null || cnx.getConnection() == target)) {
+                PDU nextPDU = (PDU) requestPDU.clone();
+                nextPDU.remove(index);
+                requestPDU = nextPDU;
+                send();
+            } else {
+                finish(Collections.<OID, Object> emptyMap(), null);
+            }
+        }
+    }
+
+    private void finish(Map<OID, Object> values, Exception e) {
+        if(values != null) {
+            result = values;
+        }
+        failure = e;
+        done.countDown();
+    }
+
+    /**
+     * @return the error status of the response, if the agent refused the
+     *         whole request
+     */
+    int getErrorStatus() {
+        return errorStatus;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if(isDone()) {
+            return false;
+        }
+        cancelled = true;
+        if(snmp != null) {
+            snmp.cancel(requestPDU, this);
+        }
+        done.countDown();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Map<OID, Object> get() throws InterruptedException, ExecutionException {
+        done.await();
+        return report();
+    }
+
+    @Override
+    public Map<OID, Object> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!done.await(timeout, unit)) {
+            throw new TimeoutException("SNMP Timeout");
+        }
+        return report();
+    }
+
+    private Map<OID, Object> report() throws ExecutionException {
+        if(cancelled) {
+            throw new CancellationException();
+        }
+        if(failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return result;
+    }
+
+    /**
+     * Wait for the response of a request, for at most twice the time out of
+     * the connection
+     *
+     * @param cnx the connection used to send the request
+     * @param request the pending request
+     * @return the values read, an empty map if the collect was interrupted
+     * @throws IOException if the request failed
+     */
+    public static Map<OID, Object> waitResponse(SnmpConnection cnx, Future<Map<OID, Object>> request) throws IOException {
+        try {
+            return request.get(cnx.getTimeout() * 2L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            request.cancel(true);
+            Thread.currentThread().interrupt();
+            return Collections.emptyMap();
+        } catch (CancellationException e) {
+            return Collections.emptyMap();
+        } catch (TimeoutException e) {
+            request.cancel(true);
+            throw new IOException("SNMP Timeout");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("SNMP request failed: " + cause, cause);
+        }
+    }
+
+}
@@ -5,6 +5,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import jrds.Util;
 
@@ -12,10 +15,10 @@ import org.apache.log4j.Logger;
 import org.snmp4j.PDU;
 import org.snmp4j.Snmp;
 import org.snmp4j.Target;
-import org.snmp4j.event.ResponseEvent;
 import org.snmp4j.mp.SnmpConstants;
 import org.snmp4j.smi.OID;
 import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.util.RetrievalEvent;
 import org.snmp4j.util.TableEvent;
 import org.snmp4j.util.TableUtils;
 import org.snmp4j.util.TreeEvent;
@@ -35,6 +38,16 @@ public enum SnmpRequester {
     SIMPLE() {
         @Override
         public Map<OID, Object> doSnmpGet(SnmpConnection cnx, Collection<OID> oidsSet) throws IOException {
+            return SnmpRequest.waitResponse(cnx, doSnmpGetAsync(cnx, oidsSet));
+        }
+
+        @Override
+        public Future<Map<OID, Object>> doSnmpGetAsync(SnmpConnection cnx, Collection<OID> oidsSet) {
+            return doRequest(cnx, getVariables(oidsSet));
+        }
+
+        @Override
+        public VariableBinding[] getVariables(Collection<OID> oidsSet) {
             VariableBinding[] vars = new VariableBinding[oidsSet.size()];
             int j = 0;
             for(OID i: oidsSet) {
@@ -42,7 +55,12 @@ public enum SnmpRequester {
                 currentOid.append("0");
                 vars[j++] = new VariableBinding(currentOid);
             }
-            return doRequest(cnx, vars);
+            return vars;
+        }
+
+        @Override
+        public boolean isAsynchronous() {
+            return true;
         }
     },
     /**
@@ -56,20 +74,32 @@ public enum SnmpRequester {
             Snmp snmp = cnx.getSnmp();
 
             if(cnx.isStarted() && snmpTarget != null && snmp != null) {
-                TableUtils tableRet = new TableUtils(snmp, cnx.getPdufactory());
-                tableRet.setMaxNumColumnsPerPDU(30);
+                SnmpBulkSize bulkSize = cnx.getBulkSize();
+                SnmpBulkSize.Counter counter = new SnmpBulkSize.Counter(cnx.getPdufactory());
+                TableUtils tableRet = new TableUtils(snmp, counter);
+                tableRet.setMaxNumColumnsPerPDU(MAXCOLUMNS);
+                tableRet.setMaxNumRowsPerPDU(bulkSize.getRepetitions());
                 OID[] oidTab = new OID[oids.size()];
                 oids.toArray(oidTab);
                 SnmpVars retValue = new SnmpVars();
+                int rows = 0;
+                int status = RetrievalEvent.STATUS_OK;
                 for(TableEvent te: tableRet.getTable(snmpTarget, oidTab, null, null)) {
                     if(!cnx.isStarted()) {
-                        retValue = new SnmpVars();
-                        break;
+                        return new SnmpVars();
                     }
                     if(!te.isError()) {
                         retValue.join(te.getColumns());
+                        rows++;
+                    } else {
+                        status = walkStatus(status, te);
                     }
                 }
+                if(snmpTarget.getVersion() != SnmpConstants.version1) {
+                    // The columns are requested by chunks
+                    int chunks = (oidTab.length + MAXCOLUMNS - 1) / MAXCOLUMNS;
+                    bulkSize.update(counter.getCount() / Math.max(1, chunks), rows, status);
+                }
                 return retValue;
             }
             return Collections.emptyMap();
@@ -86,11 +116,26 @@ public enum SnmpRequester {
             Snmp snmp = cnx.getSnmp();
             if(cnx.isStarted() && snmpTarget != null && snmp != null) {
                 SnmpVars retValue = new SnmpVars();
-                TreeUtils treeRet = new TreeUtils(snmp, cnx.getPdufactory());
+                SnmpBulkSize bulkSize = cnx.getBulkSize();
                 for(OID rootOid: oids) {
+                    SnmpBulkSize.Counter counter = new SnmpBulkSize.Counter(cnx.getPdufactory());
+                    TreeUtils treeRet = new TreeUtils(snmp, counter);
+                    treeRet.setMaxRepetitions(bulkSize.getRepetitions());
                     List<TreeEvent> subOids = treeRet.getSubtree(snmpTarget, rootOid);
+                    int rows = 0;
+                    int status = RetrievalEvent.STATUS_OK;
                     for(TreeEvent te: subOids) {
-                        retValue.join(te.getVariableBindings());
+                        if(te.isError()) {
+                            status = walkStatus(status, te);
+                        }
+                        VariableBinding[] vars = te.getVariableBindings();
+                        if(vars != null) {
+                            retValue.join(vars);
+                            rows += vars.length;
+                        }
+                    }
+                    if(snmpTarget.getVersion() != SnmpConstants.version1) {
+                        bulkSize.update(counter.getCount(), rows, status);
                     }
                 }
                 return retValue;
@@ -105,16 +150,32 @@ public enum SnmpRequester {
     RAW() {
         @Override
         public Map<OID, Object> doSnmpGet(SnmpConnection cnx, Collection<OID> oidsSet) throws IOException {
+            return SnmpRequest.waitResponse(cnx, doSnmpGetAsync(cnx, oidsSet));
+        }
+
+        @Override
+        public Future<Map<OID, Object>> doSnmpGetAsync(SnmpConnection cnx, Collection<OID> oidsSet) {
+            return doRequest(cnx, getVariables(oidsSet));
+        }
+
+        @Override
+        public VariableBinding[] getVariables(Collection<OID> oidsSet) {
             VariableBinding[] vars = new VariableBinding[oidsSet.size()];
             int j = 0;
             for(OID currentOid: oidsSet) {
                 vars[j++] = new VariableBinding(currentOid);
             }
-            return doRequest(cnx, vars);
+            return vars;
+        }
+
+        @Override
+        public boolean isAsynchronous() {
+            return true;
         }
     };
 
     static private final Logger logger = Logger.getLogger(SnmpRequester.class);
+    static private final int MAXCOLUMNS = 30;
 
     /**
      * The method that need to be implemented to do the request
@@ -126,51 +187,77 @@ public enum SnmpRequester {
      */
     public abstract Map<OID, Object> doSnmpGet(SnmpConnection cnx, Collection<OID> oidsSet) throws IOException;
 
-    private static Map<OID, Object> doRequest(SnmpConnection cnx, VariableBinding[] vars) throws IOException {
+    /**
+     * Send the request without waiting for the answer. The default
+     * implementation is synchronous: the request is done before returning.
+     * 
+     * @param cnx The connection used for the request
+     * @param oidsSet a <code>collection</code> of OID to be requested
+     * @return the pending values
+     */
+    public Future<Map<OID, Object>> doSnmpGetAsync(final SnmpConnection cnx, final Collection<OID> oidsSet) {
+        FutureTask<Map<OID, Object>> request = new FutureTask<Map<OID, Object>>(new Callable<Map<OID, Object>>() {
+            @Override
+            public Map<OID, Object> call() throws IOException {
+                return doSnmpGet(cnx, oidsSet);
+            }
+        });
+        request.run();
+        return request;
+    }
+
+    /**
+     * @return true if {@link #doSnmpGetAsync(SnmpConnection, Collection)}
+     *         returns without waiting for the agent
+     */
+    public boolean isAsynchronous() {
+        return false;
+    }
+
+    /**
+     * The variables a single GET request would read, used to group the
+     * requests of many probes. Requesters that walk the agent can't do that
+     * and return null.
+     * 
+     * @param oidsSet a <code>collection</code> of OID to be requested
+     * @return the variables to get, or null
+     */
+    public VariableBinding[] getVariables(Collection<OID> oidsSet) {
+        return null;
+    }
+
+    /**
+     * Keep the error of a walk, a tooBig from the agent is kept over the
+     * other errors as it's the one that sets the request size
+     */
+    private static int walkStatus(int status, RetrievalEvent event) {
+        if(status == SnmpConstants.SNMP_ERROR_TOO_BIG) {
+            return status;
+        }
+        return event.getStatus();
+    }
+
+    private static Future<Map<OID, Object>> doRequest(SnmpConnection cnx, VariableBinding[] vars) {
         Snmp snmp = cnx.getSnmp();
         if(snmp == null) {
             logger.warn(Util.delayedFormatString("invalid snmp connection state for %s", cnx));
-            return Collections.emptyMap();
+            return SnmpRequest.empty();
         }
 
-        Map<OID, Object> snmpVars = Collections.emptyMap();
-
+        // The connection is not flagged as started yet when it sends the
+        // requests of it's probes, so the target is checked instead
         Target snmpTarget = cnx.getConnection();
+        if(snmpTarget == null)
+            return SnmpRequest.empty();
 
         PDU requestPDU = cnx.getPdufactory().createPDU(snmpTarget);
         requestPDU.addAll(vars);
 
         // If no oid to collect, nothing to do
         if(requestPDU.size() < 1)
-            return Collections.emptyMap();
-
-        boolean doAgain = true;
+            return SnmpRequest.empty();
 
-        while (doAgain && cnx.isStarted()) {
-            ResponseEvent re = snmp.send(requestPDU, snmpTarget);
-            if(re == null) {
-                throw new IOException("SNMP Timeout");
-            }
-            PDU response = re.getResponse();
-            if(response != null && response.getErrorStatus() == SnmpConstants.SNMP_ERROR_SUCCESS) {
-                snmpVars = new SnmpVars(response);
-                doAgain = false;
-            } else if(response == null) {
-                throw new IOException("SNMP Timeout");
-            } else {
-                int index = response.getErrorIndex() - 1;
-                VariableBinding vb = response.get(index);
-                logger.warn(response.getErrorStatusText() + " on " + vb.getOid().toString());
-                /* If there is still variable to get, we try again */
-                if(requestPDU.size() > 1) {
-                    requestPDU = response;
-                    response = null;
-                    requestPDU.remove(index);
-                } else
-                    doAgain = false;
-            }
-        }
-        return snmpVars;
+        return new SnmpRequest(cnx, snmp, snmpTarget, requestPDU).send();
     }
 
 }
@@ -11,6 +11,7 @@ import jrds.HostInfo;
 import jrds.HostsList;
 import jrds.Probe;
 import jrds.PropertiesManager;
+import jrds.store.RrdDbStoreFactory;
 import jrds.store.StoreFactory;
 
 import org.apache.log4j.Logger;
@@ -53,6 +54,15 @@ public class Updater {
             logger.info("Collect interrupted");
             Thread.currentThread().interrupt();
         }
+        // The upgrades are done in background
+        if(pm.defaultStore instanceof RrdDbStoreFactory) {
+            try {
+                ((RrdDbStoreFactory) pm.defaultStore).waitUpgrades();
+            } catch (InterruptedException e) {
+                logger.info("Upgrade interrupted");
+                Thread.currentThread().interrupt();
+            }
+        }
         for(StoreFactory sf: pm.stores.values()) {
             sf.stop();
         }
@@ -6,11 +6,24 @@ import java.net.Socket;
 import org.apache.log4j.Level;
 
 import jrds.Probe;
-
+import jrds.factories.ProbeBean;
+
+/**
+ * A connection to a remote end point. It's opened and closed on each collect,
+ * unless the bean persistent is set. Then it's kept open and checked with
+ * {@link #checkConnection()}, no more than once every livenessInterval
+ * seconds.
+ */
+@ProbeBean({ "persistent", "livenessInterval" })
 public abstract class Connection<ConnectedType> extends Starter {
 
     private String name;
     private long uptime;
+    // When the uptime was read, in ms
+    private long uptimeTime;
+    private boolean persistent = false;
+    private int livenessInterval = 60;
+    private long lastCheck = 0;
 
     public abstract ConnectedType getConnection();
 
@@ -93,11 +106,44 @@ public abstract class Connection<ConnectedType> extends Starter {
         boolean started = startConnection();
         if(started) {
             uptime = setUptime();
+            uptimeTime = System.currentTimeMillis();
+            lastCheck = uptimeTime;
             log(Level.DEBUG, "Uptime for %s = %ds", this, uptime);
         }
         return started;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see jrds.starter.Starter#isAlive()
+     */
+    @Override
+    public boolean isAlive() {
+        long now = System.currentTimeMillis();
+        if(now - lastCheck < livenessInterval * 1000L) {
+            return true;
+        }
+        lastCheck = now;
+        try {
+            return checkConnection();
+        } catch (RuntimeException e) {
+            log(Level.DEBUG, e, "Liveness check failed: %s", e);
+            return false;
+        }
+    }
+
+    /**
+     * A cheap check that a connection kept open is still usable. The default
+     * implementation always fails, so a connection that can't be checked is
+     * reopened on each collect.
+     * 
+     * @return true if the connection can still be used
+     */
+    public boolean checkConnection() {
+        return false;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -121,10 +167,52 @@ public abstract class Connection<ConnectedType> extends Starter {
     public abstract long setUptime();
 
     /**
+     * The uptime is read only when the connection is established, the time
+     * elapsed since is added.
+     * 
      * @return the uptime
      */
     public long getUptime() {
-        return uptime;
+        if(uptimeTime == 0) {
+            return uptime;
+        }
+        long elapsed = (System.currentTimeMillis() - uptimeTime) / 1000;
+        if(uptime > Long.MAX_VALUE - elapsed) {
+            return Long.MAX_VALUE;
+        }
+        return uptime + elapsed;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see jrds.starter.Starter#isPersistent()
+     */
+    @Override
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * @param persistent true if the connection is kept open between collects
+     */
+    public void setPersistent(boolean persistent) {
+        this.persistent = persistent;
+    }
+
+    /**
+     * @return the minimum delay between two liveness checks, in seconds
+     */
+    public int getLivenessInterval() {
+        return livenessInterval;
+    }
+
+    /**
+     * @param livenessInterval the minimum delay between two liveness checks,
+     *            in seconds
+     */
+    public void setLivenessInterval(int livenessInterval) {
+        this.livenessInterval = livenessInterval;
     }
 
     /*
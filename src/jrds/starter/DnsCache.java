@@ -0,0 +1,181 @@
+package jrds.starter;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jrds.PropertiesManager;
+import jrds.Util;
+
+import org.apache.log4j.Level;
+
+/**
+ * A shared cache of the DNS lookups, so the collects don't wait for the DNS.
+ * <p>
+ * The lookups are done by a bounded pool of threads. A found address is kept
+ * for dnsttl seconds, and refreshed in background before it expires. While
+ * it's refreshed, the old address is still used, and it's kept if the refresh
+ * fails. A name that was never resolved is looked up again after
+ * dnsnegativettl seconds. The pool size is set with dnsthreads.
+ */
+public class DnsCache extends Starter {
+
+    private final class Entry implements Runnable {
+        final String hostname;
+        volatile InetAddress address = null;
+        volatile boolean resolved = false;
+        volatile long refreshTime = 0;
+        private Future<?> pending = null;
+
+        Entry(String hostname) {
+            this.hostname = hostname;
+        }
+
+        public void run() {
+            try {
+                address = lookup(hostname);
+                refreshTime = System.currentTimeMillis() + ttl * 1000L * 4 / 5;
+                log(Level.TRACE, "%s resolved to %s", hostname, address);
+            } catch (UnknownHostException e) {
+                if(address != null) {
+                    // The DNS might be down, the stale address is still
+                    // used and the refresh is tried again sooner
+                    refreshTime = System.currentTimeMillis() + ttl * 1000L / 5;
+                    log(Level.WARN, "DNS host name %s can't be refreshed, keeping %s", hostname, address);
+                } else {
+                    refreshTime = System.currentTimeMillis() + negativeTtl * 1000L;
+                    log(Level.ERROR, "DNS host name %s can't be found", hostname);
+                }
+            } finally {
+                resolved = true;
+            }
+        }
+
+        synchronized Future<?> refresh() {
+            if(pending == null || pending.isDone()) {
+                FutureTask<Object> task = new FutureTask<Object>(this, null);
+                ThreadPoolExecutor executor = getExecutor();
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // The cache is stopping, resolve immediately
+                    task.run();
+                }
+                pending = task;
+            }
+            return pending;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private int ttl = 300;
+    private int negativeTtl = 60;
+    private int threads = 4;
+    private ThreadPoolExecutor executor = null;
+
+    @Override
+    public void configure(PropertiesManager pm) {
+        super.configure(pm);
+        ttl = Util.parseStringNumber(pm.getProperty("dnsttl"), ttl);
+        negativeTtl = Util.parseStringNumber(pm.getProperty("dnsnegativettl"), negativeTtl);
+        threads = Math.max(1, Util.parseStringNumber(pm.getProperty("dnsthreads"), threads));
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            if(executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if(executor == null) {
+            final AtomicInteger counter = new AtomicInteger(0);
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DnsResolver" + counter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Resolve a host name, it's called by the pool's threads
+     *
+     * @param hostname
+     * @return the address found
+     * @throws UnknownHostException
+     */
+    InetAddress lookup(String hostname) throws UnknownHostException {
+        return InetAddress.getByName(hostname);
+    }
+
+    private Entry getEntry(String hostname) {
+        Entry e = entries.get(hostname);
+        if(e == null) {
+            Entry newEntry = new Entry(hostname);
+            e = entries.putIfAbsent(hostname, newEntry);
+            if(e == null) {
+                e = newEntry;
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Start the resolution of a host name, if it's not already known
+     *
+     * @param hostname
+     */
+    public void prefetch(String hostname) {
+        Entry e = getEntry(hostname);
+        if(!e.resolved) {
+            e.refresh();
+        }
+    }
+
+    /**
+     * Get the address of a host. It only waits if the host was never resolved
+     * before, otherwise the cached address is returned, and refreshed in
+     * background if it's too old.
+     *
+     * @param hostname
+     * @param wait how long to wait for a new host, in ms
+     * @return the address, or null if it's unknown
+     */
+    public InetAddress getAddress(String hostname, long wait) {
+        Entry e = getEntry(hostname);
+        if(!e.resolved) {
+            Future<?> lookup = e.refresh();
+            try {
+                lookup.get(wait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException ex) {
+                log(Level.DEBUG, "Lookup of %s not finished: %s", hostname, ex);
+            }
+        } else if(System.currentTimeMillis() >= e.refreshTime) {
+            e.refresh();
+        }
+        return e.address;
+    }
+
+}
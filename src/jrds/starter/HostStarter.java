@@ -1,11 +1,22 @@
 package jrds.starter;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Level;
 
+import jrds.ConnectedProbe;
 import jrds.HostInfo;
 import jrds.Probe;
 
@@ -36,8 +47,20 @@ public class HostStarter extends StarterNode {
         Timer timer = (Timer) getParent();
         long start = System.currentTimeMillis();
         startCollect();
+        if(timer.getProbeThreads() > 0) {
+            collectParallel(timer, start);
+        } else {
+            collectSequential(timer, start, allProbes);
+        }
+        stopCollect();
+        long end = System.currentTimeMillis();
+        float elapsed = (end - start) / 1000f;
+        log(Level.DEBUG, "Collect time for %s: %fs", host.getName(), elapsed);
+    }
+
+    private void collectSequential(Timer timer, long start, Iterable<Probe<?, ?>> probes) {
         String oldThreadName = Thread.currentThread().getName();
-        for(Probe<?, ?> probe: allProbes) {
+        for(Probe<?, ?> probe: probes) {
             if(!isCollectRunning())
                 break;
             long duration = (System.currentTimeMillis() - start) / 1000;
@@ -51,10 +74,96 @@ public class HostStarter extends StarterNode {
             probe.collect();
             setRunningname(oldThreadName + ":finished");
         }
-        stopCollect();
-        long end = System.currentTimeMillis();
-        float elapsed = (end - start) / 1000f;
-        log(Level.DEBUG, "Collect time for %s: %fs", host.getName(), elapsed);
+    }
+
+    /**
+     * The probes are grouped by the connection they use. Each group is
+     * collected in parallel, a group is split in at most
+     * {@link Timer#getConnectionParallelism()} sequential lanes.
+     * 
+     * @param timer
+     * @param start
+     */
+    private void collectParallel(final Timer timer, final long start) {
+        List<List<Probe<?, ?>>> lanes = new ArrayList<List<Probe<?, ?>>>();
+        for(List<Probe<?, ?>> group: groupByConnection()) {
+            int width = Math.min(timer.getConnectionParallelism(), group.size());
+            List<List<Probe<?, ?>>> groupLanes = new ArrayList<List<Probe<?, ?>>>(width);
+            for(int i = 0; i < width; i++) {
+                groupLanes.add(new ArrayList<Probe<?, ?>>());
+            }
+            int i = 0;
+            for(Probe<?, ?> p: group) {
+                groupLanes.get(i++ % width).add(p);
+            }
+            lanes.addAll(groupLanes);
+        }
+        log(Level.DEBUG, "%d probes collected in %d lanes", allProbes.size(), lanes.size());
+
+        final String threadName = getRunningname();
+        List<Future<?>> running = new ArrayList<Future<?>>(lanes.size());
+        try {
+            for(final List<Probe<?, ?>> lane: lanes) {
+                running.add(timer.getProbeExecutor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The pool threads are shared, their name is restored
+                        Thread current = Thread.currentThread();
+                        String poolName = current.getName();
+                        current.setName(threadName + "/" + lane.get(0).getName());
+                        try {
+                            collectSequential(timer, start, lane);
+                        } finally {
+                            current.setName(poolName);
+                        }
+                    }
+                }));
+            }
+        } catch (RejectedExecutionException e) {
+            log(Level.ERROR, "Probes collect refused: %s", e.getMessage());
+        }
+        // Same limit than the sequential collect
+        long deadline = start + getStep() * 1000L / 2;
+        for(Future<?> f: running) {
+            try {
+                f.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                log(Level.ERROR, "Collect too slow for timer %s", timer);
+                f.cancel(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                f.cancel(true);
+            } catch (CancellationException e) {
+            } catch (ExecutionException e) {
+                log(Level.ERROR, e.getCause(), "Collect failed: %s", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Probes sharing the same connection are put in the same group, probes
+     * without connection are alone in their group.
+     * 
+     * @return the probes groups
+     */
+    List<List<Probe<?, ?>>> groupByConnection() {
+        Map<Object, List<Probe<?, ?>>> groups = new LinkedHashMap<Object, List<Probe<?, ?>>>();
+        for(Probe<?, ?> p: allProbes) {
+            Object key = p;
+            if(p instanceof ConnectedProbe) {
+                Connection<?> cnx = p.find(Connection.class, ((ConnectedProbe) p).getConnectionName());
+                if(cnx != null) {
+                    key = cnx;
+                }
+            }
+            List<Probe<?, ?>> group = groups.get(key);
+            if(group == null) {
+                group = new ArrayList<Probe<?, ?>>();
+                groups.put(key, group);
+            }
+            group.add(p);
+        }
+        return new ArrayList<List<Probe<?, ?>>>(groups.values());
     }
 
     public String toString() {
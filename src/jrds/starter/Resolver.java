@@ -5,6 +5,7 @@ import java.net.UnknownHostException;
 
 import jrds.HostInfo;
 import jrds.Probe;
+import jrds.PropertiesManager;
 
 import org.apache.log4j.Level;
 
@@ -17,8 +18,25 @@ public class Resolver extends Starter {
         log(Level.DEBUG, "New dns resolver");
     }
 
+    @Override
+    public void configure(PropertiesManager pm) {
+        super.configure(pm);
+        DnsCache cache = getLevel().find(DnsCache.class);
+        if(cache != null) {
+            cache.prefetch(hostname);
+        }
+    }
+
     @Override
     public boolean start() {
+        DnsCache cache = getLevel().find(DnsCache.class);
+        if(cache != null) {
+            address = cache.getAddress(hostname, getLevel().getTimeout() * 1000L);
+            if(address == null) {
+                log(Level.ERROR, "DNS host name %s can't be found", hostname);
+            }
+            return address != null;
+        }
         boolean started = false;
         try {
             address = InetAddress.getByName(hostname);
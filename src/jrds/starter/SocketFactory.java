@@ -1,11 +1,13 @@
 package jrds.starter;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.UnknownHostException;
 
 public class SocketFactory extends Starter {
 
@@ -36,8 +38,18 @@ public class SocketFactory extends Starter {
         if(!isStarted())
             return null;
 
+        InetSocketAddress addr;
+        DnsCache cache = getLevel().find(DnsCache.class);
+        if(cache != null) {
+            InetAddress hostAddr = cache.getAddress(host, getTimeout() * 1000L);
+            if(hostAddr == null)
+                throw new UnknownHostException(host);
+            addr = new InetSocketAddress(hostAddr, port);
+        } else {
+            addr = new InetSocketAddress(host, port);
+        }
         Socket s = getSocket();
-        s.connect(new InetSocketAddress(host, port), getTimeout());
+        s.connect(addr, getTimeout());
 
         return s;
     }
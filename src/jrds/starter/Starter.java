@@ -11,8 +11,14 @@ public abstract class Starter {
     private StarterNode level;
     private final Logger namedLogger;
 
+    // The number of collects skipped after a failed start of a persistent
+    // starter is doubled on each failure, up to 2^MAXBACKOFF - 1
+    private static final int MAXBACKOFF = 3;
+
     private long uptime = Long.MAX_VALUE;
     volatile private boolean started = false;
+    private int failures = 0;
+    private int skippedStarts = 0;
 
     public Starter() {
         String[] classElements = getClass().getName().split("\\.");
@@ -44,6 +50,19 @@ public abstract class Starter {
     }
 
     public final void doStart() {
+        if(started && isPersistent()) {
+            if(isAlive()) {
+                log(Level.TRACE, "Still alive");
+                return;
+            }
+            log(Level.INFO, "Not alive any more, restarting");
+            doRelease();
+        }
+        if(skippedStarts > 0) {
+            skippedStarts--;
+            log(Level.DEBUG, "Start delayed after %d failures", failures);
+            return;
+        }
         log(Level.TRACE, "Starting");
         try {
             long begin = new Date().getTime();
@@ -57,10 +76,31 @@ public abstract class Starter {
         }
         if(!started) {
             log(Level.ERROR, "starting failed");
+            if(isPersistent()) {
+                failures++;
+                skippedStarts = (1 << Math.min(failures - 1, MAXBACKOFF)) - 1;
+            }
+        } else {
+            failures = 0;
         }
     }
 
+    /**
+     * Called at the end of each collect, a persistent starter is kept
+     * started.
+     */
     public final void doStop() {
+        if(started && isPersistent()) {
+            log(Level.TRACE, "Kept started");
+            return;
+        }
+        doRelease();
+    }
+
+    /**
+     * Stop the starter, even if it's persistent.
+     */
+    public final void doRelease() {
         log(Level.DEBUG, "Stopping");
         if(started) {
             try {
@@ -72,6 +112,26 @@ public abstract class Starter {
         }
     }
 
+    /**
+     * A persistent starter is not stopped after each collect, it's checked
+     * with {@link #isAlive()} instead of being started again.
+     * 
+     * @return true if the starter is kept started between collects
+     */
+    public boolean isPersistent() {
+        return false;
+    }
+
+    /**
+     * Check that a persistent starter is still usable, if not it will be
+     * restarted.
+     * 
+     * @return true if the starter can still be used
+     */
+    public boolean isAlive() {
+        return true;
+    }
+
     public boolean start() {
         return true;
     }
@@ -85,6 +85,21 @@ public abstract class StarterNode implements StartersSet {
             }
     }
 
+    /**
+     * Stop all the starters, including the persistent ones. It's used when
+     * the node will not be collected any more.
+     */
+    public synchronized void releaseStarters() {
+        if(allStarters != null)
+            for(Starter s: allStarters.values()) {
+                try {
+                    s.doRelease();
+                } catch (Exception e) {
+                    log(Level.ERROR, e, "Unable to release %s: %s", s.getKey(), e);
+                }
+            }
+    }
+
     /**
      * @param s the starter to register
      * @return the starter that will be used
@@ -2,27 +2,26 @@ package jrds.starter;
 
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Queue;
-import java.util.Set;
 import java.util.TimerTask;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import jrds.HostInfo;
+import jrds.Probe;
 import jrds.PropertiesManager;
 
 import org.apache.log4j.Level;
@@ -85,8 +84,12 @@ public class Timer extends StarterNode {
     private final Stats stats = new Stats();
     private final int numCollectors;
     private final String name;
-    private final Queue<Future<Object>> running = new ConcurrentLinkedQueue<>();
-    private ThreadPoolExecutor tpool;
+    private final int collectSpread;
+    private final int probeThreads;
+    private final int connectionParallelism;
+    private final Map<CollectCallable, Future<Object>> running = new ConcurrentHashMap<>();
+    private ScheduledThreadPoolExecutor tpool;
+    private ThreadPoolExecutor probePool;
 
     public Timer(String name, PropertiesManager.TimerInfo ti) {
         super();
@@ -95,6 +98,15 @@ public class Timer extends StarterNode {
         setStep(ti.step);
         setSlowCollectTime(ti.slowCollectTime);
         this.numCollectors = ti.numCollectors;
+        // A negative spread means automatic: collects are started during the
+        // first half of the time allowed to a collect
+        if(ti.collectSpread < 0) {
+            this.collectSpread = Math.max(0, (ti.step - ti.timeout * 2) / 2);
+        } else {
+            this.collectSpread = ti.collectSpread;
+        }
+        this.probeThreads = ti.probeThreads;
+        this.connectionParallelism = Math.max(1, ti.connectionParallelism);
     }
 
     public HostStarter getHost(HostInfo info) {
@@ -110,6 +122,22 @@ public class Timer extends StarterNode {
         return starter;
     }
 
+    /**
+     * Take a host from a previous configuration, with its probes and
+     * starters, the probes are attached to this timer
+     *
+     * @param starter the host to adopt
+     */
+    public void adoptHost(HostStarter starter) {
+        hostList.put(starter.getName(), starter);
+        starter.setTimeout(getTimeout());
+        starter.setStep(getStep());
+        starter.setParent(this);
+        for(Probe<?, ?> p: starter.getAllProbes()) {
+            p.setHost(starter);
+        }
+    }
+
     public Iterable<HostStarter> getAllHosts() {
         return hostList.values();
     }
@@ -138,13 +166,7 @@ public class Timer extends StarterNode {
     }
 
     public void collectAll() {
-        // Build the list of host that will be collected
-        Set<Callable<Object>> toSchedule = new HashSet<Callable<Object>>();
-        for(final HostStarter host: hostList.values()) {
-            Callable<Object> runCollect = new CollectCallable(host);
-            toSchedule.add(runCollect);
-        }
-        if(toSchedule.size() == 0) {
+        if(hostList.size() == 0) {
             log(Level.INFO, "skipping timer, empty");
             return;
         }
@@ -160,41 +182,20 @@ public class Timer extends StarterNode {
             Thread.currentThread().interrupt();
             return;
         }
-        final AtomicInteger counter = new AtomicInteger(0);
-        // Generate threads with a default name
-        ThreadFactory tf = new ThreadFactory() {
-            public Thread newThread(Runnable r) {
-                Thread t = new Thread(r);
-                t.setName(Timer.this.name + "/CollectorThread" + counter.getAndIncrement());
-                t.setDaemon(true);
-                return t;
-            }
-        };
-        synchronized (running) {
-            // Generate a ThreadPoolExecutor where Runnable.toString return
-            // Callable.toString
-            tpool = new ThreadPoolExecutor(numCollectors, numCollectors, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(toSchedule.size()), tf) {
-
-                @Override
-                protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable) {
-                    return new FutureTask<T>(callable) {
-                        @Override
-                        public String toString() {
-                            return callable.toString();
-                        }
-                    };
-                }
-            };
-        }
         running.clear();
         startCollect();
         try {
+            long deadline = start.getTime() + (getStep() - getTimeout() * 2) * 1000L;
             try {
                 if(isCollectRunning()) {
-                    List<Future<Object>> scheduled = tpool.invokeAll(toSchedule, getStep() - getTimeout() * 2, TimeUnit.SECONDS);
-                    running.addAll(scheduled);
-                    tpool.shutdown();
-                    tpool.awaitTermination(getStep() - getTimeout() * 2, TimeUnit.SECONDS);
+                    // Each host is delayed by a fixed offset inside the spread
+                    // window, so collects don't all hit the network at once
+                    ScheduledThreadPoolExecutor executor = getExecutor();
+                    for(HostStarter host: hostList.values()) {
+                        CollectCallable runCollect = new CollectCallable(host);
+                        running.put(runCollect, executor.schedule(runCollect, getCollectOffset(host), TimeUnit.MILLISECONDS));
+                    }
+                    waitCollects(deadline);
                 }
             } catch (RejectedExecutionException ex) {
                 log(Level.DEBUG, "collector thread refused");
@@ -203,29 +204,22 @@ public class Timer extends StarterNode {
                 Thread.currentThread().interrupt();
             }
             stopCollect();
-            if(!tpool.isTerminated()) {
+            if(!running.isEmpty()) {
                 // Second chance, we wait for the time out
-                boolean emergencystop = false;
                 try {
-                    emergencystop = !tpool.awaitTermination(getTimeout(), TimeUnit.SECONDS);
+                    waitCollects(System.currentTimeMillis() + getTimeout() * 1000L);
                 } catch (InterruptedException e) {
                     log(Level.INFO, "Collect interrupted in last chance");
                     Thread.currentThread().interrupt();
                 }
-                if(emergencystop) {
+                if(!running.isEmpty()) {
                     log(Level.INFO, "Some task still alive, needs to be killed");
-                    // Last chance to commit results
-                    tpool.shutdownNow();
                     dumpCollectHanged();
                 }
             }
         } catch (RuntimeException e) {
             log(Level.ERROR, e, "problem while collecting data: %s", e);
         } finally {
-            synchronized (running) {
-                tpool.shutdown();
-                tpool = null;
-            }
             collectMutex.release();
         }
         Date end = new Date();
@@ -234,10 +228,94 @@ public class Timer extends StarterNode {
             stats.lastCollect = start;
             stats.runtime = duration;
         }
-        System.gc();
         log(Level.INFO, "Collect started at " + start + " ran for " + duration + "ms");
     }
 
+    /**
+     * Wait for the scheduled collects, until the dead line is reached. The
+     * finished collects are removed from the running list.
+     * 
+     * @param deadline the time limit, in ms since the epoch
+     * @throws InterruptedException
+     */
+    private void waitCollects(long deadline) throws InterruptedException {
+        Iterator<Map.Entry<CollectCallable, Future<Object>>> i = running.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<CollectCallable, Future<Object>> e = i.next();
+            long wait = deadline - System.currentTimeMillis();
+            try {
+                if(wait > 0) {
+                    e.getValue().get(wait, TimeUnit.MILLISECONDS);
+                } else if(!e.getValue().isDone()) {
+                    return;
+                }
+            } catch (TimeoutException ex) {
+                return;
+            } catch (CancellationException ex) {
+            } catch (ExecutionException ex) {
+                log(Level.ERROR, ex.getCause(), "Collect failed for %s: %s", e.getKey(), ex.getCause());
+            }
+            i.remove();
+        }
+    }
+
+    /**
+     * The delay given to a host before it's collect is started, it's
+     * derived from the host name, so it's stable from one step to another.
+     * 
+     * @param host
+     * @return the delay in ms
+     */
+    long getCollectOffset(HostStarter host) {
+        if(collectSpread <= 0) {
+            return 0;
+        }
+        // Scramble the hash, so hosts with similar name are well spread
+        int hash = host.getName().hashCode() * 0x9E3779B9;
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffffL) % (collectSpread * 1000L);
+    }
+
+    /**
+     * The collector threads are kept from one collect to another.
+     * 
+     * @return the executor running the collects
+     */
+    private synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if(tpool == null || tpool.isShutdown()) {
+            tpool = new ScheduledThreadPoolExecutor(numCollectors, getThreadFactory("CollectorThread"));
+            tpool.setRemoveOnCancelPolicy(true);
+        }
+        return tpool;
+    }
+
+    /**
+     * The executor used by hosts that collect their probes in parallel. It's a
+     * different pool from the hosts one, so a host waiting for it's probes
+     * can't starve them.
+     * 
+     * @return the executor running the probes collect
+     */
+    synchronized ThreadPoolExecutor getProbeExecutor() {
+        if(probePool == null || probePool.isShutdown()) {
+            probePool = new ThreadPoolExecutor(probeThreads, probeThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), getThreadFactory("ProbeThread"));
+        }
+        return probePool;
+    }
+
+    private ThreadFactory getThreadFactory(final String prefix) {
+        final AtomicInteger counter = new AtomicInteger(0);
+        // Generate threads with a default name
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName(Timer.this.name + "/" + prefix + counter.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
     public void lockCollect() throws InterruptedException {
         collectMutex.acquire();
     }
@@ -270,31 +348,56 @@ public class Timer extends StarterNode {
         return stats;
     }
 
+    /**
+     * @return the delay window, in seconds, used to spread the hosts collect
+     */
+    public int getCollectSpread() {
+        return collectSpread;
+    }
+
+    /**
+     * @return the number of threads shared by the hosts to collect their
+     *         probes in parallel, 0 if probes are collected sequentially
+     */
+    public int getProbeThreads() {
+        return probeThreads;
+    }
+
+    /**
+     * @return how many probes sharing a connection can be collected at the
+     *         same time
+     */
+    public int getConnectionParallelism() {
+        return connectionParallelism;
+    }
+
+    /**
+     * Stop the timer, the collector threads are released
+     */
     public void interrupt() {
         log(Level.DEBUG, "timer interrupted");
-        synchronized (running) {
+        synchronized (this) {
             if(tpool != null) {
                 tpool.shutdownNow();
+                tpool = null;
+            }
+            if(probePool != null) {
+                probePool.shutdownNow();
+                probePool = null;
             }
         }
         dumpCollectHanged();
     }
 
     private void dumpCollectHanged() {
-        while (!running.isEmpty()) {
-            try {
-                Future<Object> waiting = running.iterator().next();
-                if(waiting.isDone() || waiting.isCancelled()) {
-                    running.remove(waiting);
-                } else {
-                    waiting.cancel(true);
-                    log(Level.INFO, "%s blocked", waiting.toString());
-                    Thread.sleep(10);
-                }
-            } catch (NoSuchElementException | InterruptedException e) {
+        for(Map.Entry<CollectCallable, Future<Object>> e: running.entrySet()) {
+            Future<Object> waiting = e.getValue();
+            if(!waiting.isDone()) {
+                waiting.cancel(true);
+                log(Level.INFO, "%s blocked", e.getKey());
             }
         }
-
+        running.clear();
     }
 
 }
@@ -1,5 +1,6 @@
 package jrds.store;
 
+import java.io.IOException;
 import java.util.Date;
 import java.util.Map;
 
@@ -20,6 +21,18 @@ public abstract class AbstractStore<StoreObject> implements Store {
     @Override
     public abstract void commit(JrdsSample sample);
 
+    /**
+     * Write a sample now, and report the failure. The default implementation
+     * can't detect a failure, it just commits the sample.
+     * 
+     * @param sample
+     * @throws IOException if the sample was not written
+     */
+    @Override
+    public void write(JrdsSample sample) throws IOException {
+        commit(sample);
+    }
+
     @Override
     public abstract Map<String, Number> getLastValues();
 
@@ -0,0 +1,67 @@
+package jrds.store;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+
+import jrds.JrdsSample;
+import jrds.Probe;
+
+import org.apache.log4j.Level;
+import org.rrd4j.core.FetchData;
+import org.rrd4j.core.RrdDb;
+
+/**
+ * A rrd store that don't write directly the samples, they are given to the
+ * factory that will write them later. Before reading the rrd, the samples
+ * waiting are written.
+ */
+public class BufferedRrdDbStore extends RrdDbStore {
+    private final BufferedRrdDbStoreFactory factory;
+
+    public BufferedRrdDbStore(Probe<?, ?> p, BufferedRrdDbStoreFactory factory) {
+        super(p, factory);
+        this.factory = factory;
+    }
+
+    @Override
+    public void commit(JrdsSample sample) {
+        if(!factory.enqueue(this, sample)) {
+            log(Level.WARN, "Write queue full, sample dropped");
+        }
+    }
+
+    /**
+     * The samples waiting are written first, so the order is kept
+     */
+    @Override
+    public void write(JrdsSample sample) throws IOException {
+        factory.flush(this);
+        super.write(sample);
+    }
+
+    @Override
+    public Date getLastUpdate() {
+        factory.flush(this);
+        return super.getLastUpdate();
+    }
+
+    @Override
+    public Map<String, Number> getLastValues() {
+        factory.flush(this);
+        return super.getLastValues();
+    }
+
+    @Override
+    public AbstractExtractor<FetchData> getExtractor() {
+        factory.flush(this);
+        return super.getExtractor();
+    }
+
+    @Override
+    public RrdDb getStoreObject() {
+        factory.flush(this);
+        return super.getStoreObject();
+    }
+
+}
@@ -0,0 +1,369 @@
+package jrds.store;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import jrds.JrdsSample;
+import jrds.Probe;
+import jrds.PropertiesManager;
+import jrds.Util;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A rrd store factory that writes the samples in the background. The collect
+ * just put the samples in a bounded queue, a few writer threads flush them
+ * regularly: all the samples waiting for a file are written at once, and the
+ * files are written in the order of their path.
+ * <p>
+ * It's configured with the following properties:
+ * <ul>
+ * <li>queueSize: the maximum number of samples waiting, default to 100000,
+ * newer samples are dropped when it's full;</li>
+ * <li>flushDelay: the delay between two flushes, in ms, default to 1000;</li>
+ * <li>writers: the number of writer threads, default to 2.</li>
+ * </ul>
+ * The queue is monitored through the mbean jrds:type=BufferedStore.
+ */
+public class BufferedRrdDbStoreFactory extends RrdDbStoreFactory implements BufferedStoreMBean {
+    static private final Logger logger = Logger.getLogger(BufferedRrdDbStoreFactory.class);
+    static private final String MBEANNAME = "jrds:type=BufferedStore";
+    static private BufferedRrdDbStoreFactory registered = null;
+
+    /**
+     * The samples waiting for a rrd file
+     */
+    private final class Journal {
+        final BufferedRrdDbStore store;
+        final ReentrantLock writing = new ReentrantLock();
+        private List<JrdsSample> samples = new ArrayList<JrdsSample>();
+        private long oldest = 0;
+        private long lastAdded = System.currentTimeMillis();
+        private boolean closed = false;
+
+        Journal(BufferedRrdDbStore store) {
+            this.store = store;
+        }
+
+        /**
+         * @param sample
+         * @return false if the journal was closed, a new one is needed
+         */
+        synchronized boolean add(JrdsSample sample) {
+            if(closed) {
+                return false;
+            }
+            lastAdded = System.currentTimeMillis();
+            if(samples.isEmpty()) {
+                oldest = lastAdded;
+            }
+            samples.add(sample);
+            return true;
+        }
+
+        /**
+         * Write all the waiting samples, the writing lock must be hold
+         * 
+         * @return the age of the oldest sample written, in ms, or -1 if
+         *         nothing was written
+         */
+        long write() {
+            List<JrdsSample> toWrite;
+            long age;
+            synchronized (this) {
+                if(samples.isEmpty()) {
+                    return -1;
+                }
+                toWrite = samples;
+                age = System.currentTimeMillis() - oldest;
+                samples = new ArrayList<JrdsSample>();
+            }
+            queued.addAndGet(-toWrite.size());
+            written.addAndGet(store.commit(toWrite));
+            return age;
+        }
+
+        /**
+         * Close the journal if it received no sample for two steps of its
+         * probe, the store is probably not used any more
+         * 
+         * @param now
+         * @return true if the journal was closed
+         */
+        synchronized boolean expire(long now) {
+            if(samples.isEmpty() && now - lastAdded > 2L * store.p.getStep() * 1000L) {
+                closed = true;
+            }
+            return closed;
+        }
+    }
+
+    private final class BufferedMBean extends StandardMBean implements BufferedStoreMBean {
+        protected BufferedMBean() {
+            super(BufferedStoreMBean.class, false);
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return BufferedRrdDbStoreFactory.this.getQueueDepth();
+        }
+
+        @Override
+        public int getQueueSize() {
+            return BufferedRrdDbStoreFactory.this.getQueueSize();
+        }
+
+        @Override
+        public long getWrittenSamples() {
+            return BufferedRrdDbStoreFactory.this.getWrittenSamples();
+        }
+
+        @Override
+        public long getDroppedSamples() {
+            return BufferedRrdDbStoreFactory.this.getDroppedSamples();
+        }
+
+        @Override
+        public long getFlushLatency() {
+            return BufferedRrdDbStoreFactory.this.getFlushLatency();
+        }
+    }
+
+    private final ConcurrentMap<String, Journal> journals = new ConcurrentSkipListMap<String, Journal>();
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicLong written = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private volatile long flushLatency = 0;
+    private int queueSize = 100000;
+    private int flushDelay = 1000;
+    private int writersCount = 2;
+    private ScheduledThreadPoolExecutor writers = null;
+
+    @Override
+    public void configureStore(PropertiesManager pm, Properties props) {
+        super.configureStore(pm, props);
+        queueSize = Util.parseStringNumber(props.getProperty("queueSize"), queueSize);
+        flushDelay = Util.parseStringNumber(props.getProperty("flushDelay"), flushDelay);
+        writersCount = Math.max(1, Util.parseStringNumber(props.getProperty("writers"), writersCount));
+    }
+
+    @Override
+    public synchronized void start() {
+        super.start();
+        if(writers != null) {
+            return;
+        }
+        writers = new ScheduledThreadPoolExecutor(writersCount, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "RrdWriter" + counter.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Runnable flusher = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushAll(false);
+                } catch (RuntimeException e) {
+                    logger.error("Flush failed: " + e, e);
+                }
+            }
+        };
+        for(int i = 0; i < writersCount; i++) {
+            writers.scheduleWithFixedDelay(flusher, flushDelay, flushDelay, TimeUnit.MILLISECONDS);
+        }
+        register();
+    }
+
+    @Override
+    public BufferedRrdDbStore create(Probe<?, ?> p) {
+        return new BufferedRrdDbStore(p, this);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if(writers != null) {
+            writers.shutdown();
+            try {
+                writers.awaitTermination(flushDelay * 10L, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writers = null;
+        }
+        // The remaining samples are written before leaving
+        flushAll(true);
+        unregister();
+        super.stop();
+    }
+
+    /**
+     * Add a sample to the queue
+     *
+     * @param store the store that will write it
+     * @param sample
+     * @return false if the queue is full and the sample was dropped
+     */
+    boolean enqueue(BufferedRrdDbStore store, JrdsSample sample) {
+        if(queued.incrementAndGet() > queueSize) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        String path = store.getPath();
+        while(true) {
+            Journal journal = journals.get(path);
+            if(journal == null) {
+                Journal newJournal = new Journal(store);
+                journal = journals.putIfAbsent(path, newJournal);
+                if(journal == null) {
+                    journal = newJournal;
+                }
+            }
+            if(journal.add(sample)) {
+                return true;
+            }
+            // Expired meanwhile
+            journals.remove(path, journal);
+        }
+    }
+
+    /**
+     * Write the samples waiting for a store
+     *
+     * @param store
+     */
+    void flush(BufferedRrdDbStore store) {
+        Journal journal = journals.get(store.getPath());
+        if(journal == null) {
+            return;
+        }
+        journal.writing.lock();
+        try {
+            journal.write();
+        } finally {
+            journal.writing.unlock();
+        }
+    }
+
+    /**
+     * Write all the waiting samples, in the order of the path. The journals
+     * of the stores that don't receive samples any more are removed.
+     *
+     * @param wait if false, the files being written by another thread are
+     *            skipped
+     */
+    void flushAll(boolean wait) {
+        flushAll(wait, System.currentTimeMillis());
+    }
+
+    void flushAll(boolean wait, long now) {
+        if(journals.isEmpty()) {
+            return;
+        }
+        // Each writer computes the latency of its own cycle
+        long latency = -1;
+        for(Map.Entry<String, Journal> e: journals.entrySet()) {
+            Journal journal = e.getValue();
+            if(wait) {
+                journal.writing.lock();
+            } else if(!journal.writing.tryLock()) {
+                continue;
+            }
+            try {
+                latency = Math.max(latency, journal.write());
+                if(journal.expire(now)) {
+                    journals.remove(e.getKey(), journal);
+                }
+            } finally {
+                journal.writing.unlock();
+            }
+        }
+        if(latency >= 0) {
+            flushLatency = latency;
+        }
+    }
+
+    /**
+     * @return the number of stores with a journal
+     */
+    int getJournalsCount() {
+        return journals.size();
+    }
+
+    private void register() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(MBEANNAME);
+            synchronized (BufferedRrdDbStoreFactory.class) {
+                // A new configuration replace the old one
+                if(mbs.isRegistered(name)) {
+                    mbs.unregisterMBean(name);
+                }
+                mbs.registerMBean(new BufferedMBean(), name);
+                registered = this;
+            }
+        } catch (Exception e) {
+            logger.error("Can't register buffered store mbean: " + e, e);
+        }
+    }
+
+    private void unregister() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            synchronized (BufferedRrdDbStoreFactory.class) {
+                if(registered == this) {
+                    mbs.unregisterMBean(new ObjectName(MBEANNAME));
+                    registered = null;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Can't unregister buffered store mbean: " + e, e);
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    @Override
+    public long getWrittenSamples() {
+        return written.get();
+    }
+
+    @Override
+    public long getDroppedSamples() {
+        return dropped.get();
+    }
+
+    @Override
+    public long getFlushLatency() {
+        return flushLatency;
+    }
+
+}
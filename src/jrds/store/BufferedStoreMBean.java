@@ -0,0 +1,28 @@
+package jrds.store;
+
+public interface BufferedStoreMBean {
+    /**
+     * @return the number of samples waiting to be written
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the maximum number of samples waiting to be written
+     */
+    int getQueueSize();
+
+    /**
+     * @return the number of samples written
+     */
+    long getWrittenSamples();
+
+    /**
+     * @return the number of samples dropped because the queue was full
+     */
+    long getDroppedSamples();
+
+    /**
+     * @return the age in ms of the oldest sample written by the last flush
+     */
+    long getFlushLatency();
+}
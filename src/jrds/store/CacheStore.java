@@ -1,30 +1,147 @@
 package jrds.store;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import jrds.ArchivesSet;
 import jrds.JrdsSample;
 import jrds.Probe;
 
+import org.rrd4j.core.DsDef;
+
+/**
+ * A store that keeps only the last values of a probe, in memory. The values
+ * are stored in an array indexed by the datasource position, a new snapshot
+ * is published for each sample, so reading never blocks.
+ */
 public class CacheStore extends AbstractStore<Map<String, Number>> {
-    private final Map<String, Number> cache;
-    private Date lastUpdate = new Date(0);
 
-    public CacheStore(Probe<?, ?> p, Map<String, Number> cache) {
+    /**
+     * The datasources names and their positions, it's immutable
+     */
+    private static final class Layout {
+        static final Layout EMPTY = new Layout(new String[] {});
+
+        final String[] names;
+        final Map<String, Integer> index;
+
+        Layout(String[] names) {
+            this.names = names;
+            Map<String, Integer> index = new HashMap<String, Integer>(names.length);
+            for(int i = 0; i < names.length; i++) {
+                index.put(names[i], i);
+            }
+            this.index = index;
+        }
+
+        Layout extend(List<String> newNames) {
+            String[] extended = Arrays.copyOf(names, names.length + newNames.size());
+            for(int i = 0; i < newNames.size(); i++) {
+                extended[names.length + i] = newNames.get(i);
+            }
+            return new Layout(extended);
+        }
+    }
+
+    /**
+     * The last values of a probe, it's immutable
+     */
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Layout.EMPTY, new double[] {}, 0);
+
+        private final Layout layout;
+        private final double[] values;
+        final long time;
+
+        private Snapshot(Layout layout, double[] values, long time) {
+            this.layout = layout;
+            this.values = values;
+            this.time = time;
+        }
+
+        /**
+         * @return the values, the missing ones are omitted
+         */
+        Map<String, Number> toMap() {
+            Map<String, Number> map = new LinkedHashMap<String, Number>(values.length);
+            for(int i = 0; i < values.length; i++) {
+                if(!Double.isNaN(values[i])) {
+                    map.put(layout.names[i], values[i]);
+                }
+            }
+            return Collections.unmodifiableMap(map);
+        }
+    }
+
+    /**
+     * Hold the last snapshot of a probe, it's shared by all the stores of the
+     * probe
+     */
+    static final class Slot {
+        private final AtomicReference<Snapshot> last = new AtomicReference<Snapshot>(Snapshot.EMPTY);
+        volatile Probe<?, ?> probe;
+
+        Snapshot get() {
+            return last.get();
+        }
+    }
+
+    private final Slot slot;
+
+    public CacheStore(Probe<?, ?> p, Slot slot) {
         super(p);
-        this.cache = cache;
+        this.slot = slot;
     }
 
     @Override
     public void commit(JrdsSample sample) {
-        cache.putAll(sample);
-        lastUpdate = new Date();
+        long now = System.currentTimeMillis();
+        Snapshot previous;
+        Snapshot next;
+        do {
+            previous = slot.get();
+            Layout layout = previous.layout;
+            if(layout.names.length == 0) {
+                DsDef[] dsDefs = p.getPd().getDsDefs();
+                String[] names = new String[dsDefs.length];
+                for(int i = 0; i < dsDefs.length; i++) {
+                    names[i] = dsDefs[i].getDsName();
+                }
+                layout = new Layout(names);
+            }
+            List<String> missing = null;
+            for(String name: sample.keySet()) {
+                if(!layout.index.containsKey(name)) {
+                    if(missing == null) {
+                        missing = new ArrayList<String>();
+                    }
+                    missing.add(name);
+                }
+            }
+            if(missing != null) {
+                layout = layout.extend(missing);
+            }
+            // Values not in the sample are kept
+            double[] values = Arrays.copyOf(previous.values, layout.names.length);
+            Arrays.fill(values, previous.values.length, values.length, Double.NaN);
+            for(Map.Entry<String, Number> e: sample.entrySet()) {
+                Number value = e.getValue();
+                values[layout.index.get(e.getKey())] = value == null ? Double.NaN : value.doubleValue();
+            }
+            next = new Snapshot(layout, values, now);
+        } while(!slot.last.compareAndSet(previous, next));
     }
 
     @Override
     public Map<String, Number> getLastValues() {
-        return cache;
+        return slot.get().toMap();
     }
 
     @Override
@@ -34,7 +151,7 @@ public class CacheStore extends AbstractStore<Map<String, Number>> {
 
     @Override
     public Date getLastUpdate() {
-        return lastUpdate;
+        return new Date(slot.get().time);
     }
 
     @Override
@@ -44,7 +161,7 @@ public class CacheStore extends AbstractStore<Map<String, Number>> {
 
     @Override
     public Map<String, Number> getStoreObject() {
-        return cache;
+        return getLastValues();
     }
 
     @Override
@@ -3,6 +3,8 @@ package jrds.store;
 import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -10,54 +12,144 @@ import javax.management.StandardMBean;
 
 import jrds.Probe;
 
+import org.apache.log4j.Logger;
+
+/**
+ * A factory for stores that keep the last values of the probes in memory. The
+ * last values can be read without locking, for a single probe, a host or a
+ * tag, using JMX.
+ */
 public class CacheStoreFactory extends AbstractStoreFactory<CacheStore> implements SampleCacheMBean {
-    private final Map<String, Map<String, Map<String, Number>>> cache = new HashMap<String, Map<String, Map<String, Number>>>();
-    @SuppressWarnings("unused")
-    private final CacheMBean mbean;
+    static final private Logger logger = Logger.getLogger(CacheStoreFactory.class);
+    static private final String MBEANNAME = "jrds:type=SampleCache";
+    static private CacheStoreFactory registered = null;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, CacheStore.Slot>> cache = new ConcurrentHashMap<String, ConcurrentMap<String, CacheStore.Slot>>();
 
     private final class CacheMBean extends StandardMBean implements SampleCacheMBean {
         protected CacheMBean() {
             super(SampleCacheMBean.class, false);
-            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
-            try {
-                ObjectName name = new ObjectName("jrds:type=SampleCache");
-                mbs.registerMBean(this, name);
-            } catch (Exception e) {
-                throw new RuntimeException("Can't register cache mbean", e);
-            }
         }
 
         @Override
         public Map<String, Number> getValues(String host, String probe) {
             return CacheStoreFactory.this.getValues(host, probe);
         }
+
+        @Override
+        public Map<String, Map<String, Number>> getHostValues(String host) {
+            return CacheStoreFactory.this.getHostValues(host);
+        }
+
+        @Override
+        public Map<String, Map<String, Number>> getTagValues(String tag) {
+            return CacheStoreFactory.this.getTagValues(tag);
+        }
     }
 
     public CacheStoreFactory() {
-        mbean = new CacheMBean();
+        register();
     }
 
     @Override
     public CacheStore create(Probe<?, ?> p) {
         String hostname = p.getHost().getName();
         String probeName = p.getName();
-        if(!cache.containsKey(hostname))
-            cache.put(hostname, new HashMap<String, Map<String, Number>>());
-        Map<String, Map<String, Number>> probes = cache.get(hostname);
-        if(!probes.containsKey(probeName))
-            probes.put(probeName, new HashMap<String, Number>(p.getPd().getDsDefs().length));
-
-        return new CacheStore(p, probes.get(probeName));
+        ConcurrentMap<String, CacheStore.Slot> probes = cache.get(hostname);
+        if(probes == null) {
+            probes = new ConcurrentHashMap<String, CacheStore.Slot>();
+            ConcurrentMap<String, CacheStore.Slot> previous = cache.putIfAbsent(hostname, probes);
+            if(previous != null) {
+                probes = previous;
+            }
+        }
+        CacheStore.Slot slot = probes.get(probeName);
+        if(slot == null) {
+            slot = new CacheStore.Slot();
+            CacheStore.Slot previous = probes.putIfAbsent(probeName, slot);
+            if(previous != null) {
+                slot = previous;
+            }
+        }
+        slot.probe = p;
+        return new CacheStore(p, slot);
     }
 
     @Override
     public Map<String, Number> getValues(String host, String probe) {
-        return cache.get(host).get(probe);
+        Map<String, CacheStore.Slot> probes = cache.get(host);
+        if(probes == null) {
+            return null;
+        }
+        CacheStore.Slot slot = probes.get(probe);
+        if(slot == null) {
+            return null;
+        }
+        return slot.get().toMap();
+    }
+
+    @Override
+    public Map<String, Map<String, Number>> getHostValues(String host) {
+        Map<String, CacheStore.Slot> probes = cache.get(host);
+        if(probes == null) {
+            return null;
+        }
+        Map<String, Map<String, Number>> values = new HashMap<String, Map<String, Number>>(probes.size());
+        for(Map.Entry<String, CacheStore.Slot> e: probes.entrySet()) {
+            values.put(e.getKey(), e.getValue().get().toMap());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Map<String, Number>> getTagValues(String tag) {
+        Map<String, Map<String, Number>> values = new HashMap<String, Map<String, Number>>();
+        for(Map<String, CacheStore.Slot> probes: cache.values()) {
+            for(CacheStore.Slot slot: probes.values()) {
+                Probe<?, ?> p = slot.probe;
+                if(p != null && p.getTags().contains(tag)) {
+                    values.put(p.getQualifiedName(), slot.get().toMap());
+                }
+            }
+        }
+        return values;
     }
 
     @Override
     public void stop() {
         cache.clear();
+        unregister();
+    }
+
+    private void register() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(MBEANNAME);
+            synchronized (CacheStoreFactory.class) {
+                // A new configuration replace the old one
+                if(mbs.isRegistered(name)) {
+                    mbs.unregisterMBean(name);
+                }
+                mbs.registerMBean(new CacheMBean(), name);
+                registered = this;
+            }
+        } catch (Exception e) {
+            logger.error("Can't register cache mbean: " + e, e);
+        }
+    }
+
+    private void unregister() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            synchronized (CacheStoreFactory.class) {
+                if(registered == this) {
+                    mbs.unregisterMBean(new ObjectName(MBEANNAME));
+                    registered = null;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Can't unregister cache mbean: " + e, e);
+        }
     }
 
 }
@@ -2,13 +2,28 @@ package jrds.store;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import jrds.ArchivesSet;
+import jrds.ArrayJrdsSample;
 import jrds.JrdsSample;
 import jrds.Probe;
 
@@ -27,7 +42,31 @@ import org.rrd4j.data.DataProcessor;
 import org.rrd4j.graph.RrdGraphDef;
 
 public class RrdDbStore extends AbstractStore<RrdDb> {
+
+    /**
+     * The rrd datasource index of each slot of a sample layout, -1 if the
+     * datasource is not in the rrd
+     */
+    private static final class SlotIndex {
+        final ArrayJrdsSample.Layout layout;
+        final int[] dsIndex;
+
+        SlotIndex(ArrayJrdsSample.Layout layout, RrdDb rrdDb) throws IOException {
+            this.layout = layout;
+            this.dsIndex = new int[layout.size()];
+            for(int i = 0; i < dsIndex.length; i++) {
+                String dsName = layout.getName(i);
+                dsIndex[i] = rrdDb.containsDs(dsName) ? rrdDb.getDsIndex(dsName) : -1;
+            }
+        }
+    }
+
     private final RrdDbStoreFactory factory;
+    private volatile SlotIndex slotIndex = null;
+    // Samples are not written while the file is upgraded
+    private final ReadWriteLock upgradeLock = new ReentrantReadWriteLock();
+    // The samples received while the file was upgraded, written just after
+    private final List<JrdsSample> delayed = new ArrayList<JrdsSample>();
 
     public RrdDbStore(Probe<?, ?> p, RrdDbStoreFactory factory) {
         super(p);
@@ -64,109 +103,185 @@ public class RrdDbStore extends AbstractStore<RrdDb> {
         rrdDb.close();
     }
 
-    private void upgrade(ArchivesSet archives) {
-        RrdDb rrdSource = null;
+    /**
+     * Copy the content of the store in a new file that use the new
+     * definition.
+     * 
+     * @param migrator if not null, each robin copied is charged to its I/O
+     *            budget
+     * @return the last update time of the content copied
+     * @throws IOException
+     */
+    private long copyUpgraded(ArchivesSet archives, File source, File dest, RrdMigrator migrator) throws IOException {
+        RrdDb rrdSource = new RrdDb(source.getCanonicalPath(), true);
         try {
-            log(Level.WARN, "Definition is changed, the store needs to be upgraded");
-            File source = new File(getPath());
-            rrdSource = new RrdDb(source.getCanonicalPath());
-
             RrdDef rrdDef = getRrdDef(archives);
-            File dest = File.createTempFile("JRDS_", ".tmp", source.getParentFile());
             rrdDef.setPath(dest.getCanonicalPath());
             RrdDb rrdDest = new RrdDb(rrdDef);
-
-            log(Level.DEBUG, "updating %s to %s", source, dest);
-
-            Set<String> badDs = new HashSet<String>();
-            Header header = rrdSource.getHeader();
-            int dsCount = header.getDsCount();
-            ;
-            header.copyStateTo(rrdDest.getHeader());
-            for(int i = 0; i < dsCount; i++) {
-                Datasource srcDs = rrdSource.getDatasource(i);
-                String dsName = srcDs.getName();
-                Datasource dstDS = rrdDest.getDatasource(dsName);
-                if(dstDS != null) {
-                    try {
-                        srcDs.copyStateTo(dstDS);
-                        log(Level.TRACE, "Update %s", dsName);
-                    } catch (RuntimeException e) {
-                        badDs.add(dsName);
-                        log(Level.ERROR, e, "Datasource %s can't be upgraded: %s", dsName, e.getMessage());
+            try {
+                log(Level.DEBUG, "updating %s to %s", source, dest);
+
+                Set<String> badDs = new HashSet<String>();
+                Header header = rrdSource.getHeader();
+                int dsCount = header.getDsCount();
+                header.copyStateTo(rrdDest.getHeader());
+                for(int i = 0; i < dsCount; i++) {
+                    Datasource srcDs = rrdSource.getDatasource(i);
+                    String dsName = srcDs.getName();
+                    Datasource dstDS = rrdDest.getDatasource(dsName);
+                    if(dstDS != null) {
+                        try {
+                            srcDs.copyStateTo(dstDS);
+                            log(Level.TRACE, "Update %s", dsName);
+                        } catch (RuntimeException e) {
+                            badDs.add(dsName);
+                            log(Level.ERROR, e, "Datasource %s can't be upgraded: %s", dsName, e.getMessage());
+                        }
                     }
                 }
-            }
-            int robinMigrated = 0;
-            for(int i = 0; i < rrdSource.getArcCount(); i++) {
-                Archive srcArchive = rrdSource.getArchive(i);
-                ConsolFun consolFun = srcArchive.getConsolFun();
-                int steps = srcArchive.getSteps();
-                Archive dstArchive = rrdDest.getArchive(consolFun, steps);
-                if(dstArchive != null) {
-                    if(dstArchive.getConsolFun().equals(srcArchive.getConsolFun()) && dstArchive.getSteps() == srcArchive.getSteps()) {
-                        for(int k = 0; k < dsCount; k++) {
-                            Datasource srcDs = rrdSource.getDatasource(k);
-                            String dsName = srcDs.getName();
-                            try {
-                                int j = rrdDest.getDsIndex(dsName);
-                                if(j >= 0 && !badDs.contains(dsName)) {
-                                    log(Level.TRACE, "Upgrade of %s from %s", dsName, srcArchive);
-                                    srcArchive.getArcState(k).copyStateTo(dstArchive.getArcState(j));
-                                    srcArchive.getRobin(k).copyStateTo(dstArchive.getRobin(j));
-                                    robinMigrated++;
+                int robinMigrated = 0;
+                for(int i = 0; i < rrdSource.getArcCount(); i++) {
+                    Archive srcArchive = rrdSource.getArchive(i);
+                    ConsolFun consolFun = srcArchive.getConsolFun();
+                    int steps = srcArchive.getSteps();
+                    Archive dstArchive = rrdDest.getArchive(consolFun, steps);
+                    if(dstArchive != null) {
+                        if(dstArchive.getConsolFun().equals(srcArchive.getConsolFun()) && dstArchive.getSteps() == srcArchive.getSteps()) {
+                            for(int k = 0; k < dsCount; k++) {
+                                Datasource srcDs = rrdSource.getDatasource(k);
+                                String dsName = srcDs.getName();
+                                try {
+                                    int j = rrdDest.getDsIndex(dsName);
+                                    if(j >= 0 && !badDs.contains(dsName)) {
+                                        log(Level.TRACE, "Upgrade of %s from %s", dsName, srcArchive);
+                                        srcArchive.getArcState(k).copyStateTo(dstArchive.getArcState(j));
+                                        srcArchive.getRobin(k).copyStateTo(dstArchive.getRobin(j));
+                                        robinMigrated++;
+                                        if(migrator != null) {
+                                            // Each row is read and written
+                                            migrator.throttle(16L * srcArchive.getRows());
+                                        }
+                                    }
+                                } catch (IllegalArgumentException e) {
+                                    log(Level.TRACE, "Datastore %s removed", dsName);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                    throw new InterruptedIOException("Upgrade of " + source + " interrupted");
                                 }
-                            } catch (IllegalArgumentException e) {
-                                log(Level.TRACE, "Datastore %s removed", dsName);
-                            }
 
+                            }
+                            log(Level.TRACE, "Update %s", srcArchive);
                         }
-                        log(Level.TRACE, "Update %s", srcArchive);
                     }
                 }
+                log(Level.DEBUG, "Robin migrated: %s", robinMigrated);
+            } finally {
+                rrdDest.close();
             }
-            log(Level.DEBUG, "Robin migrated: %s", robinMigrated);
-
-            rrdDest.close();
+            return rrdSource.getLastUpdateTime();
+        } finally {
             rrdSource.close();
-            log(Level.DEBUG, "Size difference : %d", (dest.length() - source.length()));
-            copyFile(dest.getCanonicalPath(), source.getCanonicalPath());
-        } catch (IOException e) {
-            log(Level.ERROR, e, "Upgrade failed: %s", e);
+        }
+    }
+
+    private static long getLastUpdateTime(File rrdFile) throws IOException {
+        RrdDb rrdDb = new RrdDb(rrdFile.getCanonicalPath(), true);
+        try {
+            return rrdDb.getLastUpdateTime();
         } finally {
-            if(rrdSource != null)
-                try {
-                    rrdSource.close();
-                } catch (IOException e) {
-                }
+            rrdDb.close();
         }
     }
 
-    private static void copyFile(String sourcePath, String destPath) throws IOException {
-        File source = new File(sourcePath);
-        File dest = new File(destPath);
-        File destOld = new File(destPath + ".old");
-        if(!dest.renameTo(destOld)) {
-            throw new IOException("Could not rename file " + destPath + " from " + destOld);
+    /**
+     * Upgrade the store to a new definition. The content is copied while the
+     * old file is still used. Then the samples are delayed and the file can't
+     * be opened, the copy is done again only if the old file was updated
+     * meanwhile, and the new file replace the old one. The delayed samples are
+     * written in the new file.
+     * 
+     * @return the number of bytes read and written, -1 if it failed
+     * @throws IOException
+     */
+    private long migrate(ArchivesSet archives, String fingerprint) throws IOException {
+        File rrdFile = new File(getPath());
+        RrdDefIndex defIndex = factory.getDefIndex(rrdFile.getParentFile());
+        // Already done by a previous request
+        if(defIndex.isValid(rrdFile, fingerprint)) {
+            return 0;
         }
-        if(!source.renameTo(dest)) {
-            throw new IOException("Could not rename file " + destPath + " from " + sourcePath);
+        log(Level.DEBUG, "Starting upgrade");
+        File dest = File.createTempFile("JRDS_", ".tmp", rrdFile.getParentFile());
+        try {
+            long copied = copyUpgraded(archives, rrdFile, dest, factory.getMigrator());
+            String path = rrdFile.getCanonicalPath();
+            upgradeLock.writeLock().lock();
+            try {
+                // The file can't be opened again until it's replaced
+                if(!factory.evict(path, p.getStep() * 1000L)) {
+                    log(Level.WARN, "Store still in use, upgrade delayed to next restart");
+                    return -1;
+                }
+                if(getLastUpdateTime(rrdFile) != copied) {
+                    log(Level.DEBUG, "Store updated during the upgrade, copied again");
+                    if(!dest.delete()) {
+                        throw new IOException("Could not delete file " + dest);
+                    }
+                    // Samples are blocked, this copy is not throttled
+                    copyUpgraded(archives, rrdFile, dest, null);
+                }
+                long size = rrdFile.length() + dest.length();
+                log(Level.DEBUG, "Size difference : %d", (dest.length() - rrdFile.length()));
+                replaceFile(dest, rrdFile);
+                slotIndex = null;
+                defIndex.validate(rrdFile, fingerprint);
+                log(Level.INFO, "Store upgraded");
+                return size;
+            } finally {
+                if(!factory.unfence(path)) {
+                    log(Level.ERROR, "Store opened while it was replaced");
+                }
+                upgradeLock.writeLock().unlock();
+                // Write the samples received meanwhile
+                commit(Collections.<JrdsSample> emptyList());
+            }
+        } finally {
+            if(dest.exists() && !dest.delete()) {
+                log(Level.WARN, "Could not delete file %s", dest);
+            }
         }
-        deleteFile(destOld);
     }
 
-    private static void deleteFile(File file) throws IOException {
-        if(file.exists() && !file.delete()) {
-            throw new IOException("Could not delete file: " + file.getCanonicalPath());
+    /**
+     * A digest of a definition, the start time is ignored
+     */
+    static String getFingerprint(RrdDef def) {
+        def.setStartTime(0);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return new BigInteger(1, digest.digest(def.dump().getBytes("UTF-8"))).toString(16);
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException("Can't digest rrd definition", e);
+        }
+    }
+
+    private static void replaceFile(File source, File dest) throws IOException {
+        try {
+            Files.move(source.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
-    public boolean checkStoreFile(ArchivesSet archives) {
+    public boolean checkStoreFile(final ArchivesSet archives) {
+        // The file might be upgraded
+        slotIndex = null;
         File rrdFile = new File(getPath());
 
         File rrdDir = p.getHost().getHostDir();
+        // Probes of the same host might be checked concurrently
         if(!rrdDir.isDirectory()) {
-            if(!rrdDir.mkdir()) {
+            if(!rrdDir.mkdir() && !rrdDir.isDirectory()) {
                 try {
                     log(Level.ERROR, "prode dir %s creation failed ", rrdDir.getCanonicalPath());
                 } catch (IOException e) {
@@ -175,6 +290,14 @@ public class RrdDbStore extends AbstractStore<RrdDb> {
             }
         }
 
+        // Don't open a file that was already checked with the same definition
+        final String fingerprint = getFingerprint(getRrdDef(archives));
+        RrdDefIndex defIndex = factory.getDefIndex(rrdDir);
+        if(defIndex.isValid(rrdFile, fingerprint)) {
+            log(Level.TRACE, "Definition unchanged");
+            return true;
+        }
+
         boolean retValue = false;
         RrdDb rrdDb = null;
         try {
@@ -198,14 +321,22 @@ public class RrdDbStore extends AbstractStore<RrdDb> {
                     log(Level.ERROR, "step changed, you're in trouble");
                     return false;
                 } else if(!newDef.equals(oldDef)) {
-                    rrdDb.close();
-                    rrdDb = null;
-                    upgrade(archives);
-                    rrdDb = new RrdDb(getPath());
+                    // The old file is used until the upgrade is done
+                    defIndex.invalidate(rrdFile);
+                    log(Level.WARN, "Definition is changed, upgrade scheduled");
+                    factory.scheduleUpgrade(rrdFile.getCanonicalPath(), new Callable<Long>() {
+                        public Long call() throws IOException {
+                            return migrate(archives, fingerprint);
+                        }
+                    });
+                } else {
+                    defIndex.validate(rrdFile, fingerprint);
                 }
                 log(Level.TRACE, "******");
-            } else
+            } else {
                 create(archives);
+                defIndex.validate(rrdFile, fingerprint);
+            }
             retValue = true;
         } catch (Exception e) {
             log(Level.ERROR, e, "Store %s unusable: %s", getPath(), e);
@@ -318,21 +449,116 @@ public class RrdDbStore extends AbstractStore<RrdDb> {
     }
 
     public void commit(JrdsSample sample) {
+        commit(Collections.singletonList(sample));
+    }
+
+    /**
+     * Write many samples, the rrd is opened only once
+     * 
+     * @param samples the samples, in time order
+     * @return the number of samples written
+     */
+    public int commit(List<JrdsSample> samples) {
+        if(!upgradeLock.readLock().tryLock()) {
+            synchronized (delayed) {
+                delayed.addAll(samples);
+            }
+            log(Level.DEBUG, "Store being upgraded, %d samples delayed", samples.size());
+            return 0;
+        }
+        synchronized (delayed) {
+            if(!delayed.isEmpty()) {
+                List<JrdsSample> all = new ArrayList<JrdsSample>(delayed);
+                all.addAll(samples);
+                delayed.clear();
+                samples = all;
+            }
+        }
+        if(samples.isEmpty()) {
+            upgradeLock.readLock().unlock();
+            return 0;
+        }
+        int written = 0;
         RrdDb rrdDb = null;
         try {
             rrdDb = factory.getRrd(getPath());
-            Sample onesample = rrdDb.createSample(sample.getTime().getTime() / 1000);
-            for(Map.Entry<String, Number> e: sample.entrySet()) {
-                onesample.setValue(e.getKey(), e.getValue().doubleValue());
+            for(JrdsSample sample: samples) {
+                try {
+                    update(rrdDb, sample);
+                    written++;
+                } catch (IllegalArgumentException e) {
+                    log(Level.ERROR, e, "Invalid sample: %s", e.getMessage());
+                }
             }
-            if(p.getNamedLogger().isDebugEnabled())
-                log(Level.DEBUG, "%s", onesample.dump());
-            onesample.update();
         } catch (IOException e) {
             log(Level.ERROR, e, "Error while collecting: %s", e.getMessage());
         } finally {
             if(rrdDb != null)
                 factory.releaseRrd(rrdDb);
+            upgradeLock.readLock().unlock();
+        }
+        return written;
+    }
+
+    /**
+     * Write a sample, the failures are not logged but thrown. It waits if the
+     * file is being upgraded.
+     * 
+     * @throws IOException if the rrd can't be written
+     * @throws IllegalArgumentException if the rrd refused the sample
+     */
+    @Override
+    public void write(JrdsSample sample) throws IOException {
+        upgradeLock.readLock().lock();
+        RrdDb rrdDb = null;
+        try {
+            rrdDb = factory.getRrd(getPath());
+            update(rrdDb, sample);
+        } finally {
+            if(rrdDb != null)
+                factory.releaseRrd(rrdDb);
+            upgradeLock.readLock().unlock();
+        }
+    }
+
+    private void update(RrdDb rrdDb, JrdsSample sample) throws IOException {
+        Sample onesample = rrdDb.createSample(sample.getTime().getTime() / 1000);
+        if(sample instanceof ArrayJrdsSample) {
+            setValues(rrdDb, onesample, (ArrayJrdsSample) sample);
+        } else {
+            for(Map.Entry<String, Number> e: sample.entrySet()) {
+                onesample.setValue(e.getKey(), e.getValue().doubleValue());
+            }
+        }
+        if(p.getNamedLogger().isDebugEnabled())
+            log(Level.DEBUG, "%s", onesample.dump());
+        onesample.update();
+    }
+
+    /**
+     * Copy the values using the datasource index, the names are resolved only
+     * once for a layout
+     */
+    private void setValues(RrdDb rrdDb, Sample onesample, ArrayJrdsSample sample) throws IOException {
+        ArrayJrdsSample.Layout layout = sample.getLayout();
+        SlotIndex index = slotIndex;
+        if(index == null || index.layout != layout) {
+            index = new SlotIndex(layout, rrdDb);
+            slotIndex = index;
+        }
+        for(int i = 0; i < index.dsIndex.length; i++) {
+            if(!sample.isSet(i)) {
+                continue;
+            }
+            if(index.dsIndex[i] >= 0) {
+                onesample.setValue(index.dsIndex[i], sample.getValue(i));
+            } else {
+                // The rrd is waiting for an upgrade
+                log(Level.TRACE, "Datasource %s not in store", layout.getName(i));
+            }
+        }
+        for(Map.Entry<String, Number> e: sample.getUnknown().entrySet()) {
+            onesample.setValue(e.getKey(), e.getValue().doubleValue());
         }
     }
 
@@ -2,12 +2,27 @@ package jrds.store;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
 import jrds.Probe;
 import jrds.PropertiesManager;
 import jrds.Util;
@@ -17,17 +32,116 @@ import org.apache.log4j.Logger;
 import org.rrd4j.core.RrdBackendFactory;
 import org.rrd4j.core.RrdDb;
 import org.rrd4j.core.RrdDbPool;
+import org.rrd4j.core.RrdFileBackendFactory;
+import org.rrd4j.core.RrdNioBackendFactory;
 import org.rrd4j.core.RrdRandomAccessFileBackendFactory;
 
-public class RrdDbStoreFactory extends AbstractStoreFactory<RrdDbStore> {
+/**
+ * The default store factory, using rrd4j.
+ * <p>
+ * When the backend is file based (FILE, NIO, SAFE), the rrd4j pool is used,
+ * it's shared with the graph rendering. The last used files can be kept open
+ * even when not used, so a memory mapped file stays mapped, using the
+ * openCacheSize property. The pool usage is monitored through the mbean
+ * jrds:type=RrdDbStore.
+ * <p>
+ * The definitions already checked are kept in an index in each host directory,
+ * so unchanged files are not opened at startup. Files whose definition changed
+ * are upgraded in background by a {@link RrdMigrator}, monitored through the
+ * mbean jrds:type=RrdMigrator. The properties migrationThreads and
+ * migrationRate (in MB/s) control the I/O it can use.
+ */
+public class RrdDbStoreFactory extends AbstractStoreFactory<RrdDbStore> implements RrdDbStoreMBean {
     private final Logger logger = Logger.getLogger(RrdDbStoreFactory.class);
+    static private final String MBEANNAME = "jrds:type=RrdDbStore";
+    static private final String MIGRATORMBEANNAME = "jrds:type=RrdMigrator";
+    static private RrdDbStoreFactory registered = null;
+
+    /**
+     * Keep the last acquire times, to calculate the percentiles
+     */
+    private static final class Latencies {
+        private final long[] samples = new long[1024];
+        private int count = 0;
+
+        synchronized void add(long duration) {
+            samples[count % samples.length] = duration;
+            count++;
+        }
+
+        synchronized double percentile(double rank) {
+            int size = Math.min(count, samples.length);
+            if(size == 0) {
+                return Double.NaN;
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(rank * size) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+
+    private final class StoreMBean extends StandardMBean implements RrdDbStoreMBean {
+        protected StoreMBean() {
+            super(RrdDbStoreMBean.class, false);
+        }
+
+        @Override
+        public long getRequests() {
+            return RrdDbStoreFactory.this.getRequests();
+        }
+
+        @Override
+        public double getHitRate() {
+            return RrdDbStoreFactory.this.getHitRate();
+        }
+
+        @Override
+        public int getOpenFilesCount() {
+            return RrdDbStoreFactory.this.getOpenFilesCount();
+        }
+
+        @Override
+        public int getOpenCacheSize() {
+            return RrdDbStoreFactory.this.getOpenCacheSize();
+        }
+
+        @Override
+        public long getEvictions() {
+            return RrdDbStoreFactory.this.getEvictions();
+        }
+
+        @Override
+        public double getAcquireLatencyP50() {
+            return RrdDbStoreFactory.this.getAcquireLatencyP50();
+        }
+
+        @Override
+        public double getAcquireLatencyP99() {
+            return RrdDbStoreFactory.this.getAcquireLatencyP99();
+        }
+    }
+
     private RrdBackendFactory backendFactory = null;
     private RrdDbPool instance = null;
 
     private final AtomicLong waitTime = new AtomicLong(0);
     private final AtomicInteger lockCount = new AtomicInteger(0);
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final Latencies latencies = new Latencies();
+    // The files kept open, in access order, each one hold a reference in the
+    // pool
+    private final LinkedHashMap<String, RrdDb> openCache = new LinkedHashMap<String, RrdDb>(16, 0.75f, true);
+    // The files being replaced, they can't be opened until it's done
+    private final ConcurrentMap<String, CountDownLatch> fenced = new ConcurrentHashMap<String, CountDownLatch>();
+    // The definitions index of each host directory
+    private final ConcurrentMap<String, RrdDefIndex> defIndexes = new ConcurrentHashMap<String, RrdDefIndex>();
+    private RrdMigrator migrator = new RrdMigrator(1, 0);
     private boolean usepool = false;
     private int dbPoolSize = 0;
+    private int openCacheSize = 0;
 
     String backendName = null;
 
@@ -78,9 +192,20 @@ public class RrdDbStoreFactory extends AbstractStoreFactory<RrdDbStore> {
             }
         }
 
-        dbPoolSize = Util.parseStringNumber(props.getProperty("dbPoolSize"), 10) + pm.numCollectors;
+        openCacheSize = Util.parseStringNumber(props.getProperty("openCacheSize"), openCacheSize);
+        // The files kept open must not block the collect
+        dbPoolSize = Util.parseStringNumber(props.getProperty("dbPoolSize"), 10) + pm.numCollectors + openCacheSize;
         usepool = pm.parseBoolean(props.getProperty("usepool", "true"));
 
+        int migrationThreads = Util.parseStringNumber(props.getProperty("migrationThreads"), 1);
+        long migrationRate = Util.parseStringNumber(props.getProperty("migrationRate"), 0) * 1024L * 1024L;
+        migrator = new RrdMigrator(migrationThreads, migrationRate);
+
+        String syncPeriod = props.getProperty("nioSyncPeriod");
+        if(syncPeriod != null && backendFactory instanceof RrdNioBackendFactory) {
+            RrdNioBackendFactory.setSyncPeriod(Util.parseStringNumber(syncPeriod, RrdNioBackendFactory.DEFAULT_SYNC_PERIOD));
+        }
+
         logger.debug(Util.delayedFormatString("Store backend used is %s", backendName));
 
     }
@@ -104,14 +229,21 @@ public class RrdDbStoreFactory extends AbstractStoreFactory<RrdDbStore> {
             } catch (Exception e) {
                 throw new RuntimeException("Failed to configure RrdDbStoreFactory:" + e.getMessage(), e);
             }
-            try {
+            // The pool only works with file backends, and always use the
+            // default backend
+            if(RrdBackendFactory.getDefaultFactory() instanceof RrdFileBackendFactory) {
                 instance = RrdDbPool.getInstance();
-                instance.setCapacity(dbPoolSize);
-                usepool = true;
-            } catch (Exception e) {
-                logger.warn("Trying to change rrd pool size, a restart is needed");
+                try {
+                    instance.setCapacity(dbPoolSize);
+                } catch (Exception e) {
+                    logger.warn("Trying to change rrd pool size, a restart is needed");
+                }
+            } else {
+                logger.warn(Util.delayedFormatString("Backend %s can't be pooled", RrdBackendFactory.getDefaultFactory().getName()));
             }
+            usepool = instance != null;
         }
+        register();
     }
 
     @Override
@@ -121,7 +253,118 @@ public class RrdDbStoreFactory extends AbstractStoreFactory<RrdDbStore> {
 
     @Override
     public void stop() {
-        logger.info("Average wait time: " + waitTime.doubleValue() / lockCount.doubleValue() + " ms");
+        // An interrupted upgrade leaves the old file untouched
+        migrator.stop();
+        synchronized (openCache) {
+            for(RrdDb db: openCache.values()) {
+                releasePooled(db);
+            }
+            openCache.clear();
+        }
+        unregister();
+        logger.info("Average wait time: " + waitTime.doubleValue() / lockCount.doubleValue() / 1e6 + " ms");
+    }
+
+    /**
+     * @param dir a host directory
+     * @return the definitions index of the rrd files in this directory
+     */
+    RrdDefIndex getDefIndex(File dir) {
+        String path = dir.getAbsolutePath();
+        RrdDefIndex index = defIndexes.get(path);
+        if(index == null) {
+            RrdDefIndex newIndex = new RrdDefIndex(dir);
+            index = defIndexes.putIfAbsent(path, newIndex);
+            if(index == null) {
+                index = newIndex;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Queue an upgrade of a rrd file, so it don't delay the startup.
+     *
+     * @param path the canonical path of the file
+     * @param upgrade returns the number of bytes used, negative if it failed
+     */
+    void scheduleUpgrade(String path, Callable<Long> upgrade) {
+        migrator.submit(path, upgrade);
+    }
+
+    /**
+     * Wait for all the queued upgrades to be done.
+     *
+     * @throws InterruptedException
+     */
+    public void waitUpgrades() throws InterruptedException {
+        migrator.waitMigrations();
+    }
+
+    /**
+     * @return the number of upgrades waiting or running
+     */
+    public int getPendingUpgrades() {
+        return migrator.getPending();
+    }
+
+    /**
+     * @return the migrator that runs the upgrades
+     */
+    public RrdMigrator getMigrator() {
+        return migrator;
+    }
+
+    /**
+     * Close a file before it's replaced. It's removed from the files kept
+     * open, and then wait for the other users to release it. Until
+     * {@link #unfence(String)} is called, the file can't be opened again, even
+     * if it failed.
+     *
+     * @param path the canonical path of the file
+     * @param timeout how long to wait, in ms
+     * @return true if the file is not used any more
+     * @throws IOException
+     */
+    boolean evict(String path, long timeout) throws IOException {
+        fenced.putIfAbsent(path, new CountDownLatch(1));
+        if(!usepool) {
+            return true;
+        }
+        RrdDb kept;
+        synchronized (openCache) {
+            kept = openCache.remove(path);
+        }
+        if(kept != null) {
+            releasePooled(kept);
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        while(instance.getOpenCount(path) > 0) {
+            if(System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Allow a file evicted to be opened again
+     *
+     * @param path the canonical path of the file
+     * @return true if nobody opened it while it was fenced
+     */
+    boolean unfence(String path) throws IOException {
+        CountDownLatch latch = fenced.remove(path);
+        if(latch != null) {
+            latch.countDown();
+        }
+        return !usepool || instance.getOpenCount(path) == 0;
     }
 
     /**
@@ -136,15 +379,30 @@ public class RrdDbStoreFactory extends AbstractStoreFactory<RrdDbStore> {
     public RrdDb getRrd(String rrdFile) throws IOException {
         File f = new File(rrdFile);
         String cp = f.getCanonicalPath();
-        long start = System.currentTimeMillis();
+        long start = System.nanoTime();
+        // Wait for the file to be replaced
+        CountDownLatch replaced = fenced.get(cp);
+        if(replaced != null) {
+            try {
+                replaced.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while " + cp + " is replaced");
+            }
+        }
         RrdDb db;
-        if(usepool)
+        if(usepool) {
+            if(instance.getOpenCount(cp) > 0) {
+                hits.incrementAndGet();
+            }
             db = instance.requestRrdDb(cp);
-        else
+        } else
             db = new RrdDb(cp, backendFactory);
-        long finish = System.currentTimeMillis();
-        waitTime.addAndGet(finish - start);
+        long duration = System.nanoTime() - start;
+        waitTime.addAndGet(duration);
         lockCount.incrementAndGet();
+        requests.incrementAndGet();
+        latencies.add(duration);
         return db;
     }
 
@@ -153,12 +411,15 @@ public class RrdDbStoreFactory extends AbstractStoreFactory<RrdDbStore> {
      */
     public void releaseRrd(RrdDb db) {
         try {
-            long start = System.currentTimeMillis();
-            if(usepool)
+            long start = System.nanoTime();
+            if(usepool) {
+                if(openCacheSize > 0) {
+                    keepOpen(db);
+                }
                 instance.release(db);
-            else
+            } else
                 db.close();
-            long finish = System.currentTimeMillis();
+            long finish = System.nanoTime();
             waitTime.addAndGet(finish - start);
             lockCount.incrementAndGet();
         } catch (Exception e) {
@@ -166,6 +427,118 @@ public class RrdDbStoreFactory extends AbstractStoreFactory<RrdDbStore> {
         }
     }
 
+    /**
+     * Keep a reference to a recently used file, so the pool don't close it.
+     * The least recently used files are released.
+     *
+     * @param db
+     * @throws IOException
+     */
+    private void keepOpen(RrdDb db) throws IOException {
+        String path = db.getCanonicalPath();
+        List<RrdDb> evicted = new ArrayList<RrdDb>();
+        synchronized (openCache) {
+            // A file being replaced must be closed
+            if(openCache.get(path) == null && !fenced.containsKey(path)) {
+                // It's already open, so it don't block
+                openCache.put(path, instance.requestRrdDb(path));
+                Iterator<RrdDb> i = openCache.values().iterator();
+                while(openCache.size() > openCacheSize && i.hasNext()) {
+                    evicted.add(i.next());
+                    i.remove();
+                }
+            }
+        }
+        for(RrdDb old: evicted) {
+            releasePooled(old);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void releasePooled(RrdDb db) {
+        try {
+            instance.release(db);
+        } catch (IOException e) {
+            logger.error("Unable to release rrd: " + e, e);
+        }
+    }
+
+    private void register() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(MBEANNAME);
+            synchronized (RrdDbStoreFactory.class) {
+                if(registered == this) {
+                    return;
+                }
+                // A new configuration replace the old one
+                if(mbs.isRegistered(name)) {
+                    mbs.unregisterMBean(name);
+                }
+                mbs.registerMBean(new StoreMBean(), name);
+                ObjectName migratorName = new ObjectName(MIGRATORMBEANNAME);
+                if(mbs.isRegistered(migratorName)) {
+                    mbs.unregisterMBean(migratorName);
+                }
+                mbs.registerMBean(migrator, migratorName);
+                registered = this;
+            }
+        } catch (Exception e) {
+            logger.error("Can't register rrd store mbean: " + e, e);
+        }
+    }
+
+    private void unregister() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            synchronized (RrdDbStoreFactory.class) {
+                if(registered == this) {
+                    mbs.unregisterMBean(new ObjectName(MBEANNAME));
+                    mbs.unregisterMBean(new ObjectName(MIGRATORMBEANNAME));
+                    registered = null;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Can't unregister rrd store mbean: " + e, e);
+        }
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public double getHitRate() {
+        long count = requests.get();
+        return count == 0 ? Double.NaN : hits.doubleValue() / count;
+    }
+
+    @Override
+    public int getOpenFilesCount() {
+        return usepool ? instance.getOpenFileCount() : 0;
+    }
+
+    @Override
+    public int getOpenCacheSize() {
+        return openCacheSize;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public double getAcquireLatencyP50() {
+        return latencies.percentile(0.50);
+    }
+
+    @Override
+    public double getAcquireLatencyP99() {
+        return latencies.percentile(0.99);
+    }
+
     /**
      * @param rrdDb
      * @return
@@ -0,0 +1,38 @@
+package jrds.store;
+
+public interface RrdDbStoreMBean {
+    /**
+     * @return the number of rrd files requested
+     */
+    long getRequests();
+
+    /**
+     * @return the part of the requests for a file already open
+     */
+    double getHitRate();
+
+    /**
+     * @return the number of files open in the pool
+     */
+    int getOpenFilesCount();
+
+    /**
+     * @return the number of unused files kept open
+     */
+    int getOpenCacheSize();
+
+    /**
+     * @return the number of unused files closed to keep the cache size
+     */
+    long getEvictions();
+
+    /**
+     * @return the median time to get a rrd file, in ms
+     */
+    double getAcquireLatencyP50();
+
+    /**
+     * @return the 99th percentile of the time to get a rrd file, in ms
+     */
+    double getAcquireLatencyP99();
+}
@@ -0,0 +1,95 @@
+package jrds.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import jrds.Util;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A sidecar file in a host directory, that keeps the fingerprint of the
+ * definition of each rrd file already checked. If the definition and the file
+ * size did not change, the file don't need to be opened again at startup.
+ */
+final class RrdDefIndex {
+    static final private Logger logger = Logger.getLogger(RrdDefIndex.class);
+    static final String FILENAME = ".rrddefs";
+
+    private final File indexFile;
+    private final Properties entries = new Properties();
+
+    RrdDefIndex(File dir) {
+        indexFile = new File(dir, FILENAME);
+        if(indexFile.isFile()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(indexFile);
+                entries.load(in);
+            } catch (IOException e) {
+                // A broken index only means that files will be checked again
+                logger.warn(Util.delayedFormatString("Unable to read rrd definitions index %s: %s", indexFile, e.getMessage()));
+                entries.clear();
+            } finally {
+                close(in);
+            }
+        }
+    }
+
+    /**
+     * @param rrdFile
+     * @param fingerprint the fingerprint of the expected definition
+     * @return true if the file was already checked with this definition
+     */
+    synchronized boolean isValid(File rrdFile, String fingerprint) {
+        String entry = entries.getProperty(rrdFile.getName());
+        return entry != null && rrdFile.isFile() && entry.equals(fingerprint + ":" + rrdFile.length());
+    }
+
+    synchronized void validate(File rrdFile, String fingerprint) {
+        String entry = fingerprint + ":" + rrdFile.length();
+        if(!entry.equals(entries.setProperty(rrdFile.getName(), entry))) {
+            save();
+        }
+    }
+
+    synchronized void invalidate(File rrdFile) {
+        if(entries.remove(rrdFile.getName()) != null) {
+            save();
+        }
+    }
+
+    private void save() {
+        File tmpFile = new File(indexFile.getParentFile(), FILENAME + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile);
+            entries.store(out, null);
+            out.close();
+            out = null;
+            if(!tmpFile.renameTo(indexFile) && !(indexFile.delete() && tmpFile.renameTo(indexFile))) {
+                throw new IOException("Could not rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            logger.warn(Util.delayedFormatString("Unable to save rrd definitions index %s: %s", indexFile, e.getMessage()));
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable c) {
+        if(c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+}
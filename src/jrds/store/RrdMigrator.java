@@ -0,0 +1,219 @@
+package jrds.store;
+
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jrds.Util;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Run the migrations of rrd files in background threads.
+ * <p>
+ * A migration returns the number of bytes it read and written, or a negative
+ * value if it failed. The I/O rate is limited by making the migrations wait
+ * when the budget is exceeded. A migration should charge its I/O with
+ * {@link #throttle(long)} while it copies, the bytes it did not charge are
+ * charged once it's finished. A file is queued only once, until its migration
+ * is finished.
+ */
+public class RrdMigrator implements RrdMigratorMBean {
+    static final private Logger logger = Logger.getLogger(RrdMigrator.class);
+
+    private final int threads;
+    private final long rate;
+    private ThreadPoolExecutor executor = null;
+    private final Set<String> queued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong done = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong bytes = new AtomicLong(0);
+    // Used for the ETA, reset each time the queue was empty
+    private long batchStart = 0;
+    private long batchFinished = 0;
+    // When the I/O budget will be available again, in ms
+    private long nextSlot = 0;
+    // The bytes charged by the migration running in the current thread
+    private final ThreadLocal<AtomicLong> charged = new ThreadLocal<AtomicLong>() {
+        @Override
+        protected AtomicLong initialValue() {
+            return new AtomicLong(0);
+        }
+    };
+
+    /**
+     * @param threads the number of migrations that can run at the same time
+     * @param rate the I/O budget in bytes/s, 0 for no limit
+     */
+    public RrdMigrator(int threads, long rate) {
+        this.threads = Math.max(1, threads);
+        this.rate = Math.max(0, rate);
+    }
+
+    /**
+     * Queue a migration
+     *
+     * @param path the file migrated
+     * @param migration
+     * @return false if the file is already queued or the migrator is stopped
+     */
+    public synchronized boolean submit(final String path, final Callable<Long> migration) {
+        if(!queued.add(path)) {
+            logger.debug(Util.delayedFormatString("Migration of %s already queued", path));
+            return false;
+        }
+        if(queued.size() == 1) {
+            batchStart = System.currentTimeMillis();
+            batchFinished = 0;
+        }
+        if(executor == null) {
+            final AtomicInteger counter = new AtomicInteger(0);
+            executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RrdMigrator" + counter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    migrate(path, migration);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.remove(path);
+            logger.warn(Util.delayedFormatString("Migration of %s refused, the migrator is stopping", path));
+            return false;
+        }
+        return true;
+    }
+
+    private void migrate(String path, Callable<Long> migration) {
+        charged.get().set(0);
+        try {
+            long size = migration.call();
+            if(size >= 0) {
+                done.incrementAndGet();
+                bytes.addAndGet(size);
+                throttle(size - charged.get().get());
+            } else {
+                failed.incrementAndGet();
+            }
+        } catch (InterruptedException | InterruptedIOException e) {
+            failed.incrementAndGet();
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            logger.error(Util.delayedFormatString("Migration of %s failed: %s", path, e), e);
+        } finally {
+            synchronized (this) {
+                queued.remove(path);
+                batchFinished++;
+            }
+        }
+    }
+
+    /**
+     * Reserve the time needed by some I/O inside the budget, and wait for the
+     * reservation to end. It's called by a migration for each part it copies.
+     *
+     * @param size the number of bytes used
+     * @throws InterruptedException
+     */
+    public void throttle(long size) throws InterruptedException {
+        charged.get().addAndGet(size);
+        if(rate == 0 || size <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            nextSlot = Math.max(now, nextSlot) + size * 1000 / rate;
+            wait = nextSlot - now;
+        }
+        if(wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * Wait for all the queued migrations to be done.
+     *
+     * @throws InterruptedException
+     */
+    public void waitMigrations() throws InterruptedException {
+        ThreadPoolExecutor running;
+        synchronized (this) {
+            running = executor;
+            executor = null;
+        }
+        if(running != null) {
+            running.shutdown();
+            running.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the running migrations, the files not migrated are left untouched
+     */
+    public void stop() {
+        ThreadPoolExecutor running;
+        synchronized (this) {
+            running = executor;
+            executor = null;
+        }
+        if(running != null) {
+            running.shutdownNow();
+        }
+    }
+
+    @Override
+    public int getPending() {
+        return queued.size();
+    }
+
+    @Override
+    public long getDone() {
+        return done.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getRate() {
+        return rate;
+    }
+
+    @Override
+    public synchronized long getEta() {
+        int pending = queued.size();
+        if(pending == 0) {
+            return 0;
+        }
+        if(batchFinished == 0) {
+            return -1;
+        }
+        long elapsed = System.currentTimeMillis() - batchStart;
+        return elapsed * pending / batchFinished / 1000;
+    }
+
+}
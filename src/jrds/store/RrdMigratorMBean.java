@@ -0,0 +1,34 @@
+package jrds.store;
+
+public interface RrdMigratorMBean {
+    /**
+     * @return the number of migrations waiting or running
+     */
+    int getPending();
+
+    /**
+     * @return the number of migrations done
+     */
+    long getDone();
+
+    /**
+     * @return the number of migrations failed
+     */
+    long getFailed();
+
+    /**
+     * @return the number of bytes read and written by the migrations
+     */
+    long getBytes();
+
+    /**
+     * @return the I/O budget, in bytes/s, 0 if unlimited
+     */
+    long getRate();
+
+    /**
+     * @return the estimated time to finish the pending migrations, in
+     *         seconds, -1 if unknown
+     */
+    long getEta();
+}
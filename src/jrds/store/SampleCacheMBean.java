@@ -4,4 +4,17 @@ import java.util.Map;
 
 public interface SampleCacheMBean {
     Map<String, Number> getValues(String host, String probe);
+
+    /**
+     * @param host
+     * @return the last values of all the probes of a host, by probe name
+     */
+    Map<String, Map<String, Number>> getHostValues(String host);
+
+    /**
+     * @param tag
+     * @return the last values of all the probes with a tag, by probe
+     *         qualified name
+     */
+    Map<String, Map<String, Number>> getTagValues(String tag);
 }
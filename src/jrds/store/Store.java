@@ -1,5 +1,6 @@
 package jrds.store;
 
+import java.io.IOException;
 import java.util.Date;
 import java.util.Map;
 
@@ -8,6 +9,7 @@ import jrds.JrdsSample;
 
 public interface Store {
     public void commit(JrdsSample sample);
+    public void write(JrdsSample sample) throws IOException;
     public Map<String, Number> getLastValues();
     public boolean checkStoreFile(ArchivesSet archives);
     public Date getLastUpdate();
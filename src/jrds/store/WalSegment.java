@@ -0,0 +1,259 @@
+package jrds.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A segment of the samples write-ahead log. It's a memory mapped file, each
+ * record is written as:
+ * <ul>
+ * <li>the length of the data, as an int;</li>
+ * <li>the CRC32 of the data, as an int;</li>
+ * <li>the data: the probe name, the time in ms and the values.</li>
+ * </ul>
+ * A null length marks the end of the segment.
+ * <p>
+ * The segment can be deleted when it's closed and all the records it
+ * contains have been acknowledged.
+ */
+class WalSegment {
+    static private final Logger logger = Logger.getLogger(WalSegment.class);
+
+    static final String SUFFIX = ".wal";
+    // length and CRC
+    static final int HEADERSIZE = 8;
+
+    /**
+     * A sample read from a segment
+     */
+    static final class Record {
+        final String probe;
+        final Date time;
+        final Map<String, Number> values;
+        final WalSegment segment;
+
+        Record(String probe, Date time, Map<String, Number> values, WalSegment segment) {
+            this.probe = probe;
+            this.time = time;
+            this.values = values;
+            this.segment = segment;
+        }
+    }
+
+    private final File file;
+    private MappedByteBuffer buffer;
+    private int appended = 0;
+    private int acknowledged = 0;
+    private boolean closed = false;
+
+    private WalSegment(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Create a new empty segment
+     *
+     * @param file
+     * @param size the size of the segment
+     * @return the segment
+     * @throws IOException
+     */
+    static WalSegment create(File file, int size) throws IOException {
+        WalSegment segment = new WalSegment(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            segment.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping stays valid
+            raf.close();
+        }
+        return segment;
+    }
+
+    /**
+     * Read all the valid records of an existing segment, the segment is closed
+     *
+     * @param file
+     * @param records the records read are added to this list
+     * @return the segment
+     * @throws IOException
+     */
+    static WalSegment recover(File file, List<Record> records) throws IOException {
+        WalSegment segment = new WalSegment(file);
+        segment.closed = true;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer content;
+        try {
+            content = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        CRC32 crc = new CRC32();
+        try {
+            while(content.remaining() >= HEADERSIZE) {
+                int length = content.getInt();
+                int checksum = content.getInt();
+                if(length <= 0 || length > content.remaining()) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                content.get(data);
+                crc.reset();
+                crc.update(data);
+                if((int) crc.getValue() != checksum) {
+                    logger.warn("Corrupted record in " + file + ", ignoring the remaining");
+                    break;
+                }
+                records.add(decode(data, segment));
+                segment.appended++;
+            }
+        } catch (BufferUnderflowException e) {
+            logger.warn("Truncated segment " + file);
+        }
+        return segment;
+    }
+
+    /**
+     * Append a record
+     *
+     * @param probe the name of the probe
+     * @param time the time of the sample
+     * @param values the values of the sample
+     * @return false if the segment is full, the record was not written
+     * @throws IOException
+     */
+    synchronized boolean append(String probe, Date time, Map<String, Number> values) throws IOException {
+        byte[] data = encode(probe, time, values);
+        // keep room for the end mark
+        if(closed || buffer.remaining() < data.length + HEADERSIZE + 4) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        // The length is written last, so a partial record is not seen
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(data);
+        buffer.putInt(start, data.length);
+        appended++;
+        return true;
+    }
+
+    /**
+     * Force the content to the disk
+     */
+    synchronized void sync() {
+        if(buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * No more records will be added
+     *
+     * @return true if the segment was deleted
+     */
+    synchronized boolean close() {
+        closed = true;
+        buffer = null;
+        return release();
+    }
+
+    /**
+     * A record of this segment has been written in it's store
+     *
+     * @return true if the segment was deleted
+     */
+    synchronized boolean ack() {
+        acknowledged++;
+        return release();
+    }
+
+    private boolean release() {
+        if(closed && acknowledged >= appended) {
+            if(file.exists() && !file.delete()) {
+                logger.error("Unable to delete WAL segment " + file);
+                return false;
+            }
+            logger.debug("WAL segment " + file + " released");
+            return true;
+        }
+        return false;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    private static byte[] encode(String probe, Date time, Map<String, Number> values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(probe);
+        out.writeLong(time.getTime());
+        out.writeShort(values.size());
+        for(Map.Entry<String, Number> e: values.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeDouble(e.getValue().doubleValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Record decode(byte[] data, WalSegment segment) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        String probe = in.readUTF();
+        Date time = new Date(in.readLong());
+        int count = in.readShort();
+        Map<String, Number> values = new LinkedHashMap<String, Number>(count);
+        for(int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            values.put(name, in.readDouble());
+        }
+        return new Record(probe, time, values, segment);
+    }
+
+    /**
+     * @param dir the WAL directory
+     * @return the existing segments, oldest first
+     */
+    static List<File> list(File dir) {
+        List<File> segments = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if(files == null) {
+            return segments;
+        }
+        for(File f: files) {
+            if(f.isFile() && f.getName().endsWith(SUFFIX)) {
+                segments.add(f);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+
+}
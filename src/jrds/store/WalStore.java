@@ -0,0 +1,95 @@
+package jrds.store;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+
+import jrds.ArchivesSet;
+import jrds.JrdsSample;
+import jrds.Probe;
+
+/**
+ * A store that logs the samples in the write-ahead log of it's factory before
+ * giving them to the real store. All the other operations are delegated to the
+ * real store.
+ */
+public class WalStore extends AbstractStore<Object> {
+    private final Store store;
+    private final WalStoreFactory factory;
+    private volatile boolean replayed = false;
+
+    public WalStore(Probe<?, ?> p, Store store, WalStoreFactory factory) {
+        super(p);
+        this.store = store;
+        this.factory = factory;
+    }
+
+    @Override
+    public void commit(JrdsSample sample) {
+        factory.append(this, sample);
+    }
+
+    @Override
+    public void write(JrdsSample sample) throws IOException {
+        store.write(sample);
+    }
+
+    @Override
+    public Map<String, Number> getLastValues() {
+        return store.getLastValues();
+    }
+
+    @Override
+    public boolean checkStoreFile(ArchivesSet archives) {
+        return store.checkStoreFile(archives);
+    }
+
+    @Override
+    public Date getLastUpdate() {
+        return store.getLastUpdate();
+    }
+
+    @Override
+    public Object getStoreObject() {
+        return store.getStoreObject();
+    }
+
+    @Override
+    public void closeStoreObject(Object object) {
+        store.closeStoreObject(object);
+    }
+
+    @Override
+    public Extractor getExtractor() {
+        return store.getExtractor();
+    }
+
+    @Override
+    public String getPath() {
+        return store.getPath();
+    }
+
+    /**
+     * @return the real store
+     */
+    public Store getStore() {
+        return store;
+    }
+
+    String getProbeName() {
+        return p.getQualifiedName();
+    }
+
+    JrdsSample newSample() {
+        return p.newSample();
+    }
+
+    boolean isReplayed() {
+        return replayed;
+    }
+
+    void setReplayed() {
+        replayed = true;
+    }
+
+}
@@ -0,0 +1,359 @@
+package jrds.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import jrds.JrdsSample;
+import jrds.Probe;
+import jrds.PropertiesManager;
+import jrds.Util;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * A store factory that protects the samples of another store with a
+ * write-ahead log. The samples are appended to a memory mapped segment file
+ * and the collect continues, a writer thread then gives them to the real
+ * store. If jrds is stopped before they are written, they are read again at
+ * the next start and given to the store of their probe.
+ * <p>
+ * It's configured with the following properties:
+ * <ul>
+ * <li>backend: the class of the real store factory, default to
+ * {@link RrdDbStoreFactory}, it get all the properties;</li>
+ * <li>walDir: the directory for the segments files, default to wal in the rrd
+ * directory;</li>
+ * <li>segmentSize: the size of a segment file, default to 16MB;</li>
+ * <li>sync: force each sample to the disk, default to false, so samples are
+ * safe if the JVM crashes, but not if the OS crashes.</li>
+ * </ul>
+ * A sample is acknowledged once the real store wrote it, it's given with
+ * {@link Store#write(JrdsSample)} so the store reports it's failures. If the
+ * store fails, the sample is tried again a few times, then it's kept in the
+ * log and replayed at the next start. A replayed sample that still can't be
+ * written is dropped. The samples found in the log for probes that don't exist any more
+ * are dropped too.
+ */
+public class WalStoreFactory extends AbstractStoreFactory<WalStore> {
+    static private final Logger logger = Logger.getLogger(WalStoreFactory.class);
+
+    static final long RETRYDELAY = 5000;
+    static final int MAXATTEMPTS = 3;
+
+    private static final class Entry {
+        final WalStore store;
+        final JrdsSample sample;
+        final WalSegment segment;
+        final boolean recovered;
+        int attempts = 0;
+
+        Entry(WalStore store, JrdsSample sample, WalSegment segment, boolean recovered) {
+            this.store = store;
+            this.sample = sample;
+            this.segment = segment;
+            this.recovered = recovered;
+        }
+    }
+
+    private static final Entry END = new Entry(null, null, null, false);
+
+    private StoreFactory backend;
+    private File walDir;
+    private int segmentSize = 16 * 1024 * 1024;
+    private boolean sync = false;
+
+    private final BlockingQueue<Entry> pending = new LinkedBlockingQueue<Entry>();
+    // The probes with a store, the records of the other ones are dropped
+    private final Set<String> known = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private Map<String, List<WalSegment.Record>> recovered = null;
+    private WalSegment current = null;
+    private long sequence = 0;
+    private Thread writer = null;
+
+    @Override
+    public void configureStore(PropertiesManager pm, Properties props) {
+        super.configureStore(pm, props);
+        String backendName = props.getProperty("backend", RrdDbStoreFactory.class.getName());
+        try {
+            backend = (StoreFactory) pm.extensionClassLoader.loadClass(backendName).getConstructor().newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to configure WalStoreFactory:" + e.getMessage(), e);
+        }
+        backend.configureStore(pm, props);
+
+        String walDirName = props.getProperty("walDir");
+        if(walDirName != null) {
+            walDir = new File(walDirName);
+        } else {
+            walDir = new File(pm.rrddir != null ? pm.rrddir : pm.tmpdir, "wal");
+        }
+        segmentSize = Util.parseStringNumber(props.getProperty("segmentSize"), segmentSize);
+        sync = pm.parseBoolean(props.getProperty("sync", "false"));
+        logger.debug(Util.delayedFormatString("WAL in %s, protecting %s", walDir, backendName));
+    }
+
+    @Override
+    public synchronized void start() {
+        backend.start();
+        if(writer != null) {
+            return;
+        }
+        if(!walDir.isDirectory() && !walDir.mkdirs()) {
+            throw new RuntimeException("Failed to configure WalStoreFactory: can't create " + walDir);
+        }
+        writer = new Thread("WalWriter") {
+            @Override
+            public void run() {
+                try {
+                    writeLoop();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public WalStore create(Probe<?, ?> p) {
+        WalStore store = new WalStore(p, backend.create(p), this);
+        known.add(store.getProbeName());
+        return store;
+    }
+
+    @Override
+    public WalStore configure(Probe<?, ?> p, Map<String, String> properties) throws InvocationTargetException {
+        WalStore store = new WalStore(p, backend.configure(p, properties), this);
+        known.add(store.getProbeName());
+        return store;
+    }
+
+    @Override
+    public void stop() {
+        Thread oldWriter;
+        synchronized (this) {
+            oldWriter = writer;
+            writer = null;
+        }
+        if(oldWriter != null) {
+            // All the samples are written before stopping
+            pending.add(END);
+            try {
+                oldWriter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if(current != null) {
+                current.close();
+                current = null;
+            }
+        }
+        backend.stop();
+    }
+
+    /**
+     * Append a sample to the log, it will be written later in the store
+     *
+     * @param store
+     * @param sample
+     */
+    synchronized void append(WalStore store, JrdsSample sample) {
+        if(writer == null) {
+            store.getStore().commit(sample);
+            return;
+        }
+        // Old samples are written first
+        if(!store.isReplayed()) {
+            replay(store);
+        }
+        try {
+            String probeName = store.getProbeName();
+            if(current == null || !current.append(probeName, sample.getTime(), sample)) {
+                roll();
+                if(!current.append(probeName, sample.getTime(), sample)) {
+                    throw new IOException("sample too big for a segment");
+                }
+            }
+            if(sync) {
+                current.sync();
+            }
+            pending.add(new Entry(store, sample, current, false));
+        } catch (IOException e) {
+            store.log(Level.ERROR, e, "Unable to log the sample: %s", e);
+            store.getStore().commit(sample);
+        }
+    }
+
+    /**
+     * Queue the samples found in the log for a store
+     */
+    private void replay(WalStore store) {
+        store.setReplayed();
+        if(recovered == null) {
+            recover();
+        }
+        List<WalSegment.Record> records = recovered.remove(store.getProbeName());
+        if(records == null) {
+            return;
+        }
+        store.log(Level.INFO, "Replaying %d samples", records.size());
+        for(WalSegment.Record r: records) {
+            JrdsSample sample = store.newSample();
+            sample.setTime(r.time);
+            sample.putAll(r.values);
+            pending.add(new Entry(store, sample, r.segment, true));
+        }
+    }
+
+    /**
+     * Read the segments not released by the last run. It's done only on the
+     * first sample, so a previous configuration is already stopped and all
+     * the stores are created. The records of unknown probes are acknowledged
+     * at once, or the segments would never be released.
+     */
+    private void recover() {
+        recovered = new HashMap<String, List<WalSegment.Record>>();
+        int count = 0;
+        for(File f: WalSegment.list(walDir)) {
+            try {
+                sequence = Math.max(sequence, Long.parseLong(f.getName().replace(WalSegment.SUFFIX, "")));
+            } catch (NumberFormatException e) {
+            }
+            List<WalSegment.Record> records = new ArrayList<WalSegment.Record>();
+            try {
+                WalSegment segment = WalSegment.recover(f, records);
+                for(WalSegment.Record r: records) {
+                    List<WalSegment.Record> probeRecords = recovered.get(r.probe);
+                    if(probeRecords == null) {
+                        probeRecords = new ArrayList<WalSegment.Record>();
+                        recovered.put(r.probe, probeRecords);
+                    }
+                    probeRecords.add(r);
+                }
+                count += records.size();
+                // Empty segments are deleted
+                segment.close();
+            } catch (IOException e) {
+                logger.error("Unable to read WAL segment " + f + ": " + e, e);
+            }
+        }
+        if(count > 0) {
+            logger.info(Util.delayedFormatString("%d samples for %d probes found in the WAL", count, recovered.size()));
+        }
+        for(String probeName: new ArrayList<String>(recovered.keySet())) {
+            if(known.contains(probeName)) {
+                continue;
+            }
+            List<WalSegment.Record> records = recovered.remove(probeName);
+            logger.warn(Util.delayedFormatString("%d samples dropped for unknown probe %s", records.size(), probeName));
+            for(WalSegment.Record r: records) {
+                r.segment.ack();
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        if(current != null) {
+            current.close();
+        }
+        sequence = Math.max(sequence + 1, System.currentTimeMillis());
+        File segmentFile = new File(walDir, String.format("%020d%s", sequence, WalSegment.SUFFIX));
+        current = WalSegment.create(segmentFile, segmentSize);
+        logger.debug(Util.delayedFormatString("New WAL segment %s", segmentFile));
+    }
+
+    /**
+     * Write the queued samples until stopped. The failed samples are tried
+     * again every {@link #RETRYDELAY} ms, and a last time when stopping.
+     */
+    private void writeLoop() throws InterruptedException {
+        List<Entry> retries = new ArrayList<Entry>();
+        long nextRetry = 0;
+        while(true) {
+            Entry e;
+            if(retries.isEmpty()) {
+                e = pending.take();
+            } else {
+                e = pending.poll(Math.max(0, nextRetry - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            if(e == END) {
+                retry(retries, true);
+                break;
+            }
+            if(e != null && !write(e)) {
+                if(retries.isEmpty()) {
+                    nextRetry = System.currentTimeMillis() + RETRYDELAY;
+                }
+                retries.add(e);
+            }
+            if(!retries.isEmpty() && System.currentTimeMillis() >= nextRetry) {
+                retry(retries, false);
+                nextRetry = System.currentTimeMillis() + RETRYDELAY;
+            }
+        }
+    }
+
+    private void retry(List<Entry> retries, boolean last) {
+        List<Entry> failed = new ArrayList<Entry>(retries);
+        retries.clear();
+        for(Entry e: failed) {
+            if(write(e)) {
+                continue;
+            }
+            if(!last && e.attempts < MAXATTEMPTS) {
+                retries.add(e);
+            } else if(e.recovered && e.attempts >= MAXATTEMPTS) {
+                // It already failed in a previous run, it's lost
+                e.store.log(Level.ERROR, "Sample for %s dropped after %d attempts", e.sample.getTime(), e.attempts);
+                e.segment.ack();
+            } else {
+                e.store.log(Level.ERROR, "Sample for %s kept in the WAL after %d attempts", e.sample.getTime(), e.attempts);
+            }
+        }
+    }
+
+    /**
+     * Write a sample in it's store, it's acknowledged only if it succeeded
+     *
+     * @param e
+     * @return true if the sample is written
+     */
+    private boolean write(Entry e) {
+        e.attempts++;
+        try {
+            // A replayed sample might have been written before the stop
+            if(!e.recovered || e.sample.getTime().after(e.store.getStore().getLastUpdate())) {
+                e.store.getStore().write(e.sample);
+            }
+        } catch (IOException | RuntimeException ex) {
+            e.store.log(Level.ERROR, ex, "Unable to write sample: %s", ex);
+            return false;
+        }
+        e.segment.ack();
+        return true;
+    }
+
+    /**
+     * @return the number of samples waiting to be written
+     */
+    int getPending() {
+        return pending.size();
+    }
+
+}
@@ -1,5 +1,6 @@
 package jrds.webapp;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.text.DateFormat;
@@ -7,20 +8,24 @@ import java.text.FieldPosition;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
 
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import jrds.Period;
 import jrds.Probe;
 import jrds.store.ExtractInfo;
+import jrds.store.Extractor;
 
 import org.apache.log4j.Logger;
 import org.rrd4j.data.DataProcessor;
 
 /**
- * This servlet is used to download the values of a graph as an xml file
+ * This servlet is used to download the values of a graph or a probe, as CSV,
+ * JSON or a binary columnar format. The output is gzip encoded if the client
+ * accepts it.
  *
  * @author Fabrice Bacchella
  */
@@ -28,8 +33,11 @@ import org.rrd4j.data.DataProcessor;
 public class Download extends JrdsServlet {
     static final private Logger logger = Logger.getLogger(Download.class);
     static final String CONTENT_TYPE = "text/csv";
+    static final int BUFFERSIZE = 64 * 1024;
+    // Rows of probe values read at once
+    static final int CHUNKROWS = 4096;
 
-    private static final ThreadLocal<SimpleDateFormat> humanDateFormat = new ThreadLocal<SimpleDateFormat>() {
+    static final ThreadLocal<SimpleDateFormat> humanDateFormat = new ThreadLocal<SimpleDateFormat>() {
         @Override
         protected SimpleDateFormat initialValue() {
             return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -80,7 +88,15 @@ public class Download extends JrdsServlet {
             params = getParamsBean(req);
         }
 
-        DataProcessor sourceDp;
+        String format = params.getValue("format");
+        if(!ExportWriter.isFormat(format)) {
+            logger.error(jrds.Util.delayedFormatString("Invalid format: %s", format));
+            res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        DataProcessor sourceDp = null;
+        Probe<?, ?> probe = null;
         String fileName;
         if("graph".equals(cmd)) {
             jrds.Graph graph = params.getGraph(this);
@@ -99,67 +115,125 @@ public class Download extends JrdsServlet {
 
             try {
                 sourceDp = graph.getDataProcessor();
-                fileName = graph.getPngName().replaceFirst("\\.png", ".csv");
+                fileName = graph.getPngName().replaceFirst("\\.png", "");
             } catch (IOException e) {
                 logger.error("Unable to process graph data");
                 res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 return;
             }
         } else {
-            Probe<?, ?> probe = params.getProbe();
+            probe = params.getProbe();
             if(probe == null) {
                 res.setStatus(HttpServletResponse.SC_NOT_FOUND);
                 return;
             }
-            Period p = params.getPeriod();
-            ExtractInfo ei = ExtractInfo.get().make(p.getBegin(), p.getEnd()).make(probe.getStep());
-            try {
-                sourceDp = probe.extract(ei);
-                fileName = probe.getName().replaceFirst("\\.rrd", ".csv");
-            } catch (IOException e) {
-                logger.error("Unable to process probe data");
-                res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                return;
-            }
+            fileName = probe.getName().replaceFirst("\\.rrd", "");
         }
         try {
-            ServletOutputStream out = res.getOutputStream();
-            res.setContentType(CONTENT_TYPE);
-            res.addHeader("content-disposition", "attachment; filename=" + fileName);
+            OutputStream out = res.getOutputStream();
+            GZIPOutputStream gzipOut = null;
+            if(acceptsGzip(req.getHeader("Accept-Encoding"))) {
+                res.addHeader("Content-Encoding", "gzip");
+                gzipOut = new GZIPOutputStream(out, BUFFERSIZE);
+                out = gzipOut;
+            }
             DateFormat exportDateFormat = humanDateFormat.get();
             if(params.getValue("epoch") != null) {
                 exportDateFormat = epochFormat.get();
             }
-            writeCsv(out, sourceDp, exportDateFormat);
+            ExportWriter writer = ExportWriter.get(format, new BufferedOutputStream(out, BUFFERSIZE), exportDateFormat);
+            res.setContentType(writer.getContentType());
+            res.addHeader("content-disposition", "attachment; filename=" + fileName + writer.getExtension());
+            if(sourceDp != null) {
+                writer.write(sourceDp);
+            } else {
+                Period p = params.getPeriod();
+                writeProbe(writer, probe, p.getBegin(), p.getEnd());
+            }
+            writer.finish();
+            if(gzipOut != null) {
+                gzipOut.finish();
+            }
         } catch (IOException e) {
             logger.warn("Output socket closed");
         }
 
     }
 
-    protected void writeCsv(OutputStream out, DataProcessor dp, DateFormat exportDateFormat) throws IOException {
-        String sources[] = dp.getSourceNames();
-        StringBuilder sourcesline = new StringBuilder();
-        sourcesline.append("Date,");
-        for(String name: sources) {
-            if(!name.startsWith("rev_"))
-                sourcesline.append(name).append(",");
+    /**
+     * Check if the client accepts a gzip encoded response. The q-values are
+     * honoured, so gzip;q=0 refuses it, and * applies if gzip is not listed.
+     * 
+     * @param encodings the Accept-Encoding header, can be null
+     * @return true if the response can be gzip encoded
+     */
+    static boolean acceptsGzip(String encodings) {
+        if(encodings == null) {
+            return false;
         }
-        sourcesline.deleteCharAt(sourcesline.length() - 1);
-        sourcesline.append("\r\n");
-        out.write(sourcesline.toString().getBytes());
-        double[][] values = dp.getValues();
-        long[] ts = dp.getTimestamps();
-        for(int i = 0; i < ts.length; i++) {
-            sourcesline.setLength(0);
-            sourcesline.append(exportDateFormat.format(org.rrd4j.core.Util.getDate(ts[i]))).append(",");
-            for(int j = 0; j < sources.length; j++) {
-                if(!sources[j].startsWith("rev_"))
-                    sourcesline.append(values[j][i]).append(",");
+        float gzip = -1;
+        float any = -1;
+        for(String element: encodings.split(",")) {
+            String[] params = element.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.US);
+            float q = 1;
+            for(int i = 1; i < params.length; i++) {
+                String[] param = params[i].split("=", 2);
+                if(param.length == 2 && "q".equalsIgnoreCase(param[0].trim())) {
+                    try {
+                        q = Float.parseFloat(param[1].trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if("gzip".equals(coding) || "x-gzip".equals(coding)) {
+                gzip = Math.max(gzip, q);
+            } else if("*".equals(coding)) {
+                any = q;
             }
-            sourcesline.deleteCharAt(sourcesline.length() - 1);
-            sourcesline.append("\r\n");
-            out.write(sourcesline.toString().getBytes());
         }
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+
+    /**
+     * Export the values of a probe at full resolution. The values are read
+     * and written by chunks of {@link #CHUNKROWS} rows, so a long period is
+     * never loaded at once.
+     * 
+     * @param writer
+     * @param probe
+     * @param begin
+     * @param end
+     * @throws IOException
+     */
+    void writeProbe(ExportWriter writer, Probe<?, ?> probe, Date begin, Date end) throws IOException {
+        long step = probe.getStep();
+        long last = end.getTime() / 1000;
+        Extractor ex = probe.getMainStore().getExtractor();
+        try {
+            for(String dsName: probe.getPd().getDs()) {
+                ex.addSource(dsName, dsName);
+            }
+            long start = begin.getTime() / 1000;
+            while(start < last) {
+                long stop = Math.min(start + CHUNKROWS * step, last);
+                ExtractInfo ei = ExtractInfo.get().make(new Date(start * 1000), new Date(stop * 1000)).make(step);
+                DataProcessor dp = new DataProcessor(ei.start, ei.end);
+                dp.setStep(step);
+                ex.fill(dp, ei);
+                dp.processData();
+                writer.write(dp);
+                start = stop;
+            }
+        } finally {
+            ex.release();
+        }
+    }
+
+    protected void writeCsv(OutputStream out, DataProcessor dp, DateFormat exportDateFormat) throws IOException {
+        ExportWriter writer = new ExportWriter.Csv(out, exportDateFormat);
+        writer.write(dp);
+        writer.finish();
     }
 }
@@ -0,0 +1,366 @@
+package jrds.webapp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.rrd4j.data.DataProcessor;
+
+/**
+ * Write exported values, in chunks of rows, without building the whole
+ * export in memory. Rows already written are skipped, so consecutive chunks
+ * can overlap.
+ */
+abstract class ExportWriter {
+    static private final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Comma separated values, the first line is the columns names
+     */
+    static final class Csv extends TextWriter {
+        Csv(OutputStream out, DateFormat dateFormat) {
+            super(out, dateFormat);
+        }
+
+        @Override
+        protected void writeHeader(String[] names) throws IOException {
+            line.append("Date");
+            for(String name: names) {
+                line.append(',').append(name);
+            }
+            line.append("\r\n");
+            flushLine();
+        }
+
+        @Override
+        protected void writeRow(long timestamp, double[][] values, int row) throws IOException {
+            appendDate(timestamp);
+            for(double[] column: values) {
+                line.append(',').append(column[row]);
+            }
+            line.append("\r\n");
+            flushLine();
+        }
+
+        @Override
+        protected void writeFooter() {
+        }
+
+        @Override
+        String getContentType() {
+            return "text/csv";
+        }
+
+        @Override
+        String getExtension() {
+            return ".csv";
+        }
+    }
+
+    /**
+     * A JSON object, with the columns names and an array of rows, missing
+     * values are null
+     */
+    static final class Json extends TextWriter {
+        private boolean first = true;
+
+        Json(OutputStream out, DateFormat dateFormat) {
+            super(out, dateFormat);
+        }
+
+        @Override
+        protected void writeHeader(String[] names) throws IOException {
+            line.append("{\"columns\":[\"Date\"");
+            for(String name: names) {
+                line.append(',').append(JSONObject.quote(name));
+            }
+            line.append("],\"rows\":[");
+            flushLine();
+        }
+
+        @Override
+        protected void writeRow(long timestamp, double[][] values, int row) throws IOException {
+            if(!first) {
+                line.append(',');
+            }
+            first = false;
+            line.append("\n[\"");
+            appendDate(timestamp);
+            line.append('"');
+            for(double[] column: values) {
+                double value = column[row];
+                line.append(',');
+                if(Double.isNaN(value) || Double.isInfinite(value)) {
+                    line.append("null");
+                } else {
+                    line.append(value);
+                }
+            }
+            line.append(']');
+            flushLine();
+        }
+
+        @Override
+        protected void writeFooter() throws IOException {
+            line.append("\n]}\n");
+            flushLine();
+        }
+
+        @Override
+        String getContentType() {
+            return "application/json";
+        }
+
+        @Override
+        String getExtension() {
+            return ".json";
+        }
+    }
+
+    /**
+     * A columnar binary format, for tools. All numbers are big endian:
+     * <ul>
+     * <li>the magic bytes <code>JRDS</code> and a version (int, 1),</li>
+     * <li>the columns count (int) and the names (modified UTF-8, as written by
+     * {@link DataOutputStream#writeUTF(String)}),</li>
+     * <li>blocks of rows: a rows count (int), the timestamps in seconds (long),
+     * then each column values (double),</li>
+     * <li>a block of 0 rows ends the data.</li>
+     * </ul>
+     */
+    static final class Binary extends ExportWriter {
+        static final byte[] MAGIC = { 'J', 'R', 'D', 'S' };
+        static final int VERSION = 1;
+        private final DataOutputStream data;
+
+        Binary(OutputStream out) {
+            this.data = new DataOutputStream(out);
+        }
+
+        @Override
+        protected void writeHeader(String[] names) throws IOException {
+            data.write(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(names.length);
+            for(String name: names) {
+                data.writeUTF(name);
+            }
+        }
+
+        @Override
+        protected void writeRows(long[] timestamps, double[][] values, int from, int to) throws IOException {
+            data.writeInt(to - from);
+            for(int i = from; i < to; i++) {
+                data.writeLong(timestamps[i]);
+            }
+            for(double[] column: values) {
+                for(int i = from; i < to; i++) {
+                    data.writeDouble(column[i]);
+                }
+            }
+        }
+
+        @Override
+        protected void writeFooter() throws IOException {
+            data.writeInt(0);
+        }
+
+        @Override
+        protected void flush() throws IOException {
+            data.flush();
+        }
+
+        @Override
+        String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        String getExtension() {
+            return ".bin";
+        }
+    }
+
+    /**
+     * A text format, the lines are build in a reused buffer and written as
+     * UTF-8
+     */
+    abstract static class TextWriter extends ExportWriter {
+        protected final StringBuilder line = new StringBuilder();
+        private final OutputStream out;
+        private final DateFormat dateFormat;
+        private byte[] buffer = new byte[256];
+
+        TextWriter(OutputStream out, DateFormat dateFormat) {
+            this.out = out;
+            this.dateFormat = dateFormat;
+        }
+
+        @Override
+        protected void writeRows(long[] timestamps, double[][] values, int from, int to) throws IOException {
+            for(int i = from; i < to; i++) {
+                writeRow(timestamps[i], values, i);
+            }
+        }
+
+        protected abstract void writeRow(long timestamp, double[][] values, int row) throws IOException;
+
+        protected void appendDate(long timestamp) {
+            line.append(dateFormat.format(org.rrd4j.core.Util.getDate(timestamp)));
+        }
+
+        /**
+         * Write the current line and reset it, lines are usually only ASCII
+         * and copied directly
+         */
+        protected void flushLine() throws IOException {
+            int length = line.length();
+            if(length > buffer.length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            for(int i = 0; i < length; i++) {
+                char c = line.charAt(i);
+                if(c >= 128) {
+                    out.write(line.toString().getBytes(UTF8));
+                    line.setLength(0);
+                    return;
+                }
+                buffer[i] = (byte) c;
+            }
+            out.write(buffer, 0, length);
+            line.setLength(0);
+        }
+
+        @Override
+        protected void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * @param format
+     * @return true if the format is known, null is CSV
+     */
+    static boolean isFormat(String format) {
+        return format == null || "csv".equals(format) || "json".equals(format) || "binary".equals(format);
+    }
+
+    /**
+     * @param format csv, json or binary
+     * @param out
+     * @param dateFormat the format of dates in the text formats
+     * @return a writer or null if the format is unknown
+     */
+    static ExportWriter get(String format, OutputStream out, DateFormat dateFormat) {
+        if(format == null || "csv".equals(format)) {
+            return new Csv(out, dateFormat);
+        } else if("json".equals(format)) {
+            return new Json(out, dateFormat);
+        } else if("binary".equals(format)) {
+            return new Binary(out);
+        } else {
+            return null;
+        }
+    }
+
+    private long last = Long.MIN_VALUE;
+    private String[] sources = null;
+
+    /**
+     * Write the header, using the sources of the data processor, the sources
+     * named rev_* are not exported
+     *
+     * @param sourceNames
+     * @throws IOException
+     */
+    void start(String[] sourceNames) throws IOException {
+        List<String> kept = new ArrayList<String>(sourceNames.length);
+        for(String name: sourceNames) {
+            if(!name.startsWith("rev_")) {
+                kept.add(name);
+            }
+        }
+        sources = kept.toArray(new String[kept.size()]);
+        writeHeader(sources);
+    }
+
+    /**
+     * Write the header, all the columns are kept
+     *
+     * @param names
+     * @throws IOException
+     */
+    void startColumns(String[] names) throws IOException {
+        sources = names;
+        writeHeader(sources);
+    }
+
+    /**
+     * Write the rows of a processed data processor that were not already
+     * written
+     *
+     * @param dp
+     * @throws IOException
+     */
+    void write(DataProcessor dp) throws IOException {
+        if(sources == null) {
+            start(dp.getSourceNames());
+        }
+        double[][] values = new double[sources.length][];
+        for(int i = 0; i < sources.length; i++) {
+            values[i] = dp.getValues(sources[i]);
+        }
+        write(dp.getTimestamps(), values);
+    }
+
+    /**
+     * Write the rows that were not already written, the values are in the
+     * order of the columns given in the header
+     *
+     * @param timestamps
+     * @param values
+     * @throws IOException
+     */
+    void write(long[] timestamps, double[][] values) throws IOException {
+        int from = 0;
+        while(from < timestamps.length && timestamps[from] <= last) {
+            from++;
+        }
+        if(from == timestamps.length) {
+            return;
+        }
+        writeRows(timestamps, values, from, timestamps.length);
+        last = timestamps[timestamps.length - 1];
+    }
+
+    /**
+     * Write the end of the export and flush it
+     *
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        if(sources == null) {
+            writeHeader(new String[] {});
+        }
+        writeFooter();
+        flush();
+    }
+
+    protected abstract void writeHeader(String[] names) throws IOException;
+
+    protected abstract void writeRows(long[] timestamps, double[][] values, int from, int to) throws IOException;
+
+    protected abstract void writeFooter() throws IOException;
+
+    protected abstract void flush() throws IOException;
+
+    abstract String getContentType();
+
+    abstract String getExtension();
+
+}
@@ -1,9 +1,6 @@
 package jrds.webapp;
 
 import java.io.IOException;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.WritableByteChannel;
 import java.util.Date;
 
 import javax.servlet.ServletException;
@@ -80,26 +77,17 @@ public final class Graph extends JrdsServlet {
             String eTagBaseString = getServletName() + graph.hashCode();
             res.addHeader("ETag", Base64.encodeBytes(eTagBaseString.getBytes()));
             ServletOutputStream out = res.getOutputStream();
-            FileChannel indata = hl.getRenderer().sendInfo(graph);
-            // If a cache file exist, try to be smart, but only if caching is
+            byte[] img = cache ? hl.getRenderer().getImage(graph) : null;
+            // If the image is cached, try to be smart, but only if caching is
             // allowed
-            if(indata != null && cache) {
+            if(img != null) {
                 logger.debug(jrds.Util.delayedFormatString("graph %s is cached", graph));
-                if(indata.size() < Integer.MAX_VALUE)
-                    res.setContentLength((int) indata.size());
-                WritableByteChannel outC = Channels.newChannel(out);
-                indata.transferTo(0, indata.size(), outC);
+                res.setContentLength(img.length);
+                out.write(img);
             } else {
                 logger.debug(jrds.Util.delayedFormatString("graph %s not found in cache", graph));
                 graph.writePng(out);
             }
-            if(indata != null) {
-                try {
-                    indata.close();
-                } catch (IOException e) {
-                    logger.error("failed to close cache file: " + e.getMessage());;
-                }
-            }
 
             if(logger.isTraceEnabled()) {
                 jrds.GraphNode node = hl.getGraphById(p.getId());
@@ -49,24 +49,28 @@ public class JSonGraph extends JSonData {
                 if(!gn.getACL().check(params))
                     continue;
                 if(params.isHistory()) {
+                    // Only the first period is visible when the page is
+                    // opened
+                    int priority = Renderer.VISIBLE;
                     for(int p: periodHistory) {
                         params.setScale(p);
-                        doGraph(gn, r, params, w);
+                        doGraph(gn, r, params, w, priority);
+                        priority = Renderer.PREFETCH;
                     }
                 } else {
-                    doGraph(gn, r, params, w);
+                    doGraph(gn, r, params, w, Renderer.VISIBLE);
                 }
             }
         }
         return true;
     }
 
-    private void doGraph(GraphNode gn, Renderer r, ParamsBean params, JrdsJSONWriter w) throws IOException {
+    private void doGraph(GraphNode gn, Renderer r, ParamsBean params, JrdsJSONWriter w, int priority) throws IOException {
         jrds.Graph graph = gn.getGraph();
         params.configureGraph(graph);
 
         Map<String, Object> imgProps = new HashMap<String, Object>();
-        r.render(graph);
+        r.render(graph, priority);
         Probe<?, ?> p = gn.getProbe();
         imgProps.put("probename", p.getName());
         imgProps.put("qualifiedname", graph.getQualifiedName());
@@ -0,0 +1,377 @@
+package jrds.webapp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import jrds.Filter;
+import jrds.FilterTag;
+import jrds.GraphNode;
+import jrds.HostsList;
+import jrds.Period;
+import jrds.Probe;
+import jrds.store.ExtractInfo;
+import jrds.store.Extractor;
+
+import org.apache.log4j.Logger;
+import org.rrd4j.data.DataProcessor;
+
+/**
+ * A servlet that returns the values of many probes in one response, on a
+ * shared time axis. The probes are read in parallel.
+ * <p>
+ * The arguments can be:
+ * <ul>
+ * <li>p: a selector, <em>host</em>/<em>probe</em> or
+ * <em>host</em>/<em>probe</em>/<em>datastore</em>, it can be repeated.</li>
+ * <li>filter: the name of a filter, all the probes of the accepted graphs are
+ * used.</li>
+ * <li>tag: a host tag, all the probes of the tagged hosts are used.</li>
+ * <li>begin, end or scale: the period, as for the graphs.</li>
+ * <li>step: the step of the time axis, in seconds, default to the largest
+ * step of the probes.</li>
+ * <li>format: json (the default), binary or csv, as for {@link Download}.</li>
+ * <li>epoch: dates are given as seconds since the epoch.</li>
+ * </ul>
+ * The columns are named <em>host</em>/<em>probe</em>/<em>datastore</em>. A
+ * probe that can't be read gives missing values.
+ */
+public class Query extends JrdsServlet {
+    static final private Logger logger = Logger.getLogger(Query.class);
+
+    /**
+     * The datastores read from one probe
+     */
+    static final class Selection {
+        final Probe<?, ?> probe;
+        final List<String> dsNames = new ArrayList<String>();
+        boolean all = false;
+
+        Selection(Probe<?, ?> probe) {
+            this.probe = probe;
+        }
+
+        List<String> getDsNames() {
+            if(all) {
+                return new ArrayList<String>(probe.getPd().getDs());
+            } else {
+                return dsNames;
+            }
+        }
+    }
+
+    /**
+     * The values of a probe for a window
+     */
+    static final class Block {
+        final long[] timestamps;
+        final double[][] values;
+
+        Block(long[] timestamps, double[][] values) {
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+    }
+
+    private ExecutorService fetchers = null;
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        final AtomicInteger counter = new AtomicInteger(0);
+        fetchers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "QueryFetcher" + counter.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        fetchers.shutdownNow();
+        super.destroy();
+    }
+
+    public void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+        HostsList hl = getHostsList();
+        ParamsBean params = getParamsBean(req);
+
+        String format = params.getValue("format");
+        if(format == null) {
+            format = "json";
+        }
+        if(!ExportWriter.isFormat(format)) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid format: " + format);
+            return;
+        }
+
+        Map<Probe<?, ?>, Selection> selections = new LinkedHashMap<Probe<?, ?>, Selection>();
+
+        String[] selectors = req.getParameterValues("p");
+        if(selectors != null && selectors.length > 0) {
+            if(!allowed(params, getPropertiesManager().defaultRoles)) {
+                res.setStatus(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+            for(String selector: selectors) {
+                String[] path = selector.split("/");
+                if(path.length != 2 && path.length != 3) {
+                    res.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid selector: " + selector);
+                    return;
+                }
+                Probe<?, ?> p = hl.getProbeByPath(path[0], path[1]);
+                if(p == null) {
+                    res.sendError(HttpServletResponse.SC_NOT_FOUND, "No matching probe: " + selector);
+                    return;
+                }
+                // The probe is readable if one of it's graphs is
+                if(getPropertiesManager().security && !readable(p, params)) {
+                    res.setStatus(HttpServletResponse.SC_FORBIDDEN);
+                    return;
+                }
+                if(path.length == 3 && !p.getPd().getDs().contains(path[2])) {
+                    res.sendError(HttpServletResponse.SC_NOT_FOUND, "No matching datastore: " + selector);
+                    return;
+                }
+                Selection s = select(selections, p);
+                if(path.length == 2) {
+                    s.all = true;
+                } else if(!s.dsNames.contains(path[2])) {
+                    s.dsNames.add(path[2]);
+                }
+            }
+        }
+
+        Filter filter = null;
+        String tag = params.getValue("tag");
+        if(tag != null && !"".equals(tag)) {
+            filter = new FilterTag(tag);
+        } else if(params.getValue("filter") != null) {
+            filter = params.getFilter();
+            if(filter == null) {
+                res.sendError(HttpServletResponse.SC_NOT_FOUND, "No matching filter: " + params.getValue("filter"));
+                return;
+            }
+        }
+        if(filter != null) {
+            if(!allowed(params, filter.getACL(), req, res)) {
+                return;
+            }
+            for(GraphNode gn: hl.getGraphs(filter)) {
+                Probe<?, ?> p = gn.getProbe();
+                // Only collected probes can be read
+                if(p == null || hl.getProbeByName(p.getQualifiedName()) != p) {
+                    continue;
+                }
+                if(getPropertiesManager().security && !gn.getACL().check(params)) {
+                    continue;
+                }
+                select(selections, p).all = true;
+            }
+        }
+
+        if(selectors == null && filter == null) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, "No probe selected");
+            return;
+        }
+
+        long step = jrds.Util.parseStringNumber(params.getValue("step"), 0L);
+        if(step <= 0) {
+            step = hl.getStep();
+            for(Probe<?, ?> p: selections.keySet()) {
+                step = Math.max(step, p.getStep());
+            }
+        }
+
+        List<Selection> todo = new ArrayList<Selection>(selections.values());
+        List<String> columns = new ArrayList<String>();
+        for(Selection s: todo) {
+            for(String dsName: s.getDsNames()) {
+                columns.add(s.probe.getQualifiedName() + "/" + dsName);
+            }
+        }
+
+        OutputStream out = res.getOutputStream();
+        GZIPOutputStream gzipOut = null;
+        if(Download.acceptsGzip(req.getHeader("Accept-Encoding"))) {
+            res.addHeader("Content-Encoding", "gzip");
+            gzipOut = new GZIPOutputStream(out, Download.BUFFERSIZE);
+            out = gzipOut;
+        }
+        DateFormat exportDateFormat = Download.humanDateFormat.get();
+        if(params.getValue("epoch") != null) {
+            exportDateFormat = Download.epochFormat.get();
+        }
+        ExportWriter writer = ExportWriter.get(format, new BufferedOutputStream(out, Download.BUFFERSIZE), exportDateFormat);
+        res.setContentType(writer.getContentType());
+        res.addHeader("Cache-Control", "no-cache");
+
+        Period period = params.getPeriod();
+        try {
+            writer.startColumns(columns.toArray(new String[columns.size()]));
+            write(writer, todo, columns.size(), period.getBegin(), period.getEnd(), step);
+            writer.finish();
+            if(gzipOut != null) {
+                gzipOut.finish();
+            }
+        } catch (IOException e) {
+            logger.warn("Output socket closed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean readable(Probe<?, ?> p, ParamsBean params) {
+        for(GraphNode gn: p.getGraphList()) {
+            if(gn.getACL().check(params)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Selection select(Map<Probe<?, ?>, Selection> selections, Probe<?, ?> p) {
+        Selection s = selections.get(p);
+        if(s == null) {
+            s = new Selection(p);
+            selections.put(p, s);
+        }
+        return s;
+    }
+
+    /**
+     * Write the values of the selected probes, by windows of
+     * {@link Download#CHUNKROWS} rows. In each window, the probes are read in
+     * parallel and their values are aligned on the time axis of the first
+     * one.
+     *
+     * @param writer
+     * @param todo
+     * @param columnsCount
+     * @param begin
+     * @param end
+     * @param step
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void write(ExportWriter writer, List<Selection> todo, int columnsCount, Date begin, Date end, final long step) throws IOException, InterruptedException {
+        if(todo.isEmpty()) {
+            return;
+        }
+        long last = end.getTime() / 1000;
+        long start = begin.getTime() / 1000 / step * step;
+        List<Future<Block>> blocks = new ArrayList<Future<Block>>(todo.size());
+        try {
+            while(start < last) {
+                long stop = Math.min(start + Download.CHUNKROWS * step, last);
+                final ExtractInfo ei = ExtractInfo.get().make(new Date(start * 1000), new Date(stop * 1000)).make(step);
+                blocks.clear();
+                for(final Selection s: todo) {
+                    blocks.add(fetchers.submit(new Callable<Block>() {
+                        public Block call() throws Exception {
+                            return fetch(s, ei, step);
+                        }
+                    }));
+                }
+                long[] axis = null;
+                double[][] values = new double[columnsCount][];
+                int column = 0;
+                for(int i = 0; i < todo.size(); i++) {
+                    Selection s = todo.get(i);
+                    int width = s.getDsNames().size();
+                    Block block = null;
+                    try {
+                        block = blocks.get(i).get();
+                    } catch (ExecutionException e) {
+                        logger.error(jrds.Util.delayedFormatString("Unable to read %s: %s", s.probe, e.getCause()));
+                    }
+                    if(axis == null && block != null) {
+                        axis = block.timestamps;
+                    }
+                    for(int j = 0; j < width; j++) {
+                        values[column++] = block != null ? align(axis, block.timestamps, block.values[j]) : null;
+                    }
+                }
+                if(axis != null) {
+                    for(int j = 0; j < values.length; j++) {
+                        if(values[j] == null) {
+                            values[j] = new double[axis.length];
+                            Arrays.fill(values[j], Double.NaN);
+                        }
+                    }
+                    writer.write(axis, values);
+                }
+                start = stop;
+            }
+        } finally {
+            for(Future<Block> f: blocks) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    private Block fetch(Selection s, ExtractInfo ei, long step) {
+        List<String> dsNames = s.getDsNames();
+        Extractor ex = s.probe.getMainStore().getExtractor();
+        try {
+            for(String dsName: dsNames) {
+                ex.addSource(dsName, dsName);
+            }
+            DataProcessor dp = new DataProcessor(ei.start, ei.end);
+            dp.setStep(step);
+            ex.fill(dp, ei);
+            dp.processData();
+            double[][] values = new double[dsNames.size()][];
+            for(int i = 0; i < values.length; i++) {
+                values[i] = dp.getValues(dsNames.get(i));
+            }
+            return new Block(dp.getTimestamps(), values);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            ex.release();
+        }
+    }
+
+    /**
+     * Align values on a time axis, the missing timestamps are NaN
+     *
+     * @param axis
+     * @param timestamps
+     * @param values
+     * @return
+     */
+    static double[] align(long[] axis, long[] timestamps, double[] values) {
+        if(Arrays.equals(axis, timestamps)) {
+            return values;
+        }
+        double[] aligned = new double[axis.length];
+        for(int i = 0; i < axis.length; i++) {
+            int found = Arrays.binarySearch(timestamps, axis[i]);
+            aligned[i] = found >= 0 ? values[found] : Double.NaN;
+        }
+        return aligned;
+    }
+
+}
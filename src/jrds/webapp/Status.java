@@ -16,6 +16,8 @@ import jrds.HostInfo;
 import jrds.HostsList;
 import jrds.starter.Timer;
 import jrds.starter.Timer.Stats;
+import jrds.store.RrdDbStoreFactory;
+import jrds.store.RrdMigrator;
 
 /**
  * A few stats for jrds inner status
@@ -53,6 +55,10 @@ public class Status extends JrdsServlet {
                 // No that's false, it's always supported
             }
         }
+        RrdMigrator migrator = null;
+        if(getPropertiesManager().defaultStore instanceof RrdDbStoreFactory) {
+            migrator = ((RrdDbStoreFactory) getPropertiesManager().defaultStore).getMigrator();
+        }
 
         if(params.getValue("json") != null) {
             JrdsJSONWriter writer = new JrdsJSONWriter(res);
@@ -72,6 +78,16 @@ public class Status extends JrdsServlet {
                 }
                 writer.endArray();
                 writer.key("Generation").value(generation);
+                if(migrator != null) {
+                    writer.key("Migrations");
+                    writer.object();
+                    writer.key("Pending").value(migrator.getPending());
+                    writer.key("Done").value(migrator.getDone());
+                    writer.key("Failed").value(migrator.getFailed());
+                    writer.key("Bytes").value(migrator.getBytes());
+                    writer.key("ETA").value(migrator.getEta());
+                    writer.endObject();
+                }
                 writer.endObject();
                 writer.flush();
             } catch (JSONException e) {
@@ -88,6 +104,14 @@ public class Status extends JrdsServlet {
                 writer.println("    Last collect: " + lastCollectAgo + "s ago (" + lastCollectAgo + ")");
                 writer.println("    Last running duration: " + e.getValue().runtime / 1000 + "s");
             }
+            if(migrator != null) {
+                writer.println("Store migrations:");
+                writer.println("    Pending: " + migrator.getPending());
+                writer.println("    Done: " + migrator.getDone() + " (" + migrator.getBytes() / 1024 / 1024 + "MB)");
+                writer.println("    Failed: " + migrator.getFailed());
+                long eta = migrator.getEta();
+                writer.println("    ETA: " + (eta >= 0 ? eta + "s" : "unknown"));
+            }
             writer.flush();
         }
     }